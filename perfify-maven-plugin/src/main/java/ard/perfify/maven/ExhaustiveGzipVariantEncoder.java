@@ -0,0 +1,133 @@
+package ard.perfify.maven;
+
+import ard.perfify.compress.GzipVariantEncoder;
+import ard.perfify.maven.zopfli.ZopfliDeflater;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes gzip variants with the {@link ZopfliDeflater} optimal parser, trading around 100 times the CPU of the JDK
+ * deflater for a 3-8% smaller output that any gzip decoder reads. The JDK result at the maximum compression level is
+ * kept whenever it is smaller, or when the per resource time budget runs out.
+ */
+public class ExhaustiveGzipVariantEncoder extends GzipVariantEncoder {
+
+    /**
+     * the maximum number of hash chain entries visited per position
+     */
+    private static final int MAX_CHAIN_LENGTH = 8192;
+
+    /**
+     * the maven log
+     */
+    private final Log log;
+
+    /**
+     * the maximum number of parse iterations
+     */
+    private final int iterations;
+
+    /**
+     * the time budget per resource in milliseconds
+     */
+    private final long timeBudgetMillis;
+
+    /**
+     * the optimal parse deflater
+     */
+    private final ZopfliDeflater deflater;
+
+    /**
+     * the total size of the resources encoded at the JDK maximum compression level
+     */
+    private final AtomicLong baselineBytes = new AtomicLong();
+
+    /**
+     * the total size of the resources encoded in exhaustive mode
+     */
+    private final AtomicLong encodedBytes = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param log the maven log the per resource savings are reported to
+     * @param iterations the maximum number of parse iterations
+     * @param timeBudgetMillis the time budget per resource in milliseconds, zero or less for no limit
+     */
+    public ExhaustiveGzipVariantEncoder(Log log, int iterations, long timeBudgetMillis) {
+        this.log = log;
+        this.iterations = iterations;
+        this.timeBudgetMillis = timeBudgetMillis;
+        this.deflater = new ZopfliDeflater(iterations, MAX_CHAIN_LENGTH, timeBudgetMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getSettings() {
+        return "gzip-exhaustive-" + iterations + "-" + timeBudgetMillis;
+    }
+
+    /**
+     * Compress the content with the optimal parser and report the saving over the JDK maximum compression level.
+     *
+     * @param path the resource path
+     * @param content the content to compress
+     * @return the smaller of the exhaustive and the JDK gzip compressed content
+     * @throws IOException on IO error
+     */
+    @Override
+    public byte[] encode(String path, byte[] content) throws IOException {
+        byte[] baseline = super.encode(path, content);
+        byte[] exhaustive = deflater.gzip(content);
+
+        if(exhaustive == null) {
+            log.warn("Exhaustive gzip of '" + path + "' exceeded the " + timeBudgetMillis
+                    + " ms time budget, using the best deflate compression.");
+            exhaustive = baseline;
+        } else if(exhaustive.length >= baseline.length) {
+            exhaustive = baseline;
+        }
+
+        baselineBytes.addAndGet(baseline.length);
+        encodedBytes.addAndGet(exhaustive.length);
+
+        log.info("Exhaustive gzip of '" + path + "': " + exhaustive.length + " bytes, "
+                + (baseline.length - exhaustive.length) + " bytes (" + percent(baseline.length - exhaustive.length, baseline.length)
+                + "%) smaller than best deflate compression.");
+
+        return exhaustive;
+    }
+
+    /**
+     * Returns the total size of the resources encoded so far at the JDK maximum compression level.
+     *
+     * @return the total size in bytes
+     */
+    public long getBaselineBytes() {
+        return baselineBytes.get();
+    }
+
+    /**
+     * Returns the total size of the resources encoded so far in exhaustive mode.
+     *
+     * @return the total size in bytes
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    /**
+     * Format a percentage with one decimal.
+     *
+     * @param part the part
+     * @param whole the whole
+     * @return the formatted percentage
+     */
+    static String percent(long part, long whole) {
+        return whole > 0 ? String.valueOf(Math.round(part * 1000.0 / whole) / 10.0) : "0.0";
+    }
+}
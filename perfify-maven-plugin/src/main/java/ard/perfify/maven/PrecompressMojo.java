@@ -0,0 +1,675 @@
+package ard.perfify.maven;
+
+import ard.perfify.compress.BrotliVariantEncoder;
+import ard.perfify.compress.CompressionEngines;
+import ard.perfify.compress.ContentEncoding;
+import ard.perfify.compress.GzipVariantEncoder;
+import ard.perfify.compress.PrecompressManifest;
+import ard.perfify.compress.VariantEncoder;
+import ard.perfify.compress.ZstdVariantEncoder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.springframework.util.DigestUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Pre-compresses the static text resources of the web application into the <code>/gzip</code>, <code>/br</code> and
+ * <code>/zstd</code> trees that <code>StaticResourceGZIPFilter</code> forwards to. Resources are compressed once at
+ * build time using the maximum compression levels, so no CPU is spent compressing them per request. A manifest of the
+ * source content hashes and variant sizes is written alongside, unchanged resources are not recompressed on the next
+ * build.
+ *
+ * @goal precompress
+ * @phase prepare-package
+ * @threadSafe
+ */
+public class PrecompressMojo extends AbstractMojo {
+
+    /**
+     * The default text resource types.
+     */
+    public static final String[] DEFAULT_EXTENSIONS = {"css", "js", "svg", "json", "html", "xml", "ttf"};
+
+    /**
+     * The web application source directory to walk.
+     *
+     * @parameter property="perfify.warSourceDirectory" default-value="${basedir}/src/main/webapp"
+     * @required
+     */
+    private File warSourceDirectory;
+
+    /**
+     * The exploded web application directory where the compressed tree is written.
+     *
+     * @parameter property="perfify.webappDirectory" default-value="${project.build.directory}/${project.build.finalName}"
+     * @required
+     */
+    private File webappDirectory;
+
+    /**
+     * The content encodings of the variants to produce: gzip, br and zstd. Each is written to its own tree,
+     * <code>/gzip</code>, <code>/br</code> and <code>/zstd</code>. Encodings whose native library is not available on
+     * the build platform are skipped.
+     *
+     * @parameter
+     */
+    private String[] encodings = {"gzip", "br", "zstd"};
+
+    /**
+     * The path prefix of the gzip tree. The static filter forwards to <code>/gzip</code>, another prefix only suits
+     * applications serving the tree themselves.
+     *
+     * @parameter property="perfify.prefix" default-value="/gzip"
+     */
+    private String prefix = ContentEncoding.GZIP.getPrefix();
+
+    /**
+     * The brotli quality, 0 to 11.
+     *
+     * @parameter property="perfify.brotliQuality" default-value="11"
+     */
+    private int brotliQuality = 11;
+
+    /**
+     * Produce the gzip variants with an exhaustive, Zopfli style optimal parse instead of the JDK deflater. The output
+     * is 3-8% smaller and readable by any gzip decoder, at around 100 times the CPU cost.
+     *
+     * @parameter property="perfify.exhaustive" default-value="false"
+     */
+    private boolean exhaustive;
+
+    /**
+     * The maximum number of optimal parse iterations in exhaustive mode.
+     *
+     * @parameter property="perfify.exhaustiveIterations" default-value="15"
+     */
+    private int exhaustiveIterations = 15;
+
+    /**
+     * The time budget in milliseconds per resource in exhaustive mode, the best deflate compression is used for
+     * resources exceeding it. Zero or less for no limit.
+     *
+     * @parameter property="perfify.exhaustiveTimeBudget" default-value="30000"
+     */
+    private long exhaustiveTimeBudget = 30000;
+
+    /**
+     * The zstandard compression level, 1 to 22.
+     *
+     * @parameter property="perfify.zstdLevel" default-value="19"
+     */
+    private int zstdLevel = 19;
+
+    /**
+     * The engine gzip variants are compressed with, <code>jdk</code>, <code>libdeflate</code> or <code>zlib-ng</code>.
+     * Native engines not installed on the build host fall back to the JDK deflater. Ignored when exhaustive.
+     *
+     * @parameter property="perfify.compressionEngine" default-value="jdk"
+     */
+    private String compressionEngine = "jdk";
+
+    /**
+     * Ant style patterns of resources to include, relative to the war source directory.
+     *
+     * @parameter
+     */
+    private String[] includes = {"**/*"};
+
+    /**
+     * Ant style patterns of resources to exclude, relative to the war source directory.
+     *
+     * @parameter
+     */
+    private String[] excludes = {"WEB-INF/**", "META-INF/**"};
+
+    /**
+     * The text resource file extensions to compress.
+     *
+     * @parameter
+     */
+    private String[] extensions = DEFAULT_EXTENSIONS;
+
+    /**
+     * The minimum number of bytes compression should save, otherwise the resource is served uncompressed.
+     *
+     * @parameter property="perfify.minSavingBytes" default-value="128"
+     */
+    private int minSavingBytes = 128;
+
+    /**
+     * The minimum percentage of the original size compression should save, otherwise the resource is served
+     * uncompressed.
+     *
+     * @parameter property="perfify.minSavingPercent" default-value="5"
+     */
+    private int minSavingPercent = 5;
+
+    /**
+     * The location of the manifest within the web application. It records the source content hash, the compression
+     * settings and the variant sizes of every resource, and is read by the static filter at runtime.
+     *
+     * @parameter property="perfify.manifestLocation" default-value="/WEB-INF/perfify/precompress.manifest"
+     */
+    private String manifestLocation = PrecompressManifest.DEFAULT_LOCATION;
+
+    /**
+     * The number of compression threads, defaults to the number of available processors.
+     *
+     * @parameter property="perfify.threads" default-value="0"
+     */
+    private int threads;
+
+    /**
+     * Skip the pre-compression.
+     *
+     * @parameter property="perfify.skip" default-value="false"
+     */
+    private boolean skip;
+
+    /**
+     * Walks the war source directory and writes the encoded variants of every eligible resource. Resources are compressed
+     * in parallel, and only when their content hash or the compression settings changed since the last build.
+     *
+     * @throws MojoExecutionException on IO error
+     */
+    public void execute() throws MojoExecutionException {
+        if(skip) {
+            getLog().info("Skipping pre-compression.");
+            return;
+        }
+
+        if(!warSourceDirectory.isDirectory()) {
+            getLog().info("No war source directory '" + warSourceDirectory + "', nothing to pre-compress.");
+            return;
+        }
+
+        final List<VariantEncoder> encoders = createEncoders();
+        File manifestFile = new File(webappDirectory, StringUtils.removeStart(manifestLocation, "/"));
+        final PrecompressManifest previous = loadManifest(manifestFile);
+        final PrecompressManifest manifest = new PrecompressManifest();
+        final String settings = getSettings(encoders);
+
+        ResourceScanner scanner = new ResourceScanner(includes, getExcludes(), extensions);
+        List<String> paths = scanner.scan(warSourceDirectory);
+        List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(paths.size());
+
+        for(final String path : paths) {
+            tasks.add(new Callable<Boolean>() {
+                public Boolean call() throws IOException {
+                    return precompress(path, previous.get("/" + path), encoders, settings, manifest);
+                }
+            });
+        }
+
+        int recompressed = 0;
+        ForkJoinPool pool = new ForkJoinPool(getThreads());
+
+        try {
+            for(Future<Boolean> result : pool.invokeAll(tasks)) {
+                if(result.get()) {
+                    recompressed++;
+                }
+            }
+        } catch(ExecutionException e) {
+            throw new MojoExecutionException("Unable to pre-compress resources.", e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Pre-compression was interrupted.", e);
+        } finally {
+            pool.shutdown();
+        }
+
+        // variants of resources that no longer exist are stale
+        for(PrecompressManifest.Entry entry : previous.getEntries()) {
+            if(manifest.get(entry.getUri()) == null) {
+                deleteVariants(entry);
+            }
+        }
+
+        storeManifest(manifest, manifestFile);
+
+        getLog().info("Pre-compressed " + paths.size() + " resources, " + recompressed + " changed.");
+
+        for(VariantEncoder encoder : encoders) {
+            String token = encoder.getEncoding().getToken();
+            int compressed = 0;
+            long originalBytes = 0;
+            long compressedBytes = 0;
+
+            for(PrecompressManifest.Entry entry : manifest.getEntries()) {
+                if(entry.hasVariant(token)) {
+                    compressed++;
+                    originalBytes += entry.getLength();
+                    compressedBytes += entry.getVariantSize(token);
+                }
+            }
+
+            getLog().info(token + ": " + compressed + " variants in '" + webappDirectory
+                    + getTreePrefix(encoder.getEncoding()) + "', " + originalBytes + " bytes to " + compressedBytes + " bytes.");
+
+            if(encoder instanceof ExhaustiveGzipVariantEncoder) {
+                ExhaustiveGzipVariantEncoder exhaustiveEncoder = (ExhaustiveGzipVariantEncoder) encoder;
+                long saving = exhaustiveEncoder.getBaselineBytes() - exhaustiveEncoder.getEncodedBytes();
+
+                getLog().info("Exhaustive gzip saved " + saving + " bytes ("
+                        + ExhaustiveGzipVariantEncoder.percent(saving, exhaustiveEncoder.getBaselineBytes())
+                        + "%) over best deflate compression on the changed resources.");
+            }
+        }
+    }
+
+    /**
+     * Create the encoders of the configured encodings that are available on this platform.
+     *
+     * @return the available encoders
+     * @throws MojoExecutionException when an encoding is not supported
+     */
+    protected List<VariantEncoder> createEncoders() throws MojoExecutionException {
+        List<VariantEncoder> encoders = new ArrayList<VariantEncoder>();
+
+        for(String token : encodings) {
+            VariantEncoder encoder;
+
+            try {
+                switch(ContentEncoding.forToken(token)) {
+                    case BROTLI:
+                        encoder = new BrotliVariantEncoder(brotliQuality);
+                        break;
+                    case ZSTD:
+                        encoder = new ZstdVariantEncoder(zstdLevel);
+                        break;
+                    default:
+                        encoder = exhaustive
+                                ? new ExhaustiveGzipVariantEncoder(getLog(), exhaustiveIterations, exhaustiveTimeBudget)
+                                : new GzipVariantEncoder(CompressionEngines.get(compressionEngine));
+                }
+            } catch(IllegalArgumentException e) {
+                throw new MojoExecutionException(e.getMessage());
+            }
+
+            if(encoder.isAvailable()) {
+                encoders.add(encoder);
+            } else {
+                getLog().warn("The " + token + " encoder is not available on this platform, skipping " + token + " variants.");
+            }
+        }
+
+        return encoders;
+    }
+
+    /**
+     * Compress a single resource unless the previous build already produced its variants from the same content and
+     * settings, and record it in the manifest.
+     *
+     * @param path the resource path relative to the war source directory
+     * @param previous the entry of the previous build, or {@code null} if there is none
+     * @param encoders the variant encoders
+     * @param settings the current compression settings
+     * @param manifest the manifest being built
+     * @return {@code true} if the resource was recompressed, {@code false} if it was up to date
+     * @throws IOException on IO error
+     */
+    protected boolean precompress(String path, PrecompressManifest.Entry previous, List<VariantEncoder> encoders,
+                                  String settings, PrecompressManifest manifest) throws IOException {
+        File source = new File(warSourceDirectory, path);
+        byte[] content = FileUtils.readFileToByteArray(source);
+        String hash = DigestUtils.md5DigestAsHex(content);
+
+        if(previous != null && previous.getHash().equals(hash) && previous.getSettings().equals(settings)
+                && isVariantsPresent(previous)) {
+            manifest.put(previous);
+            return false;
+        }
+
+        PrecompressManifest.Entry entry = new PrecompressManifest.Entry("/" + path, hash, content.length,
+                source.lastModified(), settings);
+
+        // variants of encodings that are no longer produced are stale
+        deleteVariants(entry);
+
+        for(VariantEncoder encoder : encoders) {
+            File target = getVariantFile(encoder.getEncoding(), entry.getUri());
+            byte[] encoded = encoder.encode(path, content);
+
+            if(isSavingEnough(content.length, encoded.length)) {
+                FileUtils.writeByteArrayToFile(target, encoded);
+                target.setLastModified(source.lastModified());
+                entry.putVariant(encoder.getEncoding().getToken(), encoded.length);
+            } else if(getLog().isDebugEnabled()) {
+                getLog().debug("Skipping " + encoder.getEncoding().getToken() + " variant of '" + path
+                        + "', compression saves only " + (content.length - encoded.length) + " bytes.");
+            }
+        }
+
+        manifest.put(entry);
+
+        return true;
+    }
+
+    /**
+     * Determines whether every variant recorded in the entry still exists with the recorded size.
+     *
+     * @param entry the manifest entry
+     * @return {@code true} if all variants are present, {@code false} otherwise.
+     */
+    private boolean isVariantsPresent(PrecompressManifest.Entry entry) {
+        for(Map.Entry<String, Long> variant : entry.getVariants().entrySet()) {
+            File file = getVariantFile(ContentEncoding.forToken(variant.getKey()), entry.getUri());
+
+            if(!file.isFile() || file.length() != variant.getValue()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Delete the variants of a resource.
+     *
+     * @param entry the manifest entry
+     */
+    private void deleteVariants(PrecompressManifest.Entry entry) {
+        for(ContentEncoding encoding : ContentEncoding.values()) {
+            FileUtils.deleteQuietly(getVariantFile(encoding, entry.getUri()));
+        }
+    }
+
+    /**
+     * Returns the variant file of the resource.
+     *
+     * @param encoding the variant content encoding
+     * @param uri the resource uri
+     * @return the variant file within the encoding tree
+     */
+    private File getVariantFile(ContentEncoding encoding, String uri) {
+        return new File(webappDirectory, getTreePrefix(encoding) + uri);
+    }
+
+    /**
+     * Returns the path prefix of the variant tree of the encoding, the configured prefix for gzip.
+     *
+     * @param encoding the variant encoding
+     * @return the path prefix
+     */
+    private String getTreePrefix(ContentEncoding encoding) {
+        return encoding == ContentEncoding.GZIP ? "/" + StringUtils.strip(prefix, "/") : encoding.getPrefix();
+    }
+
+    /**
+     * Returns the settings fingerprint recorded in the manifest, a resource is recompressed when it changes.
+     *
+     * @param encoders the variant encoders
+     * @return the settings fingerprint
+     */
+    protected String getSettings(List<VariantEncoder> encoders) {
+        StringBuilder buf = new StringBuilder();
+
+        for(VariantEncoder encoder : encoders) {
+            buf.append(encoder.getSettings()).append("/");
+        }
+
+        String gzipPrefix = getTreePrefix(ContentEncoding.GZIP);
+        if(!ContentEncoding.GZIP.getPrefix().equals(gzipPrefix)) {
+            buf.append(gzipPrefix).append("/");
+        }
+
+        return buf.append(minSavingBytes).append("/").append(minSavingPercent).toString();
+    }
+
+    /**
+     * Returns the number of compression threads.
+     *
+     * @return the configured number of threads, or the number of available processors when not configured
+     */
+    private int getThreads() {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Loads the manifest of the previous build.
+     *
+     * @param file the manifest file
+     * @return the previous manifest, empty if there was no previous build or it can not be read
+     */
+    private PrecompressManifest loadManifest(File file) {
+        PrecompressManifest manifest = new PrecompressManifest();
+
+        if(file.isFile()) {
+            InputStream in = null;
+
+            try {
+                in = new FileInputStream(file);
+                manifest.load(in);
+            } catch(IOException e) {
+                getLog().warn("Unable to read manifest '" + file + "', all resources will be recompressed.", e);
+                manifest = new PrecompressManifest();
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Stores the manifest.
+     *
+     * @param manifest the manifest
+     * @param file the manifest file
+     * @throws MojoExecutionException on IO error
+     */
+    private void storeManifest(PrecompressManifest manifest, File file) throws MojoExecutionException {
+        OutputStream out = null;
+
+        try {
+            file.getParentFile().mkdirs();
+            out = new FileOutputStream(file);
+            manifest.store(out);
+        } catch(IOException e) {
+            throw new MojoExecutionException("Unable to write manifest '" + file + "'.", e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * The configured excludes together with the encoding trees themselves, so previously generated variants placed
+     * inside the war source directory are never compressed again.
+     *
+     * @return the exclude patterns
+     */
+    private String[] getExcludes() {
+        ContentEncoding[] trees = ContentEncoding.values();
+        String[] all = new String[excludes.length + trees.length];
+
+        System.arraycopy(excludes, 0, all, 0, excludes.length);
+        for(int i = 0; i < trees.length; i++) {
+            all[excludes.length + i] = StringUtils.removeStart(getTreePrefix(trees[i]), "/") + "/**";
+        }
+
+        return all;
+    }
+
+    /**
+     * Determines whether compression saves enough bytes for the compressed variant to be worth serving.
+     *
+     * @param originalSize the original size
+     * @param compressedSize the compressed size
+     * @return {@code true} if the saving meets both the bytes and the percent minimum, {@code false} otherwise.
+     */
+    protected boolean isSavingEnough(long originalSize, long compressedSize) {
+        long saving = originalSize - compressedSize;
+
+        return saving >= minSavingBytes && saving * 100 >= originalSize * minSavingPercent;
+    }
+
+    /**
+     * Setter for property {@link #warSourceDirectory}.
+     *
+     * @param warSourceDirectory the web application source directory
+     */
+    public void setWarSourceDirectory(File warSourceDirectory) {
+        this.warSourceDirectory = warSourceDirectory;
+    }
+
+    /**
+     * Setter for property {@link #webappDirectory}.
+     *
+     * @param webappDirectory the exploded web application directory
+     */
+    public void setWebappDirectory(File webappDirectory) {
+        this.webappDirectory = webappDirectory;
+    }
+
+    /**
+     * Setter for property {@link #encodings}.
+     *
+     * @param encodings the content encodings of the variants to produce
+     */
+    public void setEncodings(String[] encodings) {
+        this.encodings = encodings;
+    }
+
+    /**
+     * Setter for property {@link #prefix}.
+     *
+     * @param prefix the gzip tree path prefix
+     */
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Setter for property {@link #brotliQuality}.
+     *
+     * @param brotliQuality the brotli quality
+     */
+    public void setBrotliQuality(int brotliQuality) {
+        this.brotliQuality = brotliQuality;
+    }
+
+    /**
+     * Setter for property {@link #exhaustive}.
+     *
+     * @param exhaustive {@code true} to produce the gzip variants with an exhaustive optimal parse
+     */
+    public void setExhaustive(boolean exhaustive) {
+        this.exhaustive = exhaustive;
+    }
+
+    /**
+     * Setter for property {@link #exhaustiveIterations}.
+     *
+     * @param exhaustiveIterations the maximum number of optimal parse iterations
+     */
+    public void setExhaustiveIterations(int exhaustiveIterations) {
+        this.exhaustiveIterations = exhaustiveIterations;
+    }
+
+    /**
+     * Setter for property {@link #exhaustiveTimeBudget}.
+     *
+     * @param exhaustiveTimeBudget the time budget in milliseconds per resource
+     */
+    public void setExhaustiveTimeBudget(long exhaustiveTimeBudget) {
+        this.exhaustiveTimeBudget = exhaustiveTimeBudget;
+    }
+
+    /**
+     * Setter for property {@link #zstdLevel}.
+     *
+     * @param zstdLevel the zstandard compression level
+     */
+    public void setZstdLevel(int zstdLevel) {
+        this.zstdLevel = zstdLevel;
+    }
+
+    /**
+     * Setter for property {@link #includes}.
+     *
+     * @param includes the include patterns
+     */
+    public void setIncludes(String[] includes) {
+        this.includes = includes;
+    }
+
+    /**
+     * Setter for property {@link #excludes}.
+     *
+     * @param excludes the exclude patterns
+     */
+    public void setExcludes(String[] excludes) {
+        this.excludes = excludes;
+    }
+
+    /**
+     * Setter for property {@link #extensions}.
+     *
+     * @param extensions the text resource file extensions
+     */
+    public void setExtensions(String[] extensions) {
+        this.extensions = extensions;
+    }
+
+    /**
+     * Setter for property {@link #minSavingBytes}.
+     *
+     * @param minSavingBytes the minimum bytes saved
+     */
+    public void setMinSavingBytes(int minSavingBytes) {
+        this.minSavingBytes = minSavingBytes;
+    }
+
+    /**
+     * Setter for property {@link #minSavingPercent}.
+     *
+     * @param minSavingPercent the minimum percent saved
+     */
+    public void setMinSavingPercent(int minSavingPercent) {
+        this.minSavingPercent = minSavingPercent;
+    }
+
+    /**
+     * Setter for property {@link #manifestLocation}.
+     *
+     * @param manifestLocation the manifest location within the web application
+     */
+    public void setManifestLocation(String manifestLocation) {
+        this.manifestLocation = manifestLocation;
+    }
+
+    /**
+     * Setter for property {@link #threads}.
+     *
+     * @param threads the number of compression threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Setter for property {@link #skip}.
+     *
+     * @param skip {@code true} to skip the pre-compression
+     */
+    public void setSkip(boolean skip) {
+        this.skip = skip;
+    }
+}
@@ -0,0 +1,125 @@
+package ard.perfify.maven;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Walks a web application source directory and collects the text resources eligible for pre-compression.
+ * A resource is eligible when its extension is one of the configured text types, it matches at least one include
+ * pattern and it matches none of the exclude patterns. Patterns are ant style globs relative to the base directory.
+ */
+public class ResourceScanner {
+
+    /**
+     * ant style path matcher
+     */
+    private final PathMatcher matcher = new AntPathMatcher();
+
+    /**
+     * the include patterns
+     */
+    private final List<String> includes;
+
+    /**
+     * the exclude patterns
+     */
+    private final List<String> excludes;
+
+    /**
+     * the lower case eligible file extensions
+     */
+    private final Set<String> extensions = new HashSet<String>();
+
+    /**
+     * Constructor.
+     *
+     * @param includes the include patterns
+     * @param excludes the exclude patterns
+     * @param extensions the eligible file extensions without the leading dot
+     */
+    public ResourceScanner(String[] includes, String[] excludes, String[] extensions) {
+        this.includes = Arrays.asList(includes);
+        this.excludes = Arrays.asList(excludes);
+
+        for(String extension : extensions) {
+            this.extensions.add(extension.toLowerCase());
+        }
+    }
+
+    /**
+     * Scans the base directory for eligible resources.
+     *
+     * @param baseDir the directory to scan
+     * @return the eligible resource paths relative to the base directory, using '/' as separator
+     */
+    public List<String> scan(File baseDir) {
+        List<String> paths = new ArrayList<String>();
+
+        if(baseDir.isDirectory()) {
+            scan(baseDir, "", paths);
+        }
+
+        return paths;
+    }
+
+    /**
+     * Recursively scan the directory.
+     *
+     * @param dir the current directory
+     * @param relativeDir the current directory path relative to the base directory
+     * @param paths the collected eligible paths
+     */
+    private void scan(File dir, String relativeDir, List<String> paths) {
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        for(File file : files) {
+            String path = relativeDir + file.getName();
+
+            if(file.isDirectory()) {
+                scan(file, path + "/", paths);
+            } else if(isEligible(path)) {
+                paths.add(path);
+            }
+        }
+    }
+
+    /**
+     * Determines whether the relative path is eligible for compression.
+     *
+     * @param path the path relative to the base directory
+     * @return {@code true} if eligible, {@code false} otherwise.
+     */
+    public boolean isEligible(String path) {
+        String extension = StringUtils.substringAfterLast(path, ".").toLowerCase();
+
+        return extensions.contains(extension) && matchesAny(includes, path) && !matchesAny(excludes, path);
+    }
+
+    /**
+     * Determines whether the path matches any of the given patterns.
+     *
+     * @param patterns the ant style patterns
+     * @param path the relative path
+     * @return {@code true} if at least one pattern matches, {@code false} otherwise.
+     */
+    private boolean matchesAny(List<String> patterns, String path) {
+        for(String pattern : patterns) {
+            if(matcher.match(StringUtils.removeStart(pattern, "/"), path)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+package ard.perfify.maven.zopfli;
+
+import java.util.Arrays;
+
+/**
+ * Writes a deflate bit stream, least significant bit first as required by RFC 1951.
+ */
+final class BitWriter {
+
+    /**
+     * the written bytes
+     */
+    private byte[] buf;
+
+    /**
+     * the number of complete bytes written
+     */
+    private int size;
+
+    /**
+     * the pending bits not yet forming a complete byte
+     */
+    private int bits;
+
+    /**
+     * the number of pending bits
+     */
+    private int bitCount;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the initial capacity in bytes
+     */
+    BitWriter(int capacity) {
+        buf = new byte[Math.max(capacity, 64)];
+    }
+
+    /**
+     * Write the lowest bits of the value, least significant bit first.
+     *
+     * @param value the value
+     * @param count the number of bits, at most 24
+     */
+    void writeBits(int value, int count) {
+        bits |= (value & ((1 << count) - 1)) << bitCount;
+        bitCount += count;
+
+        while(bitCount >= 8) {
+            put((byte) bits);
+            bits >>>= 8;
+            bitCount -= 8;
+        }
+    }
+
+    /**
+     * Write a huffman code, which deflate stores most significant bit first.
+     *
+     * @param code the canonical huffman code
+     * @param length the code length in bits
+     */
+    void writeCode(int code, int length) {
+        writeBits(Integer.reverse(code) >>> (32 - length), length);
+    }
+
+    /**
+     * Pad the pending bits with zeros up to the next byte boundary.
+     */
+    void alignToByte() {
+        if(bitCount > 0) {
+            writeBits(0, 8 - bitCount);
+        }
+    }
+
+    /**
+     * Write raw bytes, the stream must be byte aligned.
+     *
+     * @param data the data
+     * @param off the data offset
+     * @param len the number of bytes
+     */
+    void writeBytes(byte[] data, int off, int len) {
+        ensureCapacity(size + len);
+        System.arraycopy(data, off, buf, size, len);
+        size += len;
+    }
+
+    /**
+     * Returns the written bytes, including the pending bits padded to a byte.
+     *
+     * @return the written bytes
+     */
+    byte[] toByteArray() {
+        alignToByte();
+
+        return Arrays.copyOf(buf, size);
+    }
+
+    /**
+     * Append a complete byte.
+     *
+     * @param b the byte
+     */
+    private void put(byte b) {
+        ensureCapacity(size + 1);
+        buf[size++] = b;
+    }
+
+    /**
+     * Grow the buffer when needed.
+     *
+     * @param capacity the required capacity
+     */
+    private void ensureCapacity(int capacity) {
+        if(capacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package ard.perfify.maven.zopfli;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Length limited huffman code construction for deflate.
+ */
+final class Huffman {
+
+    /**
+     * Utility class.
+     */
+    private Huffman() {
+    }
+
+    /**
+     * Compute the code lengths of the symbol frequencies, no code is longer than the maximum.
+     * Symbols with a zero frequency get a zero length.
+     *
+     * @param freqs the symbol frequencies
+     * @param maxBits the maximum code length
+     * @return the code lengths
+     */
+    static int[] lengths(int[] freqs, int maxBits) {
+        int n = freqs.length;
+        int[] lengths = new int[n];
+
+        int used = 0;
+        for(int freq : freqs) {
+            if(freq > 0) {
+                used++;
+            }
+        }
+
+        if(used == 0) {
+            return lengths;
+        }
+
+        if(used == 1) {
+            for(int i = 0; i < n; i++) {
+                if(freqs[i] > 0) {
+                    lengths[i] = 1;
+                }
+            }
+
+            return lengths;
+        }
+
+        // plain huffman tree, leaves are 0..n-1 and internal nodes follow
+        int[] parent = new int[2 * n];
+        PriorityQueue<Long> queue = new PriorityQueue<Long>(used);
+
+        for(int i = 0; i < n; i++) {
+            if(freqs[i] > 0) {
+                queue.add(((long) freqs[i] << 32) | i);
+            }
+        }
+
+        int next = n;
+        while(queue.size() > 1) {
+            long a = queue.poll();
+            long b = queue.poll();
+
+            parent[(int) a] = next;
+            parent[(int) b] = next;
+            queue.add((((a >>> 32) + (b >>> 32)) << 32) | next);
+            next++;
+        }
+
+        int root = next - 1;
+        int[] depth = new int[2 * n];
+        int[] count = new int[Math.max(maxBits, n) + 1];
+
+        for(int node = root - 1; node >= 0; node--) {
+            if(node >= n || freqs[node] > 0) {
+                depth[node] = depth[parent[node]] + 1;
+            }
+        }
+
+        int maxDepth = 0;
+        for(int i = 0; i < n; i++) {
+            if(freqs[i] > 0) {
+                count[depth[i]]++;
+                maxDepth = Math.max(maxDepth, depth[i]);
+            }
+        }
+
+        // move overlong codes up the tree keeping the code complete
+        for(int i = maxDepth; i > maxBits; i--) {
+            while(count[i] > 0) {
+                int j = i - 2;
+                while(count[j] == 0) {
+                    j--;
+                }
+
+                count[i] -= 2;
+                count[i - 1]++;
+                count[j + 1] += 2;
+                count[j]--;
+            }
+        }
+
+        // the most frequent symbols get the shortest codes
+        Integer[] symbols = new Integer[used];
+        for(int i = 0, k = 0; i < n; i++) {
+            if(freqs[i] > 0) {
+                symbols[k++] = i;
+            }
+        }
+
+        final int[] f = freqs;
+        Arrays.sort(symbols, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return f[a] != f[b] ? (f[a] > f[b] ? -1 : 1) : a - b;
+            }
+        });
+
+        int length = 1;
+        for(Integer symbol : symbols) {
+            while(count[length] == 0) {
+                length++;
+            }
+
+            lengths[symbol] = length;
+            count[length]--;
+        }
+
+        return lengths;
+    }
+
+    /**
+     * Compute the canonical codes of the code lengths.
+     *
+     * @param lengths the code lengths
+     * @return the codes, most significant bit first
+     */
+    static int[] codes(int[] lengths) {
+        int maxBits = 0;
+        for(int length : lengths) {
+            maxBits = Math.max(maxBits, length);
+        }
+
+        int[] count = new int[maxBits + 1];
+        for(int length : lengths) {
+            count[length]++;
+        }
+        count[0] = 0;
+
+        int[] nextCode = new int[maxBits + 2];
+        int code = 0;
+        for(int bits = 1; bits <= maxBits; bits++) {
+            code = (code + count[bits - 1]) << 1;
+            nextCode[bits] = code;
+        }
+
+        int[] codes = new int[lengths.length];
+        for(int i = 0; i < lengths.length; i++) {
+            if(lengths[i] != 0) {
+                codes[i] = nextCode[lengths[i]]++;
+            }
+        }
+
+        return codes;
+    }
+}
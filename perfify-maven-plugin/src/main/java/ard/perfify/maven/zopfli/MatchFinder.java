@@ -0,0 +1,125 @@
+package ard.perfify.maven.zopfli;
+
+import java.util.Arrays;
+
+/**
+ * Hash chain match finder over the whole input. Unlike a greedy matcher it reports, for every match length, the
+ * closest distance achieving it, which the optimal parser needs to weigh each length against its distance cost.
+ */
+final class MatchFinder {
+
+    /**
+     * the deflate window size
+     */
+    static final int WINDOW_SIZE = 32768;
+
+    /**
+     * the shortest deflate match
+     */
+    static final int MIN_MATCH = 3;
+
+    /**
+     * the longest deflate match
+     */
+    static final int MAX_MATCH = 258;
+
+    /**
+     * the hash table size in bits
+     */
+    private static final int HASH_BITS = 16;
+
+    /**
+     * the input data
+     */
+    private final byte[] data;
+
+    /**
+     * the previous position with the same 3 byte hash, or -1
+     */
+    private final int[] prev;
+
+    /**
+     * the maximum number of chain entries visited per position
+     */
+    private final int maxChainLength;
+
+    /**
+     * Constructor, builds the hash chains of the whole input.
+     *
+     * @param data the input data
+     * @param maxChainLength the maximum number of chain entries visited per position
+     */
+    MatchFinder(byte[] data, int maxChainLength) {
+        this.data = data;
+        this.maxChainLength = maxChainLength;
+        this.prev = new int[data.length];
+
+        int[] head = new int[1 << HASH_BITS];
+        Arrays.fill(head, -1);
+
+        for(int i = 0; i + MIN_MATCH <= data.length; i++) {
+            int hash = hash(i);
+
+            prev[i] = head[hash];
+            head[hash] = i;
+        }
+    }
+
+    /**
+     * Find the matches at the position. Each reported pair means every length above the previous pair's length, up
+     * to and including this pair's length, is best reached with this pair's distance.
+     *
+     * @param pos the position
+     * @param limit the maximum match length, at most the number of remaining bytes
+     * @param lengths receives the increasing match lengths
+     * @param distances receives the distances of the lengths
+     * @param offset the offset in the receiving arrays
+     * @return the number of pairs
+     */
+    int find(int pos, int limit, int[] lengths, int[] distances, int offset) {
+        limit = Math.min(limit, MAX_MATCH);
+        if(limit < MIN_MATCH) {
+            return 0;
+        }
+
+        int count = 0;
+        int best = MIN_MATCH - 1;
+        int candidate = prev[pos];
+
+        for(int hits = 0; candidate >= 0 && pos - candidate <= WINDOW_SIZE && hits < maxChainLength; hits++) {
+            if(data[candidate + best] == data[pos + best]) {
+                int length = 0;
+                while(length < limit && data[candidate + length] == data[pos + length]) {
+                    length++;
+                }
+
+                if(length > best) {
+                    lengths[offset + count] = length;
+                    distances[offset + count] = pos - candidate;
+                    count++;
+                    best = length;
+
+                    if(length == limit) {
+                        break;
+                    }
+                }
+            }
+
+            candidate = prev[candidate];
+        }
+
+        return count;
+    }
+
+    /**
+     * Hash of the 3 bytes at the position.
+     *
+     * @param i the position
+     * @return the hash
+     */
+    private int hash(int i) {
+        int h = ((data[i] & 0xff) << 16) | ((data[i + 1] & 0xff) << 8) | (data[i + 2] & 0xff);
+
+        return (h * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+}
@@ -0,0 +1,968 @@
+package ard.perfify.maven.zopfli;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Maximum ratio deflate encoder in the spirit of Zopfli. Instead of the greedy or lazy match selection of zlib, every
+ * chunk of input is parsed with a shortest path search over all literal and match choices, where the bit cost of each
+ * symbol comes from the huffman statistics of the previous parse. The parse is iterated until it stops improving,
+ * then split into blocks wherever a fresh huffman table pays for itself.
+ * <p/>
+ * The output is a standard deflate stream any inflater can read. It typically is 3-8% smaller than
+ * {@link java.util.zip.Deflater#BEST_COMPRESSION} at roughly 100 times the CPU cost, so it is meant for build time
+ * compression of resources that are served many times.
+ */
+public class ZopfliDeflater {
+
+    /**
+     * the number of input bytes parsed at once
+     */
+    private static final int CHUNK_SIZE = 1 << 18;
+
+    /**
+     * blocks with fewer symbols are not split further
+     */
+    private static final int MIN_SPLIT_SYMBOLS = 1024;
+
+    /**
+     * the longest literal/length and distance code
+     */
+    private static final int MAX_BITS = 15;
+
+    /**
+     * the longest code length code
+     */
+    private static final int MAX_CL_BITS = 7;
+
+    /**
+     * the end of block symbol
+     */
+    private static final int END_OF_BLOCK = 256;
+
+    /**
+     * the number of literal/length symbols
+     */
+    private static final int NUM_LITLEN = 286;
+
+    /**
+     * the number of distance symbols
+     */
+    private static final int NUM_DIST = 30;
+
+    /**
+     * the transmission order of the code length code lengths
+     */
+    private static final int[] CL_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    /**
+     * the base length of the length symbols 257 to 285
+     */
+    private static final int[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51,
+            59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+
+    /**
+     * the extra bits of the length symbols 257 to 285
+     */
+    private static final int[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4,
+            5, 5, 5, 5, 0};
+
+    /**
+     * the base distance of the distance symbols
+     */
+    private static final int[] DIST_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513,
+            769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+
+    /**
+     * the extra bits of the distance symbols
+     */
+    private static final int[] DIST_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10,
+            10, 11, 11, 12, 12, 13, 13};
+
+    /**
+     * the literal/length symbol of every match length
+     */
+    private static final int[] LENGTH_SYMBOL = new int[MatchFinder.MAX_MATCH + 1];
+
+    /**
+     * the distance symbol of every distance
+     */
+    private static final byte[] DIST_SYMBOL = new byte[MatchFinder.WINDOW_SIZE + 1];
+
+    /**
+     * the fixed huffman literal/length code lengths
+     */
+    private static final int[] FIXED_LITLEN_LENGTHS = new int[288];
+
+    /**
+     * the fixed huffman distance code lengths
+     */
+    private static final int[] FIXED_DIST_LENGTHS = new int[32];
+
+    static {
+        for(int symbol = 0; symbol < LENGTH_BASE.length; symbol++) {
+            int end = symbol + 1 < LENGTH_BASE.length ? LENGTH_BASE[symbol + 1] : MatchFinder.MAX_MATCH + 1;
+
+            for(int length = LENGTH_BASE[symbol]; length < end; length++) {
+                LENGTH_SYMBOL[length] = 257 + symbol;
+            }
+        }
+
+        for(int symbol = 0; symbol < DIST_BASE.length; symbol++) {
+            int end = symbol + 1 < DIST_BASE.length ? DIST_BASE[symbol + 1] : MatchFinder.WINDOW_SIZE + 1;
+
+            for(int distance = DIST_BASE[symbol]; distance < end; distance++) {
+                DIST_SYMBOL[distance] = (byte) symbol;
+            }
+        }
+
+        Arrays.fill(FIXED_LITLEN_LENGTHS, 0, 144, 8);
+        Arrays.fill(FIXED_LITLEN_LENGTHS, 144, 256, 9);
+        Arrays.fill(FIXED_LITLEN_LENGTHS, 256, 280, 7);
+        Arrays.fill(FIXED_LITLEN_LENGTHS, 280, 288, 8);
+        Arrays.fill(FIXED_DIST_LENGTHS, 5);
+    }
+
+    /**
+     * the maximum number of parse iterations per chunk
+     */
+    private final int iterations;
+
+    /**
+     * the maximum number of hash chain entries visited per position
+     */
+    private final int maxChainLength;
+
+    /**
+     * the time budget per input in milliseconds, zero or less for no limit
+     */
+    private final long timeBudgetMillis;
+
+    /**
+     * Constructor.
+     *
+     * @param iterations the maximum number of parse iterations per chunk
+     * @param maxChainLength the maximum number of hash chain entries visited per position
+     * @param timeBudgetMillis the time budget per input in milliseconds, zero or less for no limit
+     */
+    public ZopfliDeflater(int iterations, int maxChainLength, long timeBudgetMillis) {
+        this.iterations = Math.max(1, iterations);
+        this.maxChainLength = Math.max(1, maxChainLength);
+        this.timeBudgetMillis = timeBudgetMillis;
+    }
+
+    /**
+     * Compress the data into a gzip member.
+     *
+     * @param data the data
+     * @return the gzip member, or {@code null} if the time budget ran out before a first parse of the whole input
+     */
+    public byte[] gzip(byte[] data) {
+        byte[] deflated = deflate(data);
+        if(deflated == null) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        byte[] gzip = new byte[10 + deflated.length + 8];
+        gzip[0] = (byte) 0x1f;
+        gzip[1] = (byte) 0x8b;
+        gzip[2] = 8;
+        gzip[8] = 2;
+        gzip[9] = (byte) 0xff;
+
+        System.arraycopy(deflated, 0, gzip, 10, deflated.length);
+        writeInt(gzip, 10 + deflated.length, (int) crc.getValue());
+        writeInt(gzip, 14 + deflated.length, data.length);
+
+        return gzip;
+    }
+
+    /**
+     * Compress the data into a raw deflate stream.
+     *
+     * @param data the data
+     * @return the deflate stream, or {@code null} if the time budget ran out before a first parse of the whole input
+     */
+    public byte[] deflate(byte[] data) {
+        long deadline = timeBudgetMillis > 0 ? System.nanoTime() + timeBudgetMillis * 1000000L : Long.MAX_VALUE;
+        BitWriter out = new BitWriter(data.length / 3);
+
+        if(data.length == 0) {
+            out.writeBits(1, 1);
+            out.writeBits(1, 2);
+            out.writeCode(0, 7);
+
+            return out.toByteArray();
+        }
+
+        MatchFinder finder = new MatchFinder(data, maxChainLength);
+
+        for(int start = 0; start < data.length; start += CHUNK_SIZE) {
+            int end = Math.min(data.length, start + CHUNK_SIZE);
+            Parse parse = optimize(finder, data, start, end, deadline);
+
+            if(parse == null) {
+                return null;
+            }
+
+            writeBlocks(out, data, parse, end == data.length);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Iteratively parse a chunk, each iteration using the symbol statistics of the previous one as cost model.
+     *
+     * @param finder the match finder
+     * @param data the data
+     * @param start the chunk start
+     * @param end the chunk end
+     * @param deadline the {@link System#nanoTime()} deadline
+     * @return the cheapest parse, or {@code null} if the deadline passed before the first parse
+     */
+    private Parse optimize(MatchFinder finder, byte[] data, int start, int end, long deadline) {
+        int length = end - start;
+        int[] pairStart = new int[length + 1];
+        int[] pairLengths = new int[length + MatchFinder.MAX_MATCH];
+        int[] pairDistances = new int[length + MatchFinder.MAX_MATCH];
+        int pairs = 0;
+
+        // matches do not depend on the cost model, so they are found once for all iterations
+        for(int i = 0; i < length; i++) {
+            if(pairs + MatchFinder.MAX_MATCH > pairLengths.length) {
+                pairLengths = Arrays.copyOf(pairLengths, pairLengths.length * 2);
+                pairDistances = Arrays.copyOf(pairDistances, pairDistances.length * 2);
+            }
+
+            pairStart[i] = pairs;
+            pairs += finder.find(start + i, end - start - i, pairLengths, pairDistances, pairs);
+
+            if((i & 0xffff) == 0 && System.nanoTime() > deadline) {
+                return null;
+            }
+        }
+        pairStart[length] = pairs;
+
+        CostModel model = CostModel.fixed();
+        Parse best = null;
+        long bestBits = Long.MAX_VALUE;
+
+        for(int iteration = 0; iteration < iterations; iteration++) {
+            Parse parse = parse(data, start, length, pairStart, pairLengths, pairDistances, model);
+            long bits = blockBits(parse, 0, parse.count);
+
+            if(bits >= bestBits) {
+                // the statistics converged
+                break;
+            }
+
+            best = parse;
+            bestBits = bits;
+
+            if(System.nanoTime() > deadline) {
+                break;
+            }
+
+            model = CostModel.of(parse);
+        }
+
+        return best;
+    }
+
+    /**
+     * Shortest path parse of a chunk under the cost model.
+     *
+     * @param data the data
+     * @param start the chunk start
+     * @param length the chunk length
+     * @param pairStart the first match pair of every position
+     * @param pairLengths the match pair lengths
+     * @param pairDistances the match pair distances
+     * @param model the symbol cost model
+     * @return the parse
+     */
+    private Parse parse(byte[] data, int start, int length, int[] pairStart, int[] pairLengths, int[] pairDistances,
+                        CostModel model) {
+        float[] cost = new float[length + 1];
+        int[] backLength = new int[length + 1];
+        int[] backDistance = new int[length + 1];
+
+        Arrays.fill(cost, Float.MAX_VALUE);
+        cost[0] = 0;
+
+        for(int i = 0; i < length; i++) {
+            float base = cost[i];
+
+            float literal = base + model.literal[data[start + i] & 0xff];
+            if(literal < cost[i + 1]) {
+                cost[i + 1] = literal;
+                backLength[i + 1] = 1;
+                backDistance[i + 1] = 0;
+            }
+
+            int matchLength = MatchFinder.MIN_MATCH;
+            for(int p = pairStart[i]; p < pairStart[i + 1]; p++) {
+                int distance = pairDistances[p];
+                float distanceCost = base + model.distanceCost(distance);
+
+                for(; matchLength <= pairLengths[p]; matchLength++) {
+                    float match = distanceCost + model.length[matchLength];
+
+                    if(match < cost[i + matchLength]) {
+                        cost[i + matchLength] = match;
+                        backLength[i + matchLength] = matchLength;
+                        backDistance[i + matchLength] = distance;
+                    }
+                }
+            }
+        }
+
+        int count = 0;
+        for(int i = length; i > 0; i -= backLength[i]) {
+            count++;
+        }
+
+        Parse parse = new Parse(data, count);
+        for(int i = length, k = count - 1; i > 0; i -= backLength[i], k--) {
+            parse.lengths[k] = backLength[i];
+            parse.distances[k] = backDistance[i];
+            parse.positions[k] = start + i - backLength[i];
+        }
+
+        return parse;
+    }
+
+    /**
+     * Split the parse into blocks and write them.
+     *
+     * @param out the bit writer
+     * @param data the data
+     * @param parse the parse
+     * @param last whether the parse ends the stream
+     */
+    private void writeBlocks(BitWriter out, byte[] data, Parse parse, boolean last) {
+        List<int[]> blocks = new ArrayList<int[]>();
+        split(parse, 0, parse.count, blocks);
+
+        for(int i = 0; i < blocks.size(); i++) {
+            int[] block = blocks.get(i);
+            writeBlock(out, data, parse, block[0], block[1], last && i == blocks.size() - 1);
+        }
+    }
+
+    /**
+     * Recursively split a symbol range where separate huffman tables cost fewer bits than a shared one.
+     *
+     * @param parse the parse
+     * @param from the first symbol
+     * @param to the symbol after the last
+     * @param blocks receives the block symbol ranges
+     */
+    private void split(Parse parse, int from, int to, List<int[]> blocks) {
+        if(to - from >= MIN_SPLIT_SYMBOLS) {
+            long whole = blockBits(parse, from, to);
+            long bestBits = whole;
+            int bestSplit = -1;
+
+            for(int j = 1; j < 10; j++) {
+                int at = from + (int) ((long) (to - from) * j / 10);
+                long bits = blockBits(parse, from, at) + blockBits(parse, at, to);
+
+                if(bits < bestBits) {
+                    bestBits = bits;
+                    bestSplit = at;
+                }
+            }
+
+            if(bestSplit > 0) {
+                split(parse, from, bestSplit, blocks);
+                split(parse, bestSplit, to, blocks);
+                return;
+            }
+        }
+
+        blocks.add(new int[] {from, to});
+    }
+
+    /**
+     * Returns the size in bits of the cheapest block type for the symbol range.
+     *
+     * @param parse the parse
+     * @param from the first symbol
+     * @param to the symbol after the last
+     * @return the size in bits
+     */
+    private long blockBits(Parse parse, int from, int to) {
+        Statistics stats = new Statistics(parse, from, to);
+        BlockCode code = new BlockCode(stats);
+
+        return Math.min(Math.min(code.bits(stats), stats.fixedBits()), stats.storedBits());
+    }
+
+    /**
+     * Write the symbol range as a single stored, fixed or dynamic block, whichever is the smallest.
+     *
+     * @param out the bit writer
+     * @param data the data
+     * @param parse the parse
+     * @param from the first symbol
+     * @param to the symbol after the last
+     * @param last whether this is the final block
+     */
+    private void writeBlock(BitWriter out, byte[] data, Parse parse, int from, int to, boolean last) {
+        Statistics stats = new Statistics(parse, from, to);
+        BlockCode code = new BlockCode(stats);
+        long dynamicBits = code.bits(stats);
+        long fixedBits = stats.fixedBits();
+
+        if(stats.storedBits() < Math.min(dynamicBits, fixedBits)) {
+            writeStored(out, data, stats.start, stats.end, last);
+            return;
+        }
+
+        out.writeBits(last ? 1 : 0, 1);
+
+        if(fixedBits <= dynamicBits) {
+            out.writeBits(1, 2);
+            writeSymbols(out, parse, from, to, FIXED_LITLEN_LENGTHS, FIXED_DIST_LENGTHS);
+        } else {
+            out.writeBits(2, 2);
+            code.writeHeader(out);
+            writeSymbols(out, parse, from, to, code.litLengths, code.distLengths);
+        }
+    }
+
+    /**
+     * Write the symbols and the end of block code.
+     *
+     * @param out the bit writer
+     * @param parse the parse
+     * @param from the first symbol
+     * @param to the symbol after the last
+     * @param litLengths the literal/length code lengths
+     * @param distLengths the distance code lengths
+     */
+    private void writeSymbols(BitWriter out, Parse parse, int from, int to, int[] litLengths, int[] distLengths) {
+        int[] litCodes = Huffman.codes(litLengths);
+        int[] distCodes = Huffman.codes(distLengths);
+
+        for(int k = from; k < to; k++) {
+            int distance = parse.distances[k];
+
+            if(distance == 0) {
+                int literal = parse.literal(k);
+                out.writeCode(litCodes[literal], litLengths[literal]);
+            } else {
+                int length = parse.lengths[k];
+                int symbol = LENGTH_SYMBOL[length];
+                int distSymbol = DIST_SYMBOL[distance];
+
+                out.writeCode(litCodes[symbol], litLengths[symbol]);
+                out.writeBits(length - LENGTH_BASE[symbol - 257], LENGTH_EXTRA[symbol - 257]);
+                out.writeCode(distCodes[distSymbol], distLengths[distSymbol]);
+                out.writeBits(distance - DIST_BASE[distSymbol], DIST_EXTRA[distSymbol]);
+            }
+        }
+
+        out.writeCode(litCodes[END_OF_BLOCK], litLengths[END_OF_BLOCK]);
+    }
+
+    /**
+     * Write the bytes as stored blocks of at most 65535 bytes.
+     *
+     * @param out the bit writer
+     * @param data the data
+     * @param start the first byte
+     * @param end the byte after the last
+     * @param last whether the final stored block ends the stream
+     */
+    private void writeStored(BitWriter out, byte[] data, int start, int end, boolean last) {
+        do {
+            int length = Math.min(65535, end - start);
+
+            out.writeBits(last && start + length == end ? 1 : 0, 1);
+            out.writeBits(0, 2);
+            out.alignToByte();
+            out.writeBits(length, 16);
+            out.writeBits(~length & 0xffff, 16);
+            out.writeBytes(data, start, length);
+
+            start += length;
+        } while(start < end);
+    }
+
+    /**
+     * Write a little endian int.
+     *
+     * @param buf the buffer
+     * @param off the offset
+     * @param value the value
+     */
+    private static void writeInt(byte[] buf, int off, int value) {
+        buf[off] = (byte) value;
+        buf[off + 1] = (byte) (value >>> 8);
+        buf[off + 2] = (byte) (value >>> 16);
+        buf[off + 3] = (byte) (value >>> 24);
+    }
+
+    /**
+     * The symbols of a parsed chunk. A distance of zero marks a literal.
+     */
+    private static final class Parse {
+
+        /**
+         * the number of symbols
+         */
+        final int count;
+
+        /**
+         * the match length of every symbol, 1 for literals
+         */
+        final int[] lengths;
+
+        /**
+         * the match distance of every symbol, 0 for literals
+         */
+        final int[] distances;
+
+        /**
+         * the input position of every symbol
+         */
+        final int[] positions;
+
+        /**
+         * the parsed data
+         */
+        final byte[] data;
+
+        /**
+         * Constructor.
+         *
+         * @param data the parsed data
+         * @param count the number of symbols
+         */
+        Parse(byte[] data, int count) {
+            this.data = data;
+            this.count = count;
+            this.lengths = new int[count];
+            this.distances = new int[count];
+            this.positions = new int[count];
+        }
+
+        /**
+         * Returns the literal byte of a literal symbol.
+         *
+         * @param k the symbol index
+         * @return the literal byte value
+         */
+        int literal(int k) {
+            return data[positions[k]] & 0xff;
+        }
+    }
+
+    /**
+     * Symbol frequencies of a range of a parse.
+     */
+    private static final class Statistics {
+
+        /**
+         * the literal/length frequencies, including one end of block
+         */
+        final int[] litFreqs = new int[NUM_LITLEN];
+
+        /**
+         * the distance frequencies
+         */
+        final int[] distFreqs = new int[NUM_DIST];
+
+        /**
+         * the number of extra bits of all lengths and distances
+         */
+        long extraBits;
+
+        /**
+         * the first input byte of the range
+         */
+        final int start;
+
+        /**
+         * the input byte after the range
+         */
+        final int end;
+
+        /**
+         * Constructor.
+         *
+         * @param parse the parse
+         * @param from the first symbol
+         * @param to the symbol after the last
+         */
+        Statistics(Parse parse, int from, int to) {
+            for(int k = from; k < to; k++) {
+                int distance = parse.distances[k];
+
+                if(distance == 0) {
+                    litFreqs[parse.literal(k)]++;
+                } else {
+                    int symbol = LENGTH_SYMBOL[parse.lengths[k]];
+                    int distSymbol = DIST_SYMBOL[distance];
+
+                    litFreqs[symbol]++;
+                    distFreqs[distSymbol]++;
+                    extraBits += LENGTH_EXTRA[symbol - 257] + DIST_EXTRA[distSymbol];
+                }
+            }
+
+            litFreqs[END_OF_BLOCK]++;
+            start = from < to ? parse.positions[from] : 0;
+            end = from < to ? parse.positions[to - 1] + parse.lengths[to - 1] : 0;
+        }
+
+        /**
+         * Returns the size in bits of a fixed huffman block.
+         *
+         * @return the size in bits
+         */
+        long fixedBits() {
+            return 3 + dataBits(FIXED_LITLEN_LENGTHS, FIXED_DIST_LENGTHS);
+        }
+
+        /**
+         * Returns the size in bits of stored blocks, assuming the worst case padding.
+         *
+         * @return the size in bits
+         */
+        long storedBits() {
+            int length = end - start;
+            int blocks = Math.max(1, (length + 65534) / 65535);
+
+            return blocks * (3 + 7 + 32) + 8L * length;
+        }
+
+        /**
+         * Returns the size in bits of the symbols with the code lengths.
+         *
+         * @param litLengths the literal/length code lengths
+         * @param distLengths the distance code lengths
+         * @return the size in bits
+         */
+        long dataBits(int[] litLengths, int[] distLengths) {
+            long bits = extraBits;
+
+            for(int i = 0; i < NUM_LITLEN; i++) {
+                bits += (long) litFreqs[i] * litLengths[i];
+            }
+
+            for(int i = 0; i < NUM_DIST; i++) {
+                bits += (long) distFreqs[i] * distLengths[i];
+            }
+
+            return bits;
+        }
+    }
+
+    /**
+     * The dynamic huffman code of a block and its run length encoded header.
+     */
+    private static final class BlockCode {
+
+        /**
+         * the literal/length code lengths
+         */
+        final int[] litLengths;
+
+        /**
+         * the distance code lengths
+         */
+        final int[] distLengths;
+
+        /**
+         * the code length code lengths
+         */
+        final int[] clLengths;
+
+        /**
+         * the run length encoded code lengths, the symbol in the low byte and the repeat extra value above it
+         */
+        final int[] rle;
+
+        /**
+         * the number of run length encoded symbols
+         */
+        final int rleCount;
+
+        /**
+         * the number of transmitted literal/length code lengths
+         */
+        final int numLit;
+
+        /**
+         * the number of transmitted distance code lengths
+         */
+        final int numDist;
+
+        /**
+         * the number of transmitted code length code lengths
+         */
+        final int numCl;
+
+        /**
+         * Constructor.
+         *
+         * @param stats the block statistics
+         */
+        BlockCode(Statistics stats) {
+            litLengths = Huffman.lengths(stats.litFreqs, MAX_BITS);
+            distLengths = Huffman.lengths(stats.distFreqs, MAX_BITS);
+
+            // some inflaters reject a distance code with fewer than two codes
+            int used = 0;
+            for(int length : distLengths) {
+                if(length != 0) {
+                    used++;
+                }
+            }
+            if(used < 2) {
+                if(distLengths[0] == 0) {
+                    distLengths[0] = 1;
+                }
+                if(distLengths[1] == 0) {
+                    distLengths[1] = 1;
+                }
+            }
+
+            int lit = NUM_LITLEN;
+            while(lit > 257 && litLengths[lit - 1] == 0) {
+                lit--;
+            }
+
+            int dist = NUM_DIST;
+            while(dist > 1 && distLengths[dist - 1] == 0) {
+                dist--;
+            }
+
+            numLit = lit;
+            numDist = dist;
+
+            int[] all = new int[numLit + numDist];
+            System.arraycopy(litLengths, 0, all, 0, numLit);
+            System.arraycopy(distLengths, 0, all, numLit, numDist);
+
+            int[] symbols = new int[all.length];
+            int count = 0;
+            int[] clFreqs = new int[19];
+
+            for(int i = 0; i < all.length;) {
+                int value = all[i];
+                int run = 1;
+                while(i + run < all.length && all[i + run] == value) {
+                    run++;
+                }
+                i += run;
+
+                if(value == 0) {
+                    while(run >= 11) {
+                        int repeat = Math.min(run, 138);
+                        symbols[count++] = 18 | ((repeat - 11) << 8);
+                        clFreqs[18]++;
+                        run -= repeat;
+                    }
+                    if(run >= 3) {
+                        symbols[count++] = 17 | ((run - 3) << 8);
+                        clFreqs[17]++;
+                        run = 0;
+                    }
+                } else {
+                    symbols[count++] = value;
+                    clFreqs[value]++;
+                    run--;
+
+                    while(run >= 3) {
+                        int repeat = Math.min(run, 6);
+                        symbols[count++] = 16 | ((repeat - 3) << 8);
+                        clFreqs[16]++;
+                        run -= repeat;
+                    }
+                }
+
+                while(run > 0) {
+                    symbols[count++] = value;
+                    clFreqs[value]++;
+                    run--;
+                }
+            }
+
+            rle = symbols;
+            rleCount = count;
+            clLengths = Huffman.lengths(clFreqs, MAX_CL_BITS);
+
+            int cl = CL_ORDER.length;
+            while(cl > 4 && clLengths[CL_ORDER[cl - 1]] == 0) {
+                cl--;
+            }
+            numCl = cl;
+        }
+
+        /**
+         * Returns the size in bits of the dynamic block.
+         *
+         * @param stats the block statistics
+         * @return the size in bits
+         */
+        long bits(Statistics stats) {
+            long bits = 3 + 5 + 5 + 4 + 3 * numCl;
+
+            for(int i = 0; i < rleCount; i++) {
+                int symbol = rle[i] & 0xff;
+                bits += clLengths[symbol] + extraBits(symbol);
+            }
+
+            return bits + stats.dataBits(litLengths, distLengths);
+        }
+
+        /**
+         * Write the dynamic block header after the block type.
+         *
+         * @param out the bit writer
+         */
+        void writeHeader(BitWriter out) {
+            out.writeBits(numLit - 257, 5);
+            out.writeBits(numDist - 1, 5);
+            out.writeBits(numCl - 4, 4);
+
+            for(int i = 0; i < numCl; i++) {
+                out.writeBits(clLengths[CL_ORDER[i]], 3);
+            }
+
+            int[] clCodes = Huffman.codes(clLengths);
+            for(int i = 0; i < rleCount; i++) {
+                int symbol = rle[i] & 0xff;
+
+                out.writeCode(clCodes[symbol], clLengths[symbol]);
+                out.writeBits(rle[i] >>> 8, extraBits(symbol));
+            }
+        }
+
+        /**
+         * Returns the number of extra bits of a code length symbol.
+         *
+         * @param symbol the code length symbol
+         * @return the number of extra bits
+         */
+        private static int extraBits(int symbol) {
+            return symbol == 16 ? 2 : symbol == 17 ? 3 : symbol == 18 ? 7 : 0;
+        }
+    }
+
+    /**
+     * Bit cost of every literal, length and distance.
+     */
+    private static final class CostModel {
+
+        /**
+         * the cost of every literal byte
+         */
+        final float[] literal = new float[256];
+
+        /**
+         * the cost of every match length, including extra bits
+         */
+        final float[] length = new float[MatchFinder.MAX_MATCH + 1];
+
+        /**
+         * the cost of every distance symbol, including extra bits
+         */
+        final float[] distance = new float[NUM_DIST];
+
+        /**
+         * Returns the cost of a distance.
+         *
+         * @param d the distance
+         * @return the cost in bits
+         */
+        float distanceCost(int d) {
+            return distance[DIST_SYMBOL[d]];
+        }
+
+        /**
+         * The cost model of the fixed huffman code, used for the first parse.
+         *
+         * @return the cost model
+         */
+        static CostModel fixed() {
+            float[] litCosts = new float[NUM_LITLEN];
+            float[] distCosts = new float[NUM_DIST];
+
+            for(int i = 0; i < NUM_LITLEN; i++) {
+                litCosts[i] = FIXED_LITLEN_LENGTHS[i];
+            }
+            Arrays.fill(distCosts, 5);
+
+            return create(litCosts, distCosts);
+        }
+
+        /**
+         * The cost model of the entropy of the parse symbols.
+         *
+         * @param parse the parse
+         * @return the cost model
+         */
+        static CostModel of(Parse parse) {
+            Statistics stats = new Statistics(parse, 0, parse.count);
+
+            return create(entropy(stats.litFreqs), entropy(stats.distFreqs));
+        }
+
+        /**
+         * Returns the entropy cost in bits of every symbol, unused symbols cost as much as a single occurrence.
+         *
+         * @param freqs the symbol frequencies
+         * @return the symbol costs
+         */
+        private static float[] entropy(int[] freqs) {
+            long sum = 0;
+            for(int freq : freqs) {
+                sum += freq;
+            }
+
+            double log2Sum = sum > 0 ? Math.log(sum) / Math.log(2) : 0;
+            float[] costs = new float[freqs.length];
+
+            for(int i = 0; i < freqs.length; i++) {
+                costs[i] = (float) (freqs[i] > 0 ? log2Sum - Math.log(freqs[i]) / Math.log(2) : log2Sum);
+            }
+
+            return costs;
+        }
+
+        /**
+         * Create the model from the symbol costs.
+         *
+         * @param litCosts the literal/length symbol costs
+         * @param distCosts the distance symbol costs
+         * @return the cost model
+         */
+        private static CostModel create(float[] litCosts, float[] distCosts) {
+            CostModel model = new CostModel();
+
+            System.arraycopy(litCosts, 0, model.literal, 0, 256);
+
+            for(int length = MatchFinder.MIN_MATCH; length <= MatchFinder.MAX_MATCH; length++) {
+                int symbol = LENGTH_SYMBOL[length];
+                model.length[length] = litCosts[symbol] + LENGTH_EXTRA[symbol - 257];
+            }
+
+            for(int symbol = 0; symbol < NUM_DIST; symbol++) {
+                model.distance[symbol] = distCosts[symbol] + DIST_EXTRA[symbol];
+            }
+
+            return model;
+        }
+    }
+}
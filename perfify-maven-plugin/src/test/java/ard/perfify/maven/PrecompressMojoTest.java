@@ -0,0 +1,326 @@
+package ard.perfify.maven;
+
+import ard.perfify.compress.PrecompressManifest;
+import com.aayushatharva.brotli4j.decoder.Decoder;
+import com.github.luben.zstd.Zstd;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link PrecompressMojo} class.
+ */
+public class PrecompressMojoTest {
+
+    /**
+     * test mojo instance
+     */
+    private PrecompressMojo mojo;
+
+    /**
+     * the temporary war source directory
+     */
+    private File sourceDir;
+
+    /**
+     * the temporary exploded webapp directory
+     */
+    private File webappDir;
+
+    /**
+     * Initialize the test mojo and the temporary directories.
+     *
+     * @throws Exception on error
+     */
+    @Before
+    public void setUp() throws Exception {
+        File baseDir = new File(System.getProperty("java.io.tmpdir"), "perfify-" + System.nanoTime());
+
+        sourceDir = new File(baseDir, "webapp");
+        webappDir = new File(baseDir, "target");
+
+        mojo = new PrecompressMojo();
+        mojo.setWarSourceDirectory(sourceDir);
+        mojo.setWebappDirectory(webappDir);
+    }
+
+    /**
+     * Remove the temporary directories.
+     *
+     * @throws Exception on error
+     */
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(sourceDir.getParentFile());
+    }
+
+    /**
+     * Ensure that compressible text resources are written to the gzip tree and can be decompressed.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testCompressTextResource() throws Exception {
+        String content = repeat("body { margin: 0; padding: 0; }\n", 200);
+        writeSource("css/site.css", content);
+
+        mojo.execute();
+
+        File gzip = new File(webappDir, "gzip/css/site.css");
+        assertTrue("gzip variant should be written", gzip.isFile());
+        assertTrue("gzip variant should be smaller", gzip.length() < content.length());
+        assertEquals("invalid ungzip content", content, ungzip(gzip));
+    }
+
+    /**
+     * Ensure that the gzip tree is written under the configured prefix.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testGzipPrefix() throws Exception {
+        String content = repeat("body { margin: 0; padding: 0; }\n", 200);
+        writeSource("css/site.css", content);
+
+        mojo.setEncodings(new String[] {"gzip"});
+        mojo.setPrefix("/compressed/");
+        mojo.execute();
+
+        assertEquals("invalid ungzip content", content, ungzip(new File(webappDir, "compressed/css/site.css")));
+        assertFalse(new File(webappDir, "gzip/css/site.css").exists());
+    }
+
+    /**
+     * Ensure that brotli and zstd variants are written to their own trees and recorded in the manifest.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testBrotliAndZstdVariants() throws Exception {
+        String content = repeat("function noop() { return null; }\n", 200);
+        writeSource("js/app.js", content);
+
+        mojo.execute();
+
+        File br = new File(webappDir, "br/js/app.js");
+        File zstd = new File(webappDir, "zstd/js/app.js");
+        PrecompressManifest.Entry entry = loadManifest().get("/js/app.js");
+
+        assertEquals(br.length(), entry.getVariantSize("br"));
+        assertEquals(zstd.length(), entry.getVariantSize("zstd"));
+        assertEquals(content, new String(Decoder.decompress(FileUtils.readFileToByteArray(br)).getDecompressedData(), "UTF-8"));
+        assertEquals(content, new String(Zstd.decompress(FileUtils.readFileToByteArray(zstd), content.length()), "UTF-8"));
+
+        // dropping an encoding deletes its variants
+        mojo.setEncodings(new String[] {"gzip"});
+        mojo.execute();
+
+        assertFalse(br.exists());
+        assertFalse(zstd.exists());
+        assertFalse(loadManifest().get("/js/app.js").hasVariant("br"));
+        assertTrue(new File(webappDir, "gzip/js/app.js").isFile());
+    }
+
+    /**
+     * Ensure that exhaustive mode produces a readable gzip variant no larger than the JDK maximum compression level.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testExhaustiveGzip() throws Exception {
+        StringBuilder buf = new StringBuilder();
+        for(int i = 0; i < 2000; i++) {
+            buf.append("var item").append(i % 97).append(" = document.getElementById('id").append(i % 13).append("');\n");
+        }
+        String content = buf.toString();
+        writeSource("js/app.js", content);
+
+        mojo.setEncodings(new String[] {"gzip"});
+        mojo.execute();
+        long best = new File(webappDir, "gzip/js/app.js").length();
+
+        mojo.setExhaustive(true);
+        mojo.execute();
+
+        File gzip = new File(webappDir, "gzip/js/app.js");
+        assertEquals(content, ungzip(gzip));
+        assertTrue("exhaustive variant should not be larger", gzip.length() <= best);
+        assertTrue(loadManifest().get("/js/app.js").getSettings().startsWith("gzip-exhaustive-"));
+    }
+
+    /**
+     * Ensure that resources which do not save enough bytes are skipped.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testSkipSmallSaving() throws Exception {
+        writeSource("js/tiny.js", "var a=1;");
+
+        mojo.execute();
+
+        assertFalse("tiny resource should not be compressed", new File(webappDir, "gzip/js/tiny.js").exists());
+    }
+
+    /**
+     * Ensure that not text types, excluded resources and the gzip tree itself are never compressed.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testIncludesExcludesAndExtensions() throws Exception {
+        String content = repeat("function noop() { return null; }\n", 200);
+        writeSource("js/app.js", content);
+        writeSource("js/vendor/lib.js", content);
+        writeSource("img/logo.png", content);
+        writeSource("WEB-INF/web.xml", content);
+        writeSource("gzip/js/old.js", content);
+
+        mojo.setExcludes(new String[] {"WEB-INF/**", "**/vendor/**"});
+        mojo.execute();
+
+        assertTrue(new File(webappDir, "gzip/js/app.js").isFile());
+        assertFalse(new File(webappDir, "gzip/js/vendor/lib.js").exists());
+        assertFalse(new File(webappDir, "gzip/img/logo.png").exists());
+        assertFalse(new File(webappDir, "gzip/WEB-INF/web.xml").exists());
+        assertFalse(new File(webappDir, "gzip/gzip/js/old.js").exists());
+    }
+
+    /**
+     * Ensure that the manifest records the variants and that unchanged resources are not recompressed.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testIncrementalManifest() throws Exception {
+        String content = repeat("body { margin: 0; padding: 0; }\n", 200);
+        writeSource("css/site.css", content);
+        writeSource("css/old.css", content);
+        writeSource("js/tiny.js", "var a=1;");
+
+        mojo.setThreads(2);
+        mojo.execute();
+
+        PrecompressManifest manifest = loadManifest();
+        PrecompressManifest.Entry entry = manifest.get("/css/site.css");
+        File gzip = new File(webappDir, "gzip/css/site.css");
+
+        assertEquals(3, manifest.size());
+        assertEquals(content.length(), entry.getLength());
+        assertEquals(gzip.length(), entry.getVariantSize("gzip"));
+        assertFalse(manifest.get("/js/tiny.js").hasVariant("gzip"));
+
+        // unchanged resource should not be rewritten, removed resource variants should be deleted
+        gzip.setLastModified(1000);
+        FileUtils.forceDelete(new File(sourceDir, "css/old.css"));
+        mojo.execute();
+
+        assertEquals(1000, gzip.lastModified());
+        assertFalse(new File(webappDir, "gzip/css/old.css").exists());
+        assertNull(loadManifest().get("/css/old.css"));
+
+        // changed resource should be recompressed
+        writeSource("css/site.css", content + content);
+        mojo.execute();
+
+        assertTrue(gzip.lastModified() != 1000);
+        assertEquals(content.length() * 2, loadManifest().get("/css/site.css").getLength());
+        assertEquals(content + content, ungzip(gzip));
+
+        // changed settings should recompress everything
+        gzip.setLastModified(1000);
+        mojo.setMinSavingBytes(64);
+        mojo.execute();
+
+        assertTrue(gzip.lastModified() != 1000);
+    }
+
+    /**
+     * Ensure nothing is written when skipped.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testSkip() throws Exception {
+        writeSource("css/site.css", repeat("body { margin: 0; padding: 0; }\n", 200));
+
+        mojo.setSkip(true);
+        mojo.execute();
+
+        assertFalse(webappDir.exists());
+    }
+
+    /**
+     * Write a resource into the war source directory.
+     *
+     * @param path the relative path
+     * @param content the content
+     * @throws IOException on error
+     */
+    private void writeSource(String path, String content) throws IOException {
+        FileUtils.writeStringToFile(new File(sourceDir, path), content, "UTF-8");
+    }
+
+    /**
+     * Load the written manifest.
+     *
+     * @return the manifest
+     * @throws IOException on error
+     */
+    private PrecompressManifest loadManifest() throws IOException {
+        InputStream in = new FileInputStream(new File(webappDir, "WEB-INF/perfify/precompress.manifest"));
+
+        try {
+            PrecompressManifest manifest = new PrecompressManifest();
+            manifest.load(in);
+
+            return manifest;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Decompress a gzip file.
+     *
+     * @param file the gzip file
+     * @return the decompressed content
+     * @throws IOException on error
+     */
+    private String ungzip(File file) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Repeat the value.
+     *
+     * @param value the value to repeat
+     * @param count the number of repetitions
+     * @return the repeated value
+     */
+    private String repeat(String value, int count) {
+        StringBuilder buf = new StringBuilder();
+
+        for(int i = 0; i < count; i++) {
+            buf.append(value);
+        }
+
+        return buf.toString();
+    }
+}
@@ -0,0 +1,149 @@
+package ard.perfify.maven.zopfli;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link ZopfliDeflater} class.
+ */
+public class ZopfliDeflaterTest {
+
+    /**
+     * test deflater instance
+     */
+    private final ZopfliDeflater deflater = new ZopfliDeflater(15, 1024, 0);
+
+    /**
+     * Ensure that the deflate stream of different kinds of data inflates back to the same data.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(42);
+
+        byte[] noise = new byte[70000];
+        random.nextBytes(noise);
+
+        byte[] run = new byte[100000];
+        Arrays.fill(run, (byte) 'a');
+
+        assertRoundTrip(new byte[0]);
+        assertRoundTrip("a".getBytes());
+        assertRoundTrip("abcabcabcabcabc".getBytes());
+        assertRoundTrip(run);
+        assertRoundTrip(noise);
+        assertRoundTrip(generateText(random, 20000));
+        // spans several chunks and uses matches across the chunk boundaries
+        assertRoundTrip(generateText(random, 700000));
+    }
+
+    /**
+     * Ensure that the gzip member is readable and smaller than the JDK maximum compression level on text.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testGzipSmallerThanBestCompression() throws Exception {
+        byte[] text = generateText(new Random(7), 200000);
+        byte[] gzip = deflater.gzip(text);
+
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip));
+        assertTrue("invalid ungzip content", Arrays.equals(text, IOUtils.toByteArray(in)));
+
+        assertTrue("should be smaller than deflate -9", gzip.length - 18 < bestCompression(text));
+    }
+
+    /**
+     * Ensure that no result is returned when the time budget runs out.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testTimeBudget() throws Exception {
+        ZopfliDeflater limited = new ZopfliDeflater(15, 1024, 1);
+
+        assertNull(limited.deflate(generateText(new Random(3), 2000000)));
+    }
+
+    /**
+     * Assert the deflate stream of the data inflates back to the data.
+     *
+     * @param data the data
+     * @throws Exception on error
+     */
+    private void assertRoundTrip(byte[] data) throws Exception {
+        byte[] deflated = deflater.deflate(data);
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(deflated);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        while(!inflater.finished()) {
+            int count = inflater.inflate(buf);
+            if(count == 0 && !inflater.finished() && inflater.needsInput()) {
+                fail("truncated deflate stream for " + data.length + " bytes");
+            }
+            out.write(buf, 0, count);
+        }
+
+        assertTrue("invalid inflated content for " + data.length + " bytes", Arrays.equals(data, out.toByteArray()));
+        assertEquals("trailing bytes after the final block", 0, inflater.getRemaining());
+    }
+
+    /**
+     * Returns the raw deflate size at the JDK maximum compression level.
+     *
+     * @param data the data
+     * @return the compressed size
+     */
+    private int bestCompression(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+
+        byte[] buf = new byte[data.length + 1024];
+        int size = 0;
+        while(!deflater.finished()) {
+            size += deflater.deflate(buf, size, buf.length - size);
+        }
+        deflater.end();
+
+        return size;
+    }
+
+    /**
+     * Generate some source code like text.
+     *
+     * @param random the random source
+     * @param size the approximate size
+     * @return the text
+     * @throws IOException on error
+     */
+    private byte[] generateText(Random random, int size) throws IOException {
+        String[] words = {"function", "var", "return", "this", "prototype", "length", "null", "document", "(", ")",
+                "{", "}", ";", "=", "==", "if", "else", "for", "while", "i", "j", "value", "element", "\n", "  "};
+        StringBuilder buf = new StringBuilder(size + 32);
+
+        while(buf.length() < size) {
+            buf.append(words[random.nextInt(words.length)]);
+            if(random.nextInt(3) == 0) {
+                buf.append(random.nextInt(1000));
+            }
+            buf.append(' ');
+        }
+
+        return buf.toString().getBytes("UTF-8");
+    }
+}
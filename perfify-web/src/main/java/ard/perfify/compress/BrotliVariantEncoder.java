@@ -0,0 +1,65 @@
+package ard.perfify.compress;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+
+import java.io.IOException;
+
+/**
+ * Encodes brotli variants using the native brotli library bundled with brotli4j.
+ */
+public class BrotliVariantEncoder implements VariantEncoder {
+
+    /**
+     * the brotli quality, 0 to 11
+     */
+    private final int quality;
+
+    /**
+     * Constructor.
+     *
+     * @param quality the brotli quality, 0 to 11
+     */
+    public BrotliVariantEncoder(int quality) {
+        this.quality = quality;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ContentEncoding getEncoding() {
+        return ContentEncoding.BROTLI;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getSettings() {
+        return "br-" + quality;
+    }
+
+    /**
+     * The brotli native library is only bundled for the common platforms.
+     *
+     * @return {@code true} if the native library was loaded, {@code false} otherwise.
+     */
+    public boolean isAvailable() {
+        try {
+            return Brotli4jLoader.isAvailable();
+        } catch(LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compress the content using brotli at the configured quality.
+     *
+     * @param path the resource path
+     * @param content the content to compress
+     * @return the brotli compressed content
+     * @throws IOException on encoding error
+     */
+    public byte[] encode(String path, byte[] content) throws IOException {
+        return Encoder.compress(content, new Encoder.Parameters().setQuality(quality).setMode(Encoder.Mode.TEXT));
+    }
+}
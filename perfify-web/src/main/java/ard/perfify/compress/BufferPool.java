@@ -0,0 +1,117 @@
+package ard.perfify.compress;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded, thread safe pool of equally sized byte arrays, for the per response buffers of the compression streams.
+ */
+public class BufferPool {
+
+    /**
+     * the default buffer size
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * the default number of idle buffers kept
+     */
+    public static final int DEFAULT_MAX_IDLE = 256;
+
+    /**
+     * the shared default pool
+     */
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IDLE);
+
+    /**
+     * the buffer size
+     */
+    private final int bufferSize;
+
+    /**
+     * the maximum number of idle buffers kept
+     */
+    private final int maxIdle;
+
+    /**
+     * the idle buffers
+     */
+    private final Queue<byte[]> idle = new ConcurrentLinkedQueue<byte[]>();
+
+    /**
+     * the number of idle buffers
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize the buffer size
+     * @param maxIdle the maximum number of idle buffers kept
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns the pool shared by default.
+     *
+     * @return the default pool
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Borrow a buffer, its content is undefined.
+     *
+     * @return the buffer
+     */
+    public byte[] borrow() {
+        byte[] buffer = idle.poll();
+        if(buffer == null) {
+            return new byte[bufferSize];
+        }
+
+        idleCount.decrementAndGet();
+
+        return buffer;
+    }
+
+    /**
+     * Return a borrowed buffer, it is dropped when the pool is full.
+     *
+     * @param buffer the buffer
+     */
+    public void release(byte[] buffer) {
+        if(buffer == null || buffer.length != bufferSize) {
+            return;
+        }
+
+        if(idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the buffer size.
+     *
+     * @return the buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of idle buffers.
+     *
+     * @return the idle buffers
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+}
@@ -0,0 +1,69 @@
+package ard.perfify.compress;
+
+/**
+ * A part of a page compressed once into a complete gzip member. A gzip stream may consist of several concatenated
+ * members, so the member can be spliced verbatim between the members compressed for the dynamic rest of a response.
+ * The uncompressed content is kept for responses sent without compression.
+ */
+public class CompressedFragment {
+
+    /**
+     * the uncompressed content
+     */
+    private final byte[] content;
+
+    /**
+     * the complete gzip member of the content
+     */
+    private final byte[] member;
+
+    /**
+     * Constructor.
+     *
+     * @param content the uncompressed content
+     * @param member the complete gzip member of the content
+     */
+    public CompressedFragment(byte[] content, byte[] member) {
+        this.content = content;
+        this.member = member;
+    }
+
+    /**
+     * Compress the content into a complete gzip member.
+     *
+     * @param content the uncompressed content
+     * @param level the compression level
+     * @param engine the compression engine
+     * @return the fragment
+     */
+    public static CompressedFragment compress(byte[] content, int level, CompressionEngine engine) {
+        return new CompressedFragment(content, engine.gzip(content, 0, content.length, level));
+    }
+
+    /**
+     * Returns the uncompressed content, must not be modified.
+     *
+     * @return the content
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Returns the complete gzip member of the content, must not be modified.
+     *
+     * @return the gzip member
+     */
+    public byte[] getMember() {
+        return member;
+    }
+
+    /**
+     * Returns the number of bytes held by the fragment.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return content.length + member.length;
+    }
+}
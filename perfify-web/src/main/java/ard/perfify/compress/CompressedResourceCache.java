@@ -0,0 +1,244 @@
+package ard.perfify.compress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded, least recently used cache of encoded resource bytes keyed by encoding and uri. The bytes are held in
+ * direct buffers outside the java heap, so tens of megabytes of cached assets add no garbage collection work.
+ */
+public class CompressedResourceCache {
+
+    /**
+     * the size of the chunks read from a resource stream
+     */
+    private static final int READ_CHUNK_SIZE = 8192;
+
+    /**
+     * the maximum number of cached bytes
+     */
+    private final long capacity;
+
+    /**
+     * the cached buffers in access order, guarded by this instance
+     */
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(64, 0.75f, true);
+
+    /**
+     * the number of cached bytes, guarded by this instance
+     */
+    private long size;
+
+    /**
+     * the number of lookups answered from the cache
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * the number of lookups not answered from the cache
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * the number of entries evicted to stay within the capacity
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of cached bytes
+     */
+    public CompressedResourceCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cached bytes of the resource variant.
+     *
+     * @param encoding the content encoding
+     * @param uri the resource uri
+     * @return a read only view of the cached bytes positioned at zero, or {@code null} on a cache miss
+     */
+    public ByteBuffer get(ContentEncoding encoding, String uri) {
+        ByteBuffer buffer;
+
+        synchronized(this) {
+            buffer = entries.get(key(encoding, uri));
+        }
+
+        if(buffer == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+
+        return buffer.duplicate();
+    }
+
+    /**
+     * Reads the resource variant into an off heap buffer and caches it, evicting the least recently used entries to
+     * make room. Variants larger than the whole capacity are not cached. The stream is not closed.
+     *
+     * @param encoding the content encoding
+     * @param uri the resource uri
+     * @param in the encoded resource stream
+     * @param length the encoded size when known, {@code -1} otherwise
+     * @return a read only view of the bytes positioned at zero, whether or not they were cached
+     * @throws IOException on IO error
+     */
+    public ByteBuffer put(ContentEncoding encoding, String uri, InputStream in, long length) throws IOException {
+        ByteBuffer buffer = read(in, length);
+
+        if(buffer.capacity() <= capacity) {
+            synchronized(this) {
+                ByteBuffer previous = entries.put(key(encoding, uri), buffer);
+                if(previous != null) {
+                    size -= previous.capacity();
+                }
+
+                size += buffer.capacity();
+                evict();
+            }
+        }
+
+        return buffer.duplicate();
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the maximum number of cached bytes.
+     *
+     * @return the capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of cached bytes.
+     *
+     * @return the cached bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     *
+     * @return the number of entries
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups not answered from the cache.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the capacity.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "CompressedResourceCache[size=" + getSize() + "/" + capacity + ", entries=" + getEntryCount()
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Evict least recently used entries until the cached bytes fit the capacity, must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator();
+
+        while(size > capacity && it.hasNext()) {
+            size -= it.next().getValue().capacity();
+            it.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Read the stream into a read only direct buffer of the exact size.
+     *
+     * @param in the stream
+     * @param length the expected size, {@code -1} when unknown
+     * @return the read only buffer
+     * @throws IOException on IO error
+     */
+    private ByteBuffer read(InputStream in, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length >= 0 ? (int) length : READ_CHUNK_SIZE);
+        byte[] chunk = new byte[READ_CHUNK_SIZE];
+
+        int read;
+        while((read = in.read(chunk)) != -1) {
+            if(buffer.remaining() < read) {
+                ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + read));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+
+            buffer.put(chunk, 0, read);
+        }
+
+        buffer.flip();
+
+        if(buffer.limit() != buffer.capacity()) {
+            ByteBuffer exact = ByteBuffer.allocateDirect(buffer.limit());
+            exact.put(buffer);
+            exact.flip();
+            buffer = exact;
+        }
+
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the cache key of the resource variant.
+     *
+     * @param encoding the content encoding
+     * @param uri the resource uri
+     * @return the key
+     */
+    private String key(ContentEncoding encoding, String uri) {
+        return encoding.getPrefix() + uri;
+    }
+}
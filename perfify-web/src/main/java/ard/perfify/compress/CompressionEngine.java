@@ -0,0 +1,53 @@
+package ard.perfify.compress;
+
+import java.util.zip.Deflater;
+
+/**
+ * Compression engine producing the deflate streams of gzip responses and variants. The default engine wraps the JDK
+ * zlib, native engines bind faster implementations of the same format when their library is installed.
+ *
+ * @see CompressionEngines
+ */
+public interface CompressionEngine {
+
+    /**
+     * Returns the engine name, as selected in the configuration.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Determines whether the engine can run on this platform.
+     *
+     * @return {@code true} if available, {@code false} otherwise.
+     */
+    boolean isAvailable();
+
+    /**
+     * Determines whether complete buffers are compressed faster with {@link #gzip(byte[], int, int, int)} than
+     * streamed through a deflater, so bodies known in full are better compressed in one shot.
+     *
+     * @return {@code true} if one shot compression is preferred, {@code false} otherwise
+     */
+    boolean isOneShotPreferred();
+
+    /**
+     * Create a raw deflate deflater, without zlib header and trailer, for streamed compression.
+     *
+     * @param level the compression level, {@link Deflater#DEFAULT_COMPRESSION} or 0 to 9
+     * @return the deflater
+     */
+    Deflater newDeflater(int level);
+
+    /**
+     * Compress the bytes in one shot into a complete gzip member.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @param level the compression level, {@link Deflater#DEFAULT_COMPRESSION} or 0 to 9
+     * @return the gzip member
+     */
+    byte[] gzip(byte[] b, int off, int len, int level);
+}
@@ -0,0 +1,67 @@
+package ard.perfify.compress;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves the configured {@link CompressionEngine}: <code>jdk</code>, <code>libdeflate</code> or
+ * <code>zlib-ng</code>. Native engines fall back to the JDK engine when JNA or their library is not installed, so one
+ * configuration serves hosts with and without the native libraries.
+ */
+public final class CompressionEngines {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(CompressionEngines.class);
+
+    /**
+     * the default number of idle native compressors kept per level
+     */
+    private static final int DEFAULT_MAX_IDLE = 64;
+
+    /**
+     * Constructor.
+     */
+    private CompressionEngines() {
+    }
+
+    /**
+     * Returns the JDK engine.
+     *
+     * @return the default engine
+     */
+    public static CompressionEngine getDefault() {
+        return new JdkCompressionEngine();
+    }
+
+    /**
+     * Returns the available engine of the name, or the JDK engine when it is not available.
+     *
+     * @param name the engine name
+     * @return the engine
+     * @throws IllegalArgumentException when the name is unknown
+     */
+    public static CompressionEngine get(String name) {
+        CompressionEngine engine;
+
+        if(name == null || JdkCompressionEngine.NAME.equalsIgnoreCase(name)) {
+            return getDefault();
+        } else if(LibdeflateCompressionEngine.NAME.equalsIgnoreCase(name)) {
+            engine = new LibdeflateCompressionEngine(DEFAULT_MAX_IDLE);
+        } else if(ZlibNgCompressionEngine.NAME.equalsIgnoreCase(name)) {
+            engine = new ZlibNgCompressionEngine();
+        } else {
+            throw new IllegalArgumentException("Unknown compression engine " + name
+                    + ", expected jdk, libdeflate or zlib-ng.");
+        }
+
+        if(!engine.isAvailable()) {
+            LOG.info("Compression engine " + name + " is not available, falling back to the JDK deflater.");
+            return getDefault();
+        }
+
+        LOG.info("Using the " + engine.getName() + " compression engine.");
+
+        return engine;
+    }
+}
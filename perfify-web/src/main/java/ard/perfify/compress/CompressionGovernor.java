@@ -0,0 +1,340 @@
+package ard.perfify.compress;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps on the fly compression within a CPU budget. The pressure is the larger of the in-flight compressions relative
+ * to their limit and of the recent share of the processors spent deflating relative to its limit. Below the step down
+ * pressure compressions run at the requested level, above it the level is stepped down towards the minimum level and
+ * at full pressure compression is refused, so the response is sent as is and bandwidth absorbs the load instead of
+ * latency.
+ * <p/>
+ * The deflate time is accumulated per window of one second and averaged over the past windows, decaying by half per
+ * idle window.
+ */
+public class CompressionGovernor {
+
+    /**
+     * the level returned when compression is refused
+     */
+    public static final int IDENTITY = -2;
+
+    /**
+     * the default share of the processors compression may use
+     */
+    public static final double DEFAULT_MAX_CPU_SHARE = 0.5;
+
+    /**
+     * the default pressure from which the level is stepped down
+     */
+    public static final double DEFAULT_STEP_DOWN_PRESSURE = 0.5;
+
+    /**
+     * the level the zlib default compression corresponds to
+     */
+    private static final int ZLIB_DEFAULT_LEVEL = 6;
+
+    /**
+     * the deflate time window
+     */
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    /**
+     * the shared default governor
+     */
+    private static final CompressionGovernor DEFAULT = new CompressionGovernor();
+
+    /**
+     * the number of processors
+     */
+    private final int processors = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * the maximum number of in-flight compressions
+     */
+    private volatile int maxInFlight = 4 * processors;
+
+    /**
+     * the maximum share of the processors compression may use
+     */
+    private volatile double maxCpuShare = DEFAULT_MAX_CPU_SHARE;
+
+    /**
+     * the pressure from which the level is stepped down
+     */
+    private volatile double stepDownPressure = DEFAULT_STEP_DOWN_PRESSURE;
+
+    /**
+     * the lowest level stepped down to
+     */
+    private volatile int minLevel = Deflater.BEST_SPEED;
+
+    /**
+     * the number of in-flight compressions
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * the deflate time of the current window
+     */
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    /**
+     * the start of the current window
+     */
+    private volatile long windowStart = now();
+
+    /**
+     * the average share of the processors spent deflating in the past windows
+     */
+    private volatile double cpuLoad;
+
+    /**
+     * the number of admitted compressions
+     */
+    private final AtomicLong admittedCount = new AtomicLong();
+
+    /**
+     * the number of compressions admitted at a stepped down level
+     */
+    private final AtomicLong steppedDownCount = new AtomicLong();
+
+    /**
+     * the number of refused compressions
+     */
+    private final AtomicLong refusedCount = new AtomicLong();
+
+    /**
+     * Returns the governor shared by default.
+     *
+     * @return the default governor
+     */
+    public static CompressionGovernor getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Admit a compression, it must be {@link #release(long) released} when finished unless refused.
+     *
+     * @param level the requested compression level, {@link Deflater#DEFAULT_COMPRESSION} or 1 to 9
+     * @return the level to compress with, or {@link #IDENTITY} when compression is refused
+     */
+    public int admit(int level) {
+        int current = inFlight.incrementAndGet();
+        double pressure = getPressure(current - 1);
+
+        if(pressure >= 1) {
+            inFlight.decrementAndGet();
+            refusedCount.incrementAndGet();
+
+            return IDENTITY;
+        }
+
+        admittedCount.incrementAndGet();
+
+        int governed = getLevel(level, pressure);
+        if(governed != level) {
+            steppedDownCount.incrementAndGet();
+        }
+
+        return governed;
+    }
+
+    /**
+     * Release an admitted compression.
+     *
+     * @param deflateNanos the time spent deflating
+     */
+    public void release(long deflateNanos) {
+        inFlight.decrementAndGet();
+        busyNanos.addAndGet(deflateNanos);
+        roll();
+    }
+
+    /**
+     * Returns the level a compression requesting the level would currently get.
+     *
+     * @param level the requested compression level
+     * @return the current level, or {@link #IDENTITY} when compression is refused
+     */
+    public int getLevel(int level) {
+        double pressure = getPressure(inFlight.get());
+
+        return pressure >= 1 ? IDENTITY : getLevel(level, pressure);
+    }
+
+    /**
+     * Returns the current pressure.
+     *
+     * @return the pressure, 1 or more when compression is refused
+     */
+    public double getPressure() {
+        return getPressure(inFlight.get());
+    }
+
+    /**
+     * Returns the number of in-flight compressions.
+     *
+     * @return the in-flight compressions
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the recent share of the processors spent deflating.
+     *
+     * @return the cpu load between 0 and 1
+     */
+    public double getCpuLoad() {
+        roll();
+
+        return cpuLoad;
+    }
+
+    /**
+     * Returns the number of admitted compressions.
+     *
+     * @return the admitted compressions
+     */
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /**
+     * Returns the number of compressions admitted at a stepped down level.
+     *
+     * @return the stepped down compressions
+     */
+    public long getSteppedDownCount() {
+        return steppedDownCount.get();
+    }
+
+    /**
+     * Returns the number of refused compressions.
+     *
+     * @return the refused compressions
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    /**
+     * Sets the maximum number of in-flight compressions, from which compression is refused.
+     *
+     * @param maxInFlight the maximum in-flight compressions
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets the maximum share of the processors compression may use, from which compression is refused.
+     *
+     * @param maxCpuShare the maximum cpu share, between 0 and 1
+     */
+    public void setMaxCpuShare(double maxCpuShare) {
+        this.maxCpuShare = maxCpuShare;
+    }
+
+    /**
+     * Sets the pressure from which the level is stepped down.
+     *
+     * @param stepDownPressure the step down pressure, between 0 and 1
+     */
+    public void setStepDownPressure(double stepDownPressure) {
+        this.stepDownPressure = stepDownPressure;
+    }
+
+    /**
+     * Sets the lowest level stepped down to.
+     *
+     * @param minLevel the minimum level, 1 to 9
+     */
+    public void setMinLevel(int minLevel) {
+        this.minLevel = minLevel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "CompressionGovernor[inFlight=" + getInFlight() + ", cpuLoad=" + Math.round(getCpuLoad() * 100)
+                + "%, level=" + getLevel(Deflater.DEFAULT_COMPRESSION) + ", admitted=" + getAdmittedCount()
+                + ", steppedDown=" + getSteppedDownCount() + ", refused=" + getRefusedCount() + "]";
+    }
+
+    /**
+     * Returns the current time in nanoseconds.
+     *
+     * @return the time
+     */
+    long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns the pressure for the number of in-flight compressions.
+     *
+     * @param current the number of in-flight compressions
+     * @return the pressure
+     */
+    private double getPressure(int current) {
+        double inFlightPressure = maxInFlight > 0 ? (double) current / maxInFlight : 1;
+        double cpuPressure = maxCpuShare > 0 ? getCpuLoad() / maxCpuShare : 1;
+
+        return Math.max(inFlightPressure, cpuPressure);
+    }
+
+    /**
+     * Returns the level stepped down for the pressure, linearly from the requested level at the step down pressure to
+     * the minimum level at full pressure.
+     *
+     * @param level the requested compression level
+     * @param pressure the pressure below 1
+     * @return the compression level
+     */
+    private int getLevel(int level, double pressure) {
+        if(pressure < stepDownPressure) {
+            return level;
+        }
+
+        int requested = level == Deflater.DEFAULT_COMPRESSION ? ZLIB_DEFAULT_LEVEL : level;
+        if(requested <= minLevel) {
+            return level;
+        }
+
+        double fraction = (pressure - stepDownPressure) / (1 - stepDownPressure);
+        int governed = requested - (int) Math.ceil(fraction * (requested - minLevel));
+
+        return governed == requested ? level : Math.max(minLevel, governed);
+    }
+
+    /**
+     * Close the current window once elapsed, folding its deflate time into the average.
+     */
+    private void roll() {
+        long start = windowStart;
+        long now = now();
+
+        if(now - start < WINDOW_NANOS) {
+            return;
+        }
+
+        synchronized(this) {
+            if(windowStart != start) {
+                return;
+            }
+
+            double elapsed = now - start;
+            double current = busyNanos.getAndSet(0) / (elapsed * processors);
+            double weight = Math.pow(0.5, elapsed / WINDOW_NANOS);
+
+            cpuLoad = cpuLoad * weight + current * (1 - weight);
+            windowStart = now;
+        }
+    }
+}
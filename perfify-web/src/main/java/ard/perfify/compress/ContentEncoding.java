@@ -0,0 +1,79 @@
+package ard.perfify.compress;
+
+/**
+ * The content encodings of pre-compressed resource variants. Each variant tree lives under its own path prefix in the
+ * web application, keeping the original resource names so the container still derives the content type from them.
+ */
+public enum ContentEncoding {
+
+    /**
+     * gzip, understood by virtually every client.
+     */
+    GZIP("gzip", "/gzip"),
+
+    /**
+     * brotli, typically 15-25% smaller than gzip on text resources.
+     */
+    BROTLI("br", "/br"),
+
+    /**
+     * zstandard.
+     */
+    ZSTD("zstd", "/zstd");
+
+    /**
+     * the <code>Content-Encoding</code> token
+     */
+    private final String token;
+
+    /**
+     * the variant tree path prefix
+     */
+    private final String prefix;
+
+    /**
+     * Constructor.
+     *
+     * @param token the content encoding token
+     * @param prefix the variant tree path prefix
+     */
+    ContentEncoding(String token, String prefix) {
+        this.token = token;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Returns the <code>Content-Encoding</code> token.
+     *
+     * @return the content encoding token
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the variant tree path prefix.
+     *
+     * @return the path prefix
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Returns the content encoding for the token.
+     *
+     * @param token the content encoding token, e.g. br
+     * @return the content encoding
+     * @throws IllegalArgumentException when the token is not a supported encoding
+     */
+    public static ContentEncoding forToken(String token) {
+        for(ContentEncoding encoding : values()) {
+            if(encoding.token.equalsIgnoreCase(token)) {
+                return encoding;
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported content encoding '" + token + "'.");
+    }
+}
@@ -0,0 +1,91 @@
+package ard.perfify.compress;
+
+import org.apache.log4j.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Access to the {@link ByteBuffer} deflate method of {@link Deflater} added in Java 11, looked up once into a
+ * {@link MethodHandle} since the project is built for older runtimes, so calls are neither reflective nor boxed. With a direct buffer zlib writes the memory in place, which a socket
+ * channel can then send without copying it to the heap and back.
+ */
+public final class DeflaterBuffers {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(DeflaterBuffers.class);
+
+    /**
+     * the <code>Deflater.deflate(ByteBuffer, int)</code> method, {@code null} when not supported
+     */
+    private static final MethodHandle DEFLATE;
+
+    static {
+        MethodHandle deflate = null;
+
+        try {
+            deflate = MethodHandles.publicLookup().findVirtual(Deflater.class, "deflate",
+                    MethodType.methodType(int.class, ByteBuffer.class, int.class));
+        } catch(NoSuchMethodException e) {
+            LOG.debug("Deflater ByteBuffer methods not available, direct buffers are not supported.");
+        } catch(IllegalAccessException e) {
+            LOG.debug("Deflater ByteBuffer methods not accessible, direct buffers are not supported.", e);
+        }
+
+        DEFLATE = deflate;
+    }
+
+    /**
+     * Constructor.
+     */
+    private DeflaterBuffers() {
+    }
+
+    /**
+     * Determines whether the runtime supports deflating with byte buffers.
+     *
+     * @return {@code true} if supported, {@code false} otherwise
+     */
+    public static boolean isSupported() {
+        return DEFLATE != null;
+    }
+
+    /**
+     * Determines whether the deflater can deflate into byte buffers, only the JDK deflater itself can.
+     *
+     * @param deflater the deflater
+     * @return {@code true} if supported, {@code false} otherwise
+     */
+    public static boolean isSupported(Deflater deflater) {
+        return DEFLATE != null && deflater.getClass() == Deflater.class;
+    }
+
+    /**
+     * Deflate into the buffer from its position up to its limit.
+     *
+     * @param deflater the deflater
+     * @param output the output buffer, its position is advanced past the deflated bytes
+     * @param flush the deflater flush mode
+     * @return the number of deflated bytes
+     */
+    public static int deflate(Deflater deflater, ByteBuffer output, int flush) {
+        if(DEFLATE == null) {
+            throw new UnsupportedOperationException("Deflater ByteBuffer methods require Java 11");
+        }
+
+        try {
+            return (int) DEFLATE.invokeExact(deflater, output, flush);
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Error e) {
+            throw e;
+        } catch(Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package ard.perfify.compress;
+
+import org.apache.log4j.Logger;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Bounded, thread safe pool of raw deflate {@link Deflater} instances per compression level. Each deflater holds
+ * around 256 KB of native zlib state, reusing them avoids the native allocation and the finalization backlog of one
+ * deflater per compressed response.
+ * <p/>
+ * A borrowed deflater is tied to its owner, when the owner is garbage collected without returning the deflater the
+ * deflater is counted as leaked and its native memory released.
+ */
+public class DeflaterPool {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(DeflaterPool.class);
+
+    /**
+     * the default number of idle deflaters kept per level
+     */
+    public static final int DEFAULT_MAX_IDLE = 64;
+
+    /**
+     * the shared default pool
+     */
+    private static final DeflaterPool DEFAULT = new DeflaterPool(DEFAULT_MAX_IDLE);
+
+    /**
+     * the number of supported levels, {@link Deflater#DEFAULT_COMPRESSION} and 0 to 9
+     */
+    private static final int LEVELS = 11;
+
+    /**
+     * the maximum number of idle deflaters kept per level
+     */
+    private final int maxIdle;
+
+    /**
+     * the engine creating the deflaters
+     */
+    private final CompressionEngine engine;
+
+    /**
+     * the idle deflaters per level, indexed by level + 1
+     */
+    private final Queue<Deflater>[] idle;
+
+    /**
+     * the number of idle deflaters per level, indexed by level + 1
+     */
+    private final AtomicInteger[] idleCount;
+
+    /**
+     * the borrowed deflaters and their leak detecting references
+     */
+    private final Map<Deflater, Lease> leases = new ConcurrentHashMap<Deflater, Lease>();
+
+    /**
+     * the queue of collected owners
+     */
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+    /**
+     * the number of borrowed deflaters
+     */
+    private final AtomicLong borrowCount = new AtomicLong();
+
+    /**
+     * the number of borrowed deflaters taken from the pool
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * the number of deflaters whose owner never returned them
+     */
+    private final AtomicLong leakCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param maxIdle the maximum number of idle deflaters kept per level
+     */
+    public DeflaterPool(int maxIdle) {
+        this(maxIdle, new JdkCompressionEngine());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxIdle the maximum number of idle deflaters kept per level
+     * @param engine the engine creating the deflaters
+     */
+    @SuppressWarnings("unchecked")
+    public DeflaterPool(int maxIdle, CompressionEngine engine) {
+        this.maxIdle = maxIdle;
+        this.engine = engine;
+        this.idle = new Queue[LEVELS];
+        this.idleCount = new AtomicInteger[LEVELS];
+
+        for(int i = 0; i < LEVELS; i++) {
+            idle[i] = new ConcurrentLinkedQueue<Deflater>();
+            idleCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns the pool shared by default.
+     *
+     * @return the default pool
+     */
+    public static DeflaterPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Borrow a raw deflate deflater, without zlib header and trailer, of the compression level.
+     *
+     * @param level the compression level, {@link Deflater#DEFAULT_COMPRESSION} or 0 to 9
+     * @param owner the object responsible for returning the deflater, watched for leaks
+     * @return the deflater
+     */
+    public Deflater borrow(int level, Object owner) {
+        expungeLeaks();
+        borrowCount.incrementAndGet();
+
+        Deflater deflater = idle[level + 1].poll();
+        if(deflater != null) {
+            idleCount[level + 1].decrementAndGet();
+            hitCount.incrementAndGet();
+        } else {
+            deflater = engine.newDeflater(level);
+        }
+
+        leases.put(deflater, new Lease(owner, collected, deflater, level));
+
+        return deflater;
+    }
+
+    /**
+     * Return a borrowed deflater. It is reset and kept for reuse when the pool of its level is not full, otherwise
+     * its native memory is released.
+     *
+     * @param deflater the deflater
+     */
+    public void release(Deflater deflater) {
+        Lease lease = leases.remove(deflater);
+        if(lease == null) {
+            return;
+        }
+
+        lease.clear();
+        int index = lease.level + 1;
+
+        if(idleCount[index].incrementAndGet() <= maxIdle) {
+            deflater.reset();
+            idle[index].offer(deflater);
+        } else {
+            idleCount[index].decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the engine creating the deflaters.
+     *
+     * @return the compression engine
+     */
+    public CompressionEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Returns the maximum number of idle deflaters kept per level.
+     *
+     * @return the maximum idle deflaters per level
+     */
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Returns the number of idle deflaters over all levels.
+     *
+     * @return the idle deflaters
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for(AtomicInteger levelCount : idleCount) {
+            count += levelCount.get();
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the number of currently borrowed deflaters.
+     *
+     * @return the borrowed deflaters
+     */
+    public int getActiveCount() {
+        return leases.size();
+    }
+
+    /**
+     * Returns the number of borrowed deflaters.
+     *
+     * @return the borrow count
+     */
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * Returns the number of borrowed deflaters taken from the pool instead of created.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the ratio of borrowed deflaters taken from the pool.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public double getHitRate() {
+        long borrowed = borrowCount.get();
+
+        return borrowed > 0 ? (double) hitCount.get() / borrowed : 0;
+    }
+
+    /**
+     * Returns the number of deflaters whose owner was garbage collected without returning them.
+     *
+     * @return the leak count
+     */
+    public long getLeakCount() {
+        expungeLeaks();
+
+        return leakCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "DeflaterPool[engine=" + engine.getName() + ", idle=" + getIdleCount() + ", active=" + getActiveCount() + ", borrowed=" + getBorrowCount()
+                + ", hitRate=" + Math.round(getHitRate() * 100) + "%, leaked=" + getLeakCount() + "]";
+    }
+
+    /**
+     * Release the native memory of deflaters whose owner was collected without returning them.
+     */
+    private void expungeLeaks() {
+        Reference<?> reference;
+
+        while((reference = collected.poll()) != null) {
+            Lease lease = (Lease) reference;
+
+            if(leases.remove(lease.deflater) != null) {
+                leakCount.incrementAndGet();
+                lease.deflater.end();
+
+                LOG.warn("A deflater was not returned to the pool before its owner was garbage collected, "
+                        + "the compressed response stream was probably never closed.");
+            }
+        }
+    }
+
+    /**
+     * Tracks a borrowed deflater until its owner is garbage collected.
+     */
+    private static class Lease extends PhantomReference<Object> {
+
+        /**
+         * the borrowed deflater
+         */
+        private final Deflater deflater;
+
+        /**
+         * the deflater compression level
+         */
+        private final int level;
+
+        /**
+         * Constructor.
+         *
+         * @param owner the owner of the deflater
+         * @param queue the queue of collected owners
+         * @param deflater the borrowed deflater
+         * @param level the deflater compression level
+         */
+        Lease(Object owner, ReferenceQueue<Object> queue, Deflater deflater, int level) {
+            super(owner, queue);
+            this.deflater = deflater;
+            this.level = level;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ard.perfify.compress;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded, thread safe pool of equally sized direct byte buffers. Direct buffers live outside the heap, zlib deflates
+ * into them and a socket channel writes from them without copying, but they are expensive to allocate and only freed
+ * with their owner, so they are kept for reuse rather than allocated per response.
+ */
+public class DirectBufferPool {
+
+    /**
+     * the default buffer size
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 32768;
+
+    /**
+     * the default number of idle buffers kept
+     */
+    public static final int DEFAULT_MAX_IDLE = 64;
+
+    /**
+     * the shared default pool
+     */
+    private static final DirectBufferPool DEFAULT = new DirectBufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_IDLE);
+
+    /**
+     * the buffer size
+     */
+    private final int bufferSize;
+
+    /**
+     * the maximum number of idle buffers kept
+     */
+    private final int maxIdle;
+
+    /**
+     * the idle buffers
+     */
+    private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * the number of idle buffers
+     */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize the buffer size
+     * @param maxIdle the maximum number of idle buffers kept
+     */
+    public DirectBufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns the pool shared by default.
+     *
+     * @return the default pool
+     */
+    public static DirectBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Borrow a cleared buffer, its content is undefined.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer borrow() {
+        ByteBuffer buffer = idle.poll();
+        if(buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        idleCount.decrementAndGet();
+        buffer.clear();
+
+        return buffer;
+    }
+
+    /**
+     * Return a borrowed buffer, it is dropped when the pool is full.
+     *
+     * @param buffer the buffer
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+
+        if(idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(buffer);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the buffer size.
+     *
+     * @return the buffer size
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of idle buffers.
+     *
+     * @return the idle buffers
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+}
@@ -0,0 +1,276 @@
+package ard.perfify.compress;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Size bounded, least recently used cache of {@link CompressedFragment page fragments} compressed once at the best
+ * level, keyed by name and character encoding. A fragment is cached in one version per name, looking up or putting
+ * another version replaces it.
+ */
+public class FragmentCache {
+
+    /**
+     * the default maximum number of cached bytes
+     */
+    public static final long DEFAULT_CAPACITY = 8 * 1024 * 1024;
+
+    /**
+     * the shared default cache
+     */
+    private static final FragmentCache DEFAULT = new FragmentCache(DEFAULT_CAPACITY);
+
+    /**
+     * the maximum number of cached bytes
+     */
+    private final long capacity;
+
+    /**
+     * the compression level of the fragments
+     */
+    private volatile int level = Deflater.BEST_COMPRESSION;
+
+    /**
+     * the engine the fragments are compressed with
+     */
+    private volatile CompressionEngine engine = CompressionEngines.getDefault();
+
+    /**
+     * the cached fragments in access order, guarded by this instance
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    /**
+     * the number of cached bytes, guarded by this instance
+     */
+    private long size;
+
+    /**
+     * the number of lookups answered from the cache
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * the number of lookups not answered from the cache
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * the number of entries evicted to stay within the capacity
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of cached bytes
+     */
+    public FragmentCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the cache shared by default.
+     *
+     * @return the default cache
+     */
+    public static FragmentCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sets the compression level of the fragments.
+     *
+     * @param level the compression level
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Sets the engine the fragments are compressed with.
+     *
+     * @param engine the compression engine
+     */
+    public void setCompressionEngine(CompressionEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Returns the cached fragment.
+     *
+     * @param name the fragment name
+     * @param version the fragment version
+     * @param charset the character encoding of the content
+     * @return the fragment, or {@code null} on a miss or when another version is cached
+     */
+    public CompressedFragment get(String name, String version, String charset) {
+        Entry entry;
+
+        synchronized(this) {
+            entry = entries.get(key(name, charset));
+        }
+
+        if(entry == null || !entry.version.equals(version)) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+
+        return entry.fragment;
+    }
+
+    /**
+     * Compress the content and cache it, replacing any other version and evicting the least recently used entries to
+     * make room. Fragments larger than the whole capacity are not cached.
+     *
+     * @param name the fragment name
+     * @param version the fragment version
+     * @param charset the character encoding of the content
+     * @param content the uncompressed content
+     * @return the fragment, whether or not it was cached
+     */
+    public CompressedFragment put(String name, String version, String charset, byte[] content) {
+        CompressedFragment fragment = CompressedFragment.compress(content, level, engine);
+
+        if(fragment.getSize() <= capacity) {
+            synchronized(this) {
+                Entry previous = entries.put(key(name, charset), new Entry(version, fragment));
+                if(previous != null) {
+                    size -= previous.fragment.getSize();
+                }
+
+                size += fragment.getSize();
+                evict();
+            }
+        }
+
+        return fragment;
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the maximum number of cached bytes.
+     *
+     * @return the capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of cached bytes.
+     *
+     * @return the cached bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     *
+     * @return the number of entries
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups not answered from the cache.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the capacity.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "FragmentCache[size=" + getSize() + "/" + capacity + ", entries=" + getEntryCount() + ", hits="
+                + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Evict least recently used entries until the cached bytes fit the capacity, must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+        while(size > capacity && it.hasNext()) {
+            size -= it.next().getValue().fragment.getSize();
+            it.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the cache key of the fragment.
+     *
+     * @param name the fragment name
+     * @param charset the character encoding of the content
+     * @return the key
+     */
+    private static String key(String name, String charset) {
+        return charset + ' ' + name;
+    }
+
+    /**
+     * A cached fragment and its version.
+     */
+    private static class Entry {
+
+        /**
+         * the fragment version
+         */
+        private final String version;
+
+        /**
+         * the fragment
+         */
+        private final CompressedFragment fragment;
+
+        /**
+         * Constructor.
+         *
+         * @param version the fragment version
+         * @param fragment the fragment
+         */
+        private Entry(String version, CompressedFragment fragment) {
+            this.version = version;
+            this.fragment = fragment;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package ard.perfify.compress;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes gzip variants at the maximum compression level, using the JDK deflater or another
+ * {@link CompressionEngine}.
+ */
+public class GzipVariantEncoder implements VariantEncoder {
+
+    /**
+     * the engine the variants are compressed with
+     */
+    private final CompressionEngine engine;
+
+    /**
+     * Constructor using the JDK deflater.
+     */
+    public GzipVariantEncoder() {
+        this(CompressionEngines.getDefault());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param engine the engine the variants are compressed with
+     */
+    public GzipVariantEncoder(CompressionEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ContentEncoding getEncoding() {
+        return ContentEncoding.GZIP;
+    }
+
+    /**
+     * Variants of another engine differ in size, so they are not reused when the engine changes.
+     *
+     * @return the settings
+     */
+    public String getSettings() {
+        String settings = "gzip-" + Deflater.BEST_COMPRESSION;
+
+        return JdkCompressionEngine.NAME.equals(engine.getName()) ? settings : settings + "-" + engine.getName();
+    }
+
+    /**
+     * The JDK deflater is always available, native engines fall back to it.
+     *
+     * @return {@code true}
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Compress the content using gzip at the maximum compression level.
+     *
+     * @param path the resource path
+     * @param content the content to compress
+     * @return the gzip compressed content
+     * @throws IOException on IO error
+     */
+    public byte[] encode(String path, byte[] content) throws IOException {
+        return engine.gzip(content, 0, content.length, Deflater.BEST_COMPRESSION);
+    }
+}
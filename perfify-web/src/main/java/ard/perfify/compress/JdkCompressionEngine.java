@@ -0,0 +1,149 @@
+package ard.perfify.compress;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compression engine of the zlib bundled with the JDK, always available.
+ */
+public class JdkCompressionEngine implements CompressionEngine {
+
+    /**
+     * the engine name
+     */
+    public static final String NAME = "jdk";
+
+    /**
+     * the gzip member header, deflate method, no flags, no modification time, unknown operating system
+     */
+    static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    /**
+     * the size of the gzip member trailer
+     */
+    static final int GZIP_TRAILER_SIZE = 8;
+
+    /**
+     * the pool of the deflaters of this engine compressing one shot, {@code null} until needed
+     */
+    private volatile DeflaterPool deflaterPool;
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * The JDK deflater is always available.
+     *
+     * @return {@code true}
+     */
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Streaming and one shot compression cost the same with the JDK deflater, streams are pooled.
+     *
+     * @return {@code false}
+     */
+    public boolean isOneShotPreferred() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Deflater newDeflater(int level) {
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Compress into a gzip member with a pooled deflater {@link #newDeflater(int) of this engine}.
+     *
+     * @see CompressionEngine#gzip(byte[], int, int, int)
+     */
+    public byte[] gzip(byte[] b, int off, int len, int level) {
+        DeflaterPool deflaterPool = getDeflaterPool();
+        Deflater deflater = deflaterPool.borrow(level, b);
+
+        try {
+            deflater.setInput(b, off, len);
+            deflater.finish();
+
+            // stored blocks bound the deflated size of incompressible content
+            byte[] member = new byte[GZIP_HEADER.length + len + 5 * (len / 16383 + 1) + 64 + GZIP_TRAILER_SIZE];
+            System.arraycopy(GZIP_HEADER, 0, member, 0, GZIP_HEADER.length);
+
+            int size = GZIP_HEADER.length;
+            while(!deflater.finished()) {
+                if(size == member.length - GZIP_TRAILER_SIZE) {
+                    byte[] grown = new byte[member.length * 2];
+                    System.arraycopy(member, 0, grown, 0, size);
+                    member = grown;
+                }
+
+                size += deflater.deflate(member, size, member.length - GZIP_TRAILER_SIZE - size);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(b, off, len);
+            size = writeTrailer(member, size, crc.getValue(), len);
+
+            byte[] exact = new byte[size];
+            System.arraycopy(member, 0, exact, 0, size);
+
+            return exact;
+        } finally {
+            deflaterPool.release(deflater);
+        }
+    }
+
+    /**
+     * Returns the pool of the deflaters of this engine, the shared default pool holds the JDK deflaters.
+     *
+     * @return the deflater pool
+     */
+    private DeflaterPool getDeflaterPool() {
+        if(getClass() == JdkCompressionEngine.class) {
+            return DeflaterPool.getDefault();
+        }
+
+        DeflaterPool pool = deflaterPool;
+        if(pool == null) {
+            synchronized(this) {
+                pool = deflaterPool;
+                if(pool == null) {
+                    pool = new DeflaterPool(DeflaterPool.DEFAULT_MAX_IDLE, this);
+                    deflaterPool = pool;
+                }
+            }
+        }
+
+        return pool;
+    }
+
+    /**
+     * Write the gzip trailer, the checksum and the size modulo 2^32 of the uncompressed bytes in little endian.
+     *
+     * @param member the member
+     * @param off the trailer offset
+     * @param checksum the checksum of the uncompressed bytes
+     * @param length the number of uncompressed bytes
+     * @return the member size
+     */
+    static int writeTrailer(byte[] member, int off, long checksum, int length) {
+        member[off] = (byte) checksum;
+        member[off + 1] = (byte) (checksum >> 8);
+        member[off + 2] = (byte) (checksum >> 16);
+        member[off + 3] = (byte) (checksum >> 24);
+        member[off + 4] = (byte) length;
+        member[off + 5] = (byte) (length >> 8);
+        member[off + 6] = (byte) (length >> 16);
+        member[off + 7] = (byte) (length >> 24);
+
+        return off + GZIP_TRAILER_SIZE;
+    }
+}
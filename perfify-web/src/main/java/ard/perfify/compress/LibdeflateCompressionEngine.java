@@ -0,0 +1,233 @@
+package ard.perfify.compress;
+
+import com.sun.jna.IntegerType;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import org.apache.log4j.Logger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Compression engine binding the native libdeflate through JNA, when the library is on the local library path.
+ * libdeflate only compresses complete buffers, 2 to 3 times faster than zlib at the same ratio, so it serves one shot
+ * compression while streams are deflated by the JDK zlib.
+ */
+public class LibdeflateCompressionEngine extends JdkCompressionEngine {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(LibdeflateCompressionEngine.class);
+
+    /**
+     * the engine name
+     */
+    public static final String NAME = "libdeflate";
+
+    /**
+     * the libdeflate level matching the zlib default level
+     */
+    private static final int DEFAULT_LEVEL = 6;
+
+    /**
+     * the number of supported levels, 0 to 12
+     */
+    private static final int LEVELS = 13;
+
+    /**
+     * the maximum number of idle compressors kept per level
+     */
+    private final int maxIdle;
+
+    /**
+     * the idle native compressors per level
+     */
+    private final Queue<Pointer>[] idle;
+
+    /**
+     * the number of idle compressors per level
+     */
+    private final AtomicInteger[] idleCount;
+
+    /**
+     * Constructor.
+     *
+     * @param maxIdle the maximum number of idle native compressors kept per level
+     */
+    @SuppressWarnings("unchecked")
+    public LibdeflateCompressionEngine(int maxIdle) {
+        this.maxIdle = maxIdle;
+        this.idle = new Queue[LEVELS];
+        this.idleCount = new AtomicInteger[LEVELS];
+
+        for(int i = 0; i < LEVELS; i++) {
+            idle[i] = new ConcurrentLinkedQueue<Pointer>();
+            idleCount[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * JNA and the libdeflate library are both optional.
+     *
+     * @return {@code true} if the native library can be loaded, {@code false} otherwise.
+     */
+    @Override
+    public boolean isAvailable() {
+        try {
+            return Libdeflate.INSTANCE != null;
+        } catch(LinkageError e) {
+            LOG.debug("libdeflate not available.", e);
+            return false;
+        }
+    }
+
+    /**
+     * libdeflate compresses complete buffers only.
+     *
+     * @return {@code true}
+     */
+    @Override
+    public boolean isOneShotPreferred() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] gzip(byte[] b, int off, int len, int level) {
+        int index = level == Deflater.DEFAULT_COMPRESSION ? DEFAULT_LEVEL : level;
+        Pointer compressor = idle[index].poll();
+
+        if(compressor != null) {
+            idleCount[index].decrementAndGet();
+        } else {
+            compressor = Libdeflate.INSTANCE.libdeflate_alloc_compressor(index);
+            if(compressor == null) {
+                throw new OutOfMemoryError("Unable to allocate libdeflate compressor");
+            }
+        }
+
+        try {
+            byte[] in = off == 0 && len == b.length ? b : copy(b, off, len);
+            byte[] out = new byte[(int) Libdeflate.INSTANCE.libdeflate_gzip_compress_bound(compressor,
+                    new SizeT(len)).longValue()];
+
+            int size = (int) Libdeflate.INSTANCE.libdeflate_gzip_compress(compressor, in, new SizeT(len), out,
+                    new SizeT(out.length)).longValue();
+            if(size == 0) {
+                throw new IllegalStateException("libdeflate output exceeds its bound");
+            }
+
+            return size == out.length ? out : copy(out, 0, size);
+        } finally {
+            if(idleCount[index].incrementAndGet() <= maxIdle) {
+                idle[index].offer(compressor);
+            } else {
+                idleCount[index].decrementAndGet();
+                Libdeflate.INSTANCE.libdeflate_free_compressor(compressor);
+            }
+        }
+    }
+
+    /**
+     * Copy a range of the bytes.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @return the copy
+     */
+    private static byte[] copy(byte[] b, int off, int len) {
+        byte[] copy = new byte[len];
+        System.arraycopy(b, off, copy, 0, len);
+
+        return copy;
+    }
+
+    /**
+     * The libdeflate functions, bound on first use.
+     */
+    interface Libdeflate extends Library {
+
+        /**
+         * the bound library
+         */
+        Libdeflate INSTANCE = Native.load("deflate", Libdeflate.class);
+
+        /**
+         * Allocate a compressor.
+         *
+         * @param level the compression level, 0 to 12
+         * @return the compressor, {@code null} when out of memory
+         */
+        Pointer libdeflate_alloc_compressor(int level);
+
+        /**
+         * Compress into a gzip member.
+         *
+         * @param compressor the compressor
+         * @param in the input
+         * @param inSize the number of input bytes
+         * @param out the output
+         * @param outSize the output space
+         * @return the member size, 0 when it does not fit
+         */
+        SizeT libdeflate_gzip_compress(Pointer compressor, byte[] in, SizeT inSize, byte[] out, SizeT outSize);
+
+        /**
+         * Returns the maximum gzip member size of the input size.
+         *
+         * @param compressor the compressor
+         * @param inSize the number of input bytes
+         * @return the bound
+         */
+        SizeT libdeflate_gzip_compress_bound(Pointer compressor, SizeT inSize);
+
+        /**
+         * Free a compressor.
+         *
+         * @param compressor the compressor
+         */
+        void libdeflate_free_compressor(Pointer compressor);
+    }
+
+    /**
+     * The native <code>size_t</code>.
+     */
+    public static class SizeT extends IntegerType {
+
+        /**
+         * serial version
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor.
+         */
+        public SizeT() {
+            this(0);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param value the value
+         */
+        public SizeT(long value) {
+            super(Native.SIZE_T_SIZE, value, true);
+        }
+    }
+}
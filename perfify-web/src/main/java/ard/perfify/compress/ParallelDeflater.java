@@ -0,0 +1,537 @@
+package ard.perfify.compress;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a large body in blocks on a shared fork join pool, the way pigz does. Every block is deflated by its own
+ * raw deflater, primed with the last 32 KB of the previous block as dictionary so matches still reach back across
+ * the block boundary, and ends with a sync flush so the blocks concatenate byte aligned into one deflate stream; the
+ * last block finishes it. The blocks are written in order, their checksums combined into the checksum of the whole.
+ * <p/>
+ * Not thread safe, one instance compresses the body of one response. The number of blocks in flight is bounded, a
+ * producer outrunning the pool waits for the oldest block.
+ */
+public class ParallelDeflater {
+
+    /**
+     * the size of the blocks the body is cut into
+     */
+    public static final int BLOCK_SIZE = 131072;
+
+    /**
+     * the deflate window, the size of the dictionary primed from the previous block
+     */
+    private static final int DICTIONARY_SIZE = 32768;
+
+    /**
+     * the pool the block buffers are borrowed from, large enough for a block deflated without savings
+     */
+    private static final BufferPool BLOCK_POOL = new BufferPool(getBound(BLOCK_SIZE), 64);
+
+    /**
+     * the pool the blocks are compressed on
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * the pool the block deflaters are borrowed from
+     */
+    private final DeflaterPool deflaterPool;
+
+    /**
+     * the compression level
+     */
+    private final int level;
+
+    /**
+     * the stream the compressed blocks are written to
+     */
+    private final OutputStream out;
+
+    /**
+     * the maximum number of blocks in flight
+     */
+    private final int maxInFlight;
+
+    /**
+     * the blocks in flight, oldest first
+     */
+    private final Deque<Future<Block>> inFlight = new ArrayDeque<Future<Block>>();
+
+    /**
+     * the block being filled, {@code null} until the first write
+     */
+    private byte[] input;
+
+    /**
+     * the number of bytes in the block being filled
+     */
+    private int count;
+
+    /**
+     * the input of the last submitted block, the dictionary of the next one
+     */
+    private byte[] previous;
+
+    /**
+     * the number of bytes in the last submitted block
+     */
+    private int previousCount;
+
+    /**
+     * the input of the last written block, returned once its successor is written
+     */
+    private byte[] written;
+
+    /**
+     * the combined checksum of the written blocks
+     */
+    private long crc;
+
+    /**
+     * the number of uncompressed bytes written
+     */
+    private long bytesRead;
+
+    /**
+     * the number of compressed bytes written
+     */
+    private long bytesWritten;
+
+    /**
+     * the time spent deflating by the pool threads
+     */
+    private long deflateNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param pool the pool to compress the blocks on
+     * @param deflaterPool the pool to borrow the block deflaters from
+     * @param level the compression level
+     * @param out the stream to write the compressed blocks to
+     */
+    public ParallelDeflater(ForkJoinPool pool, DeflaterPool deflaterPool, int level, OutputStream out) {
+        this.pool = pool;
+        this.deflaterPool = deflaterPool;
+        this.level = level;
+        this.out = out;
+        this.maxInFlight = 2 * pool.getParallelism();
+    }
+
+    /**
+     * Returns the pool shared by default, one thread per processor.
+     *
+     * @return the default pool
+     */
+    public static ForkJoinPool getDefaultPool() {
+        return DefaultPool.POOL;
+    }
+
+    /**
+     * Compress the bytes, submitting every full block.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @throws IOException on IO error
+     */
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            if(input == null) {
+                input = BLOCK_POOL.borrow();
+            }
+
+            int n = Math.min(len, BLOCK_SIZE - count);
+            System.arraycopy(b, off, input, count, n);
+
+            count += n;
+            off += n;
+            len -= n;
+
+            if(count == BLOCK_SIZE) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Submit the partial block and write all blocks, so everything written so far can be decompressed.
+     *
+     * @throws IOException on IO error
+     */
+    public void flush() throws IOException {
+        if(count > 0) {
+            submit(false);
+        }
+
+        while(!inFlight.isEmpty()) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Submit the last block finishing the deflate stream and write all blocks.
+     *
+     * @throws IOException on IO error
+     */
+    public void finish() throws IOException {
+        submit(true);
+
+        while(!inFlight.isEmpty()) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Wait for the blocks in flight and return all buffers, after finishing or when abandoning the body.
+     */
+    public void release() {
+        while(!inFlight.isEmpty()) {
+            try {
+                BLOCK_POOL.release(inFlight.poll().get().output);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                inFlight.clear();
+            } catch(ExecutionException e) {
+                // the block is abandoned anyway
+            }
+        }
+
+        BLOCK_POOL.release(input);
+        BLOCK_POOL.release(written);
+        if(previous != written) {
+            BLOCK_POOL.release(previous);
+        }
+
+        input = null;
+        previous = null;
+        written = null;
+    }
+
+    /**
+     * Returns the combined checksum of the written uncompressed bytes.
+     *
+     * @return the crc32
+     */
+    public long getCrc() {
+        return crc;
+    }
+
+    /**
+     * Returns the number of uncompressed bytes written.
+     *
+     * @return the bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Returns the number of compressed bytes written.
+     *
+     * @return the bytes written
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Returns the time the pool threads spent deflating the written blocks.
+     *
+     * @return the deflate time in nanoseconds
+     */
+    public long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+    /**
+     * Combine the checksums of two consecutive byte sequences into the checksum of their concatenation, as zlib
+     * <code>crc32_combine</code> does: the first checksum is advanced over as many zero bytes as the second sequence
+     * holds, by squaring the one zero bit operator.
+     *
+     * @param crc1 the checksum of the first sequence
+     * @param crc2 the checksum of the second sequence
+     * @param len2 the length of the second sequence
+     * @return the checksum of the concatenation
+     */
+    public static long combineCrc(long crc1, long crc2, long len2) {
+        if(len2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // the operator for one zero bit
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for(int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // two and four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // apply len2 zero bytes, starting with one zero byte
+        do {
+            square(even, odd);
+            if((len2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            len2 >>= 1;
+
+            if(len2 == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if((len2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            len2 >>= 1;
+        } while(len2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    /**
+     * Submit the block being filled for compression, writing the oldest blocks while too many are in flight.
+     *
+     * @param last {@code true} for the block finishing the deflate stream
+     * @throws IOException on IO error
+     */
+    private void submit(boolean last) throws IOException {
+        while(inFlight.size() >= maxInFlight) {
+            writeBlock();
+        }
+
+        final byte[] block = input != null ? input : BLOCK_POOL.borrow();
+        final int length = count;
+        final byte[] dictionary = previous;
+        final int dictionaryLength = previousCount;
+        final boolean finish = last;
+
+        inFlight.add(pool.submit(new Callable<Block>() {
+            public Block call() {
+                return compress(block, length, dictionary, dictionaryLength, finish);
+            }
+        }));
+
+        // the previous input is still the dictionary of this block, it is returned once this block is written
+        previous = block;
+        previousCount = length;
+        input = null;
+        count = 0;
+
+        while(!inFlight.isEmpty() && inFlight.peek().isDone()) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Compress a block on a pool thread.
+     *
+     * @param block the block input
+     * @param length the number of bytes in the block
+     * @param dictionary the input of the previous block, {@code null} for the first block
+     * @param dictionaryLength the number of bytes in the previous block
+     * @param finish {@code true} to finish the deflate stream
+     * @return the compressed block
+     */
+    private Block compress(byte[] block, int length, byte[] dictionary, int dictionaryLength, boolean finish) {
+        long start = System.nanoTime();
+        Deflater deflater = deflaterPool.borrow(level, this);
+
+        try {
+            if(dictionary != null && dictionaryLength > 0) {
+                // some Java 11 releases ignore the offset of setDictionary(byte[], int, int), so the window is copied
+                byte[] window = Arrays.copyOfRange(dictionary, Math.max(0, dictionaryLength - DICTIONARY_SIZE),
+                        dictionaryLength);
+                deflater.setDictionary(window);
+            }
+
+            CRC32 blockCrc = new CRC32();
+            blockCrc.update(block, 0, length);
+
+            deflater.setInput(block, 0, length);
+            if(finish) {
+                deflater.finish();
+            }
+
+            byte[] output = BLOCK_POOL.borrow();
+            int len = 0;
+
+            while(true) {
+                if(len == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+
+                len += deflater.deflate(output, len, output.length - len, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+
+                // a deflater may return short of the output space before consuming all input, e.g. while changing
+                // its parameters, the flush is only complete once the input is consumed as well
+                if(finish ? deflater.finished() : len < output.length && deflater.needsInput()) {
+                    break;
+                }
+            }
+
+            return new Block(block, length, blockCrc.getValue(), output, len, System.nanoTime() - start);
+        } finally {
+            deflaterPool.release(deflater);
+        }
+    }
+
+    /**
+     * Wait for the oldest block in flight and write it.
+     *
+     * @throws IOException on IO error
+     */
+    private void writeBlock() throws IOException {
+        Block block;
+
+        try {
+            block = inFlight.poll().get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing a block");
+        } catch(ExecutionException e) {
+            throw new IOException("Block compression failed", e.getCause());
+        }
+
+        try {
+            out.write(block.output, 0, block.outputLength);
+        } finally {
+            BLOCK_POOL.release(block.output);
+        }
+
+        crc = combineCrc(crc, block.crc, block.length);
+        bytesRead += block.length;
+        bytesWritten += block.outputLength;
+        deflateNanos += block.deflateNanos;
+
+        // the input of the block before is no longer a dictionary once this block is compressed
+        BLOCK_POOL.release(written);
+        written = block.input;
+    }
+
+    /**
+     * Returns the buffer size holding a block deflated without savings, with its stored block headers and sync flush.
+     *
+     * @param length the block size
+     * @return the bound
+     */
+    private static int getBound(int length) {
+        return length + (length >> 12) + (length >> 14) + 64;
+    }
+
+    /**
+     * Multiply the gf(2) matrix by the vector.
+     *
+     * @param mat the matrix
+     * @param vec the vector
+     * @return the product
+     */
+    private static long times(long[] mat, long vec) {
+        long sum = 0;
+
+        for(int i = 0; vec != 0; i++, vec >>>= 1) {
+            if((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Square the gf(2) matrix.
+     *
+     * @param square the matrix receiving the square
+     * @param mat the matrix
+     */
+    private static void square(long[] square, long[] mat) {
+        for(int n = 0; n < 32; n++) {
+            square[n] = times(mat, mat[n]);
+        }
+    }
+
+    /**
+     * A compressed block.
+     */
+    private static class Block {
+
+        /**
+         * the block input
+         */
+        final byte[] input;
+
+        /**
+         * the number of uncompressed bytes
+         */
+        final int length;
+
+        /**
+         * the checksum of the uncompressed bytes
+         */
+        final long crc;
+
+        /**
+         * the compressed bytes
+         */
+        final byte[] output;
+
+        /**
+         * the number of compressed bytes
+         */
+        final int outputLength;
+
+        /**
+         * the time spent deflating
+         */
+        final long deflateNanos;
+
+        /**
+         * Constructor.
+         *
+         * @param input the block input
+         * @param length the number of uncompressed bytes
+         * @param crc the checksum of the uncompressed bytes
+         * @param output the compressed bytes
+         * @param outputLength the number of compressed bytes
+         * @param deflateNanos the time spent deflating
+         */
+        Block(byte[] input, int length, long crc, byte[] output, int outputLength, long deflateNanos) {
+            this.input = input;
+            this.length = length;
+            this.crc = crc;
+            this.output = output;
+            this.outputLength = outputLength;
+            this.deflateNanos = deflateNanos;
+        }
+    }
+
+    /**
+     * The pool shared by default, created on first use.
+     */
+    private static class DefaultPool {
+
+        /**
+         * the shared pool
+         */
+        private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,323 @@
+package ard.perfify.compress;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Manifest of build time pre-compressed resources. For every resource this records the content hash and size of the
+ * source, the compression settings used and the size of each encoded variant. The maven plugin uses it to only
+ * recompress changed resources, and it ships inside the war so the static filter can read the precomputed sizes and
+ * hashes at runtime.
+ * <p/>
+ * The manifest is stored as a properties file keyed by resource uri, each value has the form
+ * <code>hash|length|lastModified|settings|encoding:size,encoding:size</code>.
+ */
+public class PrecompressManifest {
+
+    /**
+     * The default manifest location within the web application.
+     */
+    public static final String DEFAULT_LOCATION = "/WEB-INF/perfify/precompress.manifest";
+
+    /**
+     * value field separator
+     */
+    private static final String FIELD_SEPARATOR = "|";
+
+    /**
+     * variant separator
+     */
+    private static final String VARIANT_SEPARATOR = ",";
+
+    /**
+     * variant encoding and size separator
+     */
+    private static final String SIZE_SEPARATOR = ":";
+
+    /**
+     * manifest entries keyed by resource uri
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Returns the manifest entry for the resource uri.
+     *
+     * @param uri the resource uri relative to the web application, starting with '/'
+     * @return the entry, or {@code null} if the resource is not in the manifest
+     */
+    public Entry get(String uri) {
+        return entries.get(uri);
+    }
+
+    /**
+     * Adds or replaces an entry.
+     *
+     * @param entry the entry
+     */
+    public void put(Entry entry) {
+        entries.put(entry.getUri(), entry);
+    }
+
+    /**
+     * Removes an entry.
+     *
+     * @param uri the resource uri
+     * @return the removed entry, or {@code null} if the resource is not in the manifest
+     */
+    public Entry remove(String uri) {
+        return entries.remove(uri);
+    }
+
+    /**
+     * Returns all entries.
+     *
+     * @return the entries
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Loads the entries from the manifest stream. The stream is not closed.
+     *
+     * @param in the manifest input stream
+     * @throws IOException on IO error or when the manifest is malformed
+     */
+    public void load(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+
+        for(String uri : properties.stringPropertyNames()) {
+            put(parse(uri, properties.getProperty(uri)));
+        }
+    }
+
+    /**
+     * Stores the entries to the manifest stream sorted by uri. The stream is not closed.
+     *
+     * @param out the manifest output stream
+     * @throws IOException on IO error
+     */
+    public void store(OutputStream out) throws IOException {
+        Properties properties = new Properties();
+
+        for(Entry entry : new TreeMap<String, Entry>(entries).values()) {
+            properties.setProperty(entry.getUri(), format(entry));
+        }
+
+        properties.store(out, "perfify pre-compressed resources");
+    }
+
+    /**
+     * Parse a manifest value.
+     *
+     * @param uri the resource uri
+     * @param value the manifest value
+     * @return the parsed entry
+     * @throws IOException when the value is malformed
+     */
+    private Entry parse(String uri, String value) throws IOException {
+        String[] fields = StringUtils.splitPreserveAllTokens(value, FIELD_SEPARATOR);
+        if(fields.length != 5) {
+            throw new IOException("Malformed manifest entry for '" + uri + "': " + value);
+        }
+
+        try {
+            Entry entry = new Entry(uri, fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+
+            for(String variant : StringUtils.split(fields[4], VARIANT_SEPARATOR)) {
+                entry.putVariant(StringUtils.substringBefore(variant, SIZE_SEPARATOR),
+                        Long.parseLong(StringUtils.substringAfter(variant, SIZE_SEPARATOR)));
+            }
+
+            return entry;
+        } catch(NumberFormatException e) {
+            throw new IOException("Malformed manifest entry for '" + uri + "': " + value);
+        }
+    }
+
+    /**
+     * Format an entry as a manifest value.
+     *
+     * @param entry the entry
+     * @return the manifest value
+     */
+    private String format(Entry entry) {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append(entry.getHash()).append(FIELD_SEPARATOR)
+                .append(entry.getLength()).append(FIELD_SEPARATOR)
+                .append(entry.getLastModified()).append(FIELD_SEPARATOR)
+                .append(entry.getSettings()).append(FIELD_SEPARATOR);
+
+        boolean first = true;
+        for(Map.Entry<String, Long> variant : entry.getVariants().entrySet()) {
+            if(!first) {
+                buf.append(VARIANT_SEPARATOR);
+            }
+
+            buf.append(variant.getKey()).append(SIZE_SEPARATOR).append(variant.getValue());
+            first = false;
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * A pre-compressed resource.
+     */
+    public static class Entry {
+
+        /**
+         * the resource uri
+         */
+        private final String uri;
+
+        /**
+         * the hex content hash of the source
+         */
+        private final String hash;
+
+        /**
+         * the source size
+         */
+        private final long length;
+
+        /**
+         * the source last modified time
+         */
+        private final long lastModified;
+
+        /**
+         * the compression settings used to produce the variants
+         */
+        private final String settings;
+
+        /**
+         * the encoded variant sizes keyed by content encoding
+         */
+        private final Map<String, Long> variants = new LinkedHashMap<String, Long>();
+
+        /**
+         * Constructor.
+         *
+         * @param uri the resource uri
+         * @param hash the hex content hash of the source
+         * @param length the source size
+         * @param lastModified the source last modified time
+         * @param settings the compression settings used to produce the variants
+         */
+        public Entry(String uri, String hash, long length, long lastModified, String settings) {
+            this.uri = uri;
+            this.hash = hash;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.settings = settings;
+        }
+
+        /**
+         * Returns the resource uri.
+         *
+         * @return the resource uri
+         */
+        public String getUri() {
+            return uri;
+        }
+
+        /**
+         * Returns the hex content hash of the source.
+         *
+         * @return the hex content hash of the source
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * Returns the source size.
+         *
+         * @return the source size
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the source last modified time.
+         *
+         * @return the source last modified time
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the compression settings used to produce the variants.
+         *
+         * @return the compression settings used to produce the variants
+         */
+        public String getSettings() {
+            return settings;
+        }
+
+        /**
+         * Returns the encoded variant sizes keyed by content encoding.
+         *
+         * @return the variant sizes
+         */
+        public Map<String, Long> getVariants() {
+            return Collections.unmodifiableMap(variants);
+        }
+
+        /**
+         * Records an encoded variant.
+         *
+         * @param encoding the content encoding, e.g. gzip
+         * @param size the encoded size
+         */
+        public void putVariant(String encoding, long size) {
+            variants.put(encoding, size);
+        }
+
+        /**
+         * Determines whether the encoded variant exists.
+         *
+         * @param encoding the content encoding
+         * @return {@code true} if the variant exists, {@code false} otherwise.
+         */
+        public boolean hasVariant(String encoding) {
+            return variants.containsKey(encoding);
+        }
+
+        /**
+         * Returns the encoded variant size.
+         *
+         * @param encoding the content encoding
+         * @return the encoded size, or {@code -1} if the variant does not exist
+         */
+        public long getVariantSize(String encoding) {
+            Long size = variants.get(encoding);
+
+            return size != null ? size : -1;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ard.perfify.compress;
+
+import java.io.IOException;
+
+/**
+ * Encodes resource content into a pre-compressed variant.
+ */
+public interface VariantEncoder {
+
+    /**
+     * Returns the content encoding this encoder produces.
+     *
+     * @return the content encoding
+     */
+    ContentEncoding getEncoding();
+
+    /**
+     * Returns the encoder settings, recorded in the manifest so a change triggers recompression.
+     *
+     * @return the settings fingerprint
+     */
+    String getSettings();
+
+    /**
+     * Determines whether the encoder can run on this platform.
+     *
+     * @return {@code true} if available, {@code false} otherwise.
+     */
+    boolean isAvailable();
+
+    /**
+     * Encode the content.
+     *
+     * @param path the resource path, for reporting
+     * @param content the content
+     * @return the encoded content
+     * @throws IOException on encoding error
+     */
+    byte[] encode(String path, byte[] content) throws IOException;
+}
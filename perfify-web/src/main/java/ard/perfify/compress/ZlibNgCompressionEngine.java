@@ -0,0 +1,612 @@
+package ard.perfify.compress;
+
+import com.sun.jna.Library;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
+import com.sun.jna.Structure;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compression engine binding the native zlib-ng through JNA, when the library is on the local library path. zlib-ng
+ * produces the same deflate format 2 to 3 times faster than zlib on x86-64 and streams, so its deflaters replace the
+ * JDK ones for the compressed responses as well as the one shot compressed fragments and variants.
+ */
+public class ZlibNgCompressionEngine extends JdkCompressionEngine {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(ZlibNgCompressionEngine.class);
+
+    /**
+     * the engine name
+     */
+    public static final String NAME = "zlib-ng";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * JNA and the zlib-ng library are both optional.
+     *
+     * @return {@code true} if the native library can be loaded, {@code false} otherwise.
+     */
+    @Override
+    public boolean isAvailable() {
+        try {
+            return ZlibNg.INSTANCE != null;
+        } catch(LinkageError e) {
+            LOG.debug("zlib-ng not available.", e);
+            return false;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Deflater newDeflater(int level) {
+        return new ZlibNgDeflater(level);
+    }
+
+    /**
+     * The zlib-ng native API functions, bound on first use.
+     */
+    interface ZlibNg extends Library {
+
+        /**
+         * the bound library
+         */
+        ZlibNg INSTANCE = Native.load("z-ng", ZlibNg.class);
+
+        /**
+         * Initialize a deflate stream.
+         *
+         * @param stream the stream
+         * @param level the compression level
+         * @param method the method, deflated
+         * @param windowBits the window bits, negative for raw deflate
+         * @param memLevel the memory level
+         * @param strategy the strategy
+         * @return the status
+         */
+        int zng_deflateInit2(ZStream stream, int level, int method, int windowBits, int memLevel, int strategy);
+
+        /**
+         * Deflate the available input into the available output.
+         *
+         * @param stream the stream
+         * @param flush the flush mode
+         * @return the status
+         */
+        int zng_deflate(ZStream stream, int flush);
+
+        /**
+         * Set the preset dictionary.
+         *
+         * @param stream the stream
+         * @param dictionary the dictionary
+         * @param length the dictionary length
+         * @return the status
+         */
+        int zng_deflateSetDictionary(ZStream stream, byte[] dictionary, int length);
+
+        /**
+         * Reset the stream for a new input.
+         *
+         * @param stream the stream
+         * @return the status
+         */
+        int zng_deflateReset(ZStream stream);
+
+        /**
+         * Change the compression level and strategy.
+         *
+         * @param stream the stream
+         * @param level the compression level
+         * @param strategy the strategy
+         * @return the status
+         */
+        int zng_deflateParams(ZStream stream, int level, int strategy);
+
+        /**
+         * Free the stream state.
+         *
+         * @param stream the stream
+         * @return the status
+         */
+        int zng_deflateEnd(ZStream stream);
+    }
+
+    /**
+     * The <code>zng_stream</code> structure.
+     */
+    public static class ZStream extends Structure {
+
+        /**
+         * the next input byte
+         */
+        public Pointer next_in;
+
+        /**
+         * the number of bytes available at next_in
+         */
+        public int avail_in;
+
+        /**
+         * the total number of input bytes read so far
+         */
+        public NativeLong total_in;
+
+        /**
+         * the next output byte
+         */
+        public Pointer next_out;
+
+        /**
+         * the remaining free space at next_out
+         */
+        public int avail_out;
+
+        /**
+         * the total number of bytes output so far
+         */
+        public NativeLong total_out;
+
+        /**
+         * the last error message
+         */
+        public Pointer msg;
+
+        /**
+         * the internal state
+         */
+        public Pointer state;
+
+        /**
+         * the allocation function, the default when null
+         */
+        public Pointer zalloc;
+
+        /**
+         * the free function, the default when null
+         */
+        public Pointer zfree;
+
+        /**
+         * the private data of the allocation functions
+         */
+        public Pointer opaque;
+
+        /**
+         * the best guess about the data type
+         */
+        public int data_type;
+
+        /**
+         * the checksum of the uncompressed data
+         */
+        public int adler;
+
+        /**
+         * reserved for future use
+         */
+        public NativeLong reserved;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected List<String> getFieldOrder() {
+            return Arrays.asList("next_in", "avail_in", "total_in", "next_out", "avail_out", "total_out", "msg",
+                    "state", "zalloc", "zfree", "opaque", "data_type", "adler", "reserved");
+        }
+    }
+
+    /**
+     * Raw deflate deflater on a zlib-ng stream, with the streaming semantics of {@link Deflater}. The JDK zlib stream
+     * of the super class is ended right away, every method is overridden. Input and output are copied through native
+     * buffers.
+     */
+    static class ZlibNgDeflater extends Deflater {
+
+        /**
+         * the maximum number of input bytes copied to the native buffer per call
+         */
+        private static final int MAX_INPUT = 65536;
+
+        /**
+         * zlib status: ok
+         */
+        private static final int Z_OK = 0;
+
+        /**
+         * zlib status: stream end
+         */
+        private static final int Z_STREAM_END = 1;
+
+        /**
+         * zlib status: no progress possible
+         */
+        private static final int Z_BUF_ERROR = -5;
+
+        /**
+         * zlib flush: finish
+         */
+        private static final int Z_FINISH = 4;
+
+        /**
+         * the default memory level of zlib
+         */
+        private static final int MEM_LEVEL = 8;
+
+        /**
+         * the native stream
+         */
+        private final ZStream stream = new ZStream();
+
+        /**
+         * the native input buffer, grown on demand
+         */
+        private Memory in;
+
+        /**
+         * the native output buffer, grown on demand
+         */
+        private Memory out;
+
+        /**
+         * the input, {@code null} if none
+         */
+        private byte[] input;
+
+        /**
+         * the offset of the remaining input
+         */
+        private int inputOff;
+
+        /**
+         * the number of remaining input bytes
+         */
+        private int inputLen;
+
+        /**
+         * the compression level
+         */
+        private int level;
+
+        /**
+         * the strategy
+         */
+        private int strategy = DEFAULT_STRATEGY;
+
+        /**
+         * determines whether the level or strategy changed since the last deflate
+         */
+        private boolean paramsChanged;
+
+        /**
+         * determines whether the input is complete
+         */
+        private boolean finish;
+
+        /**
+         * determines whether the deflate stream is finished
+         */
+        private boolean finished;
+
+        /**
+         * determines whether the stream is ended
+         */
+        private boolean ended;
+
+        /**
+         * the number of uncompressed bytes read
+         */
+        private long bytesRead;
+
+        /**
+         * the number of compressed bytes written
+         */
+        private long bytesWritten;
+
+        /**
+         * Constructor.
+         *
+         * @param level the compression level
+         */
+        ZlibNgDeflater(int level) {
+            super(level, true);
+            super.end();
+
+            this.level = level;
+            check(ZlibNg.INSTANCE.zng_deflateInit2(stream, level, DEFLATED, -15, MEM_LEVEL, strategy));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void setInput(byte[] b, int off, int len) {
+            if(off < 0 || len < 0 || off > b.length - len) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+
+            input = b;
+            inputOff = off;
+            inputLen = len;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setInput(byte[] b) {
+            setInput(b, 0, b.length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void setDictionary(byte[] b, int off, int len) {
+            ensureOpen();
+
+            byte[] dictionary = off == 0 ? b : Arrays.copyOfRange(b, off, off + len);
+            check(ZlibNg.INSTANCE.zng_deflateSetDictionary(stream, dictionary, len));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setDictionary(byte[] b) {
+            setDictionary(b, 0, b.length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void setLevel(int level) {
+            if(this.level != level) {
+                this.level = level;
+                paramsChanged = true;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void setStrategy(int strategy) {
+            if(this.strategy != strategy) {
+                this.strategy = strategy;
+                paramsChanged = true;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized boolean needsInput() {
+            return inputLen <= 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void finish() {
+            finish = true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized boolean finished() {
+            return finished;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int deflate(byte[] b) {
+            return deflate(b, 0, b.length, NO_FLUSH);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int deflate(byte[] b, int off, int len) {
+            return deflate(b, off, len, NO_FLUSH);
+        }
+
+        /**
+         * Deflate the input into the bytes. The input is copied to the native buffer in chunks, fed as long as there
+         * is output space left, and the flush, or finish, applies to the last chunk. As with the JDK deflater, output
+         * not filling the bytes means all input was consumed and flushed.
+         *
+         * @see Deflater#deflate(byte[], int, int, int)
+         */
+        @Override
+        public synchronized int deflate(byte[] b, int off, int len, int flush) {
+            if(off < 0 || len < 0 || off > b.length - len) {
+                throw new ArrayIndexOutOfBoundsException();
+            }
+
+            ensureOpen();
+
+            if(finished || len == 0) {
+                return 0;
+            }
+
+            if(out == null || out.size() < len) {
+                out = new Memory(len);
+            }
+
+            int produced = 0;
+            boolean progress;
+
+            do {
+                int n = Math.min(inputLen, MAX_INPUT);
+                if(n > 0) {
+                    if(in == null || in.size() < n) {
+                        in = new Memory(Math.max(n, 4096));
+                    }
+
+                    in.write(0, input, inputOff, n);
+                }
+
+                int mode = NO_FLUSH;
+                if(n == inputLen) {
+                    mode = finish ? Z_FINISH : flush;
+                }
+
+                stream.next_in = n > 0 ? in : null;
+                stream.avail_in = n;
+                stream.next_out = out.share(produced);
+                stream.avail_out = len - produced;
+
+                if(paramsChanged) {
+                    // deflates the pending input with the previous parameters, retried while out of output space
+                    int status = ZlibNg.INSTANCE.zng_deflateParams(stream, level, strategy);
+                    if(status != Z_BUF_ERROR) {
+                        check(status);
+                        paramsChanged = false;
+                    }
+                }
+
+                int status = ZlibNg.INSTANCE.zng_deflate(stream, mode);
+                if(status != Z_OK && status != Z_STREAM_END && status != Z_BUF_ERROR) {
+                    check(status);
+                }
+
+                int consumed = n - stream.avail_in;
+                int chunk = len - produced - stream.avail_out;
+
+                inputOff += consumed;
+                inputLen -= consumed;
+                bytesRead += consumed;
+                produced += chunk;
+                finished = status == Z_STREAM_END;
+                progress = consumed > 0 || chunk > 0;
+            } while(inputLen > 0 && produced < len && progress);
+
+            if(produced > 0) {
+                out.read(0, b, off, produced);
+            }
+
+            bytesWritten += produced;
+
+            return produced;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized int getAdler() {
+            return stream.adler;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getTotalIn() {
+            return (int) getBytesRead();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int getTotalOut() {
+            return (int) getBytesWritten();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void reset() {
+            ensureOpen();
+            check(ZlibNg.INSTANCE.zng_deflateReset(stream));
+
+            input = null;
+            inputOff = 0;
+            inputLen = 0;
+            finish = false;
+            finished = false;
+            bytesRead = 0;
+            bytesWritten = 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized void end() {
+            if(ended) {
+                return;
+            }
+
+            ended = true;
+            ZlibNg.INSTANCE.zng_deflateEnd(stream);
+
+            input = null;
+        }
+
+        /**
+         * Ensure that the stream is not ended.
+         */
+        private void ensureOpen() {
+            if(ended) {
+                throw new NullPointerException("Deflater has been closed");
+            }
+        }
+
+        /**
+         * Check a zlib-ng status.
+         *
+         * @param status the status
+         */
+        private void check(int status) {
+            if(status != Z_OK) {
+                throw new IllegalStateException("zlib-ng error " + status);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ard.perfify.compress;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.util.Native;
+
+import java.io.IOException;
+
+/**
+ * Encodes zstandard variants using the native library bundled with zstd-jni.
+ */
+public class ZstdVariantEncoder implements VariantEncoder {
+
+    /**
+     * the zstandard compression level, 1 to 22
+     */
+    private final int level;
+
+    /**
+     * Constructor.
+     *
+     * @param level the zstandard compression level, 1 to 22
+     */
+    public ZstdVariantEncoder(int level) {
+        this.level = level;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public ContentEncoding getEncoding() {
+        return ContentEncoding.ZSTD;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getSettings() {
+        return "zstd-" + level;
+    }
+
+    /**
+     * The zstandard native library is only bundled for the common platforms.
+     *
+     * @return {@code true} if the native library can be loaded, {@code false} otherwise.
+     */
+    public boolean isAvailable() {
+        try {
+            Native.load();
+            return true;
+        } catch(LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compress the content using zstandard at the configured level.
+     *
+     * @param path the resource path
+     * @param content the content to compress
+     * @return the zstandard compressed content
+     * @throws IOException on encoding error
+     */
+    public byte[] encode(String path, byte[] content) throws IOException {
+        try {
+            return Zstd.compress(content, level);
+        } catch(RuntimeException e) {
+            throw new IOException("Unable to zstd compress content.", e);
+        }
+    }
+}
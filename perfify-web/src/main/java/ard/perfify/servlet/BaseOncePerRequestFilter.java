@@ -4,6 +4,9 @@ import org.springframework.web.filter.OncePerRequestFilter;
 
 import javax.servlet.http.HttpServletRequest;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Base filter
@@ -20,6 +23,131 @@ public abstract class BaseOncePerRequestFilter extends OncePerRequestFilter {
         return headerContains(request, "Accept-Encoding", name);
     }
 
+    /**
+     * Negotiates the content encoding from the request <code>Accept-Encoding</code> header. The candidate with the
+     * highest quality value wins and ties are broken by the candidate order. Candidates with a quality value of zero,
+     * or not listed and not matched by a <code>*</code>, are not acceptable.
+     *
+     * @param request the current request
+     * @param candidates the available content encodings in preference order
+     * @return the negotiated encoding, or {@code null} if none is acceptable and identity should be served.
+     */
+    protected String negotiateEncoding(final HttpServletRequest request, final List<String> candidates) {
+        if(candidates.isEmpty()) {
+            return null;
+        }
+
+        final Map<String, Float> qualities = new HashMap<String, Float>();
+        final Enumeration accepted = request.getHeaders("Accept-Encoding");
+        while (accepted != null && accepted.hasMoreElements()) {
+            for(String coding : ((String) accepted.nextElement()).split(",")) {
+                parseCoding(coding, qualities);
+            }
+        }
+
+        String best = null;
+        float bestQuality = 0;
+        for(String candidate : candidates) {
+            Float quality = qualities.get(candidate);
+            if(quality == null) {
+                quality = qualities.get("*");
+            }
+
+            if(quality != null && quality > bestQuality) {
+                best = candidate;
+                bestQuality = quality;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Parse a single <code>Accept-Encoding</code> coding with its optional quality value.
+     *
+     * @param coding the coding, e.g. <code>gzip;q=0.8</code>
+     * @param qualities the parsed quality values keyed by lower case coding
+     */
+    private void parseCoding(final String coding, final Map<String, Float> qualities) {
+        String[] params = coding.split(";");
+        String name = params[0].trim().toLowerCase();
+        if(name.length() == 0) {
+            return;
+        }
+
+        float quality = 1;
+        for(int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+
+            if(param.startsWith("q=")) {
+                try {
+                    quality = Float.parseFloat(param.substring(2));
+                } catch(NumberFormatException e) {
+                    quality = 0;
+                }
+            }
+        }
+
+        qualities.put(name, quality);
+    }
+
+    /**
+     * Evaluates the conditional headers of a <code>GET</code> or <code>HEAD</code> request against the current
+     * representation. <code>If-None-Match</code> takes precedence over <code>If-Modified-Since</code> and entity tags
+     * are compared weakly, as RFC 7232 requires for this header.
+     *
+     * @param request the current request
+     * @param etag the quoted entity tag of the representation, or {@code null} if unknown
+     * @param lastModified the last modified time in milliseconds, or {@code -1} if unknown
+     * @return <code>true</code> if a <code>304 Not Modified</code> should be sent, <code>false</code> otherwise.
+     */
+    protected boolean isNotModified(final HttpServletRequest request, final String etag, final long lastModified) {
+        if(!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+            return false;
+        }
+
+        final Enumeration ifNoneMatch = request.getHeaders("If-None-Match");
+        if(ifNoneMatch != null && ifNoneMatch.hasMoreElements()) {
+            if(etag == null) {
+                return false;
+            }
+
+            final String opaque = opaqueTag(etag);
+            while (ifNoneMatch.hasMoreElements()) {
+                for(String tag : ((String) ifNoneMatch.nextElement()).split(",")) {
+                    tag = tag.trim();
+                    if("*".equals(tag) || opaque.equals(opaqueTag(tag))) {
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        if(lastModified < 0) {
+            return false;
+        }
+
+        try {
+            final long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch(IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the entity tag without its weakness indicator.
+     *
+     * @param tag the entity tag
+     * @return the opaque tag
+     */
+    private String opaqueTag(final String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
     /**
      * Checks if request contains the header value.
      *
@@ -0,0 +1,232 @@
+package ard.perfify.servlet;
+
+import ard.perfify.compress.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The validation of the body of a {@link GZIPResponseStream} against the request validators. The uncompressed body is
+ * digested into a weak entity tag, and for conditional requests held in pooled buffers until it is validated, so no
+ * deflate work is spent on a body answered as not modified.
+ */
+class BodyValidation {
+
+    /**
+     * the callback validating the body
+     */
+    private final GZIPResponseStream.ValidationCallback callback;
+
+    /**
+     * the maximum number of bytes held for validation
+     */
+    private final long maxValidatedSize;
+
+    /**
+     * the pool the deferred body buffers are borrowed from
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * the digest of the uncompressed body
+     */
+    private final MessageDigest digest;
+
+    /**
+     * the weak entity tag of the body, computed once the body is complete
+     */
+    private String entityTag;
+
+    /**
+     * determines whether the uncompressed body is held until validated, for conditional requests
+     */
+    private boolean deferring;
+
+    /**
+     * the uncompressed body held in pooled buffers, the last one filled up to the deferred tail
+     */
+    private final Deque<byte[]> deferred = new ArrayDeque<byte[]>();
+
+    /**
+     * the number of bytes in the last deferred buffer
+     */
+    private int deferredTail;
+
+    /**
+     * the number of uncompressed bytes held
+     */
+    private long deferredLength;
+
+    /**
+     * determines whether the deferred body is being written, its bytes are already digested
+     */
+    private boolean replaying;
+
+    /**
+     * Constructor.
+     *
+     * @param callback the callback validating the body
+     * @param maxValidatedSize the maximum number of bytes held, larger bodies are not validated
+     * @param bufferPool the pool to borrow the deferred body buffers from
+     * @param digest the digest of the entity tag
+     */
+    BodyValidation(GZIPResponseStream.ValidationCallback callback, long maxValidatedSize, BufferPool bufferPool,
+                   MessageDigest digest) {
+        this.callback = callback;
+        this.maxValidatedSize = maxValidatedSize;
+        this.bufferPool = bufferPool;
+        this.digest = digest;
+        this.deferring = callback.isConditional();
+    }
+
+    /**
+     * Determines whether that many bytes can be held for validation.
+     *
+     * @param length the number of bytes
+     * @return {@code true} if within the maximum validated size, {@code false} otherwise
+     */
+    boolean canHold(long length) {
+        return length <= maxValidatedSize;
+    }
+
+    /**
+     * Digest a byte of the body, unless replayed.
+     *
+     * @param b the byte
+     */
+    void update(byte b) {
+        if(!replaying) {
+            digest.update(b);
+        }
+    }
+
+    /**
+     * Digest bytes of the body, unless replayed.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     */
+    void update(byte[] b, int off, int len) {
+        if(!replaying) {
+            digest.update(b, off, len);
+        }
+    }
+
+    /**
+     * Determines whether the uncompressed body is held until validated.
+     *
+     * @return {@code true} if deferring, {@code false} otherwise
+     */
+    boolean isDeferring() {
+        return deferring;
+    }
+
+    /**
+     * Hold the uncompressed bytes of a conditional request until the body is validated.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @return {@code true} if held, {@code false} when the body is too large to be validated
+     */
+    boolean defer(byte[] b, int off, int len) {
+        if(!canHold(deferredLength + len)) {
+            return false;
+        }
+
+        deferredLength += len;
+
+        while(len > 0) {
+            byte[] last = deferred.peekLast();
+
+            if(last == null || deferredTail == last.length) {
+                last = bufferPool.borrow();
+                deferred.add(last);
+                deferredTail = 0;
+            }
+
+            int n = Math.min(len, last.length - deferredTail);
+            System.arraycopy(b, off, last, deferredTail, n);
+
+            deferredTail += n;
+            off += n;
+            len -= n;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stop deferring and write the held uncompressed bytes, which are already digested.
+     *
+     * @param out the stream to write the body to
+     * @throws IOException on IO error
+     */
+    void replay(OutputStream out) throws IOException {
+        deferring = false;
+        replaying = true;
+
+        try {
+            while(!deferred.isEmpty()) {
+                byte[] bytes = deferred.poll();
+                out.write(bytes, 0, deferred.isEmpty() ? deferredTail : bytes.length);
+                bufferPool.release(bytes);
+            }
+        } finally {
+            replaying = false;
+        }
+    }
+
+    /**
+     * Stop deferring and validate the complete body.
+     *
+     * @return {@code true} if answered as not modified, {@code false} otherwise
+     */
+    boolean isNotModified() {
+        deferring = false;
+
+        return callback.isNotModified(getEntityTag());
+    }
+
+    /**
+     * Announce the held body about to be sent.
+     *
+     * @param length the exact number of bytes sent
+     */
+    void startValidatedWrite(long length) {
+        callback.startValidatedWrite(getEntityTag(), length);
+    }
+
+    /**
+     * Return the buffers of a body still held.
+     */
+    void release() {
+        while(!deferred.isEmpty()) {
+            bufferPool.release(deferred.poll());
+        }
+    }
+
+    /**
+     * Returns the weak entity tag of the uncompressed body, weak since it stands for both the compressed and the
+     * identity encoding.
+     *
+     * @return the entity tag
+     */
+    private String getEntityTag() {
+        if(entityTag == null) {
+            StringBuilder tag = new StringBuilder("W/\"");
+
+            for(byte b : digest.digest()) {
+                tag.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+
+            entityTag = tag.append('"').toString();
+        }
+
+        return entityTag;
+    }
+}
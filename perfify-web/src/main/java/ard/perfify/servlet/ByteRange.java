@@ -0,0 +1,135 @@
+package ard.perfify.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An inclusive byte range of a representation, parsed from a <code>Range</code> request header as in RFC 7233.
+ */
+final class ByteRange {
+
+    /**
+     * the maximum number of ranges honored in one request, more are answered with the full representation
+     */
+    static final int MAX_RANGES = 16;
+
+    /**
+     * the first byte position
+     */
+    private final long start;
+
+    /**
+     * the last byte position, inclusive
+     */
+    private final long end;
+
+    /**
+     * Constructor.
+     *
+     * @param start the first byte position
+     * @param end the last byte position, inclusive
+     */
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Returns the first byte position.
+     *
+     * @return the first byte position
+     */
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the last byte position, inclusive.
+     *
+     * @return the last byte position
+     */
+    long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the number of bytes in the range.
+     *
+     * @return the range length
+     */
+    long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Returns the <code>Content-Range</code> header value of the range.
+     *
+     * @param length the representation length
+     * @return the content range
+     */
+    String toContentRange(long length) {
+        return "bytes " + start + "-" + end + "/" + length;
+    }
+
+    /**
+     * Parse a <code>Range</code> header against a representation. Unsatisfiable ranges are dropped and satisfiable
+     * ones are clamped to the representation.
+     *
+     * @param header the <code>Range</code> header value
+     * @param length the representation length
+     * @return the satisfiable ranges, an empty list if none is satisfiable, or {@code null} if the header is malformed,
+     * not in bytes or has more than {@link #MAX_RANGES} ranges and should be ignored
+     */
+    static List<ByteRange> parse(String header, long length) {
+        header = header.trim();
+        if(!header.startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if(specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+        for(String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash < 0) {
+                return null;
+            }
+
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+
+                if(first.length() == 0) {
+                    // suffix range, the last n bytes
+                    long suffix = Long.parseLong(last);
+                    if(suffix < 0) {
+                        return null;
+                    }
+
+                    if(suffix > 0 && length > 0) {
+                        ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.length() == 0 ? Long.MAX_VALUE : Long.parseLong(last);
+                    if(start < 0 || end < start) {
+                        return null;
+                    }
+
+                    if(start < length) {
+                        ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+                    }
+                }
+            } catch(NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return ranges.isEmpty() ? Collections.<ByteRange>emptyList() : ranges;
+    }
+}
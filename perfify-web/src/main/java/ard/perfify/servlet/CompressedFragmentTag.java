@@ -0,0 +1,159 @@
+package ard.perfify.servlet;
+
+import ard.perfify.compress.CompressedFragment;
+import ard.perfify.compress.FragmentCache;
+
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.JspWriter;
+import javax.servlet.jsp.tagext.BodyContent;
+import javax.servlet.jsp.tagext.BodyTagSupport;
+import java.io.IOException;
+
+/**
+ * JSP tag rendering its body once per name and version, compressed into a {@link FragmentCache}, and splicing the
+ * compressed fragment into the responses compressed by the {@link DynamicResourceGZIPFilter}. The body is not
+ * evaluated while the version is cached, so it must not depend on the request beyond what the version encodes.
+ * <p/>
+ * <code>
+ * &lt;perfify:fragment name="footer" version="${buildNumber}"&gt;...&lt;/perfify:fragment&gt;
+ * </code>
+ */
+public class CompressedFragmentTag extends BodyTagSupport {
+
+    /**
+     * serial version
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the fragment name
+     */
+    private String name;
+
+    /**
+     * the fragment version
+     */
+    private String version = "";
+
+    /**
+     * the cached fragment, {@code null} until found or rendered
+     */
+    private CompressedFragment fragment;
+
+    /**
+     * Sets the fragment name.
+     *
+     * @param name the name
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Sets the fragment version, the body is rendered again when it changes.
+     *
+     * @param version the version
+     */
+    public void setVersion(String version) {
+        this.version = version != null ? version : "";
+    }
+
+    /**
+     * Looks the fragment up, evaluating the body on a miss only.
+     *
+     * @return {@link #SKIP_BODY} when cached, {@link #EVAL_BODY_BUFFERED} otherwise
+     * @throws JspException on error
+     */
+    @Override
+    public int doStartTag() throws JspException {
+        fragment = getCache().get(name, version, getCharset());
+
+        return fragment != null ? SKIP_BODY : EVAL_BODY_BUFFERED;
+    }
+
+    /**
+     * Compresses and caches the evaluated body on a miss and writes the fragment.
+     *
+     * @return {@link #EVAL_PAGE}
+     * @throws JspException on error
+     */
+    @Override
+    public int doEndTag() throws JspException {
+        String charset = getCharset();
+
+        try {
+            if(fragment == null) {
+                String content = bodyContent != null ? bodyContent.getString() : "";
+                fragment = getCache().put(name, version, charset, content.getBytes(charset));
+            }
+
+            JspWriter out = pageContext.getOut();
+            DynamicResourceGZIPFilter.GZIPResponseWrapper wrapper = findWrapper(pageContext.getResponse());
+
+            // the body of an enclosing tag is buffered as chars, the fragment can only be spliced at the top level
+            if(out instanceof BodyContent || wrapper == null || !wrapper.writeFragment(out, fragment)) {
+                out.write(new String(fragment.getContent(), charset));
+            }
+        } catch(IOException e) {
+            throw new JspException("Unable to write fragment " + name, e);
+        } finally {
+            fragment = null;
+        }
+
+        return EVAL_PAGE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void release() {
+        super.release();
+
+        name = null;
+        version = "";
+        fragment = null;
+    }
+
+    /**
+     * Returns the fragment cache of the filter the request passed through, or the shared default.
+     *
+     * @return the fragment cache
+     */
+    private FragmentCache getCache() {
+        Object cache = pageContext.getRequest().getAttribute(DynamicResourceGZIPFilter.FRAGMENT_CACHE_ATTRIBUTE);
+
+        return cache instanceof FragmentCache ? (FragmentCache) cache : FragmentCache.getDefault();
+    }
+
+    /**
+     * Returns the response character encoding the fragment is encoded in.
+     *
+     * @return the character encoding
+     */
+    private String getCharset() {
+        String charset = pageContext.getResponse().getCharacterEncoding();
+
+        return charset != null ? charset : "UTF-8";
+    }
+
+    /**
+     * Find the gzip response wrapper among the response wrappers.
+     *
+     * @param response the response
+     * @return the wrapper, or {@code null} when the response is not compressed by the filter
+     */
+    static DynamicResourceGZIPFilter.GZIPResponseWrapper findWrapper(ServletResponse response) {
+        while(response instanceof ServletResponseWrapper) {
+            if(response instanceof DynamicResourceGZIPFilter.GZIPResponseWrapper) {
+                return (DynamicResourceGZIPFilter.GZIPResponseWrapper) response;
+            }
+
+            response = ((ServletResponseWrapper) response).getResponse();
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,382 @@
+package ard.perfify.servlet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates whether dynamic response bodies are worth compressing and learns the observed savings per endpoint.
+ * Content types cannot tell a JSON document from a JSON wrapped base64 or encrypted payload, so the beginning of the
+ * body is sampled: its order-0 byte entropy bounds what the Huffman stage of deflate can save. It never sees repeated
+ * strings and so underestimates the savings on text, a sample is only bypassed when even the entropy says the body is
+ * random.
+ * <p/>
+ * Estimated and measured savings are averaged per uri pattern, the uri with the path segments holding digits replaced
+ * by <code>*</code>. Once an endpoint is known its responses skip the sampling, those of a consistently incompressible
+ * endpoint are passed through right away except for an occasional response that is measured again.
+ */
+public class CompressibilityTracker {
+
+    /**
+     * the default minimum savings ratio worth compressing
+     */
+    public static final double DEFAULT_MIN_SAVINGS = 0.1;
+
+    /**
+     * the number of observations after which an endpoint is known
+     */
+    private static final int LEARN_AFTER = 8;
+
+    /**
+     * every this many responses of a known incompressible endpoint one is measured again
+     */
+    private static final int RECHECK_INTERVAL = 64;
+
+    /**
+     * the weight of a new observation in the moving average
+     */
+    private static final double WEIGHT = 0.2;
+
+    /**
+     * the maximum number of tracked endpoints, bounding the memory of uris with unforeseen variable parts
+     */
+    private static final int MAX_ENDPOINTS = 1024;
+
+    /**
+     * the minimum savings ratio worth compressing
+     */
+    private final double minSavings;
+
+    /**
+     * the tracked endpoints keyed by uri pattern
+     */
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+    /**
+     * the number of sampled responses
+     */
+    private final AtomicLong sampledCount = new AtomicLong();
+
+    /**
+     * the number of sampled responses found incompressible
+     */
+    private final AtomicLong bypassCount = new AtomicLong();
+
+    /**
+     * the number of responses passed through because their endpoint is known incompressible
+     */
+    private final AtomicLong learnedBypassCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param minSavings the minimum savings ratio worth compressing, between 0 and 1
+     */
+    public CompressibilityTracker(double minSavings) {
+        this.minSavings = minSavings;
+    }
+
+    /**
+     * Returns the pattern grouping the uris of an endpoint, the path segments holding digits are replaced by
+     * <code>*</code>, so <code>/orders/1234/items</code> becomes <code>/orders/&#42;/items</code>.
+     *
+     * @param uri the request uri, may be {@code null}
+     * @return the uri pattern
+     */
+    public String getPattern(String uri) {
+        if(uri == null) {
+            return "";
+        }
+
+        int semicolon = uri.indexOf(';');
+        if(semicolon >= 0) {
+            uri = uri.substring(0, semicolon);
+        }
+
+        StringBuilder buf = new StringBuilder(uri.length());
+        int start = 0;
+
+        while(start <= uri.length()) {
+            int end = uri.indexOf('/', start);
+            if(end < 0) {
+                end = uri.length();
+            }
+
+            if(start > 0) {
+                buf.append('/');
+            }
+
+            String segment = uri.substring(start, end);
+            buf.append(hasDigit(segment) ? "*" : segment);
+
+            start = end + 1;
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Determines whether the endpoint is known, its responses are then not sampled.
+     *
+     * @param pattern the uri pattern
+     * @return {@code true} if known, {@code false} otherwise
+     */
+    public boolean isKnown(String pattern) {
+        Endpoint endpoint = endpoints.get(pattern);
+
+        return endpoint != null && endpoint.getObservations() >= LEARN_AFTER;
+    }
+
+    /**
+     * Determines whether a response of the endpoint should be passed through because the endpoint is known to be
+     * incompressible.
+     *
+     * @param pattern the uri pattern
+     * @return {@code true} to pass the response through, {@code false} otherwise
+     */
+    public boolean isIncompressible(String pattern) {
+        Endpoint endpoint = endpoints.get(pattern);
+
+        if(endpoint == null || endpoint.getObservations() < LEARN_AFTER || endpoint.getSavings() >= minSavings) {
+            return false;
+        }
+
+        if(endpoint.skip() % RECHECK_INTERVAL == 0) {
+            return false;
+        }
+
+        learnedBypassCount.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Estimate the savings of the sampled beginning of a body and record them for its endpoint.
+     *
+     * @param pattern the uri pattern
+     * @param b the sampled bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @return {@code true} if the body is worth compressing, {@code false} otherwise
+     */
+    public boolean isWorthCompressing(String pattern, byte[] b, int off, int len) {
+        double savings = estimateSavings(b, off, len);
+
+        sampledCount.incrementAndGet();
+        observe(pattern, savings);
+
+        if(savings < minSavings) {
+            bypassCount.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Record the measured savings of a compressed body for its endpoint.
+     *
+     * @param pattern the uri pattern
+     * @param length the body length
+     * @param compressedLength the compressed body length
+     */
+    public void record(String pattern, long length, long compressedLength) {
+        if(length > 0) {
+            observe(pattern, 1 - (double) compressedLength / length);
+        }
+    }
+
+    /**
+     * Returns the average savings ratio of the endpoint.
+     *
+     * @param pattern the uri pattern
+     * @return the savings ratio, or -1 when the endpoint was not observed
+     */
+    public double getSavings(String pattern) {
+        Endpoint endpoint = endpoints.get(pattern);
+
+        return endpoint != null ? endpoint.getSavings() : -1;
+    }
+
+    /**
+     * Returns the minimum savings ratio worth compressing.
+     *
+     * @return the minimum savings ratio
+     */
+    public double getMinSavings() {
+        return minSavings;
+    }
+
+    /**
+     * Returns the number of sampled responses.
+     *
+     * @return the sampled responses
+     */
+    public long getSampledCount() {
+        return sampledCount.get();
+    }
+
+    /**
+     * Returns the number of sampled responses found incompressible and passed through.
+     *
+     * @return the bypassed responses
+     */
+    public long getBypassCount() {
+        return bypassCount.get();
+    }
+
+    /**
+     * Returns the number of responses passed through without sampling because their endpoint is known incompressible.
+     *
+     * @return the learned bypassed responses
+     */
+    public long getLearnedBypassCount() {
+        return learnedBypassCount.get();
+    }
+
+    /**
+     * Returns the number of tracked endpoints.
+     *
+     * @return the tracked endpoints
+     */
+    public int getEndpointCount() {
+        return endpoints.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "CompressibilityTracker[endpoints=" + getEndpointCount() + ", sampled=" + getSampledCount()
+                + ", bypassed=" + getBypassCount() + ", learnedBypassed=" + getLearnedBypassCount() + "]";
+    }
+
+    /**
+     * Estimate the deflate savings from the order-0 entropy of the bytes.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @return the estimated savings ratio, between 0 and 1
+     */
+    static double estimateSavings(byte[] b, int off, int len) {
+        if(len <= 0) {
+            return 1;
+        }
+
+        int[] histogram = new int[256];
+        for(int i = off; i < off + len; i++) {
+            histogram[b[i] & 0xff]++;
+        }
+
+        double entropy = 0;
+        for(int count : histogram) {
+            if(count > 0) {
+                double p = (double) count / len;
+                entropy -= p * Math.log(p);
+            }
+        }
+
+        // bits per byte out of 8
+        return 1 - entropy / Math.log(2) / 8;
+    }
+
+    /**
+     * Add an observation to the endpoint average.
+     *
+     * @param pattern the uri pattern
+     * @param savings the observed savings ratio
+     */
+    private void observe(String pattern, double savings) {
+        Endpoint endpoint = endpoints.get(pattern);
+
+        if(endpoint == null) {
+            if(endpoints.size() >= MAX_ENDPOINTS) {
+                return;
+            }
+
+            endpoint = new Endpoint();
+            Endpoint existing = endpoints.putIfAbsent(pattern, endpoint);
+            if(existing != null) {
+                endpoint = existing;
+            }
+        }
+
+        endpoint.observe(savings);
+    }
+
+    /**
+     * Determines whether the uri segment holds a digit.
+     *
+     * @param segment the uri segment
+     * @return {@code true} if it holds a digit, {@code false} otherwise
+     */
+    private static boolean hasDigit(String segment) {
+        for(int i = 0; i < segment.length(); i++) {
+            if(Character.isDigit(segment.charAt(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The observed savings of an endpoint.
+     */
+    private static class Endpoint {
+
+        /**
+         * the number of observations
+         */
+        private int observations;
+
+        /**
+         * the moving average savings ratio
+         */
+        private double savings;
+
+        /**
+         * the number of responses passed through since known incompressible
+         */
+        private int skipped;
+
+        /**
+         * Add an observation, the first ones are averaged evenly.
+         *
+         * @param value the observed savings ratio
+         */
+        synchronized void observe(double value) {
+            observations++;
+            savings += (value - savings) * Math.max(WEIGHT, 1.0 / observations);
+        }
+
+        /**
+         * Returns the number of observations.
+         *
+         * @return the observations
+         */
+        synchronized int getObservations() {
+            return observations;
+        }
+
+        /**
+         * Returns the moving average savings ratio.
+         *
+         * @return the savings ratio
+         */
+        synchronized double getSavings() {
+            return savings;
+        }
+
+        /**
+         * Count a passed through response.
+         *
+         * @return the number of passed through responses including this one
+         */
+        synchronized int skip() {
+            return ++skipped;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package ard.perfify.servlet;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which dynamic responses are worth compressing from their content type and status. The allowed and denied
+ * media types are compiled into a single hash table, so a lookup costs at most three probes: the exact type, its
+ * <code>type/*</code> wildcard and the <code>*&#47;*</code> fallback. A denied type wins over the same allowed type
+ * and types matching no entry are not compressed.
+ * <p/>
+ * Responses without a content type yet are compressed, since the type is usually set before the first byte is written.
+ */
+public class CompressionPolicy {
+
+    /**
+     * the media types compressed by default
+     */
+    public static final String[] DEFAULT_COMPRESSIBLE_TYPES = {
+            "text/*", "application/javascript", "application/x-javascript", "application/ecmascript",
+            "application/json", "application/ld+json", "application/xml", "application/xhtml+xml",
+            "application/rss+xml", "application/atom+xml", "application/wasm",
+            "image/svg+xml", "image/x-icon", "image/bmp", "font/ttf", "font/otf", "application/vnd.ms-fontobject"
+    };
+
+    /**
+     * the media types never compressed by default, already compressed formats
+     */
+    public static final String[] DEFAULT_INCOMPRESSIBLE_TYPES = {
+            "image/*", "audio/*", "video/*", "font/woff", "font/woff2", "application/zip", "application/gzip",
+            "application/x-gzip", "application/x-bzip2", "application/x-7z-compressed", "application/x-rar-compressed",
+            "application/pdf", "application/octet-stream", "text/event-stream"
+    };
+
+    /**
+     * the compiled media type table, {@code true} for compressible and {@code false} for incompressible types
+     */
+    private final Map<String, Boolean> types = new HashMap<String, Boolean>();
+
+    /**
+     * Constructor using the default media types.
+     */
+    public CompressionPolicy() {
+        this(DEFAULT_COMPRESSIBLE_TYPES, DEFAULT_INCOMPRESSIBLE_TYPES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param compressibleTypes the compressed media types, <code>type/subtype</code>, <code>type/*</code> or
+     *        <code>*&#47;*</code>
+     * @param incompressibleTypes the media types never compressed, in the same forms
+     */
+    public CompressionPolicy(String[] compressibleTypes, String[] incompressibleTypes) {
+        for(String type : compressibleTypes) {
+            types.put(normalize(type), Boolean.TRUE);
+        }
+
+        for(String type : incompressibleTypes) {
+            types.put(normalize(type), Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Determines whether a content type is worth compressing.
+     *
+     * @param contentType the response content type, with or without parameters, may be {@code null}
+     * @return {@code true} if compressible, {@code false} otherwise
+     */
+    public boolean isCompressibleType(String contentType) {
+        if(contentType == null) {
+            return true;
+        }
+
+        String type = normalize(contentType);
+        if(type.length() == 0) {
+            return true;
+        }
+
+        Boolean compressible = types.get(type);
+
+        if(compressible == null) {
+            int slash = type.indexOf('/');
+            if(slash > 0) {
+                compressible = types.get(type.substring(0, slash + 1) + "*");
+            }
+        }
+
+        if(compressible == null) {
+            compressible = types.get("*/*");
+        }
+
+        return compressible != null && compressible;
+    }
+
+    /**
+     * Determines whether a response of the status carries a body that may be compressed. Informational, no content,
+     * partial content and not modified responses are never compressed.
+     *
+     * @param status the response status
+     * @return {@code true} if compressible, {@code false} otherwise
+     */
+    public boolean isCompressibleStatus(int status) {
+        return status >= HttpServletResponse.SC_OK
+                && status != HttpServletResponse.SC_NO_CONTENT
+                && status != HttpServletResponse.SC_RESET_CONTENT
+                && status != HttpServletResponse.SC_PARTIAL_CONTENT
+                && status != HttpServletResponse.SC_NOT_MODIFIED;
+    }
+
+    /**
+     * Returns the media type without parameters in lower case.
+     *
+     * @param contentType the content type
+     * @return the media type
+     */
+    private static String normalize(String contentType) {
+        int semicolon = contentType.indexOf(';');
+        String type = semicolon >= 0 ? contentType.substring(0, semicolon) : contentType;
+
+        return type.trim().toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -1,21 +1,72 @@
 package ard.perfify.servlet;
 
+import ard.perfify.compress.BufferPool;
+import ard.perfify.compress.CompressedFragment;
+import ard.perfify.compress.CompressionEngine;
+import ard.perfify.compress.CompressionEngines;
+import ard.perfify.compress.CompressionGovernor;
+import ard.perfify.compress.DeflaterBuffers;
+import ard.perfify.compress.DeflaterPool;
+import ard.perfify.compress.DirectBufferPool;
+import ard.perfify.compress.FragmentCache;
 import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
 
 /**
  * This is responsible for wrapping response object to write dynamic responses to GZIP stream. This will compress sent
  * response to the client.
+ * <p/>
+ * Whether a response is compressed is decided when its first byte is written, from its content type and status with
+ * the {@link CompressionPolicy}, an already set <code>Content-Encoding</code> and a declared content length below the
+ * minimum compression size. Ineligible responses pass through without a deflater.
+ * <p/>
+ * With a sample size the beginning of each body is sampled by the {@link CompressibilityTracker}, which also learns
+ * per endpoint which responses are not worth compressing.
+ * <p/>
+ * Compressions are admitted by a {@link CompressionGovernor}, shared by all filter instances by default, which steps
+ * the compression level down under CPU pressure and sends responses as is past its limits. Tuning the limits gives the
+ * filter a dedicated governor, so the shared one is never changed.
+ * <p/>
+ * With a micro cache size, successful <code>GET</code> responses of anonymous requests, without credentials, cookies
+ * or session, are kept as sent, compressed, for a short time to live in a {@link MicroCache} keyed by uri, query,
+ * accepted encoding and the configured vary headers, and concurrent misses of the same response are rendered once.
+ * Responses setting cookies or marked private are never cached.
+ * <p/>
+ * Parts of pages identical across requests can be compressed once into a {@link FragmentCache} and spliced into the
+ * compressed body as separate gzip members with {@link GZIPResponseWrapper#writeFragment(Writer,
+ * CompressedFragment)}, from JSPs with the {@link CompressedFragmentTag}, so deflate work scales with the dynamic part
+ * of a page only.
+ * <p/>
+ * With entity tags enabled, compressed <code>GET</code> responses are tagged with a digest of the uncompressed body
+ * computed while compressing and sent with an exact length, or answered as not modified when the tag matches
+ * <code>If-None-Match</code>, replacing a shallow entity tag filter buffering the uncompressed body in front of this
+ * one. Bodies of conditional requests are only compressed when modified.
  *
  */
 public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
@@ -30,6 +81,17 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
      */
     public static final String GZIP_OFF_ATTRIBUTE = "gzipOff";
 
+    /**
+     * the request attribute holding the fragment cache of the filter.
+     */
+    public static final String FRAGMENT_CACHE_ATTRIBUTE = FragmentCache.class.getName();
+
+    /**
+     * The headers whose values legitimately repeat, added to rather than replacing the values set by other filters
+     * when a cached response is replayed.
+     */
+    private static final List<String> REPEATABLE_HEADERS = Arrays.asList("vary", "link", "via", "warning");
+
     /**
      * The eager buffer size flushing, is null then the whole dynamic page will be compressed
      * first before flushing.
@@ -41,6 +103,107 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
      */
     private boolean responseHeadersImmediateFlush;
 
+    /**
+     * The producer idle time in milliseconds after which pending compressed output is flushed, 0 to only flush when
+     * asked to.
+     */
+    private long idleFlushMillis;
+
+    /**
+     * The deflate compression level.
+     */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * The pool the response streams borrow their deflater from.
+     */
+    private DeflaterPool deflaterPool = DeflaterPool.getDefault();
+
+    /**
+     * The body size from which responses are compressed, 0 compresses every non empty body.
+     */
+    private int minCompressSize;
+
+    /**
+     * The policy deciding which content types and statuses are compressed.
+     */
+    private CompressionPolicy policy = new CompressionPolicy();
+
+    /**
+     * The compressed media types.
+     */
+    private String[] compressibleTypes = CompressionPolicy.DEFAULT_COMPRESSIBLE_TYPES;
+
+    /**
+     * The media types never compressed.
+     */
+    private String[] incompressibleTypes = CompressionPolicy.DEFAULT_INCOMPRESSIBLE_TYPES;
+
+    /**
+     * The number of bytes at the beginning of a body sampled for compressibility, 0 compresses without sampling.
+     */
+    private int sampleSize;
+
+    /**
+     * The compressibility estimates and observed savings per endpoint.
+     */
+    private CompressibilityTracker compressibility = new CompressibilityTracker(CompressibilityTracker.DEFAULT_MIN_SAVINGS);
+
+    /**
+     * The governor admitting compressions.
+     */
+    private CompressionGovernor governor = CompressionGovernor.getDefault();
+
+    /**
+     * The pool the response streams borrow their write coalescing and deflate buffers from.
+     */
+    private BufferPool bufferPool = BufferPool.getDefault();
+
+    /**
+     * The pool of direct buffers the response streams deflate into, {@code null} to deflate into heap buffers.
+     */
+    private DirectBufferPool directBufferPool;
+
+    /**
+     * The body size from which the rest of a response is compressed in parallel blocks, 0 to always deflate serially.
+     */
+    private long parallelCompressionThreshold;
+
+    /**
+     * The cache of complete compressed responses, {@code null} when disabled.
+     */
+    private MicroCache microCache;
+
+    /**
+     * The time to live of the cached responses in milliseconds.
+     */
+    private long microCacheTtlMillis = MicroCache.DEFAULT_TTL_MILLIS;
+
+    /**
+     * The request headers the cached responses vary on besides the accepted encoding.
+     */
+    private String[] microCacheVary = new String[0];
+
+    /**
+     * The maximum time in milliseconds a request waits for a concurrent request rendering the same response.
+     */
+    private long microCacheWaitMillis = 5000;
+
+    /**
+     * The cache of compressed page fragments exposed to the request, {@code null} to use the shared default.
+     */
+    private FragmentCache fragmentCache;
+
+    /**
+     * Determines whether responses are validated with entity tags.
+     */
+    private boolean entityTags = false;
+
+    /**
+     * The maximum number of bytes held to validate a response, larger responses are sent without entity tag.
+     */
+    private long entityTagMaxSize = 1048576;
+
 
     /**
      * The eager buffer size flushing
@@ -61,9 +224,343 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
         this.responseHeadersImmediateFlush = responseHeadersImmediateFlush;
     }
 
+    /**
+     * Setter for property {@link #idleFlushMillis}.
+     *
+     * @param idleFlushMillis the idle time in milliseconds after which pending output is flushed
+     */
+    public void setIdleFlushMillis(long idleFlushMillis) {
+        this.idleFlushMillis = idleFlushMillis;
+    }
+
+    /**
+     * Setter for property {@link #compressionLevel}.
+     *
+     * @param compressionLevel the deflate compression level, 1 to 9 or -1 for the zlib default
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Setter for property {@link #minCompressSize}. Bodies finishing below this size are sent as is with an exact
+     * content length.
+     *
+     * @param minCompressSize the minimum compression size in bytes
+     */
+    public void setMinCompressSize(int minCompressSize) {
+        this.minCompressSize = minCompressSize;
+    }
+
+    /**
+     * Setter for property {@link #sampleSize}.
+     *
+     * @param sampleSize the number of bytes sampled for compressibility
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Sets the savings ratio below which a response is not worth compressing, discarding the learned endpoints.
+     *
+     * @param minSavings the minimum savings ratio, between 0 and 1
+     */
+    public void setMinSavings(double minSavings) {
+        this.compressibility = new CompressibilityTracker(minSavings);
+    }
+
+    /**
+     * Returns the compressibility tracker exposing the sampling decisions and learned endpoints.
+     *
+     * @return the compressibility tracker
+     */
+    public CompressibilityTracker getCompressibility() {
+        return compressibility;
+    }
+
+    /**
+     * Uses a dedicated governor instead of the governor shared by all filter instances.
+     *
+     * @param governor the compression governor, {@code null} to always compress at the configured level
+     */
+    public void setGovernor(CompressionGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Returns the governor exposing the in-flight compressions, cpu load and current level.
+     *
+     * @return the compression governor, {@code null} if not governed
+     */
+    public CompressionGovernor getGovernor() {
+        return governor;
+    }
+
+    /**
+     * Returns the level responses are currently compressed with.
+     *
+     * @return the compression level, {@link CompressionGovernor#IDENTITY} when compression is currently refused
+     */
+    public int getCurrentCompressionLevel() {
+        return governor != null ? governor.getLevel(compressionLevel) : compressionLevel;
+    }
+
+    /**
+     * Sets the number of in-flight compressions from which compression is refused, on the governor of this filter.
+     *
+     * @param maxInFlightCompressions the maximum in-flight compressions
+     * @throws IllegalStateException when compression is not governed
+     */
+    public void setMaxInFlightCompressions(int maxInFlightCompressions) {
+        getTunedGovernor().setMaxInFlight(maxInFlightCompressions);
+    }
+
+    /**
+     * Sets the share of the processors from which compression is refused, on the governor of this filter.
+     *
+     * @param maxCompressionCpuShare the maximum cpu share, between 0 and 1
+     * @throws IllegalStateException when compression is not governed
+     */
+    public void setMaxCompressionCpuShare(double maxCompressionCpuShare) {
+        getTunedGovernor().setMaxCpuShare(maxCompressionCpuShare);
+    }
+
+    /**
+     * Sets the pressure from which the compression level is stepped down, on the governor of this filter.
+     *
+     * @param stepDownPressure the step down pressure, between 0 and 1
+     * @throws IllegalStateException when compression is not governed
+     */
+    public void setStepDownPressure(double stepDownPressure) {
+        getTunedGovernor().setStepDownPressure(stepDownPressure);
+    }
+
+    /**
+     * Returns the governor to tune, replacing the shared default governor by a dedicated one on first use.
+     *
+     * @return the governor of this filter
+     * @throws IllegalStateException when compression is not governed
+     */
+    private CompressionGovernor getTunedGovernor() {
+        if(governor == null) {
+            throw new IllegalStateException("Compression is not governed, set a governor before tuning its limits.");
+        }
+
+        if(governor == CompressionGovernor.getDefault()) {
+            governor = new CompressionGovernor();
+        }
+
+        return governor;
+    }
+
+    /**
+     * Setter for property {@link #compressibleTypes}.
+     *
+     * @param compressibleTypes the compressed media types, e.g. <code>text/*</code> or <code>application/json</code>
+     */
+    public void setCompressibleTypes(String[] compressibleTypes) {
+        this.compressibleTypes = compressibleTypes;
+        this.policy = new CompressionPolicy(compressibleTypes, incompressibleTypes);
+    }
+
+    /**
+     * Setter for property {@link #incompressibleTypes}, these win over the compressible types.
+     *
+     * @param incompressibleTypes the media types never compressed, e.g. <code>image/*</code>
+     */
+    public void setIncompressibleTypes(String[] incompressibleTypes) {
+        this.incompressibleTypes = incompressibleTypes;
+        this.policy = new CompressionPolicy(compressibleTypes, incompressibleTypes);
+    }
+
+    /**
+     * Uses a dedicated deflater pool instead of the shared default pool.
+     *
+     * @param deflaterPoolSize the maximum number of idle deflaters kept per compression level
+     */
+    public void setDeflaterPoolSize(int deflaterPoolSize) {
+        this.deflaterPool = new DeflaterPool(deflaterPoolSize, deflaterPool.getEngine());
+    }
+
+    /**
+     * Compresses with the named engine, <code>jdk</code>, <code>libdeflate</code> or <code>zlib-ng</code>, instead of
+     * the JDK deflater. Native engines not installed on the host fall back to the JDK deflater. Uses a dedicated
+     * deflater pool, and the engine also compresses the fragments of a dedicated fragment cache.
+     *
+     * @param compressionEngine the engine name
+     */
+    public void setCompressionEngine(String compressionEngine) {
+        CompressionEngine engine = CompressionEngines.get(compressionEngine);
+
+        this.deflaterPool = new DeflaterPool(deflaterPool.getMaxIdle(), engine);
+
+        if(fragmentCache != null) {
+            fragmentCache.setCompressionEngine(engine);
+        }
+    }
+
+    /**
+     * Uses dedicated write buffers of the given size instead of the shared default buffers. Small writes are coalesced
+     * up to this size before they are compressed.
+     *
+     * @param writeBufferSize the write buffer size in bytes
+     */
+    public void setWriteBufferSize(int writeBufferSize) {
+        this.bufferPool = new BufferPool(writeBufferSize, BufferPool.DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Caches complete responses as sent, compressed, within the given number of bytes. Zero disables the cache.
+     *
+     * @param microCacheSize the maximum number of cached bytes
+     */
+    public void setMicroCacheSize(long microCacheSize) {
+        this.microCache = microCacheSize > 0 ? new MicroCache(microCacheSize) : null;
+
+        if(microCache != null) {
+            microCache.setTtlMillis(microCacheTtlMillis);
+        }
+    }
+
+    /**
+     * Sets the time to live of the cached responses.
+     *
+     * @param microCacheTtlMillis the time to live in milliseconds
+     */
+    public void setMicroCacheTtlMillis(long microCacheTtlMillis) {
+        this.microCacheTtlMillis = microCacheTtlMillis;
+
+        if(microCache != null) {
+            microCache.setTtlMillis(microCacheTtlMillis);
+        }
+    }
+
+    /**
+     * Sets the request headers the cached responses vary on besides the accepted encoding, e.g.
+     * <code>Accept-Language</code>.
+     *
+     * @param microCacheVary the header names
+     */
+    public void setMicroCacheVary(String[] microCacheVary) {
+        this.microCacheVary = microCacheVary;
+    }
+
+    /**
+     * Sets the maximum time a request waits for a concurrent request rendering the same response, before rendering it
+     * itself.
+     *
+     * @param microCacheWaitMillis the wait time in milliseconds
+     */
+    public void setMicroCacheWaitMillis(long microCacheWaitMillis) {
+        this.microCacheWaitMillis = microCacheWaitMillis;
+    }
+
+    /**
+     * Returns the response cache exposing its hit, miss and coalescing counts.
+     *
+     * @return the cache, or {@code null} when disabled
+     */
+    public MicroCache getMicroCache() {
+        return microCache;
+    }
+
+    /**
+     * Sets the maximum number of bytes of the compressed page fragments cached for the requests through this filter,
+     * instead of the shared default cache.
+     *
+     * @param fragmentCacheSize the capacity in bytes
+     */
+    public void setFragmentCacheSize(long fragmentCacheSize) {
+        this.fragmentCache = new FragmentCache(fragmentCacheSize);
+        this.fragmentCache.setCompressionEngine(deflaterPool.getEngine());
+    }
+
+    /**
+     * Sets whether <code>GET</code> responses are validated with a weak entity tag of the uncompressed body, answering
+     * matching conditional requests as not modified. The output is held until complete, so it is not flushed early.
+     *
+     * @param entityTags {@code true} to validate responses, {@code false} otherwise
+     */
+    public void setEntityTags(boolean entityTags) {
+        this.entityTags = entityTags;
+    }
+
+    /**
+     * Sets the maximum number of bytes held to validate a response, larger responses are sent as they come without
+     * entity tag.
+     *
+     * @param entityTagMaxSize the maximum size in bytes
+     */
+    public void setEntityTagMaxSize(long entityTagMaxSize) {
+        this.entityTagMaxSize = entityTagMaxSize;
+    }
+
+    /**
+     * Returns the fragment cache exposing its hit and miss counts.
+     *
+     * @return the cache, or {@code null} when the shared default is used
+     */
+    public FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    /**
+     * Sets the body size from which the rest of a response is compressed in parallel blocks on all processors, for
+     * large exports where a single deflater caps the throughput.
+     *
+     * @param parallelCompressionThreshold the threshold in bytes, 0 to always deflate serially
+     */
+    public void setParallelCompressionThreshold(long parallelCompressionThreshold) {
+        this.parallelCompressionThreshold = parallelCompressionThreshold;
+    }
+
+    /**
+     * Deflate into pooled direct buffers handed to the container stream, saving a heap copy per compressed byte on
+     * large responses. Requires Java 11 and a container stream taking byte buffers, e.g. Jetty or Undertow, see
+     * {@link ServletOutputBuffers}, heap buffers are used otherwise.
+     *
+     * @param directBuffers {@code true} to deflate into direct buffers
+     */
+    public void setDirectBuffers(boolean directBuffers) {
+        if(directBuffers && !DeflaterBuffers.isSupported()) {
+            LOG.warn("Direct buffer compression requires Java 11, deflating into heap buffers.");
+        }
+
+        this.directBufferPool = directBuffers ? DirectBufferPool.getDefault() : null;
+    }
+
+    /**
+     * Returns the deflater pool exposing its size, hit rate and leaks.
+     *
+     * @return the deflater pool
+     */
+    public DeflaterPool getDeflaterPool() {
+        return deflaterPool;
+    }
+
+    /**
+     * Reports the deflater pool, compressibility, governor and micro cache statistics.
+     */
+    @Override
+    public void destroy() {
+        LOG.info("Deflater pool statistics: " + deflaterPool);
+        LOG.info("Compressibility statistics: " + compressibility);
+        LOG.info("Compression governor statistics: " + governor);
+
+        if(microCache != null) {
+            LOG.info("Micro cache statistics: " + microCache);
+        }
+
+        if(fragmentCache != null) {
+            LOG.info("Fragment cache statistics: " + fragmentCache);
+        }
+    }
+
     /**
      * Wrap the response to use gzip output response instead of plain text. This will minimize response payload
-     * at most 80%.
+     * at most 80%. The compressed stream of an async request is finished when the request completes. Cacheable
+     * requests are answered from the micro cache, or rendered once for all concurrent requests on a miss.
      *
      * @param request the current request
      * @param response the current response
@@ -73,23 +570,224 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
      */
     @Override
     protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws ServletException, IOException {
-        if(acceptsGzipEncoding(request)) {
+        boolean gzip = acceptsGzipEncoding(request);
+        MicroCache cache = microCache;
+
+        if(fragmentCache != null) {
+            request.setAttribute(FRAGMENT_CACHE_ATTRIBUTE, fragmentCache);
+        }
+
+        if(cache != null && isCacheable(request)) {
+            String key = getCacheKey(request, gzip);
+            MicroCache.Entry entry = cache.get(key);
+
+            if(entry == null) {
+                if(cache.lead(key)) {
+                    filterLeading(request, response, chain, cache, key, gzip);
+                    return;
+                }
+
+                entry = cache.await(key, microCacheWaitMillis);
+            }
+
+            if(entry != null) {
+                writeCached(request, response, entry);
+                return;
+            }
+        }
+
+        if(gzip) {
             if(LOG.isDebugEnabled()) {
                 LOG.debug("Compressing response for '" + request.getRequestURI() + "' uri.");
             }
 
-            GZIPResponseWrapper wrappedResponse = new GZIPResponseWrapper(request, response);
+            filterWrapped(request, chain, new GZIPResponseWrapper(request, response));
+        } else {
+            chain.doFilter(request, response);
+        }
+    }
 
-            try {
-                chain.doFilter(request, wrappedResponse);
-            } finally {
+    /**
+     * Render the missed response of a cacheable request for all requests waiting for it, capturing it as sent.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param chain the filter chain object
+     * @param cache the micro cache
+     * @param key the response key
+     * @param gzip determines whether the client accepts gzip
+     * @throws IOException on IO error
+     * @throws ServletException on unexpected servlet error
+     */
+    private void filterLeading(HttpServletRequest request, HttpServletResponse response, FilterChain chain,
+                               MicroCache cache, String key, boolean gzip) throws ServletException, IOException {
+        GZIPResponseWrapper wrappedResponse = new GZIPResponseWrapper(request, response, gzip, cache.getMaxEntrySize());
+        MicroCache.Entry entry = null;
+
+        try {
+            filterWrapped(request, chain, wrappedResponse);
+            entry = wrappedResponse.toCacheEntry();
+        } finally {
+            cache.complete(key, entry);
+        }
+    }
+
+    /**
+     * Pass the wrapped response down the chain and finish it, or once the async request completes.
+     *
+     * @param request the current request
+     * @param chain the filter chain object
+     * @param wrappedResponse the wrapped response
+     * @throws IOException on IO error
+     * @throws ServletException on unexpected servlet error
+     */
+    private void filterWrapped(HttpServletRequest request, FilterChain chain, final GZIPResponseWrapper wrappedResponse)
+            throws ServletException, IOException {
+        try {
+            chain.doFilter(request, wrappedResponse);
+        } finally {
+            if(request.isAsyncStarted()) {
+                // the response is written on after the chain returns, finish it when the async request completes
+                request.getAsyncContext().addListener(new AsyncListener() {
+                    public void onComplete(AsyncEvent event) {
+                        wrappedResponse.finishResponse();
+                    }
+
+                    public void onTimeout(AsyncEvent event) {
+                    }
+
+                    public void onError(AsyncEvent event) {
+                        wrappedResponse.finishResponse();
+                    }
+
+                    public void onStartAsync(AsyncEvent event) {
+                        event.getAsyncContext().addListener(this);
+                    }
+                });
+            } else {
                 wrappedResponse.finishResponse();
             }
-        } else {
-            chain.doFilter(request, response);
         }
     }
 
+    /**
+     * Write a cached response as it was sent, with its exact content length. Only the headers the application set are
+     * replayed, the filters in front of this one set theirs again on every request. A revalidation matching the
+     * entity tag of the response is answered as not modified, without the body.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param entry the cached response
+     * @throws IOException on IO error
+     */
+    private void writeCached(HttpServletRequest request, HttpServletResponse response, MicroCache.Entry entry)
+            throws IOException {
+        String entityTag = entry.getHeader("ETag");
+        boolean notModified = entry.getStatus() == HttpServletResponse.SC_OK && entityTag != null
+                && matchesEntityTag(request.getHeader("If-None-Match"), entityTag);
+
+        response.setStatus(notModified ? HttpServletResponse.SC_NOT_MODIFIED : entry.getStatus());
+
+        if(entry.getContentType() != null) {
+            response.setContentType(entry.getContentType());
+        }
+
+        String previous = null;
+        for(int i = 0; i < entry.getHeaderCount(); i++) {
+            String name = entry.getHeaderName(i);
+
+            // the first value replaces the one set again by the filters in front, the next values of the name repeat
+            if(name.equalsIgnoreCase(previous) || REPEATABLE_HEADERS.contains(name.toLowerCase(Locale.ENGLISH))) {
+                response.addHeader(name, entry.getHeaderValue(i));
+            } else {
+                response.setHeader(name, entry.getHeaderValue(i));
+            }
+
+            previous = name;
+        }
+
+        if(notModified) {
+            if(entry.isCompressed()) {
+                response.addHeader("Vary", "Accept-Encoding");
+            }
+
+            return;
+        }
+
+        if(entry.isCompressed()) {
+            response.setHeader("Content-Encoding", "gzip");
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+
+        response.setContentLength(entry.getBody().length);
+        response.getOutputStream().write(entry.getBody());
+    }
+
+    /**
+     * Determines whether an entity tag matches one of the <code>If-None-Match</code> tags, compared weakly.
+     *
+     * @param ifNoneMatch the <code>If-None-Match</code> header, {@code null} if none
+     * @param entityTag the entity tag of the body
+     * @return {@code true} if matching, {@code false} otherwise
+     */
+    private static boolean matchesEntityTag(String ifNoneMatch, String entityTag) {
+        if(ifNoneMatch == null) {
+            return false;
+        }
+
+        String opaqueTag = entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+
+        for(String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+
+            if(candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+
+            if("*".equals(candidate) || opaqueTag.equals(candidate)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines whether the response of the request may be cached: <code>GET</code> requests without credentials,
+     * cookies or session, whose responses are the same for every anonymous user.
+     *
+     * @param request the current request
+     * @return {@code true} if cacheable, {@code false} otherwise
+     */
+    protected boolean isCacheable(HttpServletRequest request) {
+        return "GET".equals(request.getMethod())
+                && request.getHeader("Authorization") == null
+                && request.getHeader("Cookie") == null
+                && request.getRequestedSessionId() == null;
+    }
+
+    /**
+     * Returns the cache key of the response to the request.
+     *
+     * @param request the current request
+     * @param gzip determines whether the client accepts gzip
+     * @return the key
+     */
+    private String getCacheKey(HttpServletRequest request, boolean gzip) {
+        StringBuilder key = new StringBuilder(gzip ? "gzip " : "identity ").append(request.getRequestURI());
+
+        if(request.getQueryString() != null) {
+            key.append('?').append(request.getQueryString());
+        }
+
+        for(String name : microCacheVary) {
+            String value = request.getHeader(name);
+            key.append('\n').append(name).append(": ").append(value != null ? value : "");
+        }
+
+        return key.toString();
+    }
+
     /**
      * Determine whether the user agent accepts GZIP encoding. This feature is part of HTTP1.1.
      * If a browser accepts GZIP encoding it will advertise this by including in its HTTP header:
@@ -119,24 +817,74 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
     public class GZIPResponseWrapper extends HttpServletResponseWrapper {
 
         /**
-         * The original response object
+         * The original response object
+         */
+        protected HttpServletResponse origResponse = null;
+
+        /**
+         * the gzip servlet output stream
+         */
+        protected ServletOutputStream stream = null;
+
+        /**
+         * the print writer that wraps the gzup servlet output stream
+         */
+        protected PrintWriter writer = null;
+
+        /**
+         * the servlet request
+         */
+        protected HttpServletRequest request;
+
+        /**
+         * the response status
+         */
+        private int status = SC_OK;
+
+        /**
+         * the content encoding set by the application, {@code null} if none
+         */
+        private String contentEncoding;
+
+        /**
+         * the content length declared by the application, -1 if none
+         */
+        private long contentLength = -1;
+
+        /**
+         * the compression eligibility, {@code null} until decided on the first byte
+         */
+        private Boolean compressible;
+
+        /**
+         * the uri pattern of the request endpoint
+         */
+        private final String pattern;
+
+        /**
+         * determines whether the client accepts gzip, responses to other clients pass through
+         */
+        private final boolean gzipAccepted;
+
+        /**
+         * the body as sent, captured for the micro cache, {@code null} when not captured
          */
-        protected HttpServletResponse origResponse = null;
+        private ByteArrayOutputStream captured;
 
         /**
-         * the gzip servlet output stream
+         * the maximum number of captured bytes
          */
-        protected ServletOutputStream stream = null;
+        private final long maxCaptured;
 
         /**
-         * the print writer that wraps the gzup servlet output stream
+         * determines whether the response may be cached
          */
-        protected PrintWriter writer = null;
+        private boolean cacheable = true;
 
         /**
-         * the servlet request
+         * the headers set through this wrapper by the application, {@code null} when not captured
          */
-        protected HttpServletRequest request;
+        private Map<String, List<String>> capturedHeaders;
 
         /**
          * Constructor.
@@ -145,10 +893,198 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
          * @param response the response object to wrapped
          */
         public GZIPResponseWrapper(HttpServletRequest request, HttpServletResponse response) {
+            this(request, response, true, -1);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param request the request object.
+         * @param response the response object to wrapped
+         * @param gzipAccepted determines whether the client accepts gzip
+         * @param maxCaptured the maximum number of body bytes captured for the micro cache, -1 not to capture
+         */
+        public GZIPResponseWrapper(HttpServletRequest request, HttpServletResponse response, boolean gzipAccepted,
+                                   long maxCaptured) {
             super(response);
 
             this.request = request;
+            this.gzipAccepted = gzipAccepted;
+            this.maxCaptured = maxCaptured;
             origResponse = response;
+            pattern = compressibility.getPattern(request.getRequestURI());
+
+            if(maxCaptured >= 0) {
+                captured = new ByteArrayOutputStream();
+                capturedHeaders = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+            }
+        }
+
+        /**
+         * Returns the response as sent for the micro cache, once finished.
+         *
+         * @return the cache entry, or {@code null} when the response is not cacheable
+         */
+        public MicroCache.Entry toCacheEntry() {
+            if(captured == null || !cacheable || status != SC_OK || request.isAsyncStarted()) {
+                return null;
+            }
+
+            // headers set in front of this filter, e.g. a session cookie, still mark the response personalized
+            Collection<String> headerNames = origResponse.getHeaderNames();
+            if(headerNames != null) {
+                for(String name : headerNames) {
+                    for(String value : origResponse.getHeaders(name)) {
+                        if(!isCacheableHeader(name, value)) {
+                            return null;
+                        }
+                    }
+                }
+            }
+
+            List<String> names = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+
+            for(Map.Entry<String, List<String>> header : capturedHeaders.entrySet()) {
+                String name = header.getKey();
+                if("Content-Length".equalsIgnoreCase(name) || "Content-Type".equalsIgnoreCase(name)) {
+                    continue;
+                }
+
+                for(String value : header.getValue()) {
+                    // the encoding negotiation is added again with the compressed body
+                    if(!"Vary".equalsIgnoreCase(name) || !"Accept-Encoding".equalsIgnoreCase(value.trim())) {
+                        names.add(name);
+                        values.add(value);
+                    }
+                }
+            }
+
+            boolean compressed = stream instanceof GZIPResponseStream && ((GZIPResponseStream) stream).isCompressing();
+
+            return new MicroCache.Entry(status, getContentType(), names, values, compressed, captured.toByteArray());
+        }
+
+        /**
+         * Capture a header set through this wrapper for the micro cache.
+         *
+         * @param name the header name
+         * @param value the header value, {@code null} removes a set header
+         * @param add determines whether the value is added to the previous values rather than replacing them
+         */
+        private void captureHeader(String name, String value, boolean add) {
+            if(capturedHeaders == null) {
+                return;
+            }
+
+            if(!add) {
+                capturedHeaders.remove(name);
+            }
+
+            if(value != null) {
+                List<String> values = capturedHeaders.get(name);
+                if(values == null) {
+                    values = new ArrayList<String>(1);
+                    capturedHeaders.put(name, values);
+                }
+
+                values.add(value);
+            }
+        }
+
+        /**
+         * Determines whether a response with the header may be cached, personalized or private responses may not.
+         *
+         * @param name the header name
+         * @param value the header value
+         * @return {@code true} if cacheable, {@code false} otherwise
+         */
+        private boolean isCacheableHeader(String name, String value) {
+            if("Set-Cookie".equalsIgnoreCase(name)) {
+                return false;
+            }
+
+            if("Cache-Control".equalsIgnoreCase(name) && value != null) {
+                String directives = value.toLowerCase(Locale.ENGLISH);
+
+                return !directives.contains("private") && !directives.contains("no-store")
+                        && !directives.contains("no-cache");
+            }
+
+            return true;
+        }
+
+        /**
+         * Returns the response the gzip stream writes to, capturing the body as sent when caching.
+         *
+         * @return the response
+         */
+        private HttpServletResponse getStreamResponse() {
+            if(captured == null) {
+                return origResponse;
+            }
+
+            return new HttpServletResponseWrapper(origResponse) {
+                @Override
+                public ServletOutputStream getOutputStream() throws IOException {
+                    final ServletOutputStream out = super.getOutputStream();
+
+                    return new ServletOutputStream() {
+                        @Override
+                        public void write(int b) throws IOException {
+                            out.write(b);
+                            capture(new byte[] {(byte) b}, 0, 1);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            out.write(b, off, len);
+                            capture(b, off, len);
+                        }
+
+                        @Override
+                        public void flush() throws IOException {
+                            out.flush();
+                        }
+
+                        @Override
+                        public void close() throws IOException {
+                            out.close();
+                        }
+
+                        @Override
+                        public boolean isReady() {
+                            return out.isReady();
+                        }
+
+                        @Override
+                        public void setWriteListener(WriteListener writeListener) {
+                            out.setWriteListener(writeListener);
+                        }
+                    };
+                }
+            };
+        }
+
+        /**
+         * Capture sent body bytes, giving up on caching past the maximum.
+         *
+         * @param b the bytes
+         * @param off the offset
+         * @param len the number of bytes
+         */
+        private void capture(byte[] b, int off, int len) {
+            if(captured == null) {
+                return;
+            }
+
+            if(captured.size() + len > maxCaptured) {
+                captured = null;
+                cacheable = false;
+                return;
+            }
+
+            captured.write(b, off, len);
         }
 
         /**
@@ -157,25 +1093,163 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
          * @return the wrapped gzip servlet response stream
          * @throws IOException on IO error
          */
-        public ServletOutputStream createOutputStream() throws IOException {
+        public GZIPResponseStream createOutputStream() throws IOException {
             int eagerFlushSize = -1;
 
             if(eagerBufferFlushingSize != null) {
                 eagerFlushSize = eagerBufferFlushingSize;
             }
 
-            GZIPResponseStream stream = new GZIPResponseStream(origResponse, eagerFlushSize, responseHeadersImmediateFlush);
+            GZIPResponseStream stream = new GZIPResponseStream(getStreamResponse(), eagerFlushSize, responseHeadersImmediateFlush,
+                    deflaterPool, compressionLevel, bufferPool);
+            stream.setMinCompressSize(minCompressSize);
+            stream.setGovernor(governor);
+            stream.setIdleFlushMillis(idleFlushMillis);
+            stream.setDirectBufferPool(directBufferPool);
+            stream.setParallelThreshold(parallelCompressionThreshold);
+
+            if(!compressibility.isKnown(pattern)) {
+                stream.setSampleSize(sampleSize);
+            }
 
             // only set the header before the first byte is written to the gzip stream
             stream.setCallback(new GZIPResponseStream.StartWriteCallback() {
+                public boolean isCompressible() {
+                    return decideCompressible();
+                }
+
+                public boolean isWorthCompressing(byte[] sample, int off, int len) {
+                    return compressibility.isWorthCompressing(pattern, sample, off, len);
+                }
+
+                public void startPassThrough() {
+                    passThrough();
+                }
+
+                public void endWrite(long length, long compressedLength) {
+                    compressibility.record(pattern, length, compressedLength);
+                }
+
                 public void startWrite() {
-                    setHeader("Content-Encoding", "gzip");
+                    origResponse.setHeader("Content-Encoding", "gzip");
+                    origResponse.addHeader("Vary", "Accept-Encoding");
+                }
+
+                public void startIdentityWrite(int length) {
+                    origResponse.setContentLength(length);
                 }
             });
 
+            if(entityTags && "GET".equals(request.getMethod())) {
+                stream.setValidationCallback(new GZIPResponseStream.ValidationCallback() {
+                    public boolean isConditional() {
+                        return request.getHeader("If-None-Match") != null;
+                    }
+
+                    public boolean isNotModified(String entityTag) {
+                        return notModified(entityTag);
+                    }
+
+                    public void startValidatedWrite(String entityTag, long length) {
+                        if(status == SC_OK) {
+                            origResponse.setHeader("ETag", entityTag);
+                            captureHeader("ETag", entityTag, false);
+                        }
+
+                        origResponse.setHeader("Content-Length", String.valueOf(length));
+                    }
+                }, entityTagMaxSize);
+            }
+
             return stream;
         }
 
+        /**
+         * Answer the response as not modified when it is successful and the entity tag matches one of the request
+         * <code>If-None-Match</code> tags, compared weakly.
+         *
+         * @param entityTag the entity tag of the body
+         * @return {@code true} if answered as not modified, {@code false} otherwise
+         */
+        private boolean notModified(String entityTag) {
+            if(status != SC_OK || !matchesEntityTag(request.getHeader("If-None-Match"), entityTag)) {
+                return false;
+            }
+
+            cacheable = false;
+            origResponse.setStatus(SC_NOT_MODIFIED);
+            origResponse.setHeader("ETag", entityTag);
+
+            return true;
+        }
+
+        /**
+         * Decide whether the response is compressed, once all headers preceding the body are known. When it is not, the
+         * declared content length is passed on.
+         *
+         * @return {@code true} if compressed, {@code false} otherwise
+         */
+        private boolean decideCompressible() {
+            if(compressible == null) {
+                compressible = gzipAccepted
+                        && policy.isCompressibleStatus(status)
+                        && (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding))
+                        && (contentLength < 0 || contentLength >= Math.max(minCompressSize, 1))
+                        && policy.isCompressibleType(getContentType())
+                        && !compressibility.isIncompressible(pattern);
+
+                if(!compressible) {
+                    passThrough();
+                }
+
+                if(LOG.isDebugEnabled() && !compressible) {
+                    LOG.debug("Not compressing response for '" + request.getRequestURI() + "' uri, status " + status
+                            + ", type " + getContentType() + ", encoding " + contentEncoding + ".");
+                }
+            }
+
+            return compressible;
+        }
+
+        /**
+         * Pass the response through uncompressed, with the declared content length.
+         */
+        private void passThrough() {
+            compressible = false;
+
+            if(contentLength >= 0) {
+                origResponse.setHeader("Content-Length", String.valueOf(contentLength));
+            }
+        }
+
+        /**
+         * Record a header deciding compression eligibility.
+         *
+         * @param name the header name
+         * @param value the header value
+         * @return {@code true} if the header is held back, {@code false} if it is set on the response
+         */
+        private boolean recordHeader(String name, String value) {
+            if(!isCacheableHeader(name, value)) {
+                cacheable = false;
+            }
+
+            if("Content-Encoding".equalsIgnoreCase(name)) {
+                contentEncoding = value;
+            } else if("Content-Length".equalsIgnoreCase(name)) {
+                try {
+                    contentLength = value != null ? Long.parseLong(value.trim()) : -1;
+                } catch(NumberFormatException e) {
+                    contentLength = -1;
+                }
+
+                // the length of a compressed body is not known
+                return compressible == null || compressible;
+            }
+
+            return false;
+        }
+
         /**
          * Close the writer and stream quietly.
          *
@@ -185,13 +1259,62 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
             IOUtils.closeQuietly(stream);
         }
 
+        /**
+         * Splice the compressed fragment into the response, as a gzip member of its own while compressing. Chars
+         * pending in the writers are pushed into the stream first without flushing the response. The fragment content
+         * must be encoded in the response character encoding.
+         *
+         * @param pending the writer holding chars written before the fragment, e.g. the JSP writer, {@code null} if none
+         * @param fragment the fragment
+         * @return {@code true} if written, {@code false} when gzip is turned off and the caller writes the content
+         * @throws IOException on IO error
+         */
+        public boolean writeFragment(Writer pending, CompressedFragment fragment) throws IOException {
+            if(isGZIPOff()) {
+                return false;
+            }
+
+            if(stream == null) {
+                if(pending != null) {
+                    getWriter();
+                } else {
+                    getOutputStream();
+                }
+            }
+
+            GZIPResponseStream gzipStream = (GZIPResponseStream) stream;
+            gzipStream.setFlushHeld(true);
+
+            try {
+                if(pending != null) {
+                    pending.flush();
+                }
+
+                if(writer != null) {
+                    writer.flush();
+                }
+            } finally {
+                gzipStream.setFlushHeld(false);
+            }
+
+            gzipStream.writeFragment(fragment);
+
+            return true;
+        }
+
         /**
          * Flush the stream
          *
          * @see javax.servlet.http.HttpServletResponse#flushBuffer()
          */
         public void flushBuffer() throws IOException {
-            stream.flush();
+            if(writer != null) {
+                writer.flush();
+            } else if(stream != null) {
+                stream.flush();
+            } else {
+                super.flushBuffer();
+            }
         }
 
         /**
@@ -202,6 +1325,7 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
         @Override
         public ServletOutputStream getOutputStream() throws IOException {
             if(isGZIPOff()) {
+                cacheable = false;
                 return super.getOutputStream();
             }
 
@@ -229,12 +1353,14 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
 
         /**
          * Returns the response print writer. create it if not yet created, otherwise use the previously created instance.
+         * The chars are encoded in the response character encoding straight into the gzip stream.
          *
          * @see javax.servlet.http.HttpServletResponse#getWriter()
          */
         @Override
         public PrintWriter getWriter() throws IOException {
             if(isGZIPOff()) {
+                cacheable = false;
                 return super.getWriter();
             }
 
@@ -246,20 +1372,208 @@ public class DynamicResourceGZIPFilter extends BaseOncePerRequestFilter {
                 throw new IllegalStateException("getOutputStream() has already been called!");
             }
 
-            stream = createOutputStream();
-            writer = new PrintWriter(new OutputStreamWriter(stream, "UTF-8"));
+            String charset = getCharacterEncoding();
+            GZIPResponseStream gzipStream = createOutputStream();
+            writer = new PrintWriter(new GZIPResponseWriter(gzipStream, charset != null ? charset : "UTF-8"));
+            stream = gzipStream;
 
             return writer;
         }
 
         /**
-         * Length is not predictable since it will be compressed, so just ignore it when set.
+         * Length is not predictable since it will be compressed, so just ignore it when set. Bodies below the
+         * minimum compression size get their exact length when the stream is closed.
          *
          * @param length the content length
          * @see javax.servlet.http.HttpServletResponse#setContentLength(int)
          */
         @Override
         public void setContentLength(int length) {
+            if(!recordHeader("Content-Length", String.valueOf(length))) {
+                super.setContentLength(length);
+            }
+        }
+
+        /**
+         * Length is not predictable since it will be compressed, so just ignore it when set.
+         *
+         * @param length the content length
+         * @see javax.servlet.http.HttpServletResponse#setContentLengthLong(long)
+         */
+        @Override
+        public void setContentLengthLong(long length) {
+            if(!recordHeader("Content-Length", String.valueOf(length))) {
+                super.setContentLengthLong(length);
+            }
+        }
+
+        /**
+         * Records the headers deciding compression eligibility, captures the others for the micro cache.
+         *
+         * @see javax.servlet.http.HttpServletResponse#setHeader(String, String)
+         */
+        @Override
+        public void setHeader(String name, String value) {
+            if(!recordHeader(name, value)) {
+                super.setHeader(name, value);
+                captureHeader(name, value, false);
+            }
+        }
+
+        /**
+         * Records the headers deciding compression eligibility, captures the others for the micro cache.
+         *
+         * @see javax.servlet.http.HttpServletResponse#addHeader(String, String)
+         */
+        @Override
+        public void addHeader(String name, String value) {
+            if(!recordHeader(name, value)) {
+                super.addHeader(name, value);
+                captureHeader(name, value, true);
+            }
+        }
+
+        /**
+         * Records the headers deciding compression eligibility, captures the others for the micro cache.
+         *
+         * @see javax.servlet.http.HttpServletResponse#setIntHeader(String, int)
+         */
+        @Override
+        public void setIntHeader(String name, int value) {
+            if(!recordHeader(name, String.valueOf(value))) {
+                super.setIntHeader(name, value);
+                captureHeader(name, String.valueOf(value), false);
+            }
+        }
+
+        /**
+         * Records the headers deciding compression eligibility, captures the others for the micro cache.
+         *
+         * @see javax.servlet.http.HttpServletResponse#addIntHeader(String, int)
+         */
+        @Override
+        public void addIntHeader(String name, int value) {
+            if(!recordHeader(name, String.valueOf(value))) {
+                super.addIntHeader(name, value);
+                captureHeader(name, String.valueOf(value), true);
+            }
+        }
+
+        /**
+         * Records the status deciding compression eligibility.
+         *
+         * @see javax.servlet.http.HttpServletResponse#setStatus(int)
+         */
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+            super.setStatus(status);
+        }
+
+        /**
+         * Records the status deciding compression eligibility.
+         *
+         * @see javax.servlet.http.HttpServletResponse#setStatus(int, String)
+         */
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int status, String message) {
+            this.status = status;
+            super.setStatus(status, message);
+        }
+
+        /**
+         * Records the status deciding compression eligibility.
+         *
+         * @see javax.servlet.http.HttpServletResponse#sendError(int)
+         */
+        @Override
+        public void sendError(int status) throws IOException {
+            this.status = status;
+            super.sendError(status);
+        }
+
+        /**
+         * Records the status deciding compression eligibility.
+         *
+         * @see javax.servlet.http.HttpServletResponse#sendError(int, String)
+         */
+        @Override
+        public void sendError(int status, String message) throws IOException {
+            this.status = status;
+            super.sendError(status, message);
+        }
+
+        /**
+         * Records the redirect status, so the redirect is neither compressed nor cached as an empty response.
+         *
+         * @see javax.servlet.http.HttpServletResponse#sendRedirect(String)
+         */
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            this.status = SC_FOUND;
+            super.sendRedirect(location);
+        }
+
+        /**
+         * Captures the date header for the micro cache.
+         *
+         * @see javax.servlet.http.HttpServletResponse#setDateHeader(String, long)
+         */
+        @Override
+        public void setDateHeader(String name, long date) {
+            super.setDateHeader(name, date);
+            captureHeader(name, formatDate(date), false);
+        }
+
+        /**
+         * Captures the date header for the micro cache.
+         *
+         * @see javax.servlet.http.HttpServletResponse#addDateHeader(String, long)
+         */
+        @Override
+        public void addDateHeader(String name, long date) {
+            super.addDateHeader(name, date);
+            captureHeader(name, formatDate(date), true);
+        }
+
+        /**
+         * Captures the content language set with the locale for the micro cache.
+         *
+         * @see javax.servlet.ServletResponse#setLocale(java.util.Locale)
+         */
+        @Override
+        public void setLocale(Locale locale) {
+            super.setLocale(locale);
+
+            String language = origResponse.getHeader("Content-Language");
+            if(language != null) {
+                captureHeader("Content-Language", language, false);
+            }
+        }
+
+        /**
+         * Format a date header value.
+         *
+         * @param date the date in milliseconds
+         * @return the HTTP date
+         */
+        private String formatDate(long date) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+            return format.format(new Date(date));
+        }
+
+        /**
+         * A response setting a cookie is personalized and never cached.
+         *
+         * @see javax.servlet.http.HttpServletResponse#addCookie(javax.servlet.http.Cookie)
+         */
+        @Override
+        public void addCookie(Cookie cookie) {
+            cacheable = false;
+            super.addCookie(cookie);
         }
     }
 }
\ No newline at end of file
@@ -1,13 +1,65 @@
 package ard.perfify.servlet;
 
+import ard.perfify.compress.BufferPool;
+import ard.perfify.compress.CompressedFragment;
+import ard.perfify.compress.CompressionGovernor;
+import ard.perfify.compress.DeflaterBuffers;
+import ard.perfify.compress.DeflaterPool;
+import ard.perfify.compress.DirectBufferPool;
+import ard.perfify.compress.ParallelDeflater;
+import org.apache.log4j.Logger;
+
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.zip.GZIPOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
  * This is wrapper class that wraps {@link javax.servlet.http.HttpServletResponse#getOutputStream()} stream with
- * a {@link GZIPOutputStream} to compress response text contents.
+ * a gzip stream to compress response text contents. The raw deflater is borrowed from a {@link DeflaterPool} and
+ * the gzip header and trailer are written by this stream, so the deflater can be reset and reused by later responses.
+ * <p/>
+ * Writes are coalesced in a pooled buffer and handed to the deflater and checksum in blocks of the buffer size, so
+ * the many small writes of a {@link java.io.PrintWriter} or a JSP do not each cross into native code.
+ * <p/>
+ * Nothing is allocated or written before the first byte. With a minimum compression size the bytes are held
+ * uncompressed until the body reaches that size, a body finishing below it is written as is with an exact content
+ * length, since the gzip envelope and chunked transfer would cost more than they save.
+ * <p/>
+ * Whether the response is eligible for compression at all is asked from the {@link StartWriteCallback} when the first
+ * byte is written or the stream is flushed, an ineligible response passes through untouched. With a sample size the
+ * beginning of the body is held back as well and handed to the callback, a body found incompressible is passed
+ * through too. A {@link CompressionGovernor} admits the compression and may lower its level or refuse it, a refused
+ * body is passed through as well.
+ * <p/>
+ * Flushing the stream sync flushes the deflater, so the client can decompress everything written so far, e.g. the
+ * <code>&lt;head&gt;</code> of a slow page. With an idle flush time, pending output is flushed by a scheduler shared by
+ * all streams once the producer stopped writing for that long.
+ * <p/>
+ * With a {@link DirectBufferPool} on Java 11 or later, the deflater writes into pooled direct buffers that are handed
+ * to the container when its stream takes byte buffers, see {@link ServletOutputBuffers}, so the compressed bytes are
+ * not copied through the heap on their way to the socket.
+ * <p/>
+ * Past a parallel threshold the rest of a large body is cut into blocks compressed on a shared fork join pool by a
+ * {@link ParallelDeflater}, still written as one gzip stream.
+ * <p/>
+ * In non-blocking mode, after {@link #setWriteListener(WriteListener)}, nothing blocks on the client: output the
+ * container is not ready for is queued in pooled buffers by the {@link PendingOutput} and drained when the container
+ * signals writability. The same queue holds the output of a body validated by a {@link BodyValidation} until its
+ * entity tag is known.
  *
  * @version $Id: $
  */
@@ -18,17 +70,263 @@ public class GZIPResponseStream extends ServletOutputStream {
      */
     public static interface StartWriteCallback {
 
+        /**
+         * method invoked when first byte is written or the stream is first flushed, to decide whether the response
+         * is compressed.
+         *
+         * @return {@code true} to compress, {@code false} to pass the response through
+         */
+        boolean isCompressible();
+
+        /**
+         * method invoked with the held back beginning of the body when it is sampled, to decide whether compressing
+         * it pays off.
+         *
+         * @param sample the sampled bytes
+         * @param off the offset
+         * @param len the number of bytes
+         * @return {@code true} to compress, {@code false} to write the body as is
+         */
+        boolean isWorthCompressing(byte[] sample, int off, int len);
+
         /**
          * method invoked when first byte is written.
          */
         void startWrite();
+
+        /**
+         * method invoked when the body finished below the minimum compression size and is written as is.
+         *
+         * @param length the content length
+         */
+        void startIdentityWrite(int length);
+
+        /**
+         * method invoked when an eligible body is passed through uncompressed after all, because it was found
+         * incompressible or compression was refused.
+         */
+        void startPassThrough();
+
+        /**
+         * method invoked when the compressed body is complete.
+         *
+         * @param length the body length
+         * @param compressedLength the compressed body length
+         */
+        void endWrite(long length, long compressedLength);
     }
 
 
     /**
-     * gzip stream instance, this wraps the servlet output stream to compress text response contents
+     * Callback validating the complete body against the request validators before any of it is sent.
+     */
+    public static interface ValidationCallback {
+
+        /**
+         * Determines whether the request carries validators, the body is then held uncompressed and only compressed
+         * when it turns out modified.
+         *
+         * @return {@code true} if conditional, {@code false} otherwise
+         */
+        boolean isConditional();
+
+        /**
+         * Called with the entity tag of the complete body. Answers the response as not modified when the tag matches
+         * the request validators, the body is then dropped.
+         *
+         * @param entityTag the weak entity tag of the uncompressed body
+         * @return {@code true} if answered as not modified, {@code false} otherwise
+         */
+        boolean isNotModified(String entityTag);
+
+        /**
+         * Called before the held body is sent.
+         *
+         * @param entityTag the weak entity tag of the uncompressed body
+         * @param length the exact number of bytes sent
+         */
+        void startValidatedWrite(String entityTag, long length);
+    }
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(GZIPResponseStream.class);
+
+    /**
+     * the gzip header, no file name, modification time or extra fields and an unknown operating system
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    /**
+     * the pool the deflater is borrowed from
+     */
+    private final DeflaterPool deflaterPool;
+
+    /**
+     * the pool the write and deflate buffers are borrowed from
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * the buffer coalescing the written bytes, {@code null} until the first write and once returned
+     */
+    private byte[] buffer;
+
+    /**
+     * the number of bytes in the write buffer
+     */
+    private int count;
+
+    /**
+     * the buffer receiving the deflated bytes, {@code null} until the first deflate and once returned
+     */
+    private byte[] deflated;
+
+    /**
+     * the pool of the direct buffers deflated into, {@code null} to deflate into heap buffers
+     */
+    private DirectBufferPool directBufferPool;
+
+    /**
+     * the direct buffer receiving the deflated bytes, {@code null} until the first direct deflate and once returned
+     */
+    private ByteBuffer directDeflated;
+
+    /**
+     * the body size from which the rest of the body is compressed in parallel blocks, 0 to always deflate serially
+     */
+    private long parallelThreshold;
+
+    /**
+     * the parallel block compressor, {@code null} while deflating serially
+     */
+    private ParallelDeflater parallel;
+
+    /**
+     * the view of the write buffer chars are encoded into, {@code null} until the first encode
+     */
+    private ByteBuffer encodeTarget;
+
+    /**
+     * the pooled buffer chars are encoded into while not compressing, {@code null} until needed and once returned
+     */
+    private ByteBuffer encodeScratch;
+
+    /**
+     * the requested compression level
+     */
+    private final int level;
+
+    /**
+     * the governor admitting the compression, {@code null} when not governed
+     */
+    private CompressionGovernor governor;
+
+    /**
+     * the level admitted by the governor
+     */
+    private int admittedLevel;
+
+    /**
+     * determines whether the compression was admitted by the governor and must be released
+     */
+    private boolean admitted;
+
+    /**
+     * the time spent deflating
+     */
+    private long deflateNanos;
+
+    /**
+     * determines whether bytes were handed to the deflater since the last sync flush
+     */
+    private boolean unsynced;
+
+    /**
+     * the producer idle time after which pending output is flushed, 0 when not flushed on idle
+     */
+    private long idleFlushMillis;
+
+    /**
+     * determines whether bytes were written since the last flush
+     */
+    private boolean dirty;
+
+    /**
+     * the time of the last write
+     */
+    private long lastWrite;
+
+    /**
+     * the scheduled idle time flush, {@code null} when none is scheduled
+     */
+    private ScheduledFuture<?> idleFlush;
+
+    /**
+     * the output to the container stream, queued while held for validation or not ready in non-blocking mode
+     */
+    private final PendingOutput pendingOutput;
+
+    /**
+     * the body size from which the response is compressed, smaller bodies are written as is
+     */
+    private int minCompressSize;
+
+    /**
+     * the number of bytes at the beginning of the body sampled for compressibility, 0 when not sampled
+     */
+    private int sampleSize;
+
+    /**
+     * determines whether compression eligibility was decided
+     */
+    private boolean decided;
+
+    /**
+     * determines whether the response is ineligible for compression and passed through
+     */
+    private boolean passThrough;
+
+    /**
+     * determines whether the response is compressed, decided when the body reaches the minimum compression size
+     */
+    private boolean compressing;
+
+    /**
+     * the borrowed deflater, {@code null} until compression starts and once returned
+     */
+    private Deflater deflater;
+
+    /**
+     * the checksum of the uncompressed bytes of the open member, written in its gzip trailer
+     */
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * determines whether a gzip member is open, members are finished to splice in compressed fragments
+     */
+    private boolean memberOpen;
+
+    /**
+     * the number of uncompressed bytes of the finished members and the spliced fragments
+     */
+    private long finishedBytesRead;
+
+    /**
+     * the number of compressed bytes of the finished members and the spliced fragments
+     */
+    private long finishedBytesWritten;
+
+    /**
+     * determines whether flushes are held while pending chars are pushed in before a fragment
+     */
+    private boolean flushHeld;
+
+    /**
+     * the validation of the body, {@code null} when not validated
      */
-    protected GZIPOutputStream gzipstream = null;
+    private BodyValidation validation;
 
     /**
      * determines whether the servlet output stream is already closed or not.
@@ -82,12 +380,34 @@ public class GZIPResponseStream extends ServletOutputStream {
      * @throws IOException on IO error
      */
     public GZIPResponseStream(HttpServletResponse response, int eagerBufferSize, boolean responseHeadersImmediateFlush) throws IOException {
+        this(response, eagerBufferSize, responseHeadersImmediateFlush, DeflaterPool.getDefault(), Deflater.DEFAULT_COMPRESSION,
+                BufferPool.getDefault());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param response the response object we want to wrap its output stream
+     * @param eagerBufferSize the eager buffer size before flushing
+     * @param responseHeadersImmediateFlush determines whether the response headers be flushed immediately when the first
+     *        bytes comes in.
+     * @param deflaterPool the pool to borrow the deflater from
+     * @param level the compression level
+     * @param bufferPool the pool to borrow the write and deflate buffers from
+     *
+     * @throws IOException on IO error
+     */
+    public GZIPResponseStream(HttpServletResponse response, int eagerBufferSize, boolean responseHeadersImmediateFlush,
+                              DeflaterPool deflaterPool, int level, BufferPool bufferPool) throws IOException {
         this.response = response;
         this.eagerBufferSize = eagerBufferSize;
         this.responseHeadersImmediateFlush = responseHeadersImmediateFlush;
+        this.deflaterPool = deflaterPool;
+        this.bufferPool = bufferPool;
+        this.level = level;
 
         output = response.getOutputStream();
-        gzipstream = new GZIPOutputStream(output);
+        pendingOutput = new PendingOutput(output, bufferPool, this);
     }
 
     /**
@@ -99,108 +419,1060 @@ public class GZIPResponseStream extends ServletOutputStream {
         this.callback = callback;
     }
 
+    /**
+     * Sets the body size from which the response is compressed.
+     *
+     * @param minCompressSize the minimum compression size in bytes, 0 compresses every non empty body
+     */
+    public void setMinCompressSize(int minCompressSize) {
+        this.minCompressSize = minCompressSize;
+    }
+
+    /**
+     * Sets the number of bytes at the beginning of the body sampled for compressibility.
+     *
+     * @param sampleSize the sample size in bytes, 0 to compress without sampling
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Sets the governor admitting the compression.
+     *
+     * @param governor the compression governor, {@code null} to compress at the requested level
+     */
+    public void setGovernor(CompressionGovernor governor) {
+        this.governor = governor;
+    }
+
+    /**
+     * Sets the producer idle time after which pending output is flushed.
+     *
+     * @param idleFlushMillis the idle time in milliseconds, 0 to only flush when asked to
+     */
+    public void setIdleFlushMillis(long idleFlushMillis) {
+        this.idleFlushMillis = idleFlushMillis;
+    }
+
+    /**
+     * Sets the pool of direct buffers to deflate into. They are only used when the runtime supports deflating into
+     * byte buffers and the container stream takes byte buffers in blocking mode, see {@link ServletOutputBuffers}.
+     *
+     * @param directBufferPool the direct buffer pool, {@code null} to deflate into heap buffers
+     */
+    public void setDirectBufferPool(DirectBufferPool directBufferPool) {
+        this.directBufferPool = directBufferPool;
+    }
+
+    /**
+     * Sets the body size from which the rest of the body is compressed in parallel blocks, when the governor is not
+     * stepping the level down. Eager flushing stops once compressing in parallel.
+     *
+     * @param parallelThreshold the parallel threshold in bytes, 0 to always deflate serially
+     */
+    public void setParallelThreshold(long parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Sets the callback validating the body. The output is held until the stream is closed and sent with an entity
+     * tag of the uncompressed body and an exact length, or dropped when the response is not modified. Bodies of
+     * conditional requests are held uncompressed, so no deflate work is spent on revalidated responses.
+     *
+     * @param validationCallback the callback
+     * @param maxValidatedSize the maximum number of bytes held, larger bodies are sent as they come without entity tag
+     */
+    public void setValidationCallback(ValidationCallback validationCallback, long maxValidatedSize) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            LOG.warn("MD5 digest not available, responses are not validated.", e);
+            return;
+        }
+
+        this.validation = new BodyValidation(validationCallback, maxValidatedSize, bufferPool, digest);
+        pendingOutput.hold();
+    }
+
+    /**
+     * Returns whether the response is compressed, {@code false} while the body is below the minimum compression size.
+     *
+     * @return {@code true} if compressing, {@code false} otherwise
+     */
+    public boolean isCompressing() {
+        return compressing;
+    }
+
     /**
      * Close all open IO streams.
      *
      * @see javax.servlet.ServletOutputStream#close()
      */
     @Override
-    public void close() throws IOException {
+    public synchronized void close() throws IOException {
         if (closed) {
             throw new IOException("This output stream has already been closed");
         }
 
+        boolean notModified = false;
+
         try {
-            gzipstream.close();
+            if(validation != null && validation.isDeferring()) {
+                notModified = validation.isNotModified();
+
+                if(!notModified) {
+                    validation.replay(this);
+                }
+            }
+
+            if(!notModified) {
+                closeBody();
+            }
         } finally {
-            output.close();
-        }
+            closed = true;
+            pendingOutput.release(false);
+
+            if(validation != null) {
+                validation.release();
+            }
+
+            if(idleFlush != null) {
+                idleFlush.cancel(false);
+                idleFlush = null;
+            }
+
+            if(deflater != null) {
+                deflaterPool.release(deflater);
+                deflater = null;
+            }
+
+            if(parallel != null) {
+                parallel.release();
+                deflateNanos += parallel.getDeflateNanos();
+                parallel = null;
+            }
+
+            if(admitted) {
+                governor.release(deflateNanos);
+                admitted = false;
+            }
+
+            bufferPool.release(buffer);
+            bufferPool.release(deflated);
+            buffer = null;
+            deflated = null;
+            encodeTarget = null;
 
-        closed = true;
+            if(directDeflated != null) {
+                directBufferPool.release(directDeflated);
+                directDeflated = null;
+            }
+
+            if(encodeScratch != null) {
+                bufferPool.release(encodeScratch.array());
+                encodeScratch = null;
+            }
+
+            pendingOutput.close();
+        }
     }
 
     /**
-     * Flush the buffer when buffer is supported ad the increment is more than the allotted eager buffer size
+     * Compress or write the rest of the body, then send the held output with its entity tag.
      *
-     * @param increment the
      * @throws IOException on IO error
      */
-    public void applyEagerBufferFlush(int increment) throws IOException {
-        if(responseHeadersImmediateFlush && !doneInitialFlush) {
-            callback.startWrite();
-            flush();
+    private void closeBody() throws IOException {
+        if(!compressing && !passThrough && count > 0 && count >= minCompressSize && isWorthCompressing() && admit()) {
+            if(deflaterPool.getEngine().isOneShotPreferred()) {
+                compressOneShot();
+            } else {
+                startCompression();
+            }
         }
 
-        if(eagerBufferSize == -1) {
-            return;
+        if(compressing) {
+            drain();
+
+            if(memberOpen) {
+                finishMember();
+            }
+
+            if(callback != null) {
+                callback.endWrite(finishedBytesRead, finishedBytesWritten);
+            }
+        } else if(count > 0) {
+            if(callback != null) {
+                callback.startIdentityWrite(count);
+            }
+
+            writeOutput(buffer, 0, count);
         }
 
-        if(currentBufferedSize >= eagerBufferSize) {
-            flush();
-            currentBufferedSize = 0;
+        if(pendingOutput.isHolding()) {
+            validation.startValidatedWrite(pendingOutput.getQueuedLength());
+            pendingOutput.release(true);
         }
+    }
 
-        currentBufferedSize += increment;
+    /**
+     * Hold the uncompressed bytes of a conditional request until the body is validated, giving up validation when
+     * the body is too large.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @return {@code true} if held, {@code false} when the bytes must be written
+     * @throws IOException on IO error
+     */
+    private boolean defer(byte[] b, int off, int len) throws IOException {
+        if(validation.defer(b, off, len)) {
+            return true;
+        }
+
+        abandonValidation();
+        return false;
     }
 
     /**
-     * Delegates writing to the gzip stream wrapper.
+     * Give up validating a body too large to be held, sending what is held and the rest as it comes.
      *
-     * @see ServletOutputStream#write(byte[], int, int)
+     * @throws IOException on IO error
      */
-    @Override
-    public void flush() throws IOException {
-        if (closed) {
-            throw new IOException("Cannot flush a closed output stream");
+    private void abandonValidation() throws IOException {
+        BodyValidation abandoned = validation;
+        validation = null;
+        pendingOutput.release(true);
+
+        if(abandoned.isDeferring()) {
+            abandoned.replay(this);
         }
+    }
 
-        doneInitialFlush = true;
-        gzipstream.flush();
+    /**
+     * Returns whether bytes can be written without blocking, once all compressed output queued while the client
+     * was not ready is drained.
+     *
+     * @see ServletOutputStream#isReady()
+     */
+    @Override
+    public synchronized boolean isReady() {
+        return pendingOutput.isReady();
     }
 
     /**
-     * Delegates writing to the gzip stream wrapper.
+     * Switches to non-blocking IO. The compressed output is written while the container stream is ready and queued in
+     * pooled buffers otherwise, the queue is drained when the container signals writability and the listener is
+     * notified once it is empty.
      *
-     * @see ServletOutputStream#write(byte[], int, int)
+     * @see ServletOutputStream#setWriteListener(WriteListener)
      */
     @Override
-    public void write(int b) throws IOException {
-        if (closed) {
-            throw new IOException("Cannot write to a closed output stream");
+    public void setWriteListener(final WriteListener writeListener) {
+        synchronized(this) {
+            if(validation != null) {
+                try {
+                    // non-blocking output cannot be held, it is sent as it comes
+                    abandonValidation();
+                } catch(IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
         }
 
-        applyEagerBufferFlush(1);
-        gzipstream.write((byte) b);
+        pendingOutput.setWriteListener(writeListener);
     }
 
     /**
-     * Delegates writing to the gzip stream wrapper.
+     * Write to the container stream, or queue the bytes when held for validation or when in non-blocking mode and the
+     * container is not ready.
      *
-     * @see ServletOutputStream#write(byte[], int, int)
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @throws IOException on IO error
      */
-    @Override
-    public void write(byte b[]) throws IOException {
-        if (closed) {
-            throw new IOException("Cannot write to a closed output stream");
+    private void writeOutput(byte[] b, int off, int len) throws IOException {
+        if(pendingOutput.isHolding() && !validation.canHold(pendingOutput.getQueuedLength() + len)) {
+            abandonValidation();
         }
 
-        applyEagerBufferFlush(b.length);
-        gzipstream.write(b);
+        pendingOutput.write(b, off, len);
     }
 
     /**
-     * Delegates writing to the gzip stream wrapper.
+     * Decide on the first byte or flush whether the response is eligible for compression.
      *
-     * @see ServletOutputStream#write(byte[], int, int)
+     * @return {@code true} if the response passes through uncompressed, {@code false} otherwise
      */
-    @Override
-    public void write(byte b[], int off, int len) throws IOException {
-        if (closed) {
-            throw new IOException("Cannot write to a closed output stream");
+    private boolean isPassThrough() {
+        if(!decided) {
+            decided = true;
+            passThrough = callback != null && !callback.isCompressible();
         }
 
-        applyEagerBufferFlush(len - off);
-        gzipstream.write(b, off, len);
+        return passThrough;
+    }
+
+    /**
+     * Returns the number of bytes held back before the encoding is decided.
+     *
+     * @return the hold back size
+     */
+    private int getHoldBackSize() {
+        return Math.max(minCompressSize, sampleSize);
     }
 
+    /**
+     * Determines whether the held back beginning of the body is worth compressing.
+     *
+     * @return {@code true} if worth compressing or not sampled, {@code false} otherwise
+     */
+    private boolean isWorthCompressing() {
+        return sampleSize <= 0 || count == 0 || callback == null || callback.isWorthCompressing(buffer, 0, count);
+    }
+
+    /**
+     * Ask the governor to admit the compression.
+     *
+     * @return {@code true} if admitted or not governed, {@code false} if refused
+     */
+    private boolean admit() {
+        if(governor == null) {
+            admittedLevel = level;
+            return true;
+        }
+
+        admittedLevel = governor.admit(level);
+        admitted = admittedLevel != CompressionGovernor.IDENTITY;
+
+        return admitted;
+    }
+
+    /**
+     * Decide the encoding of the body once the held back bytes reach the hold back size or the stream is flushed,
+     * either compressing it or passing it through with the held back bytes.
+     *
+     * @throws IOException on IO error
+     */
+    private void startBody() throws IOException {
+        if(isWorthCompressing() && admit()) {
+            startCompression();
+            return;
+        }
+
+        passThrough = true;
+
+        if(callback != null) {
+            callback.startPassThrough();
+        }
+
+        if(count > 0) {
+            writeOutput(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Commit the response to compression, setting the content encoding and writing the gzip header.
+     *
+     * @throws IOException on IO error
+     */
+    private void startCompression() throws IOException {
+        compressing = true;
+
+        if(callback != null) {
+            callback.startWrite();
+        }
+
+        writeOutput(GZIP_HEADER, 0, GZIP_HEADER.length);
+        deflater = deflaterPool.borrow(admittedLevel, this);
+        memberOpen = true;
+    }
+
+    /**
+     * Compress the whole body held in the buffer into a single gzip member with the compression engine of the pool,
+     * for engines faster on complete buffers than streaming.
+     *
+     * @throws IOException on IO error
+     */
+    private void compressOneShot() throws IOException {
+        compressing = true;
+
+        if(callback != null) {
+            callback.startWrite();
+        }
+
+        long start = System.nanoTime();
+        byte[] member = deflaterPool.getEngine().gzip(buffer, 0, count, admittedLevel);
+        deflateNanos += System.nanoTime() - start;
+
+        writeOutput(member, 0, member.length);
+        finishedBytesRead += count;
+        finishedBytesWritten += member.length;
+        count = 0;
+    }
+
+    /**
+     * Open the next gzip member after a spliced fragment, writing its header.
+     *
+     * @throws IOException on IO error
+     */
+    private void openMember() throws IOException {
+        writeOutput(GZIP_HEADER, 0, GZIP_HEADER.length);
+        deflater.reset();
+        crc.reset();
+        memberOpen = true;
+    }
+
+    /**
+     * Finish the deflate stream of the open gzip member and write its trailer.
+     *
+     * @throws IOException on IO error
+     */
+    private void finishMember() throws IOException {
+        if(parallel != null) {
+            parallel.finish();
+        } else {
+            deflater.finish();
+            while(!deflater.finished()) {
+                writeDeflated(Deflater.NO_FLUSH);
+            }
+        }
+
+        writeTrailer();
+
+        finishedBytesRead += getBytesRead();
+        finishedBytesWritten += deflater.getBytesWritten();
+
+        if(parallel != null) {
+            finishedBytesWritten += parallel.getBytesWritten();
+            deflateNanos += parallel.getDeflateNanos();
+            parallel.release();
+            parallel = null;
+        }
+
+        memberOpen = false;
+        unsynced = false;
+    }
+
+    /**
+     * Borrow the write buffer, large enough to hold the bytes held back before the encoding is decided.
+     *
+     * @return the write buffer
+     */
+    private byte[] borrowBuffer() {
+        if(getHoldBackSize() > bufferPool.getBufferSize()) {
+            return new byte[getHoldBackSize()];
+        }
+
+        return bufferPool.borrow();
+    }
+
+    /**
+     * Hand the coalesced bytes to the checksum and the deflater.
+     *
+     * @throws IOException on IO error
+     */
+    private void drain() throws IOException {
+        if(count > 0) {
+            deflate(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Compress the bytes, writing the deflated output as it becomes available.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @throws IOException on IO error
+     */
+    private void deflate(byte[] b, int off, int len) throws IOException {
+        if(!memberOpen) {
+            openMember();
+        }
+
+        if(parallel == null && isParallel(len)) {
+            startParallel();
+        }
+
+        if(parallel != null) {
+            parallel.write(b, off, len);
+            unsynced = true;
+            return;
+        }
+
+        crc.update(b, off, len);
+        deflater.setInput(b, off, len);
+        unsynced = true;
+
+        while(!deflater.needsInput()) {
+            writeDeflated(Deflater.NO_FLUSH);
+        }
+    }
+
+    /**
+     * Determines whether the body reaches the parallel threshold with the bytes and the governor has cores to spare.
+     *
+     * @param len the number of bytes about to be deflated
+     * @return {@code true} to compress the rest of the body in parallel, {@code false} otherwise
+     */
+    private boolean isParallel(int len) {
+        return parallelThreshold > 0 && !pendingOutput.isNonBlocking()
+                && deflater.getBytesRead() + len >= parallelThreshold && (governor == null || governor.getLevel(admittedLevel) == admittedLevel);
+    }
+
+    /**
+     * Sync flush the serial deflater, so the parallel blocks continue its output byte aligned, and switch to parallel
+     * block compression.
+     *
+     * @throws IOException on IO error
+     */
+    private void startParallel() throws IOException {
+        syncFlush();
+
+        parallel = new ParallelDeflater(ParallelDeflater.getDefaultPool(), deflaterPool, admittedLevel, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                writeOutput(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeOutput(b, off, len);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of uncompressed bytes of the open member deflated, serially and in parallel blocks.
+     *
+     * @return the bytes read
+     */
+    private long getBytesRead() {
+        return deflater.getBytesRead() + (parallel != null ? parallel.getBytesRead() : 0);
+    }
+
+    /**
+     * Run the deflater once and write what it produced.
+     *
+     * @param flush the deflater flush mode
+     * @return the number of bytes written
+     * @throws IOException on IO error
+     */
+    private int writeDeflated(int flush) throws IOException {
+        if(isDirect()) {
+            return writeDirectDeflated(flush);
+        }
+
+        if(deflated == null) {
+            deflated = bufferPool.borrow();
+        }
+
+        long start = System.nanoTime();
+        int len = deflater.deflate(deflated, 0, deflated.length, flush);
+        deflateNanos += System.nanoTime() - start;
+        if(len > 0) {
+            writeOutput(deflated, 0, len);
+        }
+
+        return len;
+    }
+
+    /**
+     * Run the deflater once into the direct buffer and write what it produced to the container stream.
+     *
+     * @param flush the deflater flush mode
+     * @return the number of bytes written
+     * @throws IOException on IO error
+     */
+    private int writeDirectDeflated(int flush) throws IOException {
+        if(directDeflated == null) {
+            directDeflated = directBufferPool.borrow();
+        }
+
+        directDeflated.clear();
+
+        long start = System.nanoTime();
+        int len = DeflaterBuffers.deflate(deflater, directDeflated, flush);
+        deflateNanos += System.nanoTime() - start;
+
+        directDeflated.flip();
+        ServletOutputBuffers.write(output, directDeflated);
+
+        return len;
+    }
+
+    /**
+     * Determines whether the deflater writes into a direct buffer handed to the container stream.
+     *
+     * @return {@code true} if direct, {@code false} otherwise
+     */
+    private boolean isDirect() {
+        return directBufferPool != null && !pendingOutput.isNonBlocking() && !pendingOutput.isHolding()
+                && DeflaterBuffers.isSupported(deflater) && ServletOutputBuffers.isSupported(output);
+    }
+
+    /**
+     * Write the gzip trailer, the checksum and the size modulo 2^32 of the uncompressed bytes in little endian.
+     *
+     * @throws IOException on IO error
+     */
+    private void writeTrailer() throws IOException {
+        long checksum = crc.getValue();
+        int size = (int) getBytesRead();
+
+        if(parallel != null) {
+            checksum = ParallelDeflater.combineCrc(checksum, parallel.getCrc(), parallel.getBytesRead());
+        }
+
+        byte[] trailer = {
+                (byte) checksum, (byte) (checksum >> 8), (byte) (checksum >> 16), (byte) (checksum >> 24),
+                (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+        };
+
+        writeOutput(trailer, 0, trailer.length);
+    }
+
+    /**
+     * Flush the response headers before the first byte when they should be flushed immediately, once the encoding can
+     * be decided.
+     *
+     * @param increment the number of bytes about to be written
+     * @throws IOException on IO error
+     */
+    private void applyHeadersImmediateFlush(int increment) throws IOException {
+        if(!compressing && count + increment < getHoldBackSize()) {
+            // still holding back, nothing can be sent before the encoding is decided
+            return;
+        }
+
+        if(responseHeadersImmediateFlush && !doneInitialFlush) {
+            flush();
+        }
+    }
+
+    /**
+     * Flush the buffer when buffer is supported and the bytes written since the last flush reach the allotted eager
+     * buffer size.
+     *
+     * @param increment the number of bytes just written
+     * @throws IOException on IO error
+     */
+    public void applyEagerBufferFlush(int increment) throws IOException {
+        if(eagerBufferSize == -1) {
+            return;
+        }
+
+        currentBufferedSize += increment;
+
+        if(currentBufferedSize >= eagerBufferSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Account for written bytes, flushing eagerly and scheduling the idle time flush.
+     *
+     * @param len the number of bytes written
+     * @throws IOException on IO error
+     */
+    private void written(int len) throws IOException {
+        if(!compressing && !passThrough) {
+            // held back bytes cannot be flushed before the encoding is decided
+            return;
+        }
+
+        if(idleFlushMillis > 0 && !pendingOutput.isNonBlocking()) {
+            lastWrite = System.nanoTime();
+            dirty = true;
+
+            if(idleFlush == null) {
+                scheduleIdleFlush(idleFlushMillis);
+            }
+        }
+
+        if(compressing && parallel == null) {
+            // eager flushes would cut the parallel blocks short, bulk bodies are flushed on request or when idle
+            applyEagerBufferFlush(len);
+        }
+    }
+
+    /**
+     * Schedule the idle time flush on the shared scheduler.
+     *
+     * @param delay the delay in milliseconds
+     */
+    private void scheduleIdleFlush(long delay) {
+        idleFlush = IdleFlushScheduler.SCHEDULER.schedule(new Runnable() {
+            public void run() {
+                idleFlush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Flush the pending output once the producer has been idle for the idle flush time.
+     */
+    private synchronized void idleFlush() {
+        idleFlush = null;
+
+        if(closed || !dirty) {
+            return;
+        }
+
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastWrite);
+        if(idle < idleFlushMillis) {
+            scheduleIdleFlush(idleFlushMillis - idle);
+            return;
+        }
+
+        try {
+            flush();
+        } catch(IOException e) {
+            LOG.debug("Unable to flush the idle response stream.", e);
+        }
+    }
+
+    /**
+     * Push the compressed bytes of all input so far with a deflate sync flush, so the client can decompress them
+     * without waiting for more.
+     *
+     * @throws IOException on IO error
+     */
+    private void syncFlush() throws IOException {
+        if(!unsynced) {
+            return;
+        }
+
+        if(parallel != null) {
+            parallel.flush();
+            unsynced = false;
+            return;
+        }
+
+        int len;
+        do {
+            len = writeDeflated(Deflater.SYNC_FLUSH);
+        } while(len == (isDirect() ? directDeflated.capacity() : deflated.length));
+
+        unsynced = false;
+    }
+
+    /**
+     * Compresses and pushes all written bytes to the client.
+     *
+     * @see ServletOutputStream#flush()
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            throw new IOException("Cannot flush a closed output stream");
+        }
+
+        if(flushHeld || pendingOutput.isHolding()) {
+            // nothing is sent before the body is validated
+            return;
+        }
+
+        dirty = false;
+        currentBufferedSize = 0;
+
+        if(isPassThrough()) {
+            pendingOutput.flush();
+            return;
+        }
+
+        doneInitialFlush = true;
+
+        if(!compressing) {
+            startBody();
+        }
+
+        if(compressing) {
+            drain();
+            syncFlush();
+        }
+
+        pendingOutput.flush();
+    }
+
+    /**
+     * Delegates writing to the gzip stream wrapper.
+     *
+     * @see ServletOutputStream#write(int)
+     */
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (closed) {
+            throw new IOException("Cannot write to a closed output stream");
+        }
+
+        if(validation != null) {
+            validation.update((byte) b);
+
+            if(validation.isDeferring() && defer(new byte[] {(byte) b}, 0, 1)) {
+                return;
+            }
+        }
+
+        if(!isPassThrough()) {
+            applyHeadersImmediateFlush(1);
+        }
+
+        if(isPassThrough()) {
+            if(pendingOutput.isHolding()) {
+                writeOutput(new byte[] {(byte) b}, 0, 1);
+            } else {
+                pendingOutput.write(b);
+            }
+
+            written(1);
+            return;
+        }
+
+        if(buffer == null) {
+            buffer = borrowBuffer();
+        } else if(count == buffer.length) {
+            drain();
+        }
+
+        buffer[count++] = (byte) b;
+
+        if(!compressing && count >= getHoldBackSize()) {
+            startBody();
+        }
+
+        written(1);
+    }
+
+    /**
+     * Delegates writing to the gzip stream wrapper.
+     *
+     * @see ServletOutputStream#write(byte[])
+     */
+    @Override
+    public void write(byte b[]) throws IOException {
+        if (closed) {
+            throw new IOException("Cannot write to a closed output stream");
+        }
+
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Delegates writing to the gzip stream wrapper.
+     *
+     * @see ServletOutputStream#write(byte[], int, int)
+     */
+    @Override
+    public synchronized void write(byte b[], int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Cannot write to a closed output stream");
+        }
+
+        if(validation != null) {
+            validation.update(b, off, len);
+
+            if(validation.isDeferring() && defer(b, off, len)) {
+                return;
+            }
+        }
+
+        int written = len;
+
+        if(!isPassThrough()) {
+            applyHeadersImmediateFlush(len);
+        }
+
+        if(!isPassThrough() && !compressing) {
+            if(buffer == null) {
+                buffer = borrowBuffer();
+            }
+
+            // hold back up to the hold back size, so a large first write is sampled as well
+            int held = Math.min(len, getHoldBackSize() - count);
+            System.arraycopy(b, off, buffer, count, held);
+            count += held;
+            off += held;
+            len -= held;
+
+            if(count < getHoldBackSize()) {
+                return;
+            }
+
+            startBody();
+        }
+
+        if(isPassThrough()) {
+            writeOutput(b, off, len);
+            written(written);
+            return;
+        }
+
+        if(buffer == null) {
+            buffer = borrowBuffer();
+        }
+
+        if(len > buffer.length - count) {
+            drain();
+        }
+
+        if(len >= buffer.length) {
+            // large writes go to the deflater without a copy
+            deflate(b, off, len);
+        } else {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        written(written);
+    }
+
+    /**
+     * Splice the compressed fragment into the body. While compressing, the open gzip member is finished, the
+     * fragment member is written verbatim and the bytes written next open another member, so the fragment costs no
+     * deflate work. Otherwise the uncompressed content is written.
+     *
+     * @param fragment the fragment
+     * @throws IOException on IO error
+     */
+    public synchronized void writeFragment(CompressedFragment fragment) throws IOException {
+        if (closed) {
+            throw new IOException("Cannot write to a closed output stream");
+        }
+
+        byte[] content = fragment.getContent();
+
+        if(!compressing) {
+            write(content, 0, content.length);
+            return;
+        }
+
+        if(validation != null) {
+            validation.update(content, 0, content.length);
+        }
+
+        applyHeadersImmediateFlush(0);
+        drain();
+
+        if(memberOpen) {
+            finishMember();
+        }
+
+        byte[] member = fragment.getMember();
+        writeOutput(member, 0, member.length);
+        finishedBytesRead += content.length;
+        finishedBytesWritten += member.length;
+
+        written(content.length);
+    }
+
+    /**
+     * Hold or release flushes, so chars pending in the writers above the stream can be pushed in without flushing
+     * the response.
+     *
+     * @param flushHeld {@code true} to ignore flushes, {@code false} to honour them again
+     */
+    synchronized void setFlushHeld(boolean flushHeld) {
+        this.flushHeld = flushHeld;
+    }
+
+    /**
+     * Encodes the chars straight into the write buffer while compressing, otherwise through a pooled buffer into
+     * {@link #write(byte[], int, int)}. Stops before an incomplete surrogate pair unless at the end of input.
+     *
+     * @param chars the chars to encode, consumed
+     * @param encoder the encoder, owned by the caller
+     * @param endOfInput {@code true} when no chars follow, the encoder is then flushed as well
+     * @throws IOException on IO error
+     */
+    public synchronized void write(CharBuffer chars, CharsetEncoder encoder, boolean endOfInput) throws IOException {
+        if (closed) {
+            throw new IOException("Cannot write to a closed output stream");
+        }
+
+        boolean flushing = false;
+
+        while(true) {
+            ByteBuffer target;
+
+            if(compressing) {
+                applyHeadersImmediateFlush(0);
+
+                if(buffer == null) {
+                    buffer = borrowBuffer();
+                }
+
+                if(encodeTarget == null || encodeTarget.array() != buffer) {
+                    encodeTarget = ByteBuffer.wrap(buffer);
+                }
+
+                target = encodeTarget;
+                target.limit(buffer.length).position(count);
+            } else {
+                if(encodeScratch == null) {
+                    encodeScratch = ByteBuffer.wrap(bufferPool.borrow());
+                }
+
+                target = encodeScratch;
+                target.clear();
+            }
+
+            int start = target.position();
+            CoderResult result = flushing ? encoder.flush(target) : encoder.encode(chars, target, endOfInput);
+            int len = target.position() - start;
+
+            if(len > 0 && target == encodeTarget) {
+                if(validation != null) {
+                    validation.update(buffer, start, len);
+                }
+
+                count += len;
+                written(len);
+            } else if(len > 0) {
+                write(target.array(), 0, len);
+            }
+
+            if(result.isError()) {
+                result.throwException();
+            }
+
+            if(result.isOverflow()) {
+                if(target == encodeTarget) {
+                    drain();
+                }
+            } else if(!endOfInput || flushing) {
+                return;
+            } else {
+                flushing = true;
+            }
+        }
+    }
+
+    /**
+     * The scheduler shared by all streams for their idle time flushes, created on first use.
+     */
+    private static class IdleFlushScheduler {
+
+        /**
+         * the shared scheduler
+         */
+        private static final ScheduledThreadPoolExecutor SCHEDULER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "perfify-idle-flush");
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        static {
+            SCHEDULER.setRemoveOnCancelPolicy(true);
+        }
+    }
 }
@@ -0,0 +1,255 @@
+package ard.perfify.servlet;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writer encoding the response chars straight into the write buffer of a {@link GZIPResponseStream}, replacing an
+ * {@link java.io.OutputStreamWriter} with its own byte buffer and the copy from it. The written chars are coalesced in
+ * a char buffer, so the many small prints of a JSP or template reach the encoder in blocks.
+ * <p/>
+ * The encoder and char buffer are claimed from a per thread cache when the writer is created and given back to the
+ * cache of the closing thread, so after warm up no coding buffers are allocated per response and a writer handed to
+ * another thread by an async request never shares its encoder.
+ */
+public class GZIPResponseWriter extends Writer {
+
+    /**
+     * the char buffer size
+     */
+    private static final int CHAR_BUFFER_SIZE = 2048;
+
+    /**
+     * the idle encoders of the thread, by charset
+     */
+    private static final ThreadLocal<Map<Charset, CharsetEncoder>> ENCODERS = new ThreadLocal<Map<Charset, CharsetEncoder>>() {
+        @Override
+        protected Map<Charset, CharsetEncoder> initialValue() {
+            return new HashMap<Charset, CharsetEncoder>();
+        }
+    };
+
+    /**
+     * the idle char buffer of the thread
+     */
+    private static final ThreadLocal<CharBuffer> CHAR_BUFFERS = new ThreadLocal<CharBuffer>();
+
+    /**
+     * the stream the encoded bytes are written to
+     */
+    private final GZIPResponseStream stream;
+
+    /**
+     * the claimed encoder
+     */
+    private final CharsetEncoder encoder;
+
+    /**
+     * the claimed buffer of the chars not encoded yet
+     */
+    private final CharBuffer chars;
+
+    /**
+     * determines whether the writer is closed
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param stream the gzip response stream
+     * @param charset the response character encoding
+     * @throws UnsupportedEncodingException when the character encoding is not supported
+     */
+    public GZIPResponseWriter(GZIPResponseStream stream, String charset) throws UnsupportedEncodingException {
+        super(stream);
+
+        this.stream = stream;
+        this.encoder = claimEncoder(charset);
+        this.chars = claimChars();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(int c) throws IOException {
+        synchronized(lock) {
+            ensureOpen();
+
+            if(!chars.hasRemaining()) {
+                encode(false);
+            }
+
+            chars.put((char) c);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized(lock) {
+            ensureOpen();
+
+            while(len > 0) {
+                if(!chars.hasRemaining()) {
+                    encode(false);
+                }
+
+                int n = Math.min(len, chars.remaining());
+                chars.put(cbuf, off, n);
+
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        synchronized(lock) {
+            ensureOpen();
+
+            while(len > 0) {
+                if(!chars.hasRemaining()) {
+                    encode(false);
+                }
+
+                int n = Math.min(len, chars.remaining());
+                str.getChars(off, off + n, chars.array(), chars.position());
+                chars.position(chars.position() + n);
+
+                off += n;
+                len -= n;
+            }
+        }
+    }
+
+    /**
+     * Encodes the buffered chars and flushes the stream.
+     *
+     * @see Writer#flush()
+     */
+    @Override
+    public void flush() throws IOException {
+        synchronized(lock) {
+            ensureOpen();
+
+            encode(false);
+            stream.flush();
+        }
+    }
+
+    /**
+     * Encodes the buffered chars, closes the stream and gives the encoder and char buffer back to the thread cache.
+     *
+     * @see Writer#close()
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(lock) {
+            if(closed) {
+                return;
+            }
+
+            closed = true;
+
+            try {
+                encode(true);
+                stream.close();
+            } finally {
+                encoder.reset();
+                ENCODERS.get().put(encoder.charset(), encoder);
+
+                chars.clear();
+                CHAR_BUFFERS.set(chars);
+            }
+        }
+    }
+
+    /**
+     * Encode the buffered chars into the stream, an incomplete surrogate pair is kept for the next chars.
+     *
+     * @param endOfInput {@code true} when no chars follow
+     * @throws IOException on IO error
+     */
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+
+        try {
+            stream.write(chars, encoder, endOfInput);
+        } finally {
+            chars.compact();
+        }
+    }
+
+    /**
+     * Check that the writer is not closed.
+     *
+     * @throws IOException when closed
+     */
+    private void ensureOpen() throws IOException {
+        if(closed) {
+            throw new IOException("Cannot write to a closed writer");
+        }
+    }
+
+    /**
+     * Claim the idle encoder of the thread for the charset, or create one replacing malformed and unmappable chars
+     * like {@link java.io.OutputStreamWriter}.
+     *
+     * @param charsetName the charset name
+     * @return the encoder
+     * @throws UnsupportedEncodingException when the charset is not supported
+     */
+    private static CharsetEncoder claimEncoder(String charsetName) throws UnsupportedEncodingException {
+        Charset charset;
+
+        try {
+            charset = Charset.forName(charsetName);
+        } catch(IllegalCharsetNameException e) {
+            throw new UnsupportedEncodingException(charsetName);
+        } catch(UnsupportedCharsetException e) {
+            throw new UnsupportedEncodingException(charsetName);
+        }
+
+        CharsetEncoder encoder = ENCODERS.get().remove(charset);
+        if(encoder == null) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        return encoder;
+    }
+
+    /**
+     * Claim the idle char buffer of the thread, or create one.
+     *
+     * @return the empty char buffer
+     */
+    private static CharBuffer claimChars() {
+        CharBuffer chars = CHAR_BUFFERS.get();
+        if(chars == null) {
+            return CharBuffer.allocate(CHAR_BUFFER_SIZE);
+        }
+
+        CHAR_BUFFERS.remove();
+
+        return chars;
+    }
+}
@@ -0,0 +1,346 @@
+package ard.perfify.servlet;
+
+import ard.perfify.compress.ContentEncoding;
+import ard.perfify.compress.PrecompressManifest;
+import ard.perfify.compress.VariantEncoder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.springframework.util.DigestUtils;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compresses resources at runtime for web applications that were not pre-compressed at build time. The first
+ * request for a resource only queues a job on a bounded executor and the resource is served as is, no request thread
+ * ever waits for compression. The job writes the variants to a disk cache directory under the content hash of the
+ * resource and the compression settings, so they survive restarts and identical content is only compressed once per
+ * settings.
+ * <p/>
+ * The compressed resources are described with {@link PrecompressManifest.Entry manifest entries}, in exploded
+ * deployments an entry is dropped and the resource compressed again when its file changes. Resources found missing are
+ * remembered for a while, so requests for unknown uris do not keep the workers busy.
+ */
+public class LazyPrecompressor {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(LazyPrecompressor.class);
+
+    /**
+     * the milliseconds a missing resource is not looked up again, unless its file appears
+     */
+    private static final long MISSING_TTL_MILLIS = 60000;
+
+    /**
+     * the maximum number of remembered missing resources, all are forgotten past it
+     */
+    private static final int MAX_MISSING = 10000;
+
+    /**
+     * the servlet context
+     */
+    private final ServletContext context;
+
+    /**
+     * the disk cache directory
+     */
+    private final File directory;
+
+    /**
+     * the variant encoders
+     */
+    private final List<VariantEncoder> encoders;
+
+    /**
+     * the compression settings fingerprint
+     */
+    private final String settings;
+
+    /**
+     * the background workers
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * the compressed resources keyed by uri
+     */
+    private final Map<String, PrecompressManifest.Entry> entries = new ConcurrentHashMap<String, PrecompressManifest.Entry>();
+
+    /**
+     * the uris with a queued or running job
+     */
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * the resources found missing keyed by uri
+     */
+    private final Map<String, Missing> missing = new ConcurrentHashMap<String, Missing>();
+
+    /**
+     * Constructor.
+     *
+     * @param context the servlet context
+     * @param directory the disk cache directory, created when missing
+     * @param encoders the variant encoders
+     * @param threads the number of background workers
+     * @param queueSize the maximum number of queued jobs, requests finding the queue full are served as is
+     */
+    public LazyPrecompressor(ServletContext context, File directory, List<VariantEncoder> encoders, int threads, int queueSize) {
+        this.context = context;
+        this.directory = directory;
+        this.encoders = encoders;
+
+        StringBuilder buf = new StringBuilder();
+        for(VariantEncoder encoder : encoders) {
+            buf.append(buf.length() > 0 ? "/" : "").append(encoder.getSettings());
+        }
+        this.settings = buf.toString();
+
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "perfify-lazy-precompress-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the compressed resource, queueing it for compression when it is not compressed yet or changed since.
+     * Never blocks on compression.
+     *
+     * @param uri the resource uri relative to the web application
+     * @return the entry recording the available variants, or {@code null} while the resource is not compressed
+     */
+    public PrecompressManifest.Entry get(String uri) {
+        PrecompressManifest.Entry entry = entries.get(uri);
+
+        if(entry != null && entry.getLastModified() != getLastModified(uri)) {
+            entries.remove(uri);
+            entry = null;
+        }
+
+        if(entry == null && !isMissing(uri)) {
+            schedule(uri);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Returns the disk cache file of a variant, named after the content hash and a fingerprint of the compression
+     * settings, so a file compressed with other settings, e.g. before a level change, is never reused.
+     *
+     * @param entry the resource entry
+     * @param encoding the variant encoding
+     * @return the variant file
+     */
+    public File getFile(PrecompressManifest.Entry entry, ContentEncoding encoding) {
+        String settings = entry.getSettings() != null ? entry.getSettings() : "";
+
+        return new File(directory, entry.getHash() + "-" + Integer.toHexString(settings.hashCode()) + "."
+                + encoding.getToken());
+    }
+
+    /**
+     * Forget a resource, for example because its variant file disappeared, it is compressed again on the next request.
+     *
+     * @param uri the resource uri
+     */
+    public void invalidate(String uri) {
+        entries.remove(uri);
+    }
+
+    /**
+     * Returns the number of compressed resources.
+     *
+     * @return the number of resources
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Stop the background workers, queued jobs are dropped.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Determines whether the resource was recently found missing and its file did not appear since.
+     *
+     * @param uri the resource uri
+     * @return {@code true} if still missing, {@code false} otherwise
+     */
+    private boolean isMissing(String uri) {
+        Missing marker = missing.get(uri);
+        if(marker == null) {
+            return false;
+        }
+
+        if(marker.expires > System.currentTimeMillis() && marker.lastModified == getLastModified(uri)) {
+            return true;
+        }
+
+        missing.remove(uri);
+
+        return false;
+    }
+
+    /**
+     * Queue a compression job unless one is already queued for the resource.
+     *
+     * @param uri the resource uri
+     */
+    private void schedule(final String uri) {
+        if(pending.put(uri, Boolean.TRUE) != null) {
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        compress(uri);
+                    } catch(IOException e) {
+                        LOG.warn("Unable to compress '" + uri + "'.", e);
+                    } finally {
+                        pending.remove(uri);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            pending.remove(uri);
+        }
+    }
+
+    /**
+     * Compress the resource into the disk cache, variants already cached under the content hash and settings are
+     * reused and variants not smaller than the resource are not kept.
+     *
+     * @param uri the resource uri
+     * @throws IOException on IO error
+     */
+    void compress(String uri) throws IOException {
+        long lastModified = getLastModified(uri);
+
+        InputStream in = context.getResourceAsStream(uri);
+        if(in == null) {
+            if(missing.size() >= MAX_MISSING) {
+                missing.clear();
+            }
+
+            missing.put(uri, new Missing(lastModified, System.currentTimeMillis() + MISSING_TTL_MILLIS));
+            return;
+        }
+
+        byte[] content;
+        try {
+            content = IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        PrecompressManifest.Entry entry = new PrecompressManifest.Entry(uri, DigestUtils.md5DigestAsHex(content),
+                content.length, lastModified, settings);
+
+        for(VariantEncoder encoder : encoders) {
+            File file = getFile(entry, encoder.getEncoding());
+
+            if(!file.isFile()) {
+                byte[] encoded = encoder.encode(uri, content);
+                if(encoded.length >= content.length) {
+                    continue;
+                }
+
+                write(file, encoded);
+            }
+
+            entry.putVariant(encoder.getEncoding().getToken(), file.length());
+        }
+
+        entries.put(uri, entry);
+        missing.remove(uri);
+    }
+
+    /**
+     * Write a variant file atomically, so a concurrent reader never sees a partial variant.
+     *
+     * @param file the variant file
+     * @param encoded the encoded content
+     * @throws IOException on IO error
+     */
+    private void write(File file, byte[] encoded) throws IOException {
+        FileUtils.forceMkdir(directory);
+
+        File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            FileUtils.writeByteArrayToFile(tmp, encoded);
+
+            if(!tmp.renameTo(file) && !file.isFile()) {
+                throw new IOException("Unable to move '" + tmp + "' to '" + file + "'.");
+            }
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    /**
+     * Returns the last modified time of the resource file in an exploded deployment.
+     *
+     * @param uri the resource uri
+     * @return the last modified time, or {@code -1} when the web application is not exploded and cannot change
+     */
+    private long getLastModified(String uri) {
+        String path = context.getRealPath(uri);
+
+        return path != null ? new File(path).lastModified() : -1;
+    }
+
+    /**
+     * A resource found missing.
+     */
+    private static class Missing {
+
+        /**
+         * the last modified time of the resource file when found missing
+         */
+        private final long lastModified;
+
+        /**
+         * the time the resource is looked up again
+         */
+        private final long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param lastModified the last modified time of the resource file when found missing
+         * @param expires the time the resource is looked up again
+         */
+        private Missing(long lastModified, long expires) {
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+    }
+}
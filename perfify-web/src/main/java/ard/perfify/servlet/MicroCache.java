@@ -0,0 +1,449 @@
+package ard.perfify.servlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short lived, size bounded cache of complete dynamic responses as sent to the client, already compressed. A response
+ * is only rendered and compressed once per time to live, however many requests ask for it.
+ * <p/>
+ * Concurrent misses of the same key are coalesced: the first request {@link #lead(String) leads} and renders the
+ * response, the others {@link #await(String, long) wait} for it to {@link #complete(String, Entry) complete} and are
+ * answered from the cache, or render themselves when the response turned out not cacheable.
+ */
+public class MicroCache {
+
+    /**
+     * the default time to live of the cached responses
+     */
+    public static final long DEFAULT_TTL_MILLIS = 1000;
+
+    /**
+     * the bytes counted per entry on top of its body, for its key and headers
+     */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    /**
+     * the maximum number of cached bytes
+     */
+    private final long capacity;
+
+    /**
+     * the time to live of the cached responses in nanoseconds
+     */
+    private volatile long ttlNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TTL_MILLIS);
+
+    /**
+     * the cached responses in access order, guarded by this instance
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    /**
+     * the number of cached bytes, guarded by this instance
+     */
+    private long size;
+
+    /**
+     * the responses being rendered by a leading request, keyed like the entries
+     */
+    private final ConcurrentMap<String, CountDownLatch> flights = new ConcurrentHashMap<String, CountDownLatch>();
+
+    /**
+     * the number of lookups answered from the cache
+     */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * the number of lookups not answered from the cache
+     */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * the number of requests answered with the response rendered by a concurrent request
+     */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    /**
+     * the number of entries evicted to stay within the capacity
+     */
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximum number of cached bytes
+     */
+    public MicroCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Sets the time to live of the cached responses.
+     *
+     * @param ttlMillis the time to live in milliseconds
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns the cached response.
+     *
+     * @param key the response key
+     * @return the response, or {@code null} on a miss or when expired
+     */
+    public Entry get(String key) {
+        Entry entry;
+
+        synchronized(this) {
+            entry = entries.get(key);
+
+            if(entry != null && now() - entry.expires > 0) {
+                entries.remove(key);
+                size -= entry.getSize();
+                entry = null;
+            }
+        }
+
+        if(entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+
+        return entry;
+    }
+
+    /**
+     * Try to lead the rendering of a missed response, a leader must {@link #complete(String, Entry) complete} it.
+     *
+     * @param key the response key
+     * @return {@code true} if leading, {@code false} when another request is already rendering the response
+     */
+    public boolean lead(String key) {
+        return flights.putIfAbsent(key, new CountDownLatch(1)) == null;
+    }
+
+    /**
+     * Wait for the leading request to complete the response.
+     *
+     * @param key the response key
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return the response, or {@code null} when it was not cached or the wait timed out
+     */
+    public Entry await(String key, long timeoutMillis) {
+        CountDownLatch flight = flights.get(key);
+
+        try {
+            if(flight != null && !flight.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        Entry entry;
+        synchronized(this) {
+            entry = entries.get(key);
+        }
+
+        if(entry != null) {
+            coalescedCount.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Complete the rendering of a led response, caching it and releasing the waiting requests.
+     *
+     * @param key the response key
+     * @param entry the response, {@code null} when not cacheable
+     */
+    public void complete(String key, Entry entry) {
+        try {
+            if(entry != null && entry.getSize() <= capacity) {
+                entry.expires = now() + ttlNanos;
+
+                synchronized(this) {
+                    Entry previous = entries.put(key, entry);
+                    if(previous != null) {
+                        size -= previous.getSize();
+                    }
+
+                    size += entry.getSize();
+                    evict();
+                }
+            }
+        } finally {
+            CountDownLatch flight = flights.remove(key);
+            if(flight != null) {
+                flight.countDown();
+            }
+        }
+    }
+
+    /**
+     * Returns the largest body worth capturing, larger responses are not cached.
+     *
+     * @return the maximum entry size in bytes
+     */
+    public long getMaxEntrySize() {
+        return capacity / 8;
+    }
+
+    /**
+     * Returns the maximum number of cached bytes.
+     *
+     * @return the capacity in bytes
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of cached bytes.
+     *
+     * @return the cached bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of cached entries.
+     *
+     * @return the number of entries
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups not answered from the cache.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of requests answered with the response rendered by a concurrent request.
+     *
+     * @return the coalesced count
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within the capacity.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "MicroCache[size=" + getSize() + "/" + capacity + ", entries=" + getEntryCount() + ", hits="
+                + getHitCount() + ", misses=" + getMissCount() + ", coalesced=" + getCoalescedCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    /**
+     * Returns the current time in nanoseconds.
+     *
+     * @return the time
+     */
+    long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Evict least recently used entries until the cached bytes fit the capacity, must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+
+        while(size > capacity && it.hasNext()) {
+            size -= it.next().getValue().getSize();
+            it.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    public static class Entry {
+
+        /**
+         * the response status
+         */
+        private final int status;
+
+        /**
+         * the response content type, {@code null} if none
+         */
+        private final String contentType;
+
+        /**
+         * the header names, in the order of the values
+         */
+        private final String[] headerNames;
+
+        /**
+         * the header values
+         */
+        private final String[] headerValues;
+
+        /**
+         * determines whether the body is gzip compressed
+         */
+        private final boolean compressed;
+
+        /**
+         * the body as sent
+         */
+        private final byte[] body;
+
+        /**
+         * the expiry time, set when cached
+         */
+        private long expires;
+
+        /**
+         * Constructor.
+         *
+         * @param status the response status
+         * @param contentType the response content type, {@code null} if none
+         * @param headerNames the header names
+         * @param headerValues the header values, one per name
+         * @param compressed determines whether the body is gzip compressed
+         * @param body the body as sent
+         */
+        public Entry(int status, String contentType, List<String> headerNames, List<String> headerValues,
+                     boolean compressed, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.headerNames = headerNames.toArray(new String[headerNames.size()]);
+            this.headerValues = headerValues.toArray(new String[headerValues.size()]);
+            this.compressed = compressed;
+            this.body = body;
+        }
+
+        /**
+         * Returns the response status.
+         *
+         * @return the status
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Returns the response content type.
+         *
+         * @return the content type, {@code null} if none
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Returns the number of headers.
+         *
+         * @return the header count
+         */
+        public int getHeaderCount() {
+            return headerNames.length;
+        }
+
+        /**
+         * Returns the header name.
+         *
+         * @param index the header index
+         * @return the name
+         */
+        public String getHeaderName(int index) {
+            return headerNames[index];
+        }
+
+        /**
+         * Returns the header value.
+         *
+         * @param index the header index
+         * @return the value
+         */
+        public String getHeaderValue(int index) {
+            return headerValues[index];
+        }
+
+        /**
+         * Returns the first value of the header.
+         *
+         * @param name the header name
+         * @return the value, {@code null} if none
+         */
+        public String getHeader(String name) {
+            for(int i = 0; i < headerNames.length; i++) {
+                if(headerNames[i].equalsIgnoreCase(name)) {
+                    return headerValues[i];
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Determines whether the body is gzip compressed.
+         *
+         * @return {@code true} if compressed, {@code false} otherwise
+         */
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * Returns the body as sent, must not be modified.
+         *
+         * @return the body
+         */
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Returns the number of bytes the entry counts against the capacity.
+         *
+         * @return the size in bytes
+         */
+        long getSize() {
+            return body.length + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package ard.perfify.servlet;
+
+import ard.perfify.compress.BufferPool;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The output of a {@link GZIPResponseStream} to the container stream. Bytes are queued in pooled buffers instead of
+ * written while they are held for validation, or in non-blocking mode while the container is not ready. Held bytes
+ * are sent or dropped when released, bytes queued in non-blocking mode are drained, followed by the pending flush and
+ * close, when the container signals writability.
+ * <p/>
+ * Guarded by the lock of the owning stream, which the drain on the container callback takes as well.
+ */
+class PendingOutput {
+
+    /**
+     * the container stream
+     */
+    private final ServletOutputStream output;
+
+    /**
+     * the pool the queue buffers are borrowed from
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * the lock shared with the owning stream
+     */
+    private final Object lock;
+
+    /**
+     * the pooled buffers of the queued output
+     */
+    private final Deque<byte[]> queue = new ArrayDeque<byte[]>();
+
+    /**
+     * the number of bytes in the last queued buffer
+     */
+    private int tail;
+
+    /**
+     * the number of queued bytes
+     */
+    private long queuedLength;
+
+    /**
+     * determines whether the output is held until released
+     */
+    private boolean holding;
+
+    /**
+     * the listener of the non-blocking application, {@code null} in blocking mode
+     */
+    private WriteListener writeListener;
+
+    /**
+     * determines whether a flush waits for the queued output
+     */
+    private boolean flushPending;
+
+    /**
+     * determines whether the close waits for the queued output
+     */
+    private boolean closePending;
+
+    /**
+     * determines whether the output is closed or waits to be
+     */
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param output the container stream
+     * @param bufferPool the pool to borrow the queue buffers from
+     * @param lock the lock shared with the owning stream
+     */
+    PendingOutput(ServletOutputStream output, BufferPool bufferPool, Object lock) {
+        this.output = output;
+        this.bufferPool = bufferPool;
+        this.lock = lock;
+    }
+
+    /**
+     * Hold the output until {@link #release(boolean) released}.
+     */
+    void hold() {
+        holding = true;
+    }
+
+    /**
+     * Determines whether the output is held.
+     *
+     * @return {@code true} if held, {@code false} otherwise
+     */
+    boolean isHolding() {
+        return holding;
+    }
+
+    /**
+     * Returns the number of queued bytes, the held length while holding.
+     *
+     * @return the number of queued bytes
+     */
+    long getQueuedLength() {
+        return queuedLength;
+    }
+
+    /**
+     * Send or drop the held output, nothing is done when not holding.
+     *
+     * @param send {@code true} to write the held output to the container stream, {@code false} to drop it
+     * @throws IOException on IO error
+     */
+    void release(boolean send) throws IOException {
+        if(!holding) {
+            return;
+        }
+
+        holding = false;
+
+        while(!queue.isEmpty()) {
+            byte[] bytes = queue.poll();
+
+            if(send) {
+                output.write(bytes, 0, queue.isEmpty() ? tail : bytes.length);
+            }
+
+            bufferPool.release(bytes);
+        }
+
+        queuedLength = 0;
+    }
+
+    /**
+     * Determines whether the output is in non-blocking mode.
+     *
+     * @return {@code true} if non-blocking, {@code false} otherwise
+     */
+    boolean isNonBlocking() {
+        return writeListener != null;
+    }
+
+    /**
+     * Returns whether bytes can be written without blocking, once the queued output is drained.
+     *
+     * @return {@code true} if ready, {@code false} otherwise
+     */
+    boolean isReady() {
+        return queue.isEmpty() && !flushPending && output.isReady();
+    }
+
+    /**
+     * Switches to non-blocking mode. The queued output is drained when the container signals writability and the
+     * listener is notified once it is empty.
+     *
+     * @param writeListener the listener of the application
+     */
+    void setWriteListener(final WriteListener writeListener) {
+        synchronized(lock) {
+            this.writeListener = writeListener;
+        }
+
+        output.setWriteListener(new WriteListener() {
+            public void onWritePossible() throws IOException {
+                if(drain()) {
+                    writeListener.onWritePossible();
+                }
+            }
+
+            public void onError(Throwable t) {
+                writeListener.onError(t);
+            }
+        });
+    }
+
+    /**
+     * Write a byte to the container stream, or queue it.
+     *
+     * @param b the byte
+     * @throws IOException on IO error
+     */
+    void write(int b) throws IOException {
+        if(!holding && writeListener == null) {
+            output.write(b);
+        } else {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+    }
+
+    /**
+     * Write to the container stream, or queue the bytes when held or when in non-blocking mode and the container is
+     * not ready.
+     *
+     * @param b the bytes
+     * @param off the offset
+     * @param len the number of bytes
+     * @throws IOException on IO error
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        if(!holding && (writeListener == null || (queue.isEmpty() && output.isReady()))) {
+            output.write(b, off, len);
+            return;
+        }
+
+        queuedLength += len;
+
+        while(len > 0) {
+            byte[] last = queue.peekLast();
+
+            if(last == null || tail == last.length) {
+                last = bufferPool.borrow();
+                queue.add(last);
+                tail = 0;
+            }
+
+            int n = Math.min(len, last.length - tail);
+            System.arraycopy(b, off, last, tail, n);
+
+            tail += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Flush the container stream, or once the queued output is drained when in non-blocking mode.
+     *
+     * @throws IOException on IO error
+     */
+    void flush() throws IOException {
+        if(writeListener != null && (!queue.isEmpty() || !output.isReady())) {
+            flushPending = true;
+            return;
+        }
+
+        output.flush();
+    }
+
+    /**
+     * Close the container stream, or once the queued output is drained when in non-blocking mode.
+     *
+     * @throws IOException on IO error
+     */
+    void close() throws IOException {
+        closed = true;
+
+        if(writeListener != null && (!queue.isEmpty() || flushPending)) {
+            closePending = true;
+            return;
+        }
+
+        output.close();
+    }
+
+    /**
+     * Write the queued output while the container stream is ready, then the pending flush and close.
+     *
+     * @return {@code true} if drained and the listener may write, {@code false} otherwise
+     * @throws IOException on IO error
+     */
+    boolean drain() throws IOException {
+        synchronized(lock) {
+            while(!queue.isEmpty()) {
+                if(!output.isReady()) {
+                    return false;
+                }
+
+                byte[] bytes = queue.poll();
+                int len = queue.isEmpty() ? tail : bytes.length;
+                output.write(bytes, 0, len);
+                queuedLength -= len;
+                bufferPool.release(bytes);
+            }
+
+            if(flushPending) {
+                if(!output.isReady()) {
+                    return false;
+                }
+
+                flushPending = false;
+                output.flush();
+            }
+
+            if(closePending) {
+                closePending = false;
+                output.close();
+
+                return false;
+            }
+
+            return !closed;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package ard.perfify.servlet;
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Writes {@link ByteBuffer byte buffers} to container output streams without copying them to a heap array. Streams
+ * that are a {@link WritableByteChannel} are written through the channel, others through a public
+ * <code>write(ByteBuffer)</code> method when they have one, like the Jetty and Undertow streams and the streams of
+ * Servlet 6.1 containers. That method is resolved once per stream class into a {@link MethodHandle}.
+ */
+public final class ServletOutputBuffers {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(ServletOutputBuffers.class);
+
+    /**
+     * the type the write handles are adapted to
+     */
+    private static final MethodType WRITE_TYPE = MethodType.methodType(void.class, ServletOutputStream.class, ByteBuffer.class);
+
+    /**
+     * the marker of the stream classes without a byte buffer write method
+     */
+    private static final MethodHandle UNSUPPORTED = MethodHandles.identity(Object.class);
+
+    /**
+     * the byte buffer write method handles keyed by stream class
+     */
+    private static final ConcurrentMap<Class<?>, MethodHandle> WRITES = new ConcurrentHashMap<Class<?>, MethodHandle>();
+
+    /**
+     * Constructor.
+     */
+    private ServletOutputBuffers() {
+    }
+
+    /**
+     * Determines whether the stream can be written byte buffers.
+     *
+     * @param output the container output stream
+     * @return {@code true} if supported, {@code false} otherwise
+     */
+    public static boolean isSupported(ServletOutputStream output) {
+        return output instanceof WritableByteChannel || getWrite(output.getClass()) != UNSUPPORTED;
+    }
+
+    /**
+     * Write the buffer from its position up to its limit, blocking until it is written.
+     *
+     * @param output the container output stream
+     * @param buffer the buffer, its position is advanced to its limit
+     * @throws IOException on IO error
+     */
+    public static void write(ServletOutputStream output, ByteBuffer buffer) throws IOException {
+        if(output instanceof WritableByteChannel) {
+            while(buffer.hasRemaining()) {
+                ((WritableByteChannel) output).write(buffer);
+            }
+            return;
+        }
+
+        MethodHandle write = getWrite(output.getClass());
+        if(write == UNSUPPORTED) {
+            throw new UnsupportedOperationException(output.getClass().getName() + " has no byte buffer write method");
+        }
+
+        try {
+            write.invokeExact(output, buffer);
+        } catch(IOException e) {
+            throw e;
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Error e) {
+            throw e;
+        } catch(Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Returns the byte buffer write method handle of a stream class, resolving it on first use.
+     *
+     * @param type the stream class
+     * @return the method handle, {@link #UNSUPPORTED} when the class has no accessible byte buffer write method
+     */
+    private static MethodHandle getWrite(Class<?> type) {
+        MethodHandle write = WRITES.get(type);
+
+        if(write == null) {
+            try {
+                Method method = type.getMethod("write", ByteBuffer.class);
+                write = MethodHandles.publicLookup().unreflect(method).asType(WRITE_TYPE);
+            } catch(NoSuchMethodException e) {
+                write = UNSUPPORTED;
+            } catch(IllegalAccessException e) {
+                LOG.debug("Byte buffer write method of " + type.getName() + " not accessible.", e);
+                write = UNSUPPORTED;
+            }
+
+            WRITES.putIfAbsent(type, write);
+        }
+
+        return write;
+    }
+}
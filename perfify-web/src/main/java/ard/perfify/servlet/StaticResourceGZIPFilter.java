@@ -1,29 +1,182 @@
 package ard.perfify.servlet;
 
+import ard.perfify.compress.CompressedResourceCache;
+import ard.perfify.compress.BrotliVariantEncoder;
+import ard.perfify.compress.CompressionEngine;
+import ard.perfify.compress.CompressionEngines;
+import ard.perfify.compress.ContentEncoding;
+import ard.perfify.compress.GzipVariantEncoder;
+import ard.perfify.compress.PrecompressManifest;
+import ard.perfify.compress.VariantEncoder;
+import ard.perfify.compress.ZstdVariantEncoder;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
 import javax.servlet.FilterChain;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 import java.util.regex.Pattern;
 
 /**
- * This will forward to a pre-GZIP resource when the current request is GZIP encoding supported.
+ * This will forward to a pre-compressed resource when the current request accepts one of its encodings. Brotli, zstd
+ * and gzip variants are looked up under the <code>/br</code>, <code>/zstd</code> and <code>/gzip</code> trees.
+ * <p/>
+ * When a cache size is configured the variants are kept in an off heap {@link CompressedResourceCache} and written to
+ * the response directly, without a round trip through the container default servlet. Variants above the large file
+ * threshold are streamed from their file instead, with {@link FileChannel#transferTo} when the container output
+ * stream is a channel and from a memory mapping otherwise.
+ * <p/>
+ * With a manifest every variant gets a strong entity tag made of the source content hash, the encoding, the
+ * compression settings and the variant size, and revalidation requests are answered with <code>304 Not Modified</code> before any dispatch or file access. Cached and
+ * streamed variants honor <code>Range</code> and <code>If-Range</code> on the encoded bytes.
+ * <p/>
+ * With variant indexing enabled only variants found by the startup {@link VariantIndex} are negotiated.
+ * <p/>
+ * With a lazy cache directory configured, resources without build time variants are compressed in the background by
+ * a {@link LazyPrecompressor} and served from its disk cache once ready.
  */
 public class StaticResourceGZIPFilter extends BaseOncePerRequestFilter {
 
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(StaticResourceGZIPFilter.class);
+
+
     /**
      * Regular expression for css and js resource from a request uri
      */
     protected static final Pattern JS_CSS_FILE_TYPE_PATTERN = Pattern.compile(".*(css|js)", Pattern.CASE_INSENSITIVE);
 
+    /**
+     * the size of the chunks cached and mapped bytes are written to the response in
+     */
+    private static final int WRITE_CHUNK_SIZE = 32768;
+
+    /**
+     * the size of the file windows mapped at once
+     */
+    private static final long MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * the charset of the multipart range headers
+     */
+    private static final String HEADER_CHARSET = "ISO-8859-1";
+
+    /**
+     * the boundary separating the parts of multiple range responses
+     */
+    private final String boundary = "PERFIFY_" + UUID.randomUUID().toString().replace("-", "");
+
+    /**
+     * per thread chunk for copying cached and mapped bytes to the response
+     */
+    private static final ThreadLocal<byte[]> WRITE_CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[WRITE_CHUNK_SIZE];
+        }
+    };
+
     /**
      * determines whether to wrap the request instead of forward
      */
     protected boolean wrapRequest;
 
+    /**
+     * The content encodings to serve, in preference order.
+     */
+    protected List<ContentEncoding> encodings = Arrays.asList(ContentEncoding.BROTLI, ContentEncoding.ZSTD, ContentEncoding.GZIP);
+
+    /**
+     * The location of the build time pre-compression manifest within the web application.
+     */
+    protected String manifestLocation = PrecompressManifest.DEFAULT_LOCATION;
+
+    /**
+     * The pre-compression manifest, {@code null} when the web application was not packaged with one.
+     */
+    protected PrecompressManifest manifest;
+
+    /**
+     * The maximum number of bytes of pre-compressed variants to keep in memory, zero disables the cache.
+     */
+    protected long cacheSize;
+
+    /**
+     * The pre-compressed variant cache, {@code null} when disabled.
+     */
+    protected CompressedResourceCache cache;
+
+    /**
+     * Determines whether the available variants are indexed at startup.
+     */
+    protected boolean indexVariants;
+
+    /**
+     * The index of the available variants, {@code null} when disabled.
+     */
+    protected VariantIndex index;
+
+    /**
+     * The disk cache directory of the runtime compressed variants, {@code null} disables runtime compression.
+     */
+    protected String lazyCacheDirectory;
+
+    /**
+     * The number of background runtime compression workers.
+     */
+    protected int lazyThreads = 1;
+
+    /**
+     * The maximum number of queued runtime compression jobs.
+     */
+    protected int lazyQueueSize = 1000;
+
+    /**
+     * The brotli quality of runtime compressed variants.
+     */
+    protected int lazyBrotliQuality = 11;
+
+    /**
+     * The zstandard level of runtime compressed variants, below the build time level to bound the background CPU and
+     * memory use.
+     */
+    protected int lazyZstdLevel = 9;
+
+    /**
+     * The engine runtime gzip variants are compressed with.
+     */
+    protected CompressionEngine lazyCompressionEngine = CompressionEngines.getDefault();
+
+    /**
+     * The runtime compressor, {@code null} when disabled.
+     */
+    protected LazyPrecompressor lazy;
+
+    /**
+     * The variant size from which variants are streamed from their file instead of cached or forwarded, zero
+     * disables file streaming.
+     */
+    protected long largeFileThreshold;
+
 
     /**
      * Determine whether the request will be wrapped instead of forward.
@@ -35,9 +188,256 @@ public class StaticResourceGZIPFilter extends BaseOncePerRequestFilter {
     }
 
     /**
-     * Do a forward to a pre GZIP resource when {@link #wrapRequest} is set to false, otherwise
-     * wrap th request to ensure that will be forwarded to GZIP request when the client browser
-     * supports it.
+     * Sets the content encodings to serve in preference order, e.g. <code>br,zstd,gzip</code>.
+     *
+     * @param tokens the content encoding tokens
+     */
+    public void setEncodings(String[] tokens) {
+        List<ContentEncoding> preferred = new ArrayList<ContentEncoding>(tokens.length);
+
+        for(String token : tokens) {
+            preferred.add(ContentEncoding.forToken(token.trim()));
+        }
+
+        this.encodings = preferred;
+    }
+
+    /**
+     * Setter for property {@link #manifestLocation}.
+     *
+     * @param manifestLocation the location of the pre-compression manifest within the web application
+     */
+    public void setManifestLocation(String manifestLocation) {
+        this.manifestLocation = manifestLocation;
+    }
+
+    /**
+     * Setter for property {@link #cacheSize}.
+     *
+     * @param cacheSize the maximum number of cached bytes, zero disables the cache
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Setter for property {@link #largeFileThreshold}.
+     *
+     * @param largeFileThreshold the variant size in bytes from which variants are streamed, zero to disable
+     */
+    public void setLargeFileThreshold(long largeFileThreshold) {
+        this.largeFileThreshold = largeFileThreshold;
+    }
+
+    /**
+     * Setter for property {@link #indexVariants}.
+     *
+     * @param indexVariants <code>true</code> to index the available variants at startup, <code>false</code> otherwise.
+     */
+    public void setIndexVariants(boolean indexVariants) {
+        this.indexVariants = indexVariants;
+    }
+
+    /**
+     * Setter for property {@link #lazyCacheDirectory}.
+     *
+     * @param lazyCacheDirectory the disk cache directory of runtime compressed variants, {@code null} to disable
+     */
+    public void setLazyCacheDirectory(String lazyCacheDirectory) {
+        this.lazyCacheDirectory = lazyCacheDirectory;
+    }
+
+    /**
+     * Setter for property {@link #lazyThreads}.
+     *
+     * @param lazyThreads the number of background runtime compression workers
+     */
+    public void setLazyThreads(int lazyThreads) {
+        this.lazyThreads = lazyThreads;
+    }
+
+    /**
+     * Setter for property {@link #lazyQueueSize}.
+     *
+     * @param lazyQueueSize the maximum number of queued runtime compression jobs
+     */
+    public void setLazyQueueSize(int lazyQueueSize) {
+        this.lazyQueueSize = lazyQueueSize;
+    }
+
+    /**
+     * Setter for property {@link #lazyBrotliQuality}.
+     *
+     * @param lazyBrotliQuality the brotli quality of runtime compressed variants, 0 to 11
+     */
+    public void setLazyBrotliQuality(int lazyBrotliQuality) {
+        this.lazyBrotliQuality = lazyBrotliQuality;
+    }
+
+    /**
+     * Setter for property {@link #lazyZstdLevel}.
+     *
+     * @param lazyZstdLevel the zstandard level of runtime compressed variants, 1 to 22
+     */
+    public void setLazyZstdLevel(int lazyZstdLevel) {
+        this.lazyZstdLevel = lazyZstdLevel;
+    }
+
+    /**
+     * Setter for property {@link #lazyCompressionEngine}.
+     *
+     * @param lazyCompressionEngine the engine name, <code>jdk</code>, <code>libdeflate</code> or <code>zlib-ng</code>,
+     * falls back to the JDK deflater when not installed
+     */
+    public void setLazyCompressionEngine(String lazyCompressionEngine) {
+        this.lazyCompressionEngine = CompressionEngines.get(lazyCompressionEngine);
+    }
+
+    /**
+     * Returns the runtime compressor.
+     *
+     * @return the runtime compressor, or {@code null} when disabled
+     */
+    public LazyPrecompressor getLazy() {
+        return lazy;
+    }
+
+    /**
+     * Returns the index of the available variants.
+     *
+     * @return the index, or {@code null} when disabled
+     */
+    public VariantIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the pre-compressed variant cache exposing its hit, miss and eviction counts.
+     *
+     * @return the cache, or {@code null} when disabled
+     */
+    public CompressedResourceCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Creates the variant cache and index when configured and loads the pre-compression manifest written by the
+     * maven plugin, when the web application ships with one.
+     *
+     * @throws ServletException on unexpected servlet error
+     */
+    @Override
+    protected void initFilterBean() throws ServletException {
+        if(cacheSize > 0) {
+            cache = new CompressedResourceCache(cacheSize);
+        }
+
+        if(indexVariants) {
+            initIndex();
+        }
+
+        if(lazyCacheDirectory != null) {
+            initLazy();
+        }
+
+        InputStream in = getServletContext().getResourceAsStream(manifestLocation);
+        if(in == null) {
+            LOG.info("No pre-compression manifest found at '" + manifestLocation + "'.");
+            return;
+        }
+
+        try {
+            PrecompressManifest loaded = new PrecompressManifest();
+            loaded.load(in);
+
+            manifest = loaded;
+            LOG.info("Loaded pre-compression manifest with " + manifest.size() + " resources.");
+        } catch(IOException e) {
+            LOG.warn("Unable to read pre-compression manifest at '" + manifestLocation + "'.", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stops watching the variant directories.
+     */
+    @Override
+    public void destroy() {
+        if(index != null) {
+            index.close();
+        }
+
+        if(lazy != null) {
+            lazy.close();
+        }
+    }
+
+    /**
+     * Creates the runtime compressor with an encoder for each configured encoding available on this platform.
+     */
+    private void initLazy() {
+        List<VariantEncoder> encoders = new ArrayList<VariantEncoder>(encodings.size());
+
+        for(ContentEncoding encoding : encodings) {
+            VariantEncoder encoder;
+
+            switch(encoding) {
+                case BROTLI:
+                    encoder = new BrotliVariantEncoder(lazyBrotliQuality);
+                    break;
+                case ZSTD:
+                    encoder = new ZstdVariantEncoder(lazyZstdLevel);
+                    break;
+                default:
+                    encoder = new GzipVariantEncoder(lazyCompressionEngine);
+            }
+
+            if(encoder.isAvailable()) {
+                encoders.add(encoder);
+            } else {
+                LOG.warn("The " + encoding.getToken() + " encoder is not available, resources will not be compressed with it at runtime.");
+            }
+        }
+
+        lazy = new LazyPrecompressor(getServletContext(), new File(lazyCacheDirectory), encoders, lazyThreads, lazyQueueSize);
+        LOG.info("Compressing resources without build time variants at runtime into '" + lazyCacheDirectory + "'.");
+    }
+
+    /**
+     * Builds the variant index and watches the variant directories when the web application is exploded.
+     */
+    private void initIndex() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if(classLoader == null) {
+            classLoader = StaticResourceGZIPFilter.class.getClassLoader();
+        }
+
+        VariantIndex built = new VariantIndex(getServletContext(), classLoader, encodings);
+        built.build();
+
+        try {
+            if(built.watch()) {
+                LOG.info("Watching the variant directories for changes.");
+            }
+        } catch(IOException e) {
+            LOG.warn("Unable to watch the variant directories, the variant index will not be refreshed.", e);
+        }
+
+        index = built;
+        LOG.info("Indexed pre-compressed variants of " + index.size() + " resources.");
+    }
+
+    /**
+     * Do a forward to the pre-compressed resource of the negotiated encoding when {@link #wrapRequest} is set to
+     * false, otherwise wrap the request to ensure that it will be forwarded to the pre-compressed resource. When no
+     * configured encoding is acceptable to the client the resource is served as is. When a pre-compression manifest
+     * is available only the variants it records are negotiated and the forwarded response gets the precomputed
+     * content length, without a manifest only the gzip variant is assumed to exist unless variants are indexed, in
+     * which case only indexed variants are negotiated. With the cache enabled the
+     * variant is written from memory instead, and variants above the large file threshold are streamed from their
+     * file when the web application is exploded. Conditional requests matching the manifest entity tag or last
+     * modified time get a <code>304 Not Modified</code> and every response carries <code>Vary: Accept-Encoding</code>.
      *
      * @param request the current request
      * @param response the current response
@@ -47,29 +447,460 @@ public class StaticResourceGZIPFilter extends BaseOncePerRequestFilter {
      */
     @Override
     public void doFilterInternal(final HttpServletRequest request, HttpServletResponse response, FilterChain chain) throws IOException, ServletException {
-        if(!isIncluded(request) && isTextResource(request) && acceptsGzipEncoding(request)) {
-            response.setHeader("Content-Encoding", "gzip");
+        if(!isIncluded(request) && isTextResource(request)) {
+            PrecompressManifest.Entry entry = null;
+
+            if(lazy != null && !hasBuildVariants(request)) {
+                writeLazy(request, response, chain);
+                return;
+            }
+
+            if(manifest != null) {
+                entry = manifest.get(getLocalUri(request));
+
+                if(entry == null) {
+                    chain.doFilter(request, response);
+                    return;
+                }
+            }
+
+            response.addHeader("Vary", "Accept-Encoding");
+
+            final ContentEncoding encoding = negotiateVariant(request, entry);
+            if(encoding == null) {
+                chain.doFilter(request, response);
+                return;
+            }
+
+            if(entry != null) {
+                if(writeNotModified(request, response, encoding, entry)) {
+                    return;
+                }
+
+                response = new ValidatorPreservingResponse(response);
+            }
+
+            if(largeFileThreshold > 0 && writeFile(request, response, encoding, entry)) {
+                return;
+            }
+
+            if(cache != null && writeCached(request, response, encoding, entry)) {
+                return;
+            }
+
+            response.setHeader("Content-Encoding", encoding.getToken());
 
             if(wrapRequest) {
                 HttpServletRequest wrapper = new HttpServletRequestWrapper(request) {
                     @Override
                     public RequestDispatcher getRequestDispatcher(String s) {
-                        return super.getRequestDispatcher("/gzip" + s);
+                        return super.getRequestDispatcher(encoding.getPrefix() + s);
                     }
                 };
 
                 chain.doFilter(wrapper, response);
             } else {
-                String requestUri = request.getRequestURI();
-                String localUri = requestUri.substring(request.getContextPath().length());
+                if(entry != null) {
+                    response.setContentLength((int) entry.getVariantSize(encoding.getToken()));
+                }
 
-                request.getRequestDispatcher("/gzip" + localUri).forward(request, response);
+                request.getRequestDispatcher(encoding.getPrefix() + getLocalUri(request)).forward(request, response);
             }
         } else {
             chain.doFilter(request, response);
         }
     }
 
+    /**
+     * Send a <code>304 Not Modified</code> when the request revalidates the variant, otherwise set its validators.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param encoding the negotiated encoding
+     * @param entry the manifest entry of the resource
+     * @return {@code true} if the 304 was sent, {@code false} otherwise
+     */
+    private boolean writeNotModified(final HttpServletRequest request, final HttpServletResponse response,
+                                     final ContentEncoding encoding, final PrecompressManifest.Entry entry) {
+        String etag = getETag(entry, encoding);
+
+        if(isNotModified(request, etag, entry.getLastModified())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            response.setHeader("ETag", etag);
+            return true;
+        }
+
+        response.setHeader("ETag", etag);
+        if(entry.getLastModified() >= 0) {
+            response.setDateHeader("Last-Modified", entry.getLastModified());
+        }
+
+        return false;
+    }
+
+    /**
+     * Determines whether the resource was pre-compressed at build time, according to the manifest or the variant
+     * index. When neither is available nothing is known to be pre-compressed.
+     *
+     * @param request the current request
+     * @return {@code true} if the resource has build time variants or was deliberately left uncompressed
+     */
+    private boolean hasBuildVariants(final HttpServletRequest request) {
+        if(manifest != null) {
+            return manifest.get(getLocalUri(request)) != null;
+        }
+
+        return index != null && !index.get(getLocalUri(request)).isEmpty();
+    }
+
+    /**
+     * Serve a resource without build time variants through the runtime compressor. Until its variants are ready the
+     * resource is served as is, afterwards the negotiated variant is streamed from the disk cache.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param chain the filter chain object
+     * @throws IOException on IO error
+     * @throws ServletException on unexpected servlet error
+     */
+    protected void writeLazy(final HttpServletRequest request, final HttpServletResponse response, final FilterChain chain) throws IOException, ServletException {
+        response.addHeader("Vary", "Accept-Encoding");
+
+        String uri = getLocalUri(request);
+        PrecompressManifest.Entry entry = lazy.get(uri);
+        if(entry == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        List<String> candidates = new ArrayList<String>(encodings.size());
+        for(ContentEncoding encoding : encodings) {
+            if(entry.hasVariant(encoding.getToken())) {
+                candidates.add(encoding.getToken());
+            }
+        }
+
+        String token = negotiateEncoding(request, candidates);
+        if(token == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        ContentEncoding encoding = ContentEncoding.forToken(token);
+        File file = lazy.getFile(entry, encoding);
+        if(!file.isFile()) {
+            lazy.invalidate(uri);
+            chain.doFilter(request, response);
+            return;
+        }
+
+        if(!writeNotModified(request, response, encoding, entry)) {
+            writeChannel(request, response, encoding, entry, file);
+        }
+    }
+
+    /**
+     * Returns the strong entity tag of a variant, the source content hash qualified by the encoding, a fingerprint of
+     * the compression settings and the variant size, so every representation has its own tag and a variant
+     * recompressed with other settings is not validated by the tag of the previous bytes.
+     *
+     * @param entry the manifest entry of the resource
+     * @param encoding the variant encoding
+     * @return the quoted entity tag
+     */
+    protected String getETag(final PrecompressManifest.Entry entry, final ContentEncoding encoding) {
+        String settings = entry.getSettings() != null ? entry.getSettings() : "";
+
+        return "\"" + entry.getHash() + "-" + encoding.getToken() + "-" + Integer.toHexString(settings.hashCode()) + "-"
+                + Long.toHexString(entry.getVariantSize(encoding.getToken())) + "\"";
+    }
+
+    /**
+     * Negotiates the encoding of the variant to serve among the configured encodings the resource has a variant for,
+     * according to the variant index and the manifest when available.
+     *
+     * @param request the current request
+     * @param entry the manifest entry of the resource, or {@code null} when there is no manifest
+     * @return the negotiated encoding, or {@code null} if the resource should be served as is
+     */
+    protected ContentEncoding negotiateVariant(final HttpServletRequest request, final PrecompressManifest.Entry entry) {
+        List<String> candidates = new ArrayList<String>(encodings.size());
+        Set<ContentEncoding> indexed = index != null ? index.get(getLocalUri(request)) : null;
+
+        for(ContentEncoding encoding : encodings) {
+            boolean available = indexed != null ? indexed.contains(encoding) : entry != null || encoding == ContentEncoding.GZIP;
+
+            if(available && (entry == null || entry.hasVariant(encoding.getToken()))) {
+                candidates.add(encoding.getToken());
+            }
+        }
+
+        String token = negotiateEncoding(request, candidates);
+
+        return token != null ? ContentEncoding.forToken(token) : null;
+    }
+
+    /**
+     * Write the variant from the cache with its content length, reading it into the cache on a miss.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param encoding the negotiated encoding
+     * @param entry the manifest entry of the resource, or {@code null} when there is no manifest
+     * @return {@code true} if the variant was written, {@code false} if the variant does not exist
+     * @throws IOException on IO error
+     */
+    protected boolean writeCached(final HttpServletRequest request, final HttpServletResponse response,
+                                  final ContentEncoding encoding, final PrecompressManifest.Entry entry) throws IOException {
+        String uri = getLocalUri(request);
+        ByteBuffer bytes = cache.get(encoding, uri);
+
+        if(bytes == null) {
+            InputStream in = getServletContext().getResourceAsStream(encoding.getPrefix() + uri);
+            if(in == null) {
+                return false;
+            }
+
+            try {
+                bytes = cache.put(encoding, uri, in, entry != null ? entry.getVariantSize(encoding.getToken()) : -1);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        final ByteBuffer cached = bytes;
+        writeVariant(request, response, encoding, entry, cached.remaining(), new VariantBody() {
+            public void write(long offset, long length, OutputStream out) throws IOException {
+                ByteBuffer region = cached.duplicate();
+                region.position((int) offset);
+                region.limit((int) (offset + length));
+
+                StaticResourceGZIPFilter.this.write(region, out);
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Stream the variant from its file when it is at least {@link #largeFileThreshold} bytes, never through a heap
+     * copy of the whole file.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param encoding the negotiated encoding
+     * @param entry the manifest entry of the resource, or {@code null} when there is no manifest
+     * @return {@code true} if the variant was written, {@code false} if it is smaller than the threshold or not
+     * available as a file
+     * @throws IOException on IO error
+     */
+    protected boolean writeFile(final HttpServletRequest request, final HttpServletResponse response,
+                                final ContentEncoding encoding, final PrecompressManifest.Entry entry) throws IOException {
+        if(entry != null && entry.getVariantSize(encoding.getToken()) < largeFileThreshold) {
+            return false;
+        }
+
+        String uri = getLocalUri(request);
+        String path = getServletContext().getRealPath(encoding.getPrefix() + uri);
+        if(path == null) {
+            return false;
+        }
+
+        File file = new File(path);
+        if(!file.isFile() || file.length() < largeFileThreshold) {
+            return false;
+        }
+
+        writeChannel(request, response, encoding, entry, file);
+
+        return true;
+    }
+
+    /**
+     * Stream a variant file. The bytes are transferred by the kernel when the container output stream is a
+     * {@link WritableByteChannel}, otherwise they are copied from a memory mapping through the per thread chunk.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param encoding the negotiated encoding
+     * @param entry the manifest entry of the resource, or {@code null} when there is no manifest
+     * @param file the variant file
+     * @throws IOException on IO error
+     */
+    private void writeChannel(final HttpServletRequest request, final HttpServletResponse response,
+                              final ContentEncoding encoding, final PrecompressManifest.Entry entry, final File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+
+            writeVariant(request, response, encoding, entry, channel.size(), new VariantBody() {
+                public void write(long offset, long length, OutputStream out) throws IOException {
+                    long end = offset + length;
+                    long position = offset;
+
+                    if(out instanceof WritableByteChannel) {
+                        long transferred;
+                        do {
+                            transferred = channel.transferTo(position, end - position, (WritableByteChannel) out);
+                            position += transferred;
+                        } while(position < end && transferred > 0);
+                    }
+
+                    // the rest is copied when the channel stops taking bytes, e.g. a non blocking channel, so a
+                    // stalled transfer never spins
+                    while(position < end) {
+                        long window = Math.min(MAP_WINDOW_SIZE, end - position);
+                        StaticResourceGZIPFilter.this.write(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                window), out);
+                        position += window;
+                    }
+                }
+            });
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write a variant served by the filter itself, the whole variant or the requested byte ranges of it. Ranges are
+     * only honored for <code>GET</code> requests and when an <code>If-Range</code> validator matches the variant.
+     * A single range gets a <code>206 Partial Content</code> with its <code>Content-Range</code>, several ranges a
+     * <code>multipart/byteranges</code> body and unsatisfiable ranges a <code>416</code>.
+     *
+     * @param request the current request
+     * @param response the current response
+     * @param encoding the negotiated encoding
+     * @param entry the manifest entry of the resource, or {@code null} when there is no manifest
+     * @param length the variant length
+     * @param body the variant bytes
+     * @throws IOException on IO error
+     */
+    protected void writeVariant(final HttpServletRequest request, final HttpServletResponse response,
+                                final ContentEncoding encoding, final PrecompressManifest.Entry entry,
+                                final long length, final VariantBody body) throws IOException {
+        String contentType = getServletContext().getMimeType(getLocalUri(request));
+        if(contentType != null) {
+            response.setContentType(contentType);
+        }
+
+        response.setHeader("Content-Encoding", encoding.getToken());
+        response.setHeader("Accept-Ranges", "bytes");
+
+        List<ByteRange> ranges = getRanges(request, encoding, entry, length);
+
+        if(ranges == null) {
+            setContentLength(response, length);
+            body.write(0, length, response.getOutputStream());
+        } else if(ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.setContentLength(0);
+        } else if(ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", range.toContentRange(length));
+            setContentLength(response, range.getLength());
+            body.write(range.getStart(), range.getLength(), response.getOutputStream());
+        } else {
+            List<byte[]> headers = new ArrayList<byte[]>(ranges.size());
+            long total = 0;
+
+            for(ByteRange range : ranges) {
+                byte[] header = ("\r\n--" + boundary + "\r\n"
+                        + (contentType != null ? "Content-Type: " + contentType + "\r\n" : "")
+                        + "Content-Range: " + range.toContentRange(length) + "\r\n\r\n").getBytes(HEADER_CHARSET);
+
+                headers.add(header);
+                total += header.length + range.getLength();
+            }
+
+            byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(HEADER_CHARSET);
+            total += trailer.length;
+
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            setContentLength(response, total);
+
+            OutputStream out = response.getOutputStream();
+            for(int i = 0; i < ranges.size(); i++) {
+                out.write(headers.get(i));
+                body.write(ranges.get(i).getStart(), ranges.get(i).getLength(), out);
+            }
+
+            out.write(trailer);
+        }
+    }
+
+    /**
+     * Returns the byte ranges to serve. A <code>Range</code> header is ignored for other methods than
+     * <code>GET</code>, when malformed, or when the <code>If-Range</code> entity tag does not match the variant tag
+     * exactly. A date is never a strong validator of the variant, the last modified time is the one of the source and
+     * does not change when the variant is recompressed, so an <code>If-Range</code> date always serves the whole
+     * variant. Without a manifest there are no validators, so an <code>If-Range</code> never matches.
+     *
+     * @param request the current request
+     * @param encoding the negotiated encoding
+     * @param entry the manifest entry of the resource, or {@code null} when there is no manifest
+     * @param length the variant length
+     * @return the satisfiable ranges, an empty list when none is satisfiable, or {@code null} to serve the whole variant
+     */
+    private List<ByteRange> getRanges(final HttpServletRequest request, final ContentEncoding encoding,
+                                      final PrecompressManifest.Entry entry, final long length) {
+        String range = request.getHeader("Range");
+        if(range == null || !"GET".equals(request.getMethod())) {
+            return null;
+        }
+
+        String ifRange = request.getHeader("If-Range");
+        if(ifRange != null && (entry == null || !ifRange.trim().equals(getETag(entry, encoding)))) {
+            return null;
+        }
+
+        return ByteRange.parse(range, length);
+    }
+
+    /**
+     * Set the content length, as a header when it does not fit an int.
+     *
+     * @param response the current response
+     * @param length the content length
+     */
+    private void setContentLength(final HttpServletResponse response, final long length) {
+        if(length <= Integer.MAX_VALUE) {
+            response.setContentLength((int) length);
+        } else {
+            response.setHeader("Content-Length", String.valueOf(length));
+        }
+    }
+
+    /**
+     * Copy the buffer to the stream in chunks.
+     *
+     * @param bytes the bytes, consumed
+     * @param out the stream
+     * @throws IOException on IO error
+     */
+    private void write(final ByteBuffer bytes, final OutputStream out) throws IOException {
+        byte[] chunk = WRITE_CHUNK.get();
+
+        while(bytes.hasRemaining()) {
+            int len = Math.min(chunk.length, bytes.remaining());
+            bytes.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+        }
+    }
+
+    /**
+     * Returns the request uri relative to the context path.
+     *
+     * @param request the current request
+     * @return the local uri
+     */
+    private String getLocalUri(final HttpServletRequest request) {
+        return request.getRequestURI().substring(request.getContextPath().length());
+    }
+
     /**
      * Determines whether the the current request requested is a Text resource.
      *
@@ -92,25 +923,84 @@ public class StaticResourceGZIPFilter extends BaseOncePerRequestFilter {
     }
 
     /**
-     * Determine whether the user agent accepts GZIP encoding. This feature is part of HTTP1.1.
-     * If a browser accepts GZIP encoding it will advertise this by including in its HTTP header:
-     * <p/>
-     * <code>
-     * Accept-Encoding: gzip
-     * </code>
-     * <p/>
-     * Requests which do not accept GZIP encoding fall into the following categories:
-     * <ul>
-     * <li>Old browsers, notably IE 5 on Macintosh.
-     * <li>Internet Explorer through a proxy. By default HTTP1.1 is enabled but disabled when going
-     * through a proxy. 90% of non gzip requests seen on the Internet are caused by this.
-     * </ul>
-     * As of September 2004, about 34% of Internet requests do not accept GZIP encoding.
-     *
-     * @param request the current request
-     * @return true, if the User Agent request accepts GZIP encoding
+     * Keeps the entity tag and last modified time set by this filter when the response is forwarded, the default
+     * servlet would otherwise replace them with validators of the variant file which are not tied to the encoding.
+     */
+    private static class ValidatorPreservingResponse extends HttpServletResponseWrapper {
+
+        /**
+         * Constructor.
+         *
+         * @param response the response to wrap
+         */
+        ValidatorPreservingResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setHeader(String name, String value) {
+            if(!isValidator(name)) {
+                super.setHeader(name, value);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void addHeader(String name, String value) {
+            if(!isValidator(name)) {
+                super.addHeader(name, value);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setDateHeader(String name, long date) {
+            if(!isValidator(name)) {
+                super.setDateHeader(name, date);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void addDateHeader(String name, long date) {
+            if(!isValidator(name)) {
+                super.addDateHeader(name, date);
+            }
+        }
+
+        /**
+         * Determines whether the header is a validator set by the filter.
+         *
+         * @param name the header name
+         * @return <code>true</code> for <code>ETag</code> and <code>Last-Modified</code>, <code>false</code> otherwise.
+         */
+        private boolean isValidator(String name) {
+            return "ETag".equalsIgnoreCase(name) || "Last-Modified".equalsIgnoreCase(name);
+        }
+    }
+
+    /**
+     * The bytes of a variant served by the filter itself.
      */
-    protected boolean acceptsGzipEncoding(HttpServletRequest request) {
-        return acceptsEncoding(request, "gzip");
+    protected interface VariantBody {
+
+        /**
+         * Write a region of the variant.
+         *
+         * @param offset the region offset
+         * @param length the region length
+         * @param out the stream to write to
+         * @throws IOException on IO error
+         */
+        void write(long offset, long length, OutputStream out) throws IOException;
     }
 }
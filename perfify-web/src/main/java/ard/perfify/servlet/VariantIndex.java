@@ -0,0 +1,467 @@
+package ard.perfify.servlet;
+
+import ard.perfify.compress.ContentEncoding;
+import org.apache.log4j.Logger;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Index of the pre-compressed variants available to the web application, keyed by resource uri. It is built once at
+ * startup from the variant trees of the web application and from the <code>META-INF/resources</code> roots visible
+ * to the web application class loader, which includes the jars in <code>WEB-INF/lib</code>. A lookup is a single
+ * hash probe, so the static filter never sets a <code>Content-Encoding</code> for a variant that does not exist.
+ * <p/>
+ * In exploded deployments the variant directories are watched and the index follows created and deleted files.
+ */
+public class VariantIndex {
+
+    /**
+     * Logger
+     */
+    private static final Logger LOG = Logger.getLogger(VariantIndex.class);
+
+    /**
+     * the class path root of web resources packaged in jars
+     */
+    private static final String META_INF_RESOURCES = "META-INF/resources";
+
+    /**
+     * the servlet context
+     */
+    private final ServletContext context;
+
+    /**
+     * the class loader searched for <code>META-INF/resources</code> roots
+     */
+    private final ClassLoader classLoader;
+
+    /**
+     * the indexed encodings
+     */
+    private final Collection<ContentEncoding> encodings;
+
+    /**
+     * the available encodings keyed by resource uri, the sets are never modified once published
+     */
+    private final Map<String, Set<ContentEncoding>> variants = new ConcurrentHashMap<String, Set<ContentEncoding>>();
+
+    /**
+     * the watched directories keyed by their watch key
+     */
+    private final Map<WatchKey, WatchedDirectory> watched = new ConcurrentHashMap<WatchKey, WatchedDirectory>();
+
+    /**
+     * the watch service, {@code null} when not watching
+     */
+    private volatile WatchService watchService;
+
+    /**
+     * Constructor.
+     *
+     * @param context the servlet context
+     * @param classLoader the class loader searched for <code>META-INF/resources</code> roots
+     * @param encodings the indexed encodings
+     */
+    public VariantIndex(ServletContext context, ClassLoader classLoader, Collection<ContentEncoding> encodings) {
+        this.context = context;
+        this.classLoader = classLoader;
+        this.encodings = encodings;
+    }
+
+    /**
+     * Returns the encodings with an available variant of the resource.
+     *
+     * @param uri the resource uri relative to the web application
+     * @return the available encodings, empty when there is none
+     */
+    public Set<ContentEncoding> get(String uri) {
+        Set<ContentEncoding> available = variants.get(uri);
+
+        return available != null ? available : Collections.<ContentEncoding>emptySet();
+    }
+
+    /**
+     * Returns the number of indexed resources.
+     *
+     * @return the number of resources with at least one variant
+     */
+    public int size() {
+        return variants.size();
+    }
+
+    /**
+     * Build the index from the web application and class path variant trees.
+     */
+    public void build() {
+        for(ContentEncoding encoding : encodings) {
+            scanContext(encoding, encoding.getPrefix() + "/");
+            scanClassPath(encoding);
+        }
+    }
+
+    /**
+     * Start watching the variant directories of an exploded web application. Does nothing when the web application
+     * is not exploded.
+     *
+     * @return {@code true} if at least one directory is watched, {@code false} otherwise
+     * @throws IOException on IO error
+     */
+    public boolean watch() throws IOException {
+        WatchService service = FileSystems.getDefault().newWatchService();
+
+        for(ContentEncoding encoding : encodings) {
+            String real = context.getRealPath(encoding.getPrefix());
+            if(real != null && new File(real).isDirectory()) {
+                register(service, encoding, new File(real).toPath(), new File(real).toPath());
+            }
+        }
+
+        if(watched.isEmpty()) {
+            service.close();
+            return false;
+        }
+
+        watchService = service;
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                processEvents();
+            }
+        }, "perfify-variant-index");
+        thread.setDaemon(true);
+        thread.start();
+
+        return true;
+    }
+
+    /**
+     * Stop watching the variant directories.
+     */
+    public void close() {
+        WatchService service = watchService;
+        watchService = null;
+
+        if(service != null) {
+            try {
+                service.close();
+            } catch(IOException e) {
+                LOG.warn("Unable to close the variant watch service.", e);
+            }
+        }
+    }
+
+    /**
+     * Record an available variant.
+     *
+     * @param uri the resource uri
+     * @param encoding the variant encoding
+     */
+    synchronized void add(String uri, ContentEncoding encoding) {
+        Set<ContentEncoding> current = variants.get(uri);
+        if(current != null && current.contains(encoding)) {
+            return;
+        }
+
+        EnumSet<ContentEncoding> updated = EnumSet.of(encoding);
+        if(current != null) {
+            updated.addAll(current);
+        }
+
+        variants.put(uri, Collections.unmodifiableSet(updated));
+    }
+
+    /**
+     * Remove a variant that is no longer available.
+     *
+     * @param uri the resource uri
+     * @param encoding the variant encoding
+     */
+    synchronized void remove(String uri, ContentEncoding encoding) {
+        Set<ContentEncoding> current = variants.get(uri);
+        if(current == null || !current.contains(encoding)) {
+            return;
+        }
+
+        EnumSet<ContentEncoding> updated = EnumSet.copyOf(current);
+        updated.remove(encoding);
+
+        if(updated.isEmpty()) {
+            variants.remove(uri);
+        } else {
+            variants.put(uri, Collections.unmodifiableSet(updated));
+        }
+    }
+
+    /**
+     * Remove the variant of a deleted path, and every variant under it when the path was a directory. The uri of the
+     * variant tree root is <code>/</code>, which removes every variant of the encoding.
+     *
+     * @param uri the resource uri of the path
+     * @param encoding the variant encoding
+     */
+    synchronized void removeTree(String uri, ContentEncoding encoding) {
+        remove(uri, encoding);
+
+        String prefix = uri.endsWith("/") ? uri : uri + "/";
+        for(String indexed : variants.keySet()) {
+            if(indexed.startsWith(prefix)) {
+                remove(indexed, encoding);
+            }
+        }
+    }
+
+    /**
+     * Recursively index a variant tree directory of the web application.
+     *
+     * @param encoding the variant encoding
+     * @param path the directory path, ending with '/'
+     */
+    private void scanContext(ContentEncoding encoding, String path) {
+        Set paths = context.getResourcePaths(path);
+        if(paths == null) {
+            return;
+        }
+
+        for(Object child : paths) {
+            String childPath = (String) child;
+
+            if(childPath.endsWith("/")) {
+                scanContext(encoding, childPath);
+            } else {
+                add(childPath.substring(encoding.getPrefix().length()), encoding);
+            }
+        }
+    }
+
+    /**
+     * Index the variant trees below the <code>META-INF/resources</code> roots of the class path.
+     *
+     * @param encoding the variant encoding
+     */
+    private void scanClassPath(ContentEncoding encoding) {
+        String root = META_INF_RESOURCES + encoding.getPrefix();
+
+        try {
+            Enumeration<URL> urls = classLoader.getResources(root);
+
+            while(urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+
+                if("file".equals(url.getProtocol())) {
+                    scanDirectory(encoding, new File(url.toURI()), "");
+                } else if("jar".equals(url.getProtocol())) {
+                    scanJar(encoding, url, root + "/");
+                }
+            }
+        } catch(IOException e) {
+            LOG.warn("Unable to index the class path '" + root + "' variants.", e);
+        } catch(URISyntaxException e) {
+            LOG.warn("Unable to index the class path '" + root + "' variants.", e);
+        }
+    }
+
+    /**
+     * Recursively index a variant tree directory of the file system.
+     *
+     * @param encoding the variant encoding
+     * @param dir the directory
+     * @param uri the resource uri of the directory, without trailing '/'
+     */
+    private void scanDirectory(ContentEncoding encoding, File dir, String uri) {
+        File[] children = dir.listFiles();
+        if(children == null) {
+            return;
+        }
+
+        for(File child : children) {
+            if(child.isDirectory()) {
+                scanDirectory(encoding, child, uri + "/" + child.getName());
+            } else {
+                add(uri + "/" + child.getName(), encoding);
+            }
+        }
+    }
+
+    /**
+     * Index a variant tree within a jar.
+     *
+     * @param encoding the variant encoding
+     * @param url the url of the variant tree root within the jar
+     * @param root the entry name prefix of the variant tree, ending with '/'
+     * @throws IOException on IO error
+     */
+    private void scanJar(ContentEncoding encoding, URL url, String root) throws IOException {
+        URLConnection connection = url.openConnection();
+        if(!(connection instanceof JarURLConnection)) {
+            return;
+        }
+
+        connection.setUseCaches(false);
+        JarFile jar = ((JarURLConnection) connection).getJarFile();
+
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+
+            while(entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+
+                if(!entry.isDirectory() && entry.getName().startsWith(root)) {
+                    add(entry.getName().substring(root.length() - 1), encoding);
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Register a directory and its sub directories with the watch service, indexing the files found.
+     *
+     * @param service the watch service
+     * @param encoding the variant encoding
+     * @param root the variant tree root
+     * @param dir the directory
+     * @throws IOException on IO error
+     */
+    private void register(WatchService service, ContentEncoding encoding, Path root, Path dir) throws IOException {
+        WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        watched.put(key, new WatchedDirectory(encoding, root, dir));
+
+        File[] children = dir.toFile().listFiles();
+        if(children == null) {
+            return;
+        }
+
+        for(File child : children) {
+            if(child.isDirectory()) {
+                register(service, encoding, root, child.toPath());
+            } else {
+                add(getUri(root, child.toPath()), encoding);
+            }
+        }
+    }
+
+    /**
+     * Apply the watch events to the index until the watch service is closed.
+     */
+    private void processEvents() {
+        WatchService service;
+
+        while((service = watchService) != null) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch(ClosedWatchServiceException e) {
+                return;
+            }
+
+            WatchedDirectory directory = watched.get(key);
+            if(directory == null) {
+                key.cancel();
+                continue;
+            }
+
+            for(WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // lost events may be deletes, so the directory is indexed again from scratch
+                        removeTree(getUri(directory.root, directory.dir), directory.encoding);
+                        register(service, directory.encoding, directory.root, directory.dir);
+                        continue;
+                    }
+
+                    Path child = directory.dir.resolve((Path) event.context());
+
+                    if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                        if(child.toFile().isDirectory()) {
+                            register(service, directory.encoding, directory.root, child);
+                        } else {
+                            add(getUri(directory.root, child), directory.encoding);
+                        }
+                    } else {
+                        // a deleted or moved away directory has no events for the files it contained
+                        removeTree(getUri(directory.root, child), directory.encoding);
+                    }
+                } catch(IOException e) {
+                    LOG.warn("Unable to refresh the variant index for '" + directory.dir + "'.", e);
+                } catch(ClosedWatchServiceException e) {
+                    return;
+                }
+            }
+
+            if(!key.reset()) {
+                watched.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the resource uri of a variant file.
+     *
+     * @param root the variant tree root
+     * @param file the variant file
+     * @return the resource uri
+     */
+    private String getUri(Path root, Path file) {
+        return "/" + root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * A watched directory of a variant tree.
+     */
+    private static class WatchedDirectory {
+
+        /**
+         * the variant encoding
+         */
+        private final ContentEncoding encoding;
+
+        /**
+         * the variant tree root
+         */
+        private final Path root;
+
+        /**
+         * the directory
+         */
+        private final Path dir;
+
+        /**
+         * Constructor.
+         *
+         * @param encoding the variant encoding
+         * @param root the variant tree root
+         * @param dir the directory
+         */
+        WatchedDirectory(ContentEncoding encoding, Path root, Path dir) {
+            this.encoding = encoding;
+            this.root = root;
+            this.dir = dir;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package ard.perfify.compress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link CompressedResourceCache} class.
+ */
+public class CompressedResourceCacheTest {
+
+    /**
+     * Ensure that cached bytes are returned per encoding and uri and counted as hits and misses.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testGetAndPut() throws IOException {
+        CompressedResourceCache cache = new CompressedResourceCache(1000);
+
+        assertNull(cache.get(ContentEncoding.GZIP, "/a.css"));
+
+        ByteBuffer put = cache.put(ContentEncoding.GZIP, "/a.css", stream(100), -1);
+        assertEquals(100, put.remaining());
+
+        ByteBuffer cached = cache.get(ContentEncoding.GZIP, "/a.css");
+        assertEquals(100, cached.remaining());
+        assertTrue(cached.isDirect());
+        assertTrue(cached.isReadOnly());
+        assertEquals(99, cached.get(99));
+
+        assertNull(cache.get(ContentEncoding.BROTLI, "/a.css"));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(100, cache.getSize());
+    }
+
+    /**
+     * Ensure that the least recently used entries are evicted to stay within the capacity.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testEviction() throws IOException {
+        CompressedResourceCache cache = new CompressedResourceCache(250);
+
+        cache.put(ContentEncoding.GZIP, "/a.css", stream(100), 100);
+        cache.put(ContentEncoding.GZIP, "/b.css", stream(100), 100);
+        cache.get(ContentEncoding.GZIP, "/a.css");
+        cache.put(ContentEncoding.GZIP, "/c.css", stream(100), 100);
+
+        assertNotNull(cache.get(ContentEncoding.GZIP, "/a.css"));
+        assertNull(cache.get(ContentEncoding.GZIP, "/b.css"));
+        assertNotNull(cache.get(ContentEncoding.GZIP, "/c.css"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(200, cache.getSize());
+
+        // larger than the whole cache, served but not cached
+        assertEquals(300, cache.put(ContentEncoding.GZIP, "/big.js", stream(300), 300).remaining());
+        assertNull(cache.get(ContentEncoding.GZIP, "/big.js"));
+        assertEquals(2, cache.getEntryCount());
+    }
+
+    /**
+     * Returns a stream of the given size.
+     *
+     * @param size the size
+     * @return the stream
+     */
+    private ByteArrayInputStream stream(int size) {
+        byte[] data = new byte[size];
+        for(int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+
+        return new ByteArrayInputStream(data);
+    }
+}
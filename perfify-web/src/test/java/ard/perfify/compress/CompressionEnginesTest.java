@@ -0,0 +1,188 @@
+package ard.perfify.compress;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link CompressionEngines} class and the engines it resolves.
+ */
+public class CompressionEnginesTest {
+
+    /**
+     * Ensure that the names resolve to their engines, unknown names are rejected and engines not installed fall back
+     * to the JDK deflater.
+     */
+    @Test
+    public void testGet() {
+        assertEquals(JdkCompressionEngine.NAME, CompressionEngines.get(null).getName());
+        assertEquals(JdkCompressionEngine.NAME, CompressionEngines.get("JDK").getName());
+
+        CompressionEngine zlibNg = CompressionEngines.get(ZlibNgCompressionEngine.NAME);
+        assertEquals(new ZlibNgCompressionEngine().isAvailable() ? ZlibNgCompressionEngine.NAME
+                : JdkCompressionEngine.NAME, zlibNg.getName());
+
+        try {
+            CompressionEngines.get("lz4");
+            fail("unknown engines should be rejected");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Ensure that the JDK engine compresses a buffer range into a single gzip member.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testJdkGzip() throws IOException {
+        byte[] content = content(100000);
+        byte[] member = new JdkCompressionEngine().gzip(content, 10, content.length - 20, Deflater.BEST_COMPRESSION);
+
+        assertTrue(member.length < content.length / 2);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 10, content.length - 10), gunzip(member)));
+    }
+
+    /**
+     * Ensure that libdeflate compresses into a gzip member readable by the JDK, when installed.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testLibdeflateGzip() throws IOException {
+        LibdeflateCompressionEngine engine = new LibdeflateCompressionEngine(1);
+        Assume.assumeTrue(engine.isAvailable());
+
+        byte[] content = content(100000);
+        for(int level : new int[] {Deflater.DEFAULT_COMPRESSION, 1, Deflater.BEST_COMPRESSION}) {
+            byte[] member = engine.gzip(content, 0, content.length, level);
+            assertTrue(Arrays.equals(content, gunzip(member)));
+        }
+
+        assertTrue(Arrays.equals(new byte[0], gunzip(engine.gzip(content, 0, 0, 6))));
+    }
+
+    /**
+     * Ensure that an engine compresses one shot with its own deflaters rather than the JDK ones.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testGzipWithEngineDeflaters() throws IOException {
+        final AtomicInteger created = new AtomicInteger();
+        CompressionEngine engine = new JdkCompressionEngine() {
+            @Override
+            public Deflater newDeflater(int level) {
+                created.incrementAndGet();
+                return super.newDeflater(level);
+            }
+        };
+
+        byte[] content = content(10000);
+        assertTrue(Arrays.equals(content, gunzip(engine.gzip(content, 0, content.length, 6))));
+        assertTrue(Arrays.equals(content, gunzip(engine.gzip(content, 0, content.length, 6))));
+        assertEquals("the deflater should be created by the engine and pooled", 1, created.get());
+    }
+
+    /**
+     * Ensure that zlib-ng compresses one shot into a gzip member readable by the JDK, when installed.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testZlibNgGzip() throws IOException {
+        ZlibNgCompressionEngine engine = new ZlibNgCompressionEngine();
+        Assume.assumeTrue(engine.isAvailable());
+
+        byte[] content = content(100000);
+        for(int level : new int[] {Deflater.DEFAULT_COMPRESSION, 1, Deflater.BEST_COMPRESSION}) {
+            byte[] member = engine.gzip(content, 0, content.length, level);
+            assertTrue(Arrays.equals(content, gunzip(member)));
+        }
+
+        assertTrue(Arrays.equals(new byte[0], gunzip(engine.gzip(content, 0, 0, 6))));
+    }
+
+    /**
+     * Ensure that the pool borrows zlib-ng deflaters, which stream raw deflate data, when installed.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testPoolEngine() throws IOException {
+        CompressionEngine engine = new ZlibNgCompressionEngine();
+        Assume.assumeTrue(engine.isAvailable());
+
+        DeflaterPool pool = new DeflaterPool(1, engine);
+        assertSame(engine, pool.getEngine());
+
+        byte[] content = content(200000);
+        Deflater deflater = pool.borrow(6, this);
+        assertTrue(deflater instanceof ZlibNgCompressionEngine.ZlibNgDeflater);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        deflater.setInput(content);
+        deflater.finish();
+        while(!deflater.finished()) {
+            deflated.write(buffer, 0, deflater.deflate(buffer));
+        }
+
+        assertEquals(content.length, deflater.getBytesRead());
+        assertEquals(deflated.size(), deflater.getBytesWritten());
+        pool.release(deflater);
+
+        Inflater inflater = new Inflater(true);
+        byte[] inflated = new byte[content.length];
+        inflater.setInput(deflated.toByteArray());
+        try {
+            assertEquals(content.length, inflater.inflate(inflated));
+        } catch(DataFormatException e) {
+            fail(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+
+        assertTrue(Arrays.equals(content, inflated));
+    }
+
+    /**
+     * Generate compressible content.
+     *
+     * @param size the number of bytes
+     * @return the content
+     */
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+
+        for(int i = 0; i < size; i++) {
+            content[i] = (byte) ('a' + (i * 7 + i / 13) % 26);
+        }
+
+        return content;
+    }
+
+    /**
+     * Inflate a gzip stream.
+     *
+     * @param gzip the gzip stream
+     * @return the content
+     * @throws IOException on error
+     */
+    private static byte[] gunzip(byte[] gzip) throws IOException {
+        return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(gzip)));
+    }
+}
@@ -0,0 +1,74 @@
+package ard.perfify.compress;
+
+import org.junit.Test;
+
+import java.util.zip.Deflater;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link CompressionGovernor} class.
+ */
+public class CompressionGovernorTest {
+
+    /**
+     * the simulated time
+     */
+    private long time;
+
+    /**
+     * Test that the level steps down with the in-flight compressions and compression is refused at the limit.
+     */
+    @Test
+    public void testInFlightPressure() {
+        CompressionGovernor governor = new CompressionGovernor();
+        governor.setMaxInFlight(4);
+
+        assertEquals(Deflater.DEFAULT_COMPRESSION, governor.admit(Deflater.DEFAULT_COMPRESSION));
+        assertEquals(6, governor.admit(6));
+        assertEquals("at the step down pressure", 6, governor.admit(6));
+        assertEquals("half way to the limit", 3, governor.admit(6));
+        assertEquals(CompressionGovernor.IDENTITY, governor.admit(6));
+        assertEquals(CompressionGovernor.IDENTITY, governor.getLevel(6));
+
+        assertEquals(4, governor.getInFlight());
+        assertEquals(1, governor.getSteppedDownCount());
+        assertEquals(1, governor.getRefusedCount());
+
+        for(int i = 0; i < 4; i++) {
+            governor.release(0);
+        }
+
+        assertEquals(0, governor.getInFlight());
+        assertEquals(9, governor.getLevel(9));
+    }
+
+    /**
+     * Test that the deflate time of the past windows steps the level down and decays once idle.
+     */
+    @Test
+    public void testCpuPressure() {
+        CompressionGovernor governor = new CompressionGovernor() {
+            @Override
+            long now() {
+                return time;
+            }
+        };
+        governor.setMaxCpuShare(0.5);
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        // a whole second of every processor spent deflating in the first window
+        governor.admit(6);
+        time = 1000000000L;
+        governor.release(1000000000L * processors);
+
+        assertEquals(0.5, governor.getCpuLoad(), 0.001);
+        assertEquals(CompressionGovernor.IDENTITY, governor.getLevel(6));
+
+        // idle for two windows
+        time = 3000000000L;
+
+        assertEquals(0.125, governor.getCpuLoad(), 0.001);
+        assertEquals(6, governor.getLevel(6));
+    }
+}
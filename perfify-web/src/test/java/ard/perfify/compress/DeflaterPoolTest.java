@@ -0,0 +1,56 @@
+package ard.perfify.compress;
+
+import org.junit.Test;
+
+import java.util.zip.Deflater;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link DeflaterPool} class.
+ */
+public class DeflaterPoolTest {
+
+    /**
+     * Ensure that returned deflaters are reused per level and the idle deflaters are bounded.
+     */
+    @Test
+    public void testBorrowAndRelease() {
+        DeflaterPool pool = new DeflaterPool(1);
+        Object owner = new Object();
+
+        Deflater first = pool.borrow(6, owner);
+        Deflater second = pool.borrow(6, owner);
+        assertNotSame(first, second);
+        assertEquals(2, pool.getActiveCount());
+
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getIdleCount());
+
+        assertSame(first, pool.borrow(6, owner));
+        assertNotSame(first, pool.borrow(1, owner));
+        assertEquals(4, pool.getBorrowCount());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0.25, pool.getHitRate());
+    }
+
+    /**
+     * Ensure that deflaters whose owner is collected without returning them are counted as leaked.
+     *
+     * @throws InterruptedException when interrupted
+     */
+    @Test
+    public void testLeakDetection() throws InterruptedException {
+        DeflaterPool pool = new DeflaterPool(1);
+        pool.borrow(6, new Object());
+
+        for(int i = 0; i < 50 && pool.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+
+        assertEquals(1, pool.getLeakCount());
+        assertEquals(0, pool.getActiveCount());
+    }
+}
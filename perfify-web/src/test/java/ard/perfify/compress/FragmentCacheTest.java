@@ -0,0 +1,64 @@
+package ard.perfify.compress;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link FragmentCache} class.
+ */
+public class FragmentCacheTest {
+
+    /**
+     * Ensure that fragments are compressed into complete gzip members, also when incompressible.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testFragmentIsGzipMember() throws Exception {
+        FragmentCache cache = new FragmentCache(1000000);
+
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 500; i++) {
+            text.append("<li class=\"tile\">product ").append(i).append("</li>");
+        }
+        byte[] random = new byte[40000];
+        new Random(5).nextBytes(random);
+
+        for(byte[] content : new byte[][] {text.toString().getBytes("UTF-8"), random, new byte[0]}) {
+            CompressedFragment fragment = cache.put("tiles", "1", "UTF-8", content);
+
+            byte[] inflated = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(fragment.getMember())));
+            assertTrue(Arrays.equals(content, inflated));
+            assertSame(content, fragment.getContent());
+        }
+    }
+
+    /**
+     * Ensure that a fragment is cached in one version per name and character encoding.
+     */
+    @Test
+    public void testVersionReplaced() {
+        FragmentCache cache = new FragmentCache(1000000);
+
+        CompressedFragment first = cache.put("footer", "1", "UTF-8", new byte[] {'a'});
+        assertSame(first, cache.get("footer", "1", "UTF-8"));
+        assertNull(cache.get("footer", "2", "UTF-8"));
+        assertNull(cache.get("footer", "1", "ISO-8859-1"));
+
+        CompressedFragment second = cache.put("footer", "2", "UTF-8", new byte[] {'b'});
+        assertSame(second, cache.get("footer", "2", "UTF-8"));
+        assertNull(cache.get("footer", "1", "UTF-8"));
+
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(second.getSize(), cache.getSize());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+}
@@ -0,0 +1,254 @@
+package ard.perfify.compress;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link ParallelDeflater} class.
+ */
+public class ParallelDeflaterTest {
+
+    /**
+     * Ensure that combined checksums equal the checksum of the concatenation.
+     */
+    @Test
+    public void testCombineCrc() {
+        Random random = new Random(7);
+        byte[] bytes = new byte[100000];
+        random.nextBytes(bytes);
+
+        CRC32 whole = new CRC32();
+        whole.update(bytes);
+
+        for(int split : new int[] {0, 1, 4095, 50000, bytes.length}) {
+            CRC32 first = new CRC32();
+            first.update(bytes, 0, split);
+            CRC32 second = new CRC32();
+            second.update(bytes, split, bytes.length - split);
+
+            assertEquals(whole.getValue(), ParallelDeflater.combineCrc(first.getValue(), second.getValue(),
+                    bytes.length - split));
+        }
+    }
+
+    /**
+     * Ensure that the blocks compressed in parallel, with a flush in between, inflate to the input as one deflate
+     * stream and that the dictionaries keep the ratio of a serial deflate.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testParallelStreamInflates() throws Exception {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(3);
+        for(int i = 0; text.length() < 3 * ParallelDeflater.BLOCK_SIZE + 12345; i++) {
+            text.append("{\"id\":").append(i).append(",\"amount\":").append(random.nextInt(100000)).append("}\n");
+        }
+        byte[] input = text.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelDeflater deflater = new ParallelDeflater(new ForkJoinPool(2), new DeflaterPool(4), 6, out);
+
+        for(int off = 0; off < input.length; ) {
+            int len = Math.min(input.length - off, 1 + random.nextInt(40000));
+            deflater.write(input, off, len);
+            off += len;
+
+            if(off > input.length / 2 && deflater.getBytesRead() == 0) {
+                deflater.flush();
+                assertEquals(off, deflater.getBytesRead());
+            }
+        }
+
+        deflater.finish();
+        deflater.release();
+
+        CRC32 crc = new CRC32();
+        crc.update(input);
+        assertEquals(crc.getValue(), deflater.getCrc());
+        assertEquals(input.length, deflater.getBytesRead());
+        assertEquals(out.size(), deflater.getBytesWritten());
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(out.toByteArray());
+        byte[] inflated = new byte[input.length + 1];
+        int len = inflater.inflate(inflated);
+        assertTrue(inflater.finished());
+        inflater.end();
+        assertTrue(Arrays.equals(input, Arrays.copyOf(inflated, len)));
+
+        Deflater serial = new Deflater(6, true);
+        serial.setInput(input);
+        serial.finish();
+        byte[] compressed = new byte[input.length];
+        int serialLength = serial.deflate(compressed);
+        serial.end();
+        assertTrue("parallel " + out.size() + " serial " + serialLength, out.size() < serialLength * 1.02);
+    }
+
+    /**
+     * Ensure that blocks are compressed completely by deflaters that return before consuming all input, like native
+     * deflaters copying the input in chunks.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testChunkedDeflater() throws Exception {
+        CompressionEngine engine = new JdkCompressionEngine() {
+            @Override
+            public Deflater newDeflater(int level) {
+                return new ChunkedDeflater(level);
+            }
+        };
+
+        assertParallelStreamInflates(new DeflaterPool(4, engine));
+    }
+
+    /**
+     * Ensure that blocks larger than the native input buffer are compressed completely by zlib-ng, when installed.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testZlibNgDeflater() throws Exception {
+        CompressionEngine engine = new ZlibNgCompressionEngine();
+        Assume.assumeTrue(engine.isAvailable());
+
+        assertParallelStreamInflates(new DeflaterPool(4, engine));
+    }
+
+    /**
+     * Compress flushed blocks in parallel with the deflaters of the pool and check the stream inflates to the input.
+     *
+     * @param deflaterPool the deflater pool
+     * @throws Exception on error
+     */
+    private static void assertParallelStreamInflates(DeflaterPool deflaterPool) throws Exception {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; text.length() < 2 * ParallelDeflater.BLOCK_SIZE + 12345; i++) {
+            text.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i % 97).append("\"}\n");
+        }
+        byte[] input = text.toString().getBytes("UTF-8");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelDeflater deflater = new ParallelDeflater(new ForkJoinPool(2), deflaterPool, 6, out);
+        deflater.write(input, 0, input.length);
+        deflater.finish();
+        deflater.release();
+
+        assertEquals(input.length, deflater.getBytesRead());
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(out.toByteArray());
+        byte[] inflated = new byte[input.length + 1];
+        int len = inflater.inflate(inflated);
+        assertTrue(inflater.finished());
+        inflater.end();
+        assertTrue(Arrays.equals(input, Arrays.copyOf(inflated, len)));
+    }
+
+    /**
+     * A deflater handing its input to the JDK deflater in small chunks, without flushing while input remains.
+     */
+    private static class ChunkedDeflater extends Deflater {
+
+        /**
+         * the number of input bytes handed over per call
+         */
+        private static final int CHUNK = 1000;
+
+        /**
+         * the input
+         */
+        private byte[] input;
+
+        /**
+         * the offset of the remaining input
+         */
+        private int inputOff;
+
+        /**
+         * the number of remaining input bytes
+         */
+        private int inputLen;
+
+        /**
+         * determines whether the input is complete
+         */
+        private boolean finish;
+
+        /**
+         * Constructor.
+         *
+         * @param level the compression level
+         */
+        ChunkedDeflater(int level) {
+            super(level, true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setInput(byte[] b, int off, int len) {
+            input = b;
+            inputOff = off;
+            inputLen = len;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean needsInput() {
+            return inputLen <= 0 && super.needsInput();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void finish() {
+            finish = true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void reset() {
+            super.reset();
+            inputLen = 0;
+            finish = false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int deflate(byte[] b, int off, int len, int flush) {
+            if(inputLen > 0 && super.needsInput()) {
+                int n = Math.min(inputLen, CHUNK);
+                super.setInput(input, inputOff, n);
+                inputOff += n;
+                inputLen -= n;
+            }
+
+            if(finish && inputLen == 0) {
+                super.finish();
+            }
+
+            return super.deflate(b, off, len, inputLen > 0 ? NO_FLUSH : flush);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ard.perfify.compress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link PrecompressManifest} class.
+ */
+public class PrecompressManifestTest {
+
+    /**
+     * Ensure that stored entries are loaded back with the same values.
+     *
+     * @throws IOException on error
+     */
+    @Test
+    public void testStoreAndLoad() throws IOException {
+        PrecompressManifest manifest = new PrecompressManifest();
+
+        PrecompressManifest.Entry entry = new PrecompressManifest.Entry("/css/site:main=1.css", "abc123", 1000, 42, "gzip-9/128/5");
+        entry.putVariant("gzip", 200);
+        manifest.put(entry);
+        manifest.put(new PrecompressManifest.Entry("/js/tiny.js", "def456", 10, 43, "gzip-9/128/5"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.store(out);
+
+        PrecompressManifest loaded = new PrecompressManifest();
+        loaded.load(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(2, loaded.size());
+
+        PrecompressManifest.Entry css = loaded.get("/css/site:main=1.css");
+        assertEquals("abc123", css.getHash());
+        assertEquals(1000, css.getLength());
+        assertEquals(42, css.getLastModified());
+        assertEquals("gzip-9/128/5", css.getSettings());
+        assertEquals(200, css.getVariantSize("gzip"));
+
+        PrecompressManifest.Entry js = loaded.get("/js/tiny.js");
+        assertFalse(js.hasVariant("gzip"));
+        assertEquals(-1, js.getVariantSize("gzip"));
+    }
+
+    /**
+     * Ensure that malformed entries are rejected.
+     */
+    @Test
+    public void testMalformedEntry() {
+        try {
+            new PrecompressManifest().load(new ByteArrayInputStream("/a.css=abc|x|1|s|".getBytes()));
+            fail("should have thrown io exception since the entry length is not a number.");
+        } catch(IOException ignored) {}
+    }
+}
@@ -0,0 +1,49 @@
+package ard.perfify.servlet;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link ByteRange} class.
+ */
+public class ByteRangeTest {
+
+    /**
+     * Ensure that first-last, open ended and suffix ranges are parsed and clamped to the representation.
+     */
+    @Test
+    public void testParse() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 900-, -50, 950-2000", 1000);
+
+        assertEquals(4, ranges.size());
+        assertEquals("bytes 0-99/1000", ranges.get(0).toContentRange(1000));
+        assertEquals("bytes 900-999/1000", ranges.get(1).toContentRange(1000));
+        assertEquals("bytes 950-999/1000", ranges.get(2).toContentRange(1000));
+        assertEquals(50, ranges.get(3).getLength());
+
+        assertEquals("bytes 0-999/1000", ByteRange.parse("bytes=-5000", 1000).get(0).toContentRange(1000));
+    }
+
+    /**
+     * Ensure that unsatisfiable ranges give an empty list and malformed headers are ignored.
+     */
+    @Test
+    public void testUnsatisfiableAndMalformed() {
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=5-1", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+        assertNull(ByteRange.parse("bytes=0", 1000));
+
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for(int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+            many.append(",").append(i).append("-").append(i);
+        }
+        assertNull(ByteRange.parse(many.toString(), 1000));
+    }
+}
@@ -0,0 +1,68 @@
+package ard.perfify.servlet;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link CompressibilityTracker} class.
+ */
+public class CompressibilityTrackerTest {
+
+    /**
+     * Test the uri patterns and the entropy estimates of text and random bytes.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testEstimates() throws Exception {
+        CompressibilityTracker tracker = new CompressibilityTracker(CompressibilityTracker.DEFAULT_MIN_SAVINGS);
+
+        assertEquals("/orders/*/items", tracker.getPattern("/orders/1234/items"));
+        assertEquals("/users/*/", tracker.getPattern("/users/a1b2c3/;jsessionid=42"));
+        assertEquals("/home", tracker.getPattern("/home"));
+
+        byte[] text = StringUtils.repeat("{\"name\": \"perfify\", \"items\": [1, 2, 3]}", 100).getBytes("UTF-8");
+        byte[] random = new byte[4096];
+        new Random(7).nextBytes(random);
+
+        assertTrue(CompressibilityTracker.estimateSavings(text, 0, text.length) > 0.3);
+        assertTrue(CompressibilityTracker.estimateSavings(random, 0, random.length) < 0.05);
+
+        assertTrue(tracker.isWorthCompressing("/text", text, 0, text.length));
+        assertFalse(tracker.isWorthCompressing("/random", random, 0, random.length));
+        assertEquals(2, tracker.getSampledCount());
+        assertEquals(1, tracker.getBypassCount());
+    }
+
+    /**
+     * Test that a consistently incompressible endpoint is learned and passed through, except for rechecks.
+     */
+    @Test
+    public void testLearning() {
+        CompressibilityTracker tracker = new CompressibilityTracker(0.1);
+
+        for(int i = 0; i < 8; i++) {
+            assertFalse("not known yet", tracker.isIncompressible("/blob/*"));
+            tracker.record("/blob/*", 1000, 1010);
+            tracker.record("/page", 1000, 200);
+        }
+
+        assertTrue(tracker.isKnown("/blob/*"));
+        assertTrue(tracker.getSavings("/page") > 0.7);
+        assertFalse(tracker.isIncompressible("/page"));
+
+        int bypassed = 0;
+        for(int i = 0; i < 64; i++) {
+            if(tracker.isIncompressible("/blob/*")) {
+                bypassed++;
+            }
+        }
+
+        assertEquals("one in 64 is measured again", 63, bypassed);
+        assertEquals(63, tracker.getLearnedBypassCount());
+    }
+}
@@ -0,0 +1,51 @@
+package ard.perfify.servlet;
+
+import org.junit.Test;
+
+import static junit.framework.Assert.*;
+
+/**
+ * Test for {@link CompressionPolicy} class.
+ */
+public class CompressionPolicyTest {
+
+    /**
+     * Test the media type table lookups, exact types win over wildcards and denied types over allowed types.
+     */
+    @Test
+    public void testContentTypes() {
+        CompressionPolicy policy = new CompressionPolicy();
+
+        assertTrue(policy.isCompressibleType("text/html; charset=UTF-8"));
+        assertTrue(policy.isCompressibleType("Application/JSON"));
+        assertTrue(policy.isCompressibleType("image/svg+xml"));
+        assertTrue("unknown yet content type", policy.isCompressibleType(null));
+
+        assertFalse(policy.isCompressibleType("image/png"));
+        assertFalse(policy.isCompressibleType("application/zip"));
+        assertFalse(policy.isCompressibleType("text/event-stream"));
+        assertFalse("unlisted type", policy.isCompressibleType("application/x-custom"));
+
+        policy = new CompressionPolicy(new String[] {"*/*"}, new String[] {"video/*"});
+
+        assertTrue(policy.isCompressibleType("application/x-custom"));
+        assertFalse(policy.isCompressibleType("video/mp4"));
+    }
+
+    /**
+     * Test the statuses carrying a compressible body.
+     */
+    @Test
+    public void testStatuses() {
+        CompressionPolicy policy = new CompressionPolicy();
+
+        assertTrue(policy.isCompressibleStatus(200));
+        assertTrue(policy.isCompressibleStatus(404));
+        assertTrue(policy.isCompressibleStatus(500));
+
+        assertFalse(policy.isCompressibleStatus(100));
+        assertFalse(policy.isCompressibleStatus(204));
+        assertFalse(policy.isCompressibleStatus(206));
+        assertFalse(policy.isCompressibleStatus(304));
+    }
+}
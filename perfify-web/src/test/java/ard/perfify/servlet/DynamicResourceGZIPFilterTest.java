@@ -1,19 +1,41 @@
 package ard.perfify.servlet;
 
+import ard.perfify.compress.CompressedFragment;
+import ard.perfify.compress.CompressionGovernor;
+import ard.perfify.compress.DeflaterBuffers;
+import ard.perfify.compress.DeflaterPool;
+import ard.perfify.compress.FragmentCache;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
 
 import static junit.framework.Assert.*;
 import static org.mockito.Mockito.*;
@@ -255,6 +277,949 @@ public class DynamicResourceGZIPFilterTest {
         assertEquals("invalid unzip response", expectedResponseValue, getUnGzipResponse(expectedResponseValue.length()));
     }
 
+    /**
+     * Ensure that the deflater of a closed response is reused by the next response and the output stays valid gzip.
+     *
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Test
+    public void testDeflaterReused() throws IOException, ServletException {
+        filter.setDeflaterPoolSize(4);
+
+        for(int i = 0; i < 2; i++) {
+            hasMoreElement = true;
+            responseOut.reset();
+            mockGzipHeaderEncodingRequest("gzip");
+
+            filter.doFilterInternal(request, response, chain);
+
+            PrintWriter writer = filterChainResponse.getWriter();
+            writer.write("response " + i);
+            writer.close();
+
+            assertEquals("invalid unzip response", "response " + i, getUnGzipResponse(10));
+        }
+
+        assertEquals(2, filter.getDeflaterPool().getBorrowCount());
+        assertEquals(1, filter.getDeflaterPool().getHitCount());
+        assertEquals(0, filter.getDeflaterPool().getActiveCount());
+    }
+
+    /**
+     * Test that many small writes around and across the write buffer boundary compress to the written content.
+     *
+     * @throws java.io.IOException on error
+     * @throws javax.servlet.ServletException on error
+     */
+    @Test
+    public void testSmallWritesCoalesced() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.setWriteBufferSize(64);
+        filter.setDeflaterPoolSize(4);
+        filter.doFilterInternal(request, response, chain);
+
+        StringBuilder expected = new StringBuilder();
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+
+        for(int i = 0; i < 5000; i++) {
+            char ch = (char) ('a' + i % 26);
+            servletOut.write(ch);
+            expected.append(ch);
+
+            if(i == 2500) {
+                servletOut.flush();
+                servletOut.write(StringUtils.repeat("z", 100).getBytes("UTF-8"));
+                expected.append(StringUtils.repeat("z", 100));
+            }
+        }
+        servletOut.close();
+
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(responseOut.toByteArray()));
+        assertEquals("invalid unzip response", expected.toString(), IOUtils.toString(in, "UTF-8"));
+        assertEquals(0, filter.getDeflaterPool().getActiveCount());
+    }
+
+    /**
+     * Test that a body finishing below the minimum compression size is sent as is with its exact length.
+     *
+     * @throws java.io.IOException on error
+     * @throws javax.servlet.ServletException on error
+     */
+    @Test
+    public void testSmallResponseNotCompressed() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.setMinCompressSize(1024);
+        filter.setResponseHeadersImmediateFlush(true);
+        filter.setDeflaterPoolSize(4);
+        filter.doFilterInternal(request, response, chain);
+
+        PrintWriter writer = filterChainResponse.getWriter();
+        writer.write(generateString(200));
+        writer.close();
+
+        assertEquals(generateString(200), responseOut.toString("UTF-8"));
+        verify(response).setContentLength(200);
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+        verify(out, never()).flush();
+        assertEquals(0, filter.getDeflaterPool().getBorrowCount());
+    }
+
+    /**
+     * Test that a body reaching the minimum compression size is compressed, including the held back bytes.
+     *
+     * @throws java.io.IOException on error
+     * @throws javax.servlet.ServletException on error
+     */
+    @Test
+    public void testLargeResponseCompressed() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.setMinCompressSize(100);
+        filter.doFilterInternal(request, response, chain);
+
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        servletOut.write(generateString(60).getBytes());
+        servletOut.write(generateString(60).getBytes());
+        servletOut.close();
+
+        assertEquals("invalid unzip response", generateString(60) + generateString(60), getUnGzipResponse(120));
+        verify(response).setHeader("Content-Encoding", "gzip");
+        verify(response, never()).setContentLength(anyInt());
+    }
+
+    /**
+     * Test that a response without body neither allocates a deflater nor writes a gzip envelope.
+     *
+     * @throws java.io.IOException on error
+     * @throws javax.servlet.ServletException on error
+     */
+    @Test
+    public void testBodilessResponse() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.setDeflaterPoolSize(4);
+        filter.doFilterInternal(request, response, chain);
+
+        filterChainResponse.getOutputStream().close();
+
+        assertEquals(0, responseOut.size());
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+        assertEquals(0, filter.getDeflaterPool().getBorrowCount());
+    }
+
+    /**
+     * Test that a response of an already compressed content type passes through with its declared length.
+     *
+     * @throws java.io.IOException on error
+     * @throws javax.servlet.ServletException on error
+     */
+    @Test
+    public void testIneligibleContentTypePassedThrough() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+        doReturn("image/png").when(response).getContentType();
+
+        filter.setDeflaterPoolSize(4);
+        filter.doFilterInternal(request, response, chain);
+
+        filterChainResponse.setContentType("image/png");
+        filterChainResponse.setContentLength(300);
+
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        servletOut.write(generateString(300).getBytes());
+        servletOut.close();
+
+        assertEquals(generateString(300), responseOut.toString("UTF-8"));
+        verify(response).setHeader("Content-Length", "300");
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+        assertEquals(0, filter.getDeflaterPool().getBorrowCount());
+    }
+
+    /**
+     * Test that already encoded and bodiless status responses are not compressed.
+     *
+     * @throws java.io.IOException on error
+     * @throws javax.servlet.ServletException on error
+     */
+    @Test
+    public void testIneligibleResponsesPassedThrough() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.doFilterInternal(request, response, chain);
+
+        filterChainResponse.setHeader("Content-Encoding", "br");
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        servletOut.write(generateString(100).getBytes());
+        servletOut.close();
+
+        assertEquals(generateString(100), responseOut.toString("UTF-8"));
+        verify(response).setHeader("Content-Encoding", "br");
+        verify(response, never()).setHeader("Content-Encoding", "gzip");
+
+        hasMoreElement = true;
+        responseOut.reset();
+        filter.doFilterInternal(request, response, chain);
+
+        filterChainResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        filterChainResponse.getOutputStream().flush();
+        filterChainResponse.getOutputStream().close();
+
+        assertEquals(0, responseOut.size());
+        verify(response, never()).setHeader("Content-Encoding", "gzip");
+    }
+
+    /**
+     * Test that a random body is sampled and passed through, and its endpoint learned after a few responses.
+     *
+     * @throws java.io.IOException on error
+     * @throws javax.servlet.ServletException on error
+     */
+    @Test
+    public void testIncompressibleBodyPassedThrough() throws IOException, ServletException {
+        byte[] body = new byte[10000];
+        new Random(3).nextBytes(body);
+
+        doReturn("/blobs/17").when(request).getRequestURI();
+        filter.setSampleSize(4096);
+        filter.setResponseHeadersImmediateFlush(true);
+        filter.setDeflaterPoolSize(4);
+
+        for(int i = 0; i < 9; i++) {
+            hasMoreElement = true;
+            responseOut.reset();
+            mockGzipHeaderEncodingRequest("gzip");
+
+            filter.doFilterInternal(request, response, chain);
+
+            ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+            servletOut.write(body, 0, 1000);
+            servletOut.write(body, 1000, 9000);
+            servletOut.close();
+
+            assertTrue("body passed through as is", Arrays.equals(body, responseOut.toByteArray()));
+        }
+
+        verify(response, never()).setHeader(eq("Content-Encoding"), anyString());
+        assertEquals(0, filter.getDeflaterPool().getBorrowCount());
+        assertEquals(8, filter.getCompressibility().getBypassCount());
+        assertEquals(1, filter.getCompressibility().getLearnedBypassCount());
+    }
+
+    /**
+     * Test that tuning the governor limits never changes the governor shared by all filter instances, and fails
+     * clearly when compression is not governed.
+     */
+    @Test
+    public void testTuneGovernor() {
+        DynamicResourceGZIPFilter tuned = new DynamicResourceGZIPFilter();
+        assertSame(CompressionGovernor.getDefault(), tuned.getGovernor());
+
+        tuned.setMaxInFlightCompressions(1);
+        tuned.setMaxCompressionCpuShare(0.25);
+        tuned.setStepDownPressure(0.75);
+
+        CompressionGovernor governor = tuned.getGovernor();
+        assertNotSame(CompressionGovernor.getDefault(), governor);
+        tuned.setMaxInFlightCompressions(2);
+        assertSame(governor, tuned.getGovernor());
+
+        tuned.setGovernor(null);
+        try {
+            tuned.setMaxInFlightCompressions(1);
+            fail("tuning without a governor should be rejected");
+        } catch(IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a compression refused by the governor is sent as is and a released one admits the next.
+     *
+     * @throws java.io.IOException on error
+     * @throws javax.servlet.ServletException on error
+     */
+    @Test
+    public void testGovernorRefusesCompression() throws IOException, ServletException {
+        CompressionGovernor governor = new CompressionGovernor();
+        governor.setMaxInFlight(1);
+        filter.setGovernor(governor);
+
+        // one compression in flight
+        mockGzipHeaderEncodingRequest("gzip");
+        filter.doFilterInternal(request, response, chain);
+        ServletOutputStream first = filterChainResponse.getOutputStream();
+        first.write(generateString(100).getBytes());
+        assertEquals(1, governor.getInFlight());
+
+        HttpServletResponse refusedResponse = mock(HttpServletResponse.class);
+        ByteArrayOutputStream refusedOut = new ByteArrayOutputStream();
+        doReturn(outputStream(refusedOut)).when(refusedResponse).getOutputStream();
+
+        hasMoreElement = true;
+        mockGzipHeaderEncodingRequest("gzip");
+        filter.doFilterInternal(request, refusedResponse, chain);
+        ServletOutputStream second = filterChainResponse.getOutputStream();
+        second.write(generateString(100).getBytes());
+        second.close();
+
+        assertEquals(generateString(100), refusedOut.toString("UTF-8"));
+        verify(refusedResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+        assertEquals(1, governor.getRefusedCount());
+
+        first.close();
+        assertEquals("invalid unzip response", generateString(100), getUnGzipResponse(100));
+        assertEquals(0, governor.getInFlight());
+        assertEquals(Deflater.DEFAULT_COMPRESSION, filter.getCurrentCompressionLevel());
+    }
+
+    /**
+     * Test that a flush pushes everything written so far in a decompressible form.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testFlushDecompressible() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.doFilterInternal(request, response, chain);
+
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        servletOut.write("<html><head><title>perfify</title></head>".getBytes("UTF-8"));
+        servletOut.flush();
+
+        assertEquals("<html><head><title>perfify</title></head>", inflateFlushed());
+
+        servletOut.write("<body/></html>".getBytes("UTF-8"));
+        servletOut.flush();
+
+        assertEquals("<html><head><title>perfify</title></head><body/></html>", inflateFlushed());
+        servletOut.close();
+    }
+
+    /**
+     * Test that pending output is flushed once the producer is idle.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testIdleFlush() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.setIdleFlushMillis(20);
+        filter.doFilterInternal(request, response, chain);
+
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        servletOut.write("data: 1\n\n".getBytes("UTF-8"));
+
+        verify(out, timeout(2000)).flush();
+        synchronized(servletOut) {
+            assertEquals("data: 1\n\n", inflateFlushed());
+        }
+
+        servletOut.close();
+        verify(out, times(1)).flush();
+    }
+
+    /**
+     * Test that the compressed stream of an async request is finished when the request completes, not when the
+     * filter chain returns.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testAsyncRequestFinishedOnComplete() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        doReturn(true).when(request).isAsyncStarted();
+        doReturn(asyncContext).when(request).getAsyncContext();
+
+        filter.doFilterInternal(request, response, chain);
+
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        servletOut.write(generateString(100).getBytes());
+        verify(out, never()).close();
+
+        listener.getValue().onComplete(new AsyncEvent(asyncContext));
+
+        verify(out).close();
+        assertEquals("invalid unzip response", generateString(100), getUnGzipResponse(100));
+    }
+
+    /**
+     * Test that in non-blocking mode the compressed output is queued while the container is not ready and drained
+     * when it signals writability, before the application listener is called.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testNonBlockingWrite() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.doFilterInternal(request, response, chain);
+
+        WriteListener appListener = mock(WriteListener.class);
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        servletOut.setWriteListener(appListener);
+
+        ArgumentCaptor<WriteListener> listener = ArgumentCaptor.forClass(WriteListener.class);
+        verify(out).setWriteListener(listener.capture());
+
+        // the container is not ready, nothing may block
+        servletOut.write(generateString(100).getBytes());
+        servletOut.flush();
+
+        assertEquals(0, responseOut.size());
+        assertFalse(servletOut.isReady());
+
+        doReturn(true).when(out).isReady();
+        listener.getValue().onWritePossible();
+
+        verify(appListener).onWritePossible();
+        verify(out).flush();
+        assertTrue(servletOut.isReady());
+
+        servletOut.close();
+        assertEquals("invalid unzip response", generateString(100), getUnGzipResponse(100));
+    }
+
+    /**
+     * Test that with direct buffers the compressed output is written through the container channel when the runtime
+     * supports it, and through the stream otherwise.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDirectBuffers() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        ChannelOutputStream channelOut = new ChannelOutputStream();
+        doReturn(channelOut).when(response).getOutputStream();
+
+        filter.setDirectBuffers(true);
+        filter.doFilterInternal(request, response, chain);
+
+        StringBuilder expected = new StringBuilder();
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        for(int i = 0; i < 20000; i++) {
+            String line = "{\"id\":" + i + ",\"name\":\"" + generateString(i % 13) + "\"}\n";
+            servletOut.write(line.getBytes("UTF-8"));
+            expected.append(line);
+
+            if(i == 10000) {
+                servletOut.flush();
+            }
+        }
+        servletOut.close();
+
+        String actual = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(channelOut.bytes.toByteArray())), "UTF-8");
+        assertEquals(expected.toString(), actual);
+        assertEquals(DeflaterBuffers.isSupported(), channelOut.channelWrites > 0);
+    }
+
+    /**
+     * Test that with direct buffers the compressed output is written through the byte buffer write method of a
+     * container stream that is not a channel, like the Jetty and Undertow streams, when the runtime supports it.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDirectBuffersWriteMethod() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        BufferOutputStream bufferOut = new BufferOutputStream();
+        doReturn(bufferOut).when(response).getOutputStream();
+        assertTrue(ServletOutputBuffers.isSupported(bufferOut));
+        assertFalse(ServletOutputBuffers.isSupported(outputStream(new ByteArrayOutputStream())));
+
+        filter.setDirectBuffers(true);
+        filter.doFilterInternal(request, response, chain);
+
+        String expected = generateString(200000);
+        ServletOutputStream servletOut = filterChainResponse.getOutputStream();
+        servletOut.write(expected.getBytes("UTF-8"));
+        servletOut.close();
+
+        String actual = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(bufferOut.bytes.toByteArray())), "UTF-8");
+        assertEquals(expected, actual);
+        assertEquals(DeflaterBuffers.isSupported(), bufferOut.bufferWrites > 0);
+    }
+
+    /**
+     * Test that a response past the parallel threshold is compressed in parallel blocks into one valid gzip stream.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testParallelCompression() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.setEagerBufferFlushingSize(1000);
+        filter.setParallelCompressionThreshold(100000);
+        filter.setDeflaterPoolSize(4);
+        filter.setGovernor(new CompressionGovernor());
+        filter.doFilterInternal(request, response, chain);
+
+        StringBuilder expected = new StringBuilder();
+        PrintWriter writer = filterChainResponse.getWriter();
+        for(int i = 0; expected.length() < 1000000; i++) {
+            String line = i + ";" + generateString(i % 17) + ";" + (i * 31 % 1000) + "\n";
+            writer.print(line);
+            expected.append(line);
+        }
+        writer.close();
+
+        String actual = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(responseOut.toByteArray())), "UTF-8");
+        assertEquals(expected.toString(), actual);
+
+        // the serial deflater and one per block
+        assertTrue(filter.getDeflaterPool().getBorrowCount() > 1);
+    }
+
+    /**
+     * Test that a cacheable response is rendered and compressed once and then answered from the micro cache, and that
+     * a response setting a cookie is not cached.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testMicroCache() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+        doReturn("GET").when(request).getMethod();
+        doReturn("/home").when(request).getRequestURI();
+
+        FilterChain rendering = renderingChain(generateString(100), null);
+        filter.setMicroCacheSize(1000000);
+        filter.doFilterInternal(request, response, rendering);
+
+        hasMoreElement = true;
+        ByteArrayOutputStream cachedOut = new ByteArrayOutputStream();
+        HttpServletResponse cachedResponse = mock(HttpServletResponse.class);
+        doReturn(outputStream(cachedOut)).when(cachedResponse).getOutputStream();
+        filter.doFilterInternal(request, cachedResponse, rendering);
+
+        verify(rendering, times(1)).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+        assertTrue(Arrays.equals(responseOut.toByteArray(), cachedOut.toByteArray()));
+        verify(cachedResponse).setHeader("Content-Encoding", "gzip");
+        verify(cachedResponse).setContentLength(cachedOut.size());
+        assertEquals(1, filter.getMicroCache().getHitCount());
+
+        // personalized responses are rendered every time
+        doReturn("/account").when(request).getRequestURI();
+        FilterChain personalized = renderingChain(generateString(100), new Cookie("id", "1"));
+        for(int i = 0; i < 2; i++) {
+            hasMoreElement = true;
+            HttpServletResponse personalizedResponse = mock(HttpServletResponse.class);
+            doReturn(outputStream(new ByteArrayOutputStream())).when(personalizedResponse).getOutputStream();
+            filter.doFilterInternal(request, personalizedResponse, personalized);
+        }
+
+        verify(personalized, times(2)).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+    }
+
+    /**
+     * Test that only the headers set by the application are cached, and replayed replacing the values the filters in
+     * front set again, while headers set in front of this filter are not replayed.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testMicroCacheHeaders() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+        doReturn("GET").when(request).getMethod();
+        doReturn("/home").when(request).getRequestURI();
+
+        // set before the chain by a filter in front
+        doReturn(Arrays.asList("X-Request-Id")).when(response).getHeaderNames();
+        doReturn(Arrays.asList("request-1")).when(response).getHeaders("X-Request-Id");
+
+        FilterChain rendering = mock(FilterChain.class);
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                HttpServletResponse chainResponse = (HttpServletResponse) invocationOnMock.getArguments()[1];
+                chainResponse.setHeader("Cache-Control", "max-age=1");
+                chainResponse.addHeader("Link", "</site.css>; rel=preload");
+                chainResponse.addHeader("Link", "</app.js>; rel=preload");
+                chainResponse.getOutputStream().write(generateString(100).getBytes("UTF-8"));
+                return null;
+            }
+        }).when(rendering).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+
+        filter.setMicroCacheSize(1000000);
+        filter.doFilterInternal(request, response, rendering);
+
+        hasMoreElement = true;
+        HttpServletResponse cachedResponse = mock(HttpServletResponse.class);
+        doReturn(outputStream(new ByteArrayOutputStream())).when(cachedResponse).getOutputStream();
+        filter.doFilterInternal(request, cachedResponse, rendering);
+
+        verify(rendering, times(1)).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+        verify(cachedResponse, never()).addHeader(eq("X-Request-Id"), anyString());
+        verify(cachedResponse, never()).setHeader(eq("X-Request-Id"), anyString());
+        verify(cachedResponse).setHeader("Cache-Control", "max-age=1");
+        verify(cachedResponse, never()).addHeader(eq("Cache-Control"), anyString());
+        verify(cachedResponse).addHeader("Link", "</site.css>; rel=preload");
+        verify(cachedResponse).addHeader("Link", "</app.js>; rel=preload");
+    }
+
+    /**
+     * Test that redirects and the responses to requests with cookies are rendered every time, never cached.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testMicroCacheSkipsRedirectsAndCookies() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+        doReturn("GET").when(request).getMethod();
+        doReturn("/start").when(request).getRequestURI();
+
+        FilterChain redirecting = mock(FilterChain.class);
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                ((HttpServletResponse) invocationOnMock.getArguments()[1]).sendRedirect("/login");
+                return null;
+            }
+        }).when(redirecting).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+
+        filter.setMicroCacheSize(1000000);
+        for(int i = 0; i < 2; i++) {
+            hasMoreElement = true;
+            HttpServletResponse redirectResponse = mock(HttpServletResponse.class);
+            filter.doFilterInternal(request, redirectResponse, redirecting);
+            verify(redirectResponse).sendRedirect("/login");
+        }
+
+        verify(redirecting, times(2)).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+
+        doReturn("/home").when(request).getRequestURI();
+        doReturn("theme=dark").when(request).getHeader("Cookie");
+        FilterChain rendering = renderingChain(generateString(100), null);
+        for(int i = 0; i < 2; i++) {
+            hasMoreElement = true;
+            HttpServletResponse cookieResponse = mock(HttpServletResponse.class);
+            doReturn(outputStream(new ByteArrayOutputStream())).when(cookieResponse).getOutputStream();
+            filter.doFilterInternal(request, cookieResponse, rendering);
+        }
+
+        verify(rendering, times(2)).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+        assertEquals(0, filter.getMicroCache().getHitCount());
+    }
+
+    /**
+     * Test that concurrent misses of the same response are rendered once, the waiting request is answered with the
+     * response rendered by the leading one.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testMicroCacheCoalescesMisses() throws Exception {
+        doReturn("GET").when(request).getMethod();
+        doReturn("/report").when(request).getRequestURI();
+        doReturn(Collections.enumeration(Collections.<String>emptyList())).when(request).getHeaders("Accept-Encoding");
+
+        final CountDownLatch rendering = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FilterChain slowChain = mock(FilterChain.class);
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                rendering.countDown();
+                release.await();
+
+                HttpServletResponse chainResponse = (HttpServletResponse) invocationOnMock.getArguments()[1];
+                chainResponse.getOutputStream().write("report".getBytes("UTF-8"));
+                return null;
+            }
+        }).when(slowChain).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+
+        filter.setMicroCacheSize(1000000);
+
+        final FilterChain chain = slowChain;
+        Thread leader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    filter.doFilterInternal(request, response, chain);
+                } catch(Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        leader.start();
+        assertTrue(rendering.await(5, TimeUnit.SECONDS));
+
+        ByteArrayOutputStream waitingOut = new ByteArrayOutputStream();
+        HttpServletResponse waitingResponse = mock(HttpServletResponse.class);
+        doReturn(outputStream(waitingOut)).when(waitingResponse).getOutputStream();
+
+        // release the leader once this request waits for it
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch(InterruptedException e) {
+                    // release right away
+                }
+                release.countDown();
+            }
+        }.start();
+
+        filter.doFilterInternal(request, waitingResponse, slowChain);
+        leader.join(5000);
+
+        verify(slowChain, times(1)).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+        assertEquals("report", waitingOut.toString("UTF-8"));
+        assertEquals("report", responseOut.toString("UTF-8"));
+        assertEquals(1, filter.getMicroCache().getCoalescedCount());
+        verify(waitingResponse, never()).setHeader(eq("Content-Encoding"), anyString());
+    }
+
+    /**
+     * Returns a filter chain rendering the body, optionally setting a cookie.
+     *
+     * @param body the response body
+     * @param cookie the cookie to set, {@code null} for none
+     * @return the filter chain
+     * @throws Exception on error
+     */
+    private FilterChain renderingChain(final String body, final Cookie cookie) throws Exception {
+        FilterChain rendering = mock(FilterChain.class);
+
+        doAnswer(new Answer() {
+            public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+                HttpServletResponse chainResponse = (HttpServletResponse) invocationOnMock.getArguments()[1];
+                if(cookie != null) {
+                    chainResponse.addCookie(cookie);
+                }
+
+                chainResponse.getOutputStream().write(body.getBytes("UTF-8"));
+                return null;
+            }
+        }).when(rendering).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+
+        return rendering;
+    }
+
+    /**
+     * Ensure that a compressed fragment is spliced verbatim between the members compressed for the dynamic parts and
+     * that the concatenated members inflate to the whole page.
+     *
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Test
+    public void testWriteFragment() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.doFilterInternal(request, response, chain);
+
+        String head = "<html><body>" + generateString(300);
+        String footer = "<footer>" + generateString(500) + "</footer>";
+        String tail = generateString(200) + "</body></html>";
+        CompressedFragment fragment = new FragmentCache(100000).put("footer", "1", "UTF-8", footer.getBytes("UTF-8"));
+
+        DynamicResourceGZIPFilter.GZIPResponseWrapper wrapper =
+                (DynamicResourceGZIPFilter.GZIPResponseWrapper) filterChainResponse;
+        PrintWriter writer = wrapper.getWriter();
+        writer.write(head);
+        assertTrue(wrapper.writeFragment(null, fragment));
+        writer.write(tail);
+        writer.close();
+
+        String expected = head + footer + tail;
+        assertEquals(expected, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(responseOut.toByteArray())),
+                "UTF-8"));
+        verify(out, never()).flush();
+
+        byte[] compressed = responseOut.toByteArray();
+        byte[] member = fragment.getMember();
+        boolean spliced = false;
+        for(int i = 0; i + member.length <= compressed.length && !spliced; i++) {
+            spliced = Arrays.equals(member, Arrays.copyOfRange(compressed, i, i + member.length));
+        }
+        assertTrue("the fragment member should be written verbatim", spliced);
+    }
+
+    /**
+     * Ensure that a body completed within the hold back buffer is compressed in one shot by a native engine, without
+     * borrowing a deflater, and falls back to the JDK deflater when the engine is not installed.
+     *
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Test
+    public void testCompressionEngine() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+
+        filter.setCompressionEngine("libdeflate");
+        filter.setSampleSize(4096);
+        filter.doFilterInternal(request, response, chain);
+
+        String body = generateString(2000);
+        PrintWriter writer = filterChainResponse.getWriter();
+        writer.write(body);
+        writer.close();
+
+        verify(response).setHeader("Content-Encoding", "gzip");
+        assertEquals(body, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(responseOut.toByteArray())),
+                "UTF-8"));
+
+        DeflaterPool pool = filter.getDeflaterPool();
+        assertEquals(pool.getEngine().isOneShotPreferred() ? 0 : 1, pool.getBorrowCount());
+    }
+
+    /**
+     * Ensure that a validated response is held until complete and sent with the entity tag of its uncompressed body
+     * and its exact compressed length, and that a conditional request with the tag is answered as not modified
+     * without compressing the body.
+     *
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Test
+    public void testEntityTag() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+        doReturn("GET").when(request).getMethod();
+
+        filter.setEntityTags(true);
+        filter.setEagerBufferFlushingSize(10);
+        filter.doFilterInternal(request, response, chain);
+
+        String body = generateString(3000);
+        PrintWriter writer = filterChainResponse.getWriter();
+        writer.write(body);
+        writer.flush();
+        assertEquals("nothing should be sent before the body is validated", 0, responseOut.size());
+        writer.close();
+
+        ArgumentCaptor<String> entityTag = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("ETag"), entityTag.capture());
+        verify(response).setHeader("Content-Length", String.valueOf(responseOut.size()));
+        verify(response).setHeader("Content-Encoding", "gzip");
+        assertTrue(entityTag.getValue().startsWith("W/\""));
+        assertEquals(body, IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(responseOut.toByteArray())),
+                "UTF-8"));
+
+        // revalidation
+        hasMoreElement = true;
+        doReturn("\"other\", " + entityTag.getValue().substring(2)).when(request).getHeader("If-None-Match");
+        ByteArrayOutputStream revalidatedOut = new ByteArrayOutputStream();
+        HttpServletResponse revalidated = mock(HttpServletResponse.class);
+        doReturn(outputStream(revalidatedOut)).when(revalidated).getOutputStream();
+
+        filter.doFilterInternal(request, revalidated, chain);
+        writer = filterChainResponse.getWriter();
+        writer.write(body);
+        writer.close();
+
+        verify(revalidated).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(revalidated).setHeader("ETag", entityTag.getValue());
+        verify(revalidated, never()).setHeader("Content-Encoding", "gzip");
+        assertEquals(0, revalidatedOut.size());
+
+        // modified
+        hasMoreElement = true;
+        revalidatedOut.reset();
+        revalidated = mock(HttpServletResponse.class);
+        doReturn(outputStream(revalidatedOut)).when(revalidated).getOutputStream();
+
+        filter.doFilterInternal(request, revalidated, chain);
+        writer = filterChainResponse.getWriter();
+        writer.write(body + "!");
+        writer.close();
+
+        verify(revalidated, never()).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(revalidated).setHeader("Content-Encoding", "gzip");
+        verify(revalidated).setHeader("Content-Length", String.valueOf(revalidatedOut.size()));
+        assertEquals(body + "!", IOUtils.toString(new GZIPInputStream(
+                new ByteArrayInputStream(revalidatedOut.toByteArray())), "UTF-8"));
+    }
+
+    /**
+     * Ensure that a revalidation answered from the micro cache is answered as not modified when the entity tag of the
+     * cached response matches, and with the cached body otherwise.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testMicroCacheEntityTag() throws Exception {
+        mockGzipHeaderEncodingRequest("gzip");
+        doReturn("GET").when(request).getMethod();
+        doReturn("/home").when(request).getRequestURI();
+
+        FilterChain rendering = renderingChain(generateString(3000), null);
+        filter.setEntityTags(true);
+        filter.setMicroCacheSize(1000000);
+        filter.doFilterInternal(request, response, rendering);
+
+        ArgumentCaptor<String> entityTag = ArgumentCaptor.forClass(String.class);
+        verify(response).setHeader(eq("ETag"), entityTag.capture());
+
+        // revalidation
+        hasMoreElement = true;
+        doReturn(entityTag.getValue()).when(request).getHeader("If-None-Match");
+        ByteArrayOutputStream revalidatedOut = new ByteArrayOutputStream();
+        HttpServletResponse revalidated = mock(HttpServletResponse.class);
+        doReturn(outputStream(revalidatedOut)).when(revalidated).getOutputStream();
+        filter.doFilterInternal(request, revalidated, rendering);
+
+        verify(revalidated).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(revalidated).setHeader("ETag", entityTag.getValue());
+        verify(revalidated, never()).setHeader("Content-Encoding", "gzip");
+        assertEquals(0, revalidatedOut.size());
+
+        // another tag
+        hasMoreElement = true;
+        doReturn("W/\"other\"").when(request).getHeader("If-None-Match");
+        HttpServletResponse modified = mock(HttpServletResponse.class);
+        doReturn(outputStream(revalidatedOut)).when(modified).getOutputStream();
+        filter.doFilterInternal(request, modified, rendering);
+
+        verify(modified).setStatus(HttpServletResponse.SC_OK);
+        verify(modified).setHeader("Content-Encoding", "gzip");
+        assertTrue(Arrays.equals(responseOut.toByteArray(), revalidatedOut.toByteArray()));
+        verify(rendering, times(1)).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
+        assertEquals(2, filter.getMicroCache().getHitCount());
+    }
+
+    /**
+     * Ensure that a response larger than the validated size is sent as it comes without entity tag.
+     *
+     * @throws IOException on error
+     * @throws ServletException on error
+     */
+    @Test
+    public void testEntityTagMaxSize() throws IOException, ServletException {
+        mockGzipHeaderEncodingRequest("gzip");
+        doReturn("GET").when(request).getMethod();
+        doReturn("\"other\"").when(request).getHeader("If-None-Match");
+
+        filter.setEntityTags(true);
+        filter.setEntityTagMaxSize(1000);
+        filter.doFilterInternal(request, response, chain);
+
+        Random random = new Random(11);
+        StringBuilder body = new StringBuilder();
+        while(body.length() < 50000) {
+            body.append(random.nextInt());
+        }
+
+        PrintWriter writer = filterChainResponse.getWriter();
+        writer.write(body.toString());
+        writer.flush();
+        assertTrue(responseOut.size() > 0);
+        writer.close();
+
+        verify(response, never()).setHeader(eq("ETag"), anyString());
+        assertEquals(body.toString(), IOUtils.toString(new GZIPInputStream(
+                new ByteArrayInputStream(responseOut.toByteArray())), "UTF-8"));
+    }
+
     /**
      * Test eager buffer flushing
      *
@@ -343,6 +1308,49 @@ public class DynamicResourceGZIPFilterTest {
         verify(response, times(0)).setContentLength(anyInt());
     }
 
+    /**
+     * Inflates the response bytes flushed so far, after the gzip header.
+     *
+     * @return the inflated response
+     * @throws Exception on error
+     */
+    private String inflateFlushed() throws Exception {
+        byte[] bytes = responseOut.toByteArray();
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(bytes, 10, bytes.length - 10);
+
+        byte[] inflated = new byte[4096];
+        int len = inflater.inflate(inflated);
+        inflater.end();
+
+        return new String(inflated, 0, len, "UTF-8");
+    }
+
+    /**
+     * Returns a servlet output stream writing to the byte stream.
+     *
+     * @param bytes the byte stream
+     * @return the servlet output stream
+     */
+    private ServletOutputStream outputStream(final ByteArrayOutputStream bytes) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                bytes.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+    }
+
     /**
      * build some string with count characters
      *
@@ -493,6 +1501,116 @@ public class DynamicResourceGZIPFilterTest {
             fail("should have thrown exception since output stream was already invoked, and writer was invoked next.");
         } catch(IllegalStateException ignored) {}
     }
-}
 
+    /**
+     * A servlet output stream with a byte buffer write method but no channel, counting the byte buffer writes. Public
+     * like the container streams, so the write method is accessible.
+     */
+    public static class BufferOutputStream extends ServletOutputStream {
+
+        /**
+         * the written bytes
+         */
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /**
+         * the number of byte buffer writes
+         */
+        private int bufferWrites;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(int b) throws IOException {
+            bytes.write(b);
+        }
+
+        /**
+         * Write the remaining bytes of the buffer.
+         *
+         * @param src the buffer
+         * @throws IOException on IO error
+         */
+        public void write(ByteBuffer src) throws IOException {
+            byte[] chunk = new byte[src.remaining()];
+            src.get(chunk);
+            bytes.write(chunk);
+            bufferWrites++;
+        }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+
+    /**
+     * A servlet output stream that is also a channel, counting the writes through the channel.
+     */
+    private static class ChannelOutputStream extends ServletOutputStream implements WritableByteChannel {
+
+        /**
+         * the written bytes
+         */
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        /**
+         * the number of writes through the channel
+         */
+        private int channelWrites;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(int b) throws IOException {
+            bytes.write(b);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int write(ByteBuffer src) throws IOException {
+            int len = src.remaining();
+            byte[] chunk = new byte[len];
+            src.get(chunk);
+            bytes.write(chunk);
+            channelWrites++;
+
+            return len;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean isOpen() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+}
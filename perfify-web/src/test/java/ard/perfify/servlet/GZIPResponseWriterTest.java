@@ -0,0 +1,121 @@
+package ard.perfify.servlet;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.GZIPInputStream;
+
+import static junit.framework.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test for {@link GZIPResponseWriter} class.
+ */
+public class GZIPResponseWriterTest {
+
+    /**
+     * the response bytes
+     */
+    private ByteArrayOutputStream bytes;
+
+    /**
+     * the gzip stream written to
+     */
+    private GZIPResponseStream stream;
+
+    /**
+     * Initialize the gzip stream over a mock response.
+     *
+     * @throws Exception on error
+     */
+    @Before
+    public void setUp() throws Exception {
+        bytes = new ByteArrayOutputStream();
+
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        doReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                bytes.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        }).when(response).getOutputStream();
+
+        stream = new GZIPResponseStream(response, -1, false);
+    }
+
+    /**
+     * Test that chars are encoded in the given charset, including surrogate pairs split across writes and the char
+     * buffer boundary.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testEncoding() throws Exception {
+        GZIPResponseWriter writer = new GZIPResponseWriter(stream, "UTF-8");
+
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < 3000; i++) {
+            String s = i % 3 == 0 ? "\ud83d\ude00" : i % 3 == 1 ? "caf\u00e9 " : "<p/>";
+
+            for(char c : s.toCharArray()) {
+                writer.write(c);
+            }
+
+            writer.write(s, 0, s.length());
+            expected.append(s).append(s);
+        }
+
+        writer.close();
+
+        assertEquals(expected.toString(), gunzip("UTF-8"));
+    }
+
+    /**
+     * Test that a response encoding is honored and unmappable chars are replaced.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testResponseEncoding() throws Exception {
+        GZIPResponseWriter writer = new GZIPResponseWriter(stream, "ISO-8859-1");
+        writer.write("caf\u00e9 \u20ac");
+        writer.close();
+
+        assertEquals("caf\u00e9 ?", gunzip("ISO-8859-1"));
+
+        try {
+            new GZIPResponseWriter(stream, "no-such-charset");
+            fail("unsupported encoding accepted");
+        } catch(UnsupportedEncodingException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Returns the decompressed response.
+     *
+     * @param charset the response charset
+     * @return the response text
+     * @throws IOException on error
+     */
+    private String gunzip(String charset) throws IOException {
+        return IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray())), charset);
+    }
+}
@@ -0,0 +1,172 @@
+package ard.perfify.servlet;
+
+import ard.perfify.compress.ContentEncoding;
+import ard.perfify.compress.GzipVariantEncoder;
+import ard.perfify.compress.PrecompressManifest;
+import ard.perfify.compress.VariantEncoder;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletContext;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static junit.framework.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test for {@link LazyPrecompressor} class.
+ */
+public class LazyPrecompressorTest {
+
+    /**
+     * temporary directory
+     */
+    private File tmp;
+
+    /**
+     * mock servlet context
+     */
+    private ServletContext context;
+
+    /**
+     * set up the temporary directory and servlet context
+     *
+     * @throws Exception on error
+     */
+    @Before
+    public void setUp() throws Exception {
+        tmp = File.createTempFile("perfify", "lazy");
+        tmp.delete();
+        tmp.mkdirs();
+
+        context = mock(ServletContext.class);
+    }
+
+    /**
+     * remove the temporary directory
+     */
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(tmp);
+    }
+
+    /**
+     * Ensure that the first lookup only queues the resource and the variants are cached on disk by content hash.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testCompressInBackground() throws Exception {
+        File source = new File(tmp, "app.js");
+        FileUtils.writeStringToFile(source, StringUtils.repeat("var a = 1;\n", 200));
+        doReturn(FileUtils.openInputStream(source)).when(context).getResourceAsStream("/app.js");
+        doReturn(source.getPath()).when(context).getRealPath("/app.js");
+
+        LazyPrecompressor lazy = new LazyPrecompressor(context, new File(tmp, "cache"),
+                Collections.<VariantEncoder>singletonList(new GzipVariantEncoder()), 1, 10);
+        try {
+            assertNull(lazy.get("/app.js"));
+
+            PrecompressManifest.Entry entry = null;
+            for(int i = 0; i < 200 && entry == null; i++) {
+                Thread.sleep(25);
+                entry = lazy.get("/app.js");
+            }
+
+            assertNotNull(entry);
+            assertEquals(source.length(), entry.getLength());
+            File variant = lazy.getFile(entry, ContentEncoding.GZIP);
+            assertTrue(variant.getName().startsWith(entry.getHash()));
+            assertEquals(variant.length(), entry.getVariantSize("gzip"));
+
+            // a changed file drops the entry and queues it again
+            assertTrue(source.setLastModified(source.lastModified() - 10000));
+            assertNull(lazy.get("/app.js"));
+        } finally {
+            lazy.close();
+        }
+    }
+
+    /**
+     * Ensure that variants already cached under the content hash are reused, e.g. after a restart, unless the
+     * compression settings changed.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testReuseDiskCache() throws Exception {
+        byte[] content = StringUtils.repeat("body { color: red; }\n", 100).getBytes();
+        when(context.getResourceAsStream("/site.css")).thenReturn(new ByteArrayInputStream(content),
+                new ByteArrayInputStream(content), new ByteArrayInputStream(content));
+
+        VariantEncoder encoder = spy(new GzipVariantEncoder());
+        VariantEncoder other = spy(new GzipVariantEncoder());
+        doReturn("gzip-1").when(other).getSettings();
+        LazyPrecompressor first = new LazyPrecompressor(context, tmp, Arrays.asList(encoder), 1, 10);
+        LazyPrecompressor second = new LazyPrecompressor(context, tmp, Arrays.asList(encoder), 1, 10);
+        LazyPrecompressor third = new LazyPrecompressor(context, tmp, Arrays.asList(other), 1, 10);
+        try {
+            first.compress("/site.css");
+            second.compress("/site.css");
+
+            verify(encoder, times(1)).encode(eq("/site.css"), any(byte[].class));
+            assertEquals(first.get("/site.css").getVariantSize("gzip"), second.get("/site.css").getVariantSize("gzip"));
+            assertEquals(-1, second.get("/site.css").getLastModified());
+
+            third.compress("/site.css");
+
+            verify(other, times(1)).encode(eq("/site.css"), any(byte[].class));
+            assertFalse(first.getFile(first.get("/site.css"), ContentEncoding.GZIP)
+                    .equals(third.getFile(third.get("/site.css"), ContentEncoding.GZIP)));
+        } finally {
+            first.close();
+            second.close();
+            third.close();
+        }
+    }
+
+    /**
+     * Ensure that a missing resource is not queued again on every request, until its file appears.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testMissingResource() throws Exception {
+        File source = new File(tmp, "missing.js");
+        doReturn(source.getPath()).when(context).getRealPath("/missing.js");
+
+        LazyPrecompressor lazy = new LazyPrecompressor(context, new File(tmp, "cache"),
+                Collections.<VariantEncoder>singletonList(new GzipVariantEncoder()), 1, 10);
+        try {
+            assertNull(lazy.get("/missing.js"));
+            verify(context, timeout(5000)).getResourceAsStream("/missing.js");
+            Thread.sleep(100);
+
+            for(int i = 0; i < 10; i++) {
+                assertNull(lazy.get("/missing.js"));
+            }
+            Thread.sleep(100);
+            verify(context, times(1)).getResourceAsStream("/missing.js");
+
+            // the file appearing is looked up right away
+            FileUtils.writeStringToFile(source, StringUtils.repeat("var a = 1;\n", 200));
+            doReturn(FileUtils.openInputStream(source)).when(context).getResourceAsStream("/missing.js");
+
+            PrecompressManifest.Entry entry = lazy.get("/missing.js");
+            for(int i = 0; i < 200 && entry == null; i++) {
+                Thread.sleep(25);
+                entry = lazy.get("/missing.js");
+            }
+
+            assertNotNull(entry);
+        } finally {
+            lazy.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ard.perfify.servlet;
+
+import ard.perfify.compress.BufferPool;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import static junit.framework.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test for {@link PendingOutput} class.
+ */
+public class PendingOutputTest {
+
+    /**
+     * Ensure that held output is counted and only sent when released to be sent.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testHold() throws Exception {
+        ServletOutputStream output = mock(ServletOutputStream.class);
+        PendingOutput pending = new PendingOutput(output, new BufferPool(16, 4), this);
+
+        pending.hold();
+        pending.write(new byte[40], 0, 40);
+        pending.write(7);
+        assertEquals(41, pending.getQueuedLength());
+        verify(output, never()).write(any(byte[].class), anyInt(), anyInt());
+
+        pending.release(true);
+        assertFalse(pending.isHolding());
+        assertEquals(0, pending.getQueuedLength());
+        verify(output, times(2)).write(any(byte[].class), eq(0), eq(16));
+        verify(output, times(1)).write(any(byte[].class), eq(0), eq(9));
+
+        // dropped when released without sending
+        pending.hold();
+        pending.write(new byte[10], 0, 10);
+        pending.release(false);
+        verify(output, never()).write(any(byte[].class), eq(0), eq(10));
+        pending.release(true);
+        verify(output, never()).write(any(byte[].class), eq(0), eq(10));
+    }
+
+    /**
+     * Ensure that in non-blocking mode the output is queued while the container is not ready, and drained with the
+     * pending flush and close once it is.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testNonBlocking() throws Exception {
+        ServletOutputStream output = mock(ServletOutputStream.class);
+        WriteListener listener = mock(WriteListener.class);
+        PendingOutput pending = new PendingOutput(output, new BufferPool(16, 4), this);
+
+        pending.setWriteListener(listener);
+        ArgumentCaptor<WriteListener> containerListener = ArgumentCaptor.forClass(WriteListener.class);
+        verify(output).setWriteListener(containerListener.capture());
+        assertTrue(pending.isNonBlocking());
+
+        doReturn(false).when(output).isReady();
+        pending.write(new byte[20], 0, 20);
+        pending.flush();
+        assertFalse(pending.isReady());
+        verify(output, never()).write(any(byte[].class), anyInt(), anyInt());
+        verify(output, never()).flush();
+
+        doReturn(true).when(output).isReady();
+        containerListener.getValue().onWritePossible();
+        verify(output).write(any(byte[].class), eq(0), eq(16));
+        verify(output).write(any(byte[].class), eq(0), eq(4));
+        verify(output).flush();
+        verify(listener).onWritePossible();
+        assertTrue(pending.isReady());
+
+        doReturn(false).when(output).isReady();
+        pending.write(new byte[5], 0, 5);
+        pending.close();
+        verify(output, never()).close();
+
+        doReturn(true).when(output).isReady();
+        containerListener.getValue().onWritePossible();
+        verify(output).close();
+        verify(listener, times(1)).onWritePossible();
+    }
+}
@@ -1,14 +1,36 @@
 package ard.perfify.servlet;
 
+import ard.perfify.compress.ContentEncoding;
+import ard.perfify.compress.PrecompressManifest;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
 import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Enumeration;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
 
+import static junit.framework.Assert.*;
 import static org.mockito.Mockito.*;
 
 /**
@@ -145,6 +167,592 @@ public class StaticResourceGZIPFilterTest1 {
         verify(chain, times(1)).doFilter(any(HttpServletRequest.class), any(HttpServletResponse.class));
     }
 
+    /**
+     * test that with a manifest the forwarded response gets the precomputed content length and resources without
+     * a gzip variant are not forwarded.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterWithManifest() throws Exception {
+        RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+        initFilter("/test.css=abc|1000|42|gzip-9|gzip:200\n/tiny.js=def|10|42|gzip-9|\n");
+
+        doReturn(new SingleElementEnumeration("gzip,deflate")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/test.css").when(request).getRequestURI();
+        doReturn("/portal").when(request).getContextPath();
+        doReturn(dispatcher).when(request).getRequestDispatcher("/gzip/test.css");
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setHeader("Content-Encoding", "gzip");
+        verify(response, times(1)).setContentLength(200);
+        verify(dispatcher, times(1)).forward(eq(request), any(HttpServletResponse.class));
+
+        doReturn(new SingleElementEnumeration("gzip,deflate")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/tiny.js").when(request).getRequestURI();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setHeader("Content-Encoding", "gzip");
+        verify(chain, times(1)).doFilter(request, response);
+    }
+
+    /**
+     * test that the preferred encoding with a variant is forwarded to, honoring the client quality values.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterNegotiatesEncoding() throws Exception {
+        RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+        initFilter("/app.js=abc|1000|42|gzip-9|gzip:300,br:200,zstd:250\n/site.css=def|1000|42|gzip-9|gzip:300\n");
+
+        doReturn("/portal").when(request).getContextPath();
+        doReturn(dispatcher).when(request).getRequestDispatcher(anyString());
+
+        // brotli is preferred
+        doReturn(new SingleElementEnumeration("gzip, deflate, br, zstd")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/app.js").when(request).getRequestURI();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setHeader("Content-Encoding", "br");
+        verify(response, times(1)).setContentLength(200);
+        verify(request, times(1)).getRequestDispatcher("/br/app.js");
+
+        // brotli explicitly not acceptable, zstd has a lower quality than gzip
+        doReturn(new SingleElementEnumeration("br;q=0, zstd;q=0.5, gzip")).when(request).getHeaders("Accept-Encoding");
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setHeader("Content-Encoding", "gzip");
+        verify(request, times(1)).getRequestDispatcher("/gzip/app.js");
+
+        // only brotli accepted but the resource has only a gzip variant, so identity is served
+        doReturn(new SingleElementEnumeration("br")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/site.css").when(request).getRequestURI();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(chain, times(1)).doFilter(request, response);
+    }
+
+    /**
+     * test that the encoding preference order is configurable.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterConfiguredEncodingOrder() throws Exception {
+        RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+        initFilter("/app.js=abc|1000|42|gzip-9|gzip:300,br:200,zstd:250\n");
+        filter.setEncodings(new String[] {"zstd", "gzip"});
+
+        doReturn(new SingleElementEnumeration("*")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/app.js").when(request).getRequestURI();
+        doReturn("/portal").when(request).getContextPath();
+        doReturn(dispatcher).when(request).getRequestDispatcher(anyString());
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setHeader("Content-Encoding", "zstd");
+        verify(request, times(1)).getRequestDispatcher("/zstd/app.js");
+    }
+
+    /**
+     * test that with the cache enabled variants are written from memory with their content length and without a
+     * forward, and read from the web application only once.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterCached() throws Exception {
+        filter.setCacheSize(1024);
+        ServletContext context = initFilter("/app.js=abc|1000|42|gzip-9|gzip:4\n");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        when(context.getResourceAsStream("/gzip/app.js")).thenReturn(new ByteArrayInputStream(new byte[] {1, 2, 3, 4}));
+        doReturn("application/javascript").when(context).getMimeType("/app.js");
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/app.js").when(request).getRequestURI();
+        doReturn("/portal").when(request).getContextPath();
+        doReturn(outputStream(body)).when(response).getOutputStream();
+
+        filter.doFilterInternal(request, response, chain);
+
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(2)).setHeader("Content-Encoding", "gzip");
+        verify(response, times(2)).setContentType("application/javascript");
+        verify(response, times(2)).setContentLength(4);
+        verify(context, times(1)).getResourceAsStream("/gzip/app.js");
+        verify(request, times(0)).getRequestDispatcher(anyString());
+        verify(chain, times(0)).doFilter(request, response);
+
+        assertEquals(8, body.size());
+        assertEquals(1, filter.getCache().getHitCount());
+        assertEquals(1, filter.getCache().getMissCount());
+    }
+
+    /**
+     * test that large variants are streamed from their file, through a memory mapping when the container output
+     * stream is not a channel and with a channel transfer when it is.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterLargeFile() throws Exception {
+        byte[] content = new byte[100000];
+        for(int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+
+        File file = File.createTempFile("perfify", ".js.gz");
+        try {
+            FileUtils.writeByteArrayToFile(file, content);
+
+            filter.setLargeFileThreshold(50000);
+            ServletContext context = initFilter("/big.js=abc|500000|42|gzip-9|gzip:100000\n/small.js=def|5000|42|gzip-9|gzip:1000\n");
+            ByteArrayOutputStream mapped = new ByteArrayOutputStream();
+            final ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+
+            doReturn(file.getPath()).when(context).getRealPath("/gzip/big.js");
+            doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+            doReturn("/portal/big.js").when(request).getRequestURI();
+            doReturn("/portal").when(request).getContextPath();
+            doReturn(outputStream(mapped)).when(response).getOutputStream();
+
+            filter.doFilterInternal(request, response, chain);
+
+            assertTrue(Arrays.equals(content, mapped.toByteArray()));
+
+            doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+            doReturn(new ChannelOutputStream(transferred)).when(response).getOutputStream();
+
+            filter.doFilterInternal(request, response, chain);
+
+            assertTrue(Arrays.equals(content, transferred.toByteArray()));
+
+            // a channel that stops taking bytes falls back to copying the rest
+            transferred.reset();
+            doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+            doReturn(new ChannelOutputStream(transferred, 30000)).when(response).getOutputStream();
+
+            filter.doFilterInternal(request, response, chain);
+
+            assertTrue(Arrays.equals(content, transferred.toByteArray()));
+            verify(response, times(3)).setContentLength(100000);
+            verify(request, times(0)).getRequestDispatcher(anyString());
+
+            // below the threshold the variant is forwarded without touching the file system
+            RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+            doReturn(dispatcher).when(request).getRequestDispatcher("/gzip/small.js");
+            doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+            doReturn("/portal/small.js").when(request).getRequestURI();
+
+            filter.doFilterInternal(request, response, chain);
+
+            verify(context, times(0)).getRealPath("/gzip/small.js");
+            verify(dispatcher, times(1)).forward(eq(request), any(HttpServletResponse.class));
+        } finally {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * test that revalidation requests are answered with a 304 before any dispatch, using an entity tag per encoding.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterNotModified() throws Exception {
+        RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+        initFilter("/app.js=abc|1000|1300000000000|gzip-9|gzip:300,br:200\n");
+
+        doReturn("GET").when(request).getMethod();
+        doReturn("/portal/app.js").when(request).getRequestURI();
+        doReturn("/portal").when(request).getContextPath();
+        doReturn(dispatcher).when(request).getRequestDispatcher(anyString());
+        doReturn(-1L).when(request).getDateHeader("If-Modified-Since");
+
+        // matching entity tag of the negotiated encoding
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+        doReturn(new SingleElementEnumeration("\"xyz-gzip\", W/\"abc-gzip-b6abc086-12c\"")).when(request).getHeaders("If-None-Match");
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response, times(1)).setHeader("ETag", "\"abc-gzip-b6abc086-12c\"");
+        verify(response, times(1)).addHeader("Vary", "Accept-Encoding");
+
+        // the gzip tag does not match the brotli variant
+        doReturn(new SingleElementEnumeration("br")).when(request).getHeaders("Accept-Encoding");
+        doReturn(new SingleElementEnumeration("\"abc-gzip-b6abc086-12c\"")).when(request).getHeaders("If-None-Match");
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(response, times(1)).setHeader("ETag", "\"abc-br-b6abc086-c8\"");
+        verify(response, times(1)).setDateHeader("Last-Modified", 1300000000000L);
+        verify(request, times(1)).getRequestDispatcher("/br/app.js");
+
+        // not modified since
+        doReturn(new SingleElementEnumeration("br")).when(request).getHeaders("Accept-Encoding");
+        doReturn(new Vector().elements()).when(request).getHeaders("If-None-Match");
+        doReturn(1300000000999L).when(request).getDateHeader("If-Modified-Since");
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(2)).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        verify(dispatcher, times(1)).forward(eq(request), any(HttpServletResponse.class));
+    }
+
+    /**
+     * test that the forwarded servlet cannot replace the encoding aware validators.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterPreservesValidators() throws Exception {
+        RequestDispatcher dispatcher = new RequestDispatcher() {
+            public void forward(ServletRequest req, ServletResponse res) {
+                ((HttpServletResponse) res).setHeader("ETag", "W/\"300-1300000000000\"");
+                ((HttpServletResponse) res).setHeader("Cache-Control", "max-age=60");
+            }
+
+            public void include(ServletRequest req, ServletResponse res) {
+            }
+        };
+        initFilter("/app.js=abc|1000|1300000000000|gzip-9|gzip:300\n");
+
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/app.js").when(request).getRequestURI();
+        doReturn("/portal").when(request).getContextPath();
+        doReturn(dispatcher).when(request).getRequestDispatcher("/gzip/app.js");
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setHeader("ETag", "\"abc-gzip-b6abc086-12c\"");
+        verify(response, times(0)).setHeader("ETag", "W/\"300-1300000000000\"");
+        verify(response, times(1)).setHeader("Cache-Control", "max-age=60");
+    }
+
+    /**
+     * test that the entity tag of a variant changes with its compression settings and size.
+     */
+    @Test
+    public void testGetETag() {
+        PrecompressManifest.Entry entry = new PrecompressManifest.Entry("/app.js", "abc", 1000, 0, "gzip-9");
+        entry.putVariant("gzip", 300);
+        PrecompressManifest.Entry recompressed = new PrecompressManifest.Entry("/app.js", "abc", 1000, 0, "gzip-6");
+        recompressed.putVariant("gzip", 300);
+        PrecompressManifest.Entry resized = new PrecompressManifest.Entry("/app.js", "abc", 1000, 0, "gzip-9");
+        resized.putVariant("gzip", 310);
+
+        assertEquals("\"abc-gzip-b6abc086-12c\"", filter.getETag(entry, ContentEncoding.GZIP));
+        assertFalse(filter.getETag(entry, ContentEncoding.GZIP).equals(filter.getETag(recompressed, ContentEncoding.GZIP)));
+        assertFalse(filter.getETag(entry, ContentEncoding.GZIP).equals(filter.getETag(resized, ContentEncoding.GZIP)));
+    }
+
+    /**
+     * test that range requests on cached variants are answered with the requested encoded bytes.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterRange() throws Exception {
+        filter.setCacheSize(1024);
+        ServletContext context = initFilter("/app.js=abc|1000|1300000000000|gzip-9|gzip:10\n");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        doReturn(new ByteArrayInputStream("0123456789".getBytes())).when(context).getResourceAsStream("/gzip/app.js");
+        doReturn("application/javascript").when(context).getMimeType("/app.js");
+        doReturn("GET").when(request).getMethod();
+        doReturn("/portal/app.js").when(request).getRequestURI();
+        doReturn("/portal").when(request).getContextPath();
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+        doReturn(new Vector().elements()).when(request).getHeaders("If-None-Match");
+        doReturn(-1L).when(request).getDateHeader("If-Modified-Since");
+        doReturn("bytes=2-4").when(request).getHeader("Range");
+        doReturn(outputStream(body)).when(response).getOutputStream();
+
+        filter.doFilterInternal(request, response, chain);
+
+        assertEquals("234", body.toString());
+        verify(response, times(1)).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response, times(1)).setHeader("Content-Range", "bytes 2-4/10");
+        verify(response, times(1)).setHeader("Accept-Ranges", "bytes");
+        verify(response, times(1)).setContentLength(3);
+
+        // multiple ranges
+        body.reset();
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+        doReturn(new Vector().elements()).when(request).getHeaders("If-None-Match");
+        doReturn("bytes=0-1,-2").when(request).getHeader("Range");
+        doReturn("\"abc-gzip-b6abc086-a\"").when(request).getHeader("If-Range");
+
+        filter.doFilterInternal(request, response, chain);
+
+        String multipart = body.toString("ISO-8859-1");
+        assertTrue(multipart.contains("Content-Range: bytes 0-1/10\r\n\r\n01\r\n"));
+        assertTrue(multipart.contains("Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+        assertTrue(multipart.endsWith("--\r\n"));
+        verify(response, times(2)).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        verify(response, times(1)).setContentLength(body.size());
+
+        // outdated if-range serves the whole variant
+        body.reset();
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+        doReturn(new Vector().elements()).when(request).getHeaders("If-None-Match");
+        doReturn("\"old-gzip\"").when(request).getHeader("If-Range");
+
+        filter.doFilterInternal(request, response, chain);
+
+        assertEquals("0123456789", body.toString());
+        verify(response, times(1)).setContentLength(10);
+
+        // the source date does not validate the variant bytes
+        body.reset();
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+        doReturn(new Vector().elements()).when(request).getHeaders("If-None-Match");
+        doReturn("Sat, 12 Mar 2011 12:26:40 GMT").when(request).getHeader("If-Range");
+        doReturn(1300000000000L).when(request).getDateHeader("If-Range");
+
+        filter.doFilterInternal(request, response, chain);
+
+        assertEquals("0123456789", body.toString());
+        verify(response, times(2)).setContentLength(10);
+
+        // unsatisfiable
+        doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+        doReturn(new Vector().elements()).when(request).getHeaders("If-None-Match");
+        doReturn(null).when(request).getHeader("If-Range");
+        doReturn("bytes=10-").when(request).getHeader("Range");
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        verify(response, times(1)).setHeader("Content-Range", "bytes */10");
+    }
+
+    /**
+     * test that with variant indexing only indexed variants are negotiated, so a missing variant never gets a
+     * content encoding.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterIndexedVariants() throws Exception {
+        RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+        filter.setIndexVariants(true);
+
+        FilterConfig config = mock(FilterConfig.class);
+        ServletContext context = mock(ServletContext.class);
+        doReturn(context).when(config).getServletContext();
+        doReturn(new Vector().elements()).when(config).getInitParameterNames();
+        doReturn(new HashSet<String>(Arrays.asList("/br/app.js"))).when(context).getResourcePaths("/br/");
+        filter.init(config);
+
+        doReturn("/portal").when(request).getContextPath();
+        doReturn(dispatcher).when(request).getRequestDispatcher(anyString());
+        doReturn(new SingleElementEnumeration("gzip, br")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/app.js").when(request).getRequestURI();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(1)).setHeader("Content-Encoding", "br");
+        verify(request, times(1)).getRequestDispatcher("/br/app.js");
+
+        // no variant indexed, the gzip variant is not assumed to exist
+        doReturn(new SingleElementEnumeration("gzip, br")).when(request).getHeaders("Accept-Encoding");
+        doReturn("/portal/other.js").when(request).getRequestURI();
+
+        filter.doFilterInternal(request, response, chain);
+
+        verify(response, times(0)).setHeader("Content-Encoding", "gzip");
+        verify(chain, times(1)).doFilter(request, response);
+
+        filter.destroy();
+    }
+
+    /**
+     * test that with runtime compression the first request is served as is and later requests get the variant from
+     * the disk cache.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testDoFilterLazy() throws Exception {
+        File directory = File.createTempFile("perfify", "lazy");
+        directory.delete();
+
+        try {
+            filter.setLazyCacheDirectory(directory.getPath());
+            filter.setEncodings(new String[] {"gzip"});
+            ServletContext context = initFilter("/app.js=abc|1000|42|gzip-9|gzip:300\n");
+            byte[] content = StringUtils.repeat("var answer = 42;\n", 100).getBytes();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+            doReturn(new ByteArrayInputStream(content)).when(context).getResourceAsStream("/hotfix.js");
+            doReturn("/portal").when(request).getContextPath();
+            doReturn("/portal/hotfix.js").when(request).getRequestURI();
+            doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+            doReturn(outputStream(body)).when(response).getOutputStream();
+
+            filter.doFilterInternal(request, response, chain);
+
+            verify(chain, times(1)).doFilter(request, response);
+
+            for(int i = 0; i < 200 && filter.getLazy().size() == 0; i++) {
+                Thread.sleep(25);
+            }
+
+            doReturn(new SingleElementEnumeration("gzip")).when(request).getHeaders("Accept-Encoding");
+
+            filter.doFilterInternal(request, response, chain);
+
+            verify(chain, times(1)).doFilter(request, response);
+            verify(response, times(1)).setHeader("Content-Encoding", "gzip");
+            assertEquals(new String(content), IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(body.toByteArray()))));
+        } finally {
+            filter.destroy();
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Returns a servlet output stream writing to the given stream.
+     *
+     * @param out the target stream
+     * @return the servlet output stream
+     */
+    private ServletOutputStream outputStream(final ByteArrayOutputStream out) {
+        return new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+            }
+        };
+    }
+
+    /**
+     * Initialize the filter with a servlet context that serves the given manifest.
+     *
+     * @param manifest the manifest content
+     * @return the mock servlet context
+     * @throws Exception on error
+     */
+    private ServletContext initFilter(String manifest) throws Exception {
+        FilterConfig config = mock(FilterConfig.class);
+        ServletContext context = mock(ServletContext.class);
+
+        doReturn(context).when(config).getServletContext();
+        doReturn(new Vector().elements()).when(config).getInitParameterNames();
+        doReturn(new ByteArrayInputStream(manifest.getBytes())).when(context).getResourceAsStream(PrecompressManifest.DEFAULT_LOCATION);
+
+        filter.init(config);
+
+        return context;
+    }
+
+    /**
+     * A servlet output stream that is also a channel, like the output streams of containers that support zero copy.
+     */
+    private static class ChannelOutputStream extends ServletOutputStream implements WritableByteChannel {
+
+        /**
+         * the target stream
+         */
+        private final ByteArrayOutputStream out;
+
+        /**
+         * the number of bytes taken through the channel before it stalls, returning 0
+         */
+        private final long stallAfter;
+
+        /**
+         * Constructor.
+         *
+         * @param out the target stream
+         */
+        ChannelOutputStream(ByteArrayOutputStream out) {
+            this(out, Long.MAX_VALUE);
+        }
+
+        /**
+         * Constructor.
+         *
+         * @param out the target stream
+         * @param stallAfter the number of bytes taken through the channel before it stalls
+         */
+        ChannelOutputStream(ByteArrayOutputStream out, long stallAfter) {
+            this.out = out;
+            this.stallAfter = stallAfter;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(int b) throws IOException {
+            if(out.size() < stallAfter) {
+                throw new IOException("should have been written through the channel.");
+            }
+
+            out.write(b);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int write(ByteBuffer src) throws IOException {
+            int len = (int) Math.min(src.remaining(), stallAfter - out.size());
+            if(len <= 0) {
+                return 0;
+            }
+
+            byte[] bytes = new byte[len];
+            src.get(bytes);
+            out.write(bytes);
+
+            return len;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean isOpen() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+    }
+
     /**
      * An implementation of enumeration that only contains a single element.
      */
@@ -0,0 +1,174 @@
+package ard.perfify.servlet;
+
+import ard.perfify.compress.ContentEncoding;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletContext;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static junit.framework.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test for {@link VariantIndex} class.
+ */
+public class VariantIndexTest {
+
+    /**
+     * temporary directory
+     */
+    private File tmp;
+
+    /**
+     * mock servlet context
+     */
+    private ServletContext context;
+
+    /**
+     * the index under test
+     */
+    private VariantIndex index;
+
+    /**
+     * set up the temporary directory and servlet context
+     *
+     * @throws Exception on error
+     */
+    @Before
+    public void setUp() throws Exception {
+        tmp = File.createTempFile("perfify", "index");
+        tmp.delete();
+        tmp.mkdirs();
+
+        context = mock(ServletContext.class);
+    }
+
+    /**
+     * close the index and remove the temporary directory
+     */
+    @After
+    public void tearDown() {
+        if(index != null) {
+            index.close();
+        }
+
+        FileUtils.deleteQuietly(tmp);
+    }
+
+    /**
+     * Ensure that the web application and the class path META-INF/resources roots in directories and jars are indexed.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testBuild() throws Exception {
+        doReturn(new HashSet<String>(Arrays.asList("/gzip/css/", "/gzip/app.js"))).when(context).getResourcePaths("/gzip/");
+        doReturn(new HashSet<String>(Arrays.asList("/gzip/css/site.css"))).when(context).getResourcePaths("/gzip/css/");
+        doReturn(new HashSet<String>(Arrays.asList("/br/app.js"))).when(context).getResourcePaths("/br/");
+
+        File classes = new File(tmp, "classes");
+        FileUtils.writeStringToFile(new File(classes, "META-INF/resources/br/lib/util.js"), "x");
+
+        File jar = new File(tmp, "lib.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        out.putNextEntry(new JarEntry("META-INF/resources/zstd/"));
+        out.putNextEntry(new JarEntry("META-INF/resources/zstd/app.js"));
+        out.write('x');
+        out.close();
+
+        ClassLoader loader = new URLClassLoader(new URL[] {classes.toURI().toURL(), jar.toURI().toURL()}, null);
+        index = new VariantIndex(context, loader, Arrays.asList(ContentEncoding.values()));
+        index.build();
+
+        assertEquals(EnumSet.of(ContentEncoding.GZIP, ContentEncoding.BROTLI, ContentEncoding.ZSTD), index.get("/app.js"));
+        assertEquals(EnumSet.of(ContentEncoding.GZIP), index.get("/css/site.css"));
+        assertEquals(EnumSet.of(ContentEncoding.BROTLI), index.get("/lib/util.js"));
+        assertTrue(index.get("/missing.js").isEmpty());
+        assertEquals(3, index.size());
+    }
+
+    /**
+     * Ensure that removing a tree removes the variants under it, and every variant of the encoding from the root.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testRemoveTree() throws Exception {
+        doReturn(new HashSet<String>(Arrays.asList("/gzip/css/", "/gzip/app.js"))).when(context).getResourcePaths("/gzip/");
+        doReturn(new HashSet<String>(Arrays.asList("/gzip/css/site.css", "/gzip/css/print.css"))).when(context).getResourcePaths("/gzip/css/");
+        doReturn(new HashSet<String>(Arrays.asList("/br/css/"))).when(context).getResourcePaths("/br/");
+        doReturn(new HashSet<String>(Arrays.asList("/br/css/site.css"))).when(context).getResourcePaths("/br/css/");
+
+        index = new VariantIndex(context, getClass().getClassLoader(), Arrays.asList(ContentEncoding.GZIP, ContentEncoding.BROTLI));
+        index.build();
+        assertEquals(3, index.size());
+
+        index.removeTree("/css", ContentEncoding.GZIP);
+        assertEquals(EnumSet.of(ContentEncoding.BROTLI), index.get("/css/site.css"));
+        assertTrue(index.get("/css/print.css").isEmpty());
+        assertTrue(index.get("/app.js").contains(ContentEncoding.GZIP));
+
+        index.removeTree("/", ContentEncoding.GZIP);
+        assertTrue(index.get("/app.js").isEmpty());
+        assertEquals(1, index.size());
+    }
+
+    /**
+     * Ensure that the variant directories of an exploded web application are watched for created and deleted files.
+     *
+     * @throws Exception on error
+     */
+    @Test
+    public void testWatch() throws Exception {
+        File gzip = new File(tmp, "gzip");
+        FileUtils.writeStringToFile(new File(gzip, "app.js"), "x");
+        doReturn(gzip.getPath()).when(context).getRealPath("/gzip");
+
+        index = new VariantIndex(context, getClass().getClassLoader(), Arrays.asList(ContentEncoding.GZIP));
+        assertTrue(index.watch());
+        assertTrue(index.get("/app.js").contains(ContentEncoding.GZIP));
+
+        File css = new File(gzip, "css");
+        css.mkdirs();
+        waitFor("/css/site.css", false);
+        FileUtils.writeStringToFile(new File(css, "site.css"), "x");
+        waitFor("/css/site.css", true);
+
+        new File(gzip, "app.js").delete();
+        waitFor("/app.js", false);
+
+        // moving a directory away only reports the directory itself
+        FileUtils.writeStringToFile(new File(css, "print.css"), "x");
+        waitFor("/css/print.css", true);
+        assertTrue(css.renameTo(new File(tmp, "css")));
+        waitFor("/css/site.css", false);
+        waitFor("/css/print.css", false);
+        assertEquals(0, index.size());
+    }
+
+    /**
+     * Wait for the watcher to bring the index to the expected state.
+     *
+     * @param uri the resource uri
+     * @param present whether the gzip variant is expected
+     * @throws InterruptedException when interrupted
+     */
+    private void waitFor(String uri, boolean present) throws InterruptedException {
+        for(int i = 0; i < 200 && index.get(uri).contains(ContentEncoding.GZIP) != present; i++) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(present, index.get(uri).contains(ContentEncoding.GZIP));
+    }
+}